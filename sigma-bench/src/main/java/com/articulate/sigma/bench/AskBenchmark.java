@@ -0,0 +1,43 @@
+package com.articulate.sigma.bench;
+
+import com.articulate.sigma.Formula;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retrieval from the loaded synthetic KB: KB.ask, KB.askWithRestriction and KB.isSubclass,
+ * cycling through the classes of the corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class AskBenchmark
+{
+	private int next;
+
+	private String nextClass(CorpusState state)
+	{
+		next = (next + 1) % state.size;
+		return SyntheticCorpus.className(next);
+	}
+
+	@Benchmark public List<Formula> ask(CorpusState state)
+	{
+		return state.kb.ask("arg", 2, nextClass(state));
+	}
+
+	@Benchmark public List<Formula> askWithRestriction(CorpusState state)
+	{
+		return state.kb.askWithRestriction(0, "instance", 2, nextClass(state));
+	}
+
+	@Benchmark public boolean isSubclass(CorpusState state)
+	{
+		return state.kb.isSubclass(nextClass(state), SyntheticCorpus.className(next / 2));
+	}
+}
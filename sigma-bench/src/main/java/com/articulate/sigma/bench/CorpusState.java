@@ -0,0 +1,75 @@
+package com.articulate.sigma.bench;
+
+import com.articulate.sigma.Formula;
+import com.articulate.sigma.KB;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Synthetic corpus written to a temporary directory, and the KB loaded from it, shared by the benchmarks
+ * of a trial. The size parameter is the number of classes; the other counts are proportional to it.
+ */
+@State(Scope.Benchmark)
+public class CorpusState
+{
+	@Param({ "2000" }) public int size;
+
+	@Param({ "4" }) public int files;
+
+	public File dir;
+
+	public List<String> paths;
+
+	public List<String> statements;
+
+	public List<Formula> facts;
+
+	public List<Formula> rules;
+
+	public KB kb;
+
+	@Setup(Level.Trial) public void setUp() throws IOException
+	{
+		// KB and KIF log every file and cache build at INFO
+		Logger.getLogger("com.articulate.sigma").setLevel(java.util.logging.Level.WARNING);
+
+		SyntheticCorpus corpus = new SyntheticCorpus(42L, size, size / 10, size * 10, size / 4);
+		dir = Files.createTempDirectory("sigma-bench").toFile();
+		paths = corpus.write(dir, files);
+		statements = corpus.statements();
+
+		facts = new ArrayList<>();
+		rules = new ArrayList<>();
+		for (String statement : statements)
+		{
+			Formula f = new Formula();
+			f.set(statement);
+			if (f.isRule())
+				rules.add(f);
+			else
+				facts.add(f);
+		}
+
+		kb = new KB("bench", dir.getPath());
+		kb.addConstituents(paths);
+	}
+
+	@TearDown(Level.Trial) public void tearDown()
+	{
+		File[] children = dir.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+				//noinspection ResultOfMethodCallIgnored
+				child.delete();
+		}
+		//noinspection ResultOfMethodCallIgnored
+		dir.delete();
+	}
+}
@@ -0,0 +1,68 @@
+package com.articulate.sigma.bench;
+
+import com.articulate.sigma.Formula;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formula term access and unification: Formula.car, Formula.cdr, Formula.getArgument on the facts
+ * of the corpus, and Formula.unify of a fact with a pattern that has a variable in its place.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class FormulaBenchmark
+{
+	private Formula[] facts;
+
+	private Formula[] patterns;
+
+	private int next;
+
+	@Setup(Level.Trial) public void setUp(CorpusState state)
+	{
+		facts = state.facts.toArray(new Formula[0]);
+		patterns = new Formula[facts.length];
+		for (int i = 0; i < facts.length; i++)
+		{
+			Formula pattern = new Formula();
+			pattern.set("(" + facts[i].car() + " ?X " + facts[i].getArgument(2) + ")");
+			patterns[i] = pattern;
+		}
+	}
+
+	private int nextIndex()
+	{
+		next = (next + 1) % facts.length;
+		return next;
+	}
+
+	@Benchmark public String car()
+	{
+		return facts[nextIndex()].car();
+	}
+
+	@Benchmark public String cdr()
+	{
+		return facts[nextIndex()].cdr();
+	}
+
+	@Benchmark public void getArgument(Blackhole bh)
+	{
+		Formula f = facts[nextIndex()];
+		bh.consume(f.getArgument(1));
+		bh.consume(f.getArgument(2));
+	}
+
+	@Benchmark public SortedMap<String, String> unify()
+	{
+		int i = nextIndex();
+		return patterns[i].unify(facts[i]);
+	}
+}
@@ -0,0 +1,51 @@
+package com.articulate.sigma.bench;
+
+import com.articulate.sigma.KB;
+import com.articulate.sigma.kif.KIF;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and loading the synthetic corpus: KIF.readFile, KB.addConstituent file by file,
+ * KB.addConstituents in bulk, and KB.buildRelationCaches on the loaded KB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark
+{
+	@Benchmark public void parse(CorpusState state, Blackhole bh) throws Exception
+	{
+		for (String path : state.paths)
+		{
+			KIF kif = new KIF();
+			kif.readFile(path);
+			bh.consume(kif.formulas);
+		}
+	}
+
+	@Benchmark public KB addConstituent(CorpusState state)
+	{
+		KB kb = new KB("bench", state.dir.getPath());
+		for (String path : state.paths)
+			kb.addConstituent(path);
+		return kb;
+	}
+
+	@Benchmark public KB addConstituents(CorpusState state)
+	{
+		KB kb = new KB("bench", state.dir.getPath());
+		kb.addConstituents(state.paths);
+		return kb;
+	}
+
+	@Benchmark public KB buildRelationCaches(CorpusState state)
+	{
+		state.kb.buildRelationCaches();
+		return state.kb;
+	}
+}
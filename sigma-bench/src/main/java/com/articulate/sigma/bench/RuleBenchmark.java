@@ -0,0 +1,50 @@
+package com.articulate.sigma.bench;
+
+import com.articulate.sigma.Clause;
+import com.articulate.sigma.Clausifier;
+import com.articulate.sigma.Formula;
+import com.articulate.sigma.FormulaPreProcessor;
+import com.articulate.sigma.Tuple;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rule processing on the rules of the corpus: Clausifier.toNegAndPosLitsWithRenameInfo and
+ * FormulaPreProcessor.preProcess against the loaded synthetic KB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RuleBenchmark
+{
+	private Formula[] rules;
+
+	private int next;
+
+	@Setup(Level.Trial) public void setUp(CorpusState state)
+	{
+		rules = state.rules.toArray(new Formula[0]);
+	}
+
+	private Formula nextRule()
+	{
+		next = (next + 1) % rules.length;
+		return rules[next];
+	}
+
+	@Benchmark public Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausify()
+	{
+		return Clausifier.toNegAndPosLitsWithRenameInfo(nextRule());
+	}
+
+	@Benchmark public List<Formula> preProcess(CorpusState state)
+	{
+		return FormulaPreProcessor.preProcess(nextRule(), false, state.kb);
+	}
+}
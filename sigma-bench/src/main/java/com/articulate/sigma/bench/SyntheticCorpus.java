@@ -0,0 +1,191 @@
+package com.articulate.sigma.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic KIF corpus.
+ * Generates a SUMO-shaped KB from a seed, so that benchmarks run offline and on the same input every time:
+ * a class hierarchy with some multiple inheritance, binary predicates with domains and documentation,
+ * instances, ground facts and rules with quantified variables.
+ */
+public class SyntheticCorpus
+{
+	/**
+	 * Relations and classes the generated statements are typed against
+	 */
+	private static final String[] HEADER = { //
+			"(instance instance BinaryPredicate)", //
+			"(instance subclass BinaryPredicate)", //
+			"(instance subclass TransitiveRelation)", //
+			"(instance subrelation BinaryPredicate)", //
+			"(instance subrelation TransitiveRelation)", //
+			"(instance domain TernaryPredicate)", //
+			"(instance documentation TernaryPredicate)", //
+			"(domain instance 1 Entity)", //
+			"(domain instance 2 SetOrClass)", //
+			"(domain subclass 1 SetOrClass)", //
+			"(domain subclass 2 SetOrClass)", //
+			"(subclass SetOrClass Entity)", //
+			"(subclass Relation Entity)", //
+			"(subclass Predicate Relation)", //
+			"(subclass BinaryRelation Relation)", //
+			"(subclass TernaryRelation Relation)", //
+			"(subclass BinaryPredicate Predicate)", //
+			"(subclass BinaryPredicate BinaryRelation)", //
+			"(subclass TernaryPredicate Predicate)", //
+			"(subclass TernaryPredicate TernaryRelation)", //
+			"(subclass TransitiveRelation BinaryRelation)", //
+			"(subclass C0 Entity)", //
+	};
+
+	private final long seed;
+
+	private final int classCount;
+
+	private final int relationCount;
+
+	private final int instanceCount;
+
+	private final int ruleCount;
+
+	/**
+	 * Constructor
+	 *
+	 * @param seed          random seed
+	 * @param classCount    number of classes
+	 * @param relationCount number of binary predicates
+	 * @param instanceCount number of instances, each with one fact
+	 * @param ruleCount     number of rules
+	 */
+	public SyntheticCorpus(long seed, int classCount, int relationCount, int instanceCount, int ruleCount)
+	{
+		this.seed = seed;
+		this.classCount = classCount;
+		this.relationCount = relationCount;
+		this.instanceCount = instanceCount;
+		this.ruleCount = ruleCount;
+	}
+
+	/**
+	 * Generate statements
+	 *
+	 * @return statements, one KIF formula each, definitions first
+	 */
+	public List<String> statements()
+	{
+		Random random = new Random(this.seed);
+		List<String> result = new ArrayList<>();
+		for (String statement : HEADER)
+			result.add(statement);
+
+		// class hierarchy, with about one class in ten having a second superclass
+		for (int c = 1; c < this.classCount; c++)
+		{
+			int parent = random.nextInt(c);
+			result.add("(subclass " + className(c) + " " + className(parent) + ")");
+			if (random.nextInt(10) == 0)
+			{
+				int parent2 = random.nextInt(c);
+				if (parent2 != parent)
+					result.add("(subclass " + className(c) + " " + className(parent2) + ")");
+			}
+		}
+
+		// binary predicates
+		for (int r = 0; r < this.relationCount; r++)
+		{
+			String relation = relationName(r);
+			result.add("(instance " + relation + " BinaryPredicate)");
+			result.add("(domain " + relation + " 1 " + className(random.nextInt(this.classCount)) + ")");
+			result.add("(domain " + relation + " 2 " + className(random.nextInt(this.classCount)) + ")");
+			result.add("(documentation " + relation + " EnglishLanguage \"Synthetic relation number " + r + ".\")");
+		}
+
+		// instances and facts
+		for (int i = 0; i < this.instanceCount; i++)
+		{
+			result.add("(instance " + instanceName(i) + " " + className(random.nextInt(this.classCount)) + ")");
+			if (this.relationCount > 0)
+				result.add("(" + relationName(random.nextInt(this.relationCount)) + " " + instanceName(i) + " " + instanceName(random.nextInt(this.instanceCount)) + ")");
+		}
+
+		// rules
+		for (int k = 0; k < this.ruleCount && this.relationCount > 0; k++)
+		{
+			String c1 = className(random.nextInt(this.classCount));
+			String c2 = className(random.nextInt(this.classCount));
+			String r1 = relationName(random.nextInt(this.relationCount));
+			String r2 = relationName(random.nextInt(this.relationCount));
+			if (k % 2 == 0)
+				result.add("(=> (and (instance ?X " + c1 + ") (" + r1 + " ?X ?Y)) (exists (?Z) (and (instance ?Z " + c2 + ") (" + r2 + " ?Y ?Z))))");
+			else
+				result.add("(<=> (" + r1 + " ?X ?Y) (or (" + r2 + " ?Y ?X) (and (instance ?X " + c1 + ") (not (instance ?Y " + c2 + ")))))");
+		}
+		return result;
+	}
+
+	/**
+	 * Write the corpus to KIF files. Statements are dealt out to the files in turn.
+	 *
+	 * @param dir       directory
+	 * @param fileCount number of files
+	 * @return paths of the files written
+	 * @throws IOException io exception
+	 */
+	public List<String> write(File dir, int fileCount) throws IOException
+	{
+		List<String> statements = statements();
+		List<String> paths = new ArrayList<>();
+		for (int n = 0; n < fileCount; n++)
+		{
+			File file = new File(dir, "synthetic" + n + ".kif");
+			try (PrintWriter pw = new PrintWriter(file, StandardCharsets.UTF_8.name()))
+			{
+				pw.println(";; synthetic corpus, seed " + this.seed + ", part " + n + " of " + fileCount);
+				for (int i = n; i < statements.size(); i += fileCount)
+					pw.println(statements.get(i));
+			}
+			paths.add(file.getCanonicalPath());
+		}
+		return paths;
+	}
+
+	/**
+	 * Class name
+	 *
+	 * @param c class number
+	 * @return name of class c
+	 */
+	public static String className(int c)
+	{
+		return "C" + c;
+	}
+
+	/**
+	 * Relation name
+	 *
+	 * @param r relation number
+	 * @return name of relation r
+	 */
+	public static String relationName(int r)
+	{
+		return "rel" + r;
+	}
+
+	/**
+	 * Instance name
+	 *
+	 * @param i instance number
+	 * @return name of instance i
+	 */
+	public static String instanceName(int i)
+	{
+		return "I" + i;
+	}
+}
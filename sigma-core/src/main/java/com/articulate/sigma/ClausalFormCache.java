@@ -0,0 +1,179 @@
+package com.articulate.sigma;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Clausal form cache.
+ * Versioned binary file of the clausal forms of a set of formulas, keyed by a 64-bit hash of the formula text,
+ * so that a KB rebuilt from unchanged axioms does not clausify them again.
+ * After the header (magic, version) come the entry count and the entries, each the text hash, the text, the clauses
+ * (negative then positive literals, as text) and the variable rename map. The text is kept so that a form found by
+ * hash is used only for the formula it was made from, should two texts have the same hash. A file of another version
+ * is ignored, so VERSION is to be bumped whenever the clausifier changes the forms it produces.
+ */
+public final class ClausalFormCache
+{
+	/**
+	 * Magic number ("SGCF")
+	 */
+	static final int MAGIC = 0x53474346;
+
+	/**
+	 * Format version (2 : formulas above the clausifier threshold have definitional clausal forms, 3 : Skolem terms
+	 * are named with a key of the formula, 4 : entries hold the formula text, 5 : so are definitional literals)
+	 */
+	static final int VERSION = 5;
+
+	private ClausalFormCache()
+	{
+	}
+
+	/**
+	 * Hash formula text (64-bit FNV-1a over its chars)
+	 *
+	 * @param text formula text
+	 * @return hash
+	 */
+	static long hash(String text)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++)
+		{
+			h ^= text.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	// R E A D
+
+	/**
+	 * Read cache file
+	 *
+	 * @param file file
+	 * @return clausal forms by formula text hash, with the original formula (second) holding only the text, to be
+	 * checked against that of the formula the form is looked up for; empty if the file does not exist or is not a
+	 * cache of this version
+	 * @throws IOException io exception
+	 */
+	public static Map<Long, Tuple.Triple<List<Clause>, Formula, Map<String, String>>> read(File file) throws IOException
+	{
+		Map<Long, Tuple.Triple<List<Clause>, Formula, Map<String, String>>> result = new HashMap<>();
+		if (!file.exists())
+			return result;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return result;
+			int n = in.readInt();
+			for (int i = 0; i < n; i++)
+			{
+				long hash = in.readLong();
+				Tuple.Triple<List<Clause>, Formula, Map<String, String>> form = new Tuple.Triple<>();
+				form.second = new Formula();
+				form.second.text = KBSnapshot.readString(in);
+				int clauseCount = in.readInt();
+				if (clauseCount >= 0)
+				{
+					form.first = new ArrayList<>(clauseCount);
+					for (int j = 0; j < clauseCount; j++)
+					{
+						Clause clause = new Clause();
+						readLiterals(in, clause.negativeLits);
+						readLiterals(in, clause.positiveLits);
+						form.first.add(clause);
+					}
+				}
+				int renameCount = in.readInt();
+				if (renameCount >= 0)
+				{
+					form.third = new HashMap<>();
+					for (int j = 0; j < renameCount; j++)
+						form.third.put(KBSnapshot.readString(in), KBSnapshot.readString(in));
+				}
+				result.put(hash, form);
+			}
+		}
+		return result;
+	}
+
+	private static void readLiterals(DataInput in, List<Formula> literals) throws IOException
+	{
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+		{
+			Formula literal = new Formula();
+			literal.set(KBSnapshot.readString(in));
+			literals.add(literal);
+		}
+	}
+
+	// W R I T E
+
+	/**
+	 * Write cache file. The file is written aside and moved into place, so that an interrupted write leaves the
+	 * previous cache intact.
+	 *
+	 * @param formulas formulas, those whose clausal form has not been computed are skipped
+	 * @param file     file
+	 * @return number of entries written
+	 * @throws IOException io exception
+	 */
+	public static int write(Collection<Formula> formulas, File file) throws IOException
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		int n = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)))
+		{
+			List<Formula> cached = new ArrayList<>();
+			for (Formula f : formulas)
+				if (f.peekClausalForm() != null)
+					cached.add(f);
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(cached.size());
+			for (Formula f : cached)
+			{
+				Tuple.Triple<List<Clause>, Formula, Map<String, String>> form = f.peekClausalForm();
+				out.writeLong(hash(f.text));
+				KBSnapshot.writeString(out, f.text);
+				if (form.first == null)
+					out.writeInt(-1);
+				else
+				{
+					out.writeInt(form.first.size());
+					for (Clause clause : form.first)
+					{
+						writeLiterals(out, clause.negativeLits);
+						writeLiterals(out, clause.positiveLits);
+					}
+				}
+				if (form.third == null)
+					out.writeInt(-1);
+				else
+				{
+					out.writeInt(form.third.size());
+					for (Map.Entry<String, String> entry : form.third.entrySet())
+					{
+						KBSnapshot.writeString(out, entry.getKey());
+						KBSnapshot.writeString(out, entry.getValue());
+					}
+				}
+				n++;
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return n;
+	}
+
+	private static void writeLiterals(DataOutput out, List<Formula> literals) throws IOException
+	{
+		out.writeInt(literals.size());
+		for (Formula literal : literals)
+			KBSnapshot.writeString(out, literal.text);
+	}
+}
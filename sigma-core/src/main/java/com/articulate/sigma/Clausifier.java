@@ -11,9 +11,13 @@ in Working Notes of the IJCAI-2003 Workshop on Ontology and Distributed Systems,
 August 9, Acapulco, Mexico.  See also http://sigmakee.sourceforge.net
 */
 
+
 package com.articulate.sigma;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
  * The code in the section below implements an algorithm for
@@ -22,19 +26,121 @@ import java.util.*;
  * public Formula clausify()
  * public List clausifyWithRenameInfo()
  * public List toNegAndPosLitsWithRenameInfo()
+ * public Map toNegAndPosLits(Consumer)
  * The result is a single formula in conjunctive normal form
  * (CNF), which is actually a set of (possibly negated) clauses
  * surrounded by an "or".
+ * The formula is parsed once into a tree of immutable nodes.  Each
+ * conversion step rewrites the tree, returning the nodes it leaves
+ * unchanged, so that subtrees are shared rather than copied; text is
+ * produced only for the resulting clauses.
+ * A Clausifier holds the state of one run: the counters used to
+ * generate new variables and Skolem terms start from 0 for each
+ * input formula.  Clausification is thus reentrant, and the same
+ * formula always yields the same clausal form.  Skolem terms and
+ * definitional literals are numbered by the run's counter followed
+ * by a key hashed from the formula text (Sk1_key, (SkFn 1_key ...),
+ * (Def 1_key ...)), so that different formulas do not share them.
+ * The key is a 64-bit FNV-1a hash, not derived from the KB, so that
+ * the names, and the cached clausal forms, do not depend on load
+ * order.  Two formulas with the same key would share names: this
+ * risk is accepted, as it is about n^2/2^65 for n formulas, some
+ * 3e-8 for a million axioms.
+ * Distributing 'or' over 'and' may multiply the number of clauses.
+ * In definitional mode, each conjunction found under a disjunction
+ * is replaced by a new literal (Def n_key vars...) that stands for it,
+ * with clauses stating that the literal implies each conjunct, so
+ * that the clausal form grows linearly; the result is satisfiable
+ * if and only if the formula is.  The automatic mode, the default,
+ * switches to definitional mode for formulas that would otherwise
+ * yield more clauses than a threshold.
  */
 public class Clausifier
 {
-	private Formula formula;
+	private final Formula formula;
+
+	/**
+	 * Parsed formula
+	 */
+	private final Node root;
+
+	// This variable holds the int value that is used to generate unique variable names.
+	private int varIndex = 0;
+
+	// This variable holds the int value that is used to generate unique Skolem terms.
+	private int skolemIndex = 0;
+
+	/**
+	 * Key of the formula, from a 64-bit hash of its text, that makes the names generated in this run unique
+	 * across formulas, barring a hash collision
+	 */
+	private final String key;
+
+	// This variable holds the int value that is used to generate unique definitional literals.
+	private int definitionIndex = 0;
+
+	/**
+	 * CNF mode
+	 */
+	public enum Mode
+	{
+		/**
+		 * Distribute disjunctions over conjunctions
+		 */
+		DISTRIBUTE,
+		/**
+		 * Introduce definitional literals for conjunctions under disjunctions
+		 */
+		DEFINITIONAL,
+		/**
+		 * Distribute, unless this would yield more clauses than the threshold
+		 */
+		AUTO
+	}
+
+	/**
+	 * Default threshold, in clauses, above which the automatic mode switches to definitional CNF
+	 */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	/**
+	 * Predicate of definitional literals
+	 */
+	public static final String DEF_PRED = "Def";
+
+	private final Mode mode;
+
+	private final int threshold;
+
+	// C O U N T E R S
+
+	// Formulas converted by distribution
+	private static final AtomicLong distributedCount = new AtomicLong();
+
+	// Formulas converted with definitional literals
+	private static final AtomicLong definitionalCount = new AtomicLong();
+
+	// Formulas converted with definitional literals because the automatic mode switched
+	private static final AtomicLong switchCount = new AtomicLong();
+
+	// Definitional literals introduced
+	private static final AtomicLong definitionCount = new AtomicLong();
+
+	private static final Node AND = Node.atom(Formula.AND);
 
-	// This static variable holds the int value that is used to generate unique variable names.
-	private static int VAR_INDEX = 0;
+	private static final Node OR = Node.atom(Formula.OR);
 
-	// This static variable holds the int value that is used to generate unique Skolem terms.
-	private static int SKOLEM_INDEX = 0;
+	private static final Node NOT = Node.atom(Formula.NOT);
+
+	private static final Node IF = Node.atom(Formula.IF);
+
+	private static final Node UQUANT = Node.atom(Formula.UQUANT);
+
+	private static final Node EQUANT = Node.atom(Formula.EQUANT);
+
+	private static final Node SKFN = Node.atom(Formula.SK_PREF + Formula.FN_SUFF);
+
+	private static final Node DEF = Node.atom(DEF_PRED);
 
 	/**
 	 * Constructor
@@ -42,9 +148,261 @@ public class Clausifier
 	 * @param s formula string
 	 */
 	public Clausifier(String s)
+	{
+		this(s, Mode.AUTO, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param s    formula string
+	 * @param mode CNF mode
+	 */
+	public Clausifier(String s, Mode mode)
+	{
+		this(s, mode, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param s         formula string
+	 * @param mode      CNF mode
+	 * @param threshold number of clauses above which the automatic mode switches to definitional CNF
+	 */
+	public Clausifier(String s, Mode mode, int threshold)
 	{
 		formula = new Formula();
 		formula.set(s);
+		root = Node.parse(s == null ? "" : s);
+		key = Long.toUnsignedString(ClausalFormCache.hash(s == null ? "" : s));
+		this.mode = mode;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Number of formulas converted to CNF by distribution
+	 *
+	 * @return count since start or last reset
+	 */
+	public static long getDistributedCount()
+	{
+		return distributedCount.get();
+	}
+
+	/**
+	 * Number of formulas converted to CNF with definitional literals, whether
+	 * requested or switched to
+	 *
+	 * @return count since start or last reset
+	 */
+	public static long getDefinitionalCount()
+	{
+		return definitionalCount.get();
+	}
+
+	/**
+	 * Number of formulas for which the automatic mode switched to definitional CNF
+	 *
+	 * @return count since start or last reset
+	 */
+	public static long getSwitchCount()
+	{
+		return switchCount.get();
+	}
+
+	/**
+	 * Number of definitional literals introduced
+	 *
+	 * @return count since start or last reset
+	 */
+	public static long getDefinitionCount()
+	{
+		return definitionCount.get();
+	}
+
+	/**
+	 * Reset counters
+	 */
+	public static void resetCounters()
+	{
+		distributedCount.set(0);
+		definitionalCount.set(0);
+		switchCount.set(0);
+		definitionCount.set(0);
+	}
+
+	/**
+	 * Node of the formula tree : an atom, or a list of nodes.  Nodes are
+	 * never modified, so that a rewritten formula shares the subtrees it
+	 * has in common with the original.
+	 */
+	private static final class Node
+	{
+		private static final Node[] NONE = new Node[0];
+
+		private static final Node BLANK = new Node("", null);
+
+		/**
+		 * Atom text, null for a list
+		 */
+		final String atom;
+
+		/**
+		 * List elements, null for an atom
+		 */
+		final Node[] elements;
+
+		private Node(String atom, Node[] elements)
+		{
+			this.atom = atom;
+			this.elements = elements;
+		}
+
+		static Node atom(String atom)
+		{
+			return new Node(atom, null);
+		}
+
+		static Node list(Node... elements)
+		{
+			return new Node(null, elements);
+		}
+
+		static Node list(List<Node> elements)
+		{
+			return new Node(null, elements.toArray(NONE));
+		}
+
+		/**
+		 * Parse, with the element boundaries of Formula car/cdr
+		 *
+		 * @param s formula string
+		 * @return tree
+		 */
+		static Node parse(String s)
+		{
+			return parse(Term.parse(s.trim()));
+		}
+
+		private static Node parse(Term term)
+		{
+			if (!term.isList())
+				return atom(term.getText());
+			Node[] elements = new Node[term.size()];
+			for (int i = 0; i < elements.length; i++)
+				elements[i] = parse(term.getChild(i));
+			return new Node(null, elements);
+		}
+
+		boolean isList()
+		{
+			return this.elements != null;
+		}
+
+		boolean isVariable()
+		{
+			return this.atom != null && Formula.isVariable(this.atom);
+		}
+
+		/**
+		 * Size
+		 *
+		 * @return number of elements, 0 for an atom
+		 */
+		int size()
+		{
+			return this.elements == null ? 0 : this.elements.length;
+		}
+
+		/**
+		 * Get element
+		 *
+		 * @param i element index
+		 * @return i-th element, a blank atom if there is none, as Formula car/cdr would return an empty string
+		 */
+		Node get(int i)
+		{
+			return i < size() ? this.elements[i] : BLANK;
+		}
+
+		/**
+		 * Head
+		 *
+		 * @return the first element if it is an atom, null otherwise
+		 */
+		String head()
+		{
+			return this.elements != null && this.elements.length > 0 ? this.elements[0].atom : null;
+		}
+
+		/**
+		 * Structural equality
+		 *
+		 * @param that other node
+		 * @return whether the two nodes stand for the same text
+		 */
+		boolean same(Node that)
+		{
+			if (this == that)
+				return true;
+			if (this.atom != null)
+				return this.atom.equals(that.atom);
+			if (that.elements == null || this.elements.length != that.elements.length)
+				return false;
+			for (int i = 0; i < this.elements.length; i++)
+				if (!this.elements[i].same(that.elements[i]))
+					return false;
+			return true;
+		}
+
+		void write(StringBuilder sb)
+		{
+			if (this.atom != null)
+			{
+				sb.append(this.atom);
+				return;
+			}
+			sb.append(Formula.LP);
+			for (int i = 0; i < this.elements.length; i++)
+			{
+				if (i > 0)
+					sb.append(Formula.SPACE);
+				this.elements[i].write(sb);
+			}
+			sb.append(Formula.RP);
+		}
+
+		@Override public String toString()
+		{
+			if (this.atom != null)
+				return this.atom;
+			StringBuilder sb = new StringBuilder();
+			write(sb);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Apply a rewriting to the elements of a list, left to right
+	 *
+	 * @param n list
+	 * @param f rewriting
+	 * @return n itself if no element was changed, else a new list
+	 */
+	private static Node map(Node n, UnaryOperator<Node> f)
+	{
+		Node[] elements = null;
+		for (int i = 0; i < n.elements.length; i++)
+		{
+			Node element = n.elements[i];
+			Node newElement = f.apply(element);
+			if (newElement != element && elements == null)
+				elements = n.elements.clone();
+			if (elements != null)
+				elements[i] = newElement;
+		}
+		return elements == null ? n : Node.list(elements);
 	}
 
 	/**
@@ -66,24 +424,23 @@ public class Clausifier
 		Tuple.Triple<Formula, Formula, Map<String, String>> result = new Tuple.Triple<>();
 		try
 		{
-			Map<String, String> topLevelVars = new HashMap<>();
-			Map<String, String> scopedRenames = new HashMap<>();
 			Map<String, String> allRenames = new HashMap<>();
-			Map<String, String> standardizedRenames = new HashMap<>();
-			formula = equivalencesOut();
-			formula = implicationsOut();
-			formula = negationsIn();
-			formula = renameVariables(topLevelVars, scopedRenames, allRenames);
-			formula = existentialsOut();
-			formula = universalsOut();
-			formula = disjunctionsIn();
-			formula = standardizeApart(standardizedRenames);
-			allRenames.putAll(standardizedRenames);
-
-			result.first = formula;
+			Node cnf = toCNF(allRenames);
+			if (isNonEmpty(formula.text))
+			{
+				List<Node> clauses = conjuncts(cnf);
+				Node[] newClauses = new Node[clauses.size() + 1];
+				newClauses[0] = AND;
+				for (int i = 0; i < clauses.size(); i++)
+					newClauses[i + 1] = standardizeApart(clauses.get(i), new HashMap<>(), allRenames);
+				cnf = clauses.size() > 1 ? Node.list(newClauses) : newClauses[1];
+			}
+			Formula clausalForm = new Formula();
+			clausalForm.set(cnf.toString());
+
+			result.first = clausalForm;
 			result.second = old;
 			result.third = allRenames;
-			// resetClausifyIndices();
 		}
 		catch (Exception ex)
 		{
@@ -138,51 +495,13 @@ public class Clausifier
 		Tuple.Triple<List<Clause>, Formula, Map<String, String>> result = new Tuple.Triple<>();
 		try
 		{
-			Tuple.Triple<Formula, Formula, Map<String, String>> clausesWithRenameInfo = this.clausifyWithRenameInfo();
-
-			Formula clausalForm = clausesWithRenameInfo.first;
-			Clausifier clausifier = new Clausifier(clausalForm.text);
-			List<Formula> clauses = clausifier.operatorsOut();
+			List<Clause> clauses = new ArrayList<>();
+			result.third = toNegAndPosLits(clauses::add);
 			if (!clauses.isEmpty())
-			{
-				List<Clause> newClauses = new ArrayList<>();
-				for (Formula clause : clauses)
-				{
-					Clause literals = new Clause();
-					if (clause.listP())
-					{
-						while (!clause.empty())
-						{
-							boolean isNegLit = false;
-							String lit = clause.car();
-							Formula litF = new Formula();
-							litF.set(lit);
-							if (litF.listP() && litF.car().equals(Formula.NOT))
-							{
-								litF.set(litF.cadr());
-								isNegLit = true;
-							}
-							if (litF.text.equals(Formula.LOG_FALSE))
-								isNegLit = true;
-							if (isNegLit)
-								literals.negativeLits.add(litF);
-							else
-								literals.positiveLits.add(litF);
-							clause = clause.cdrAsFormula();
-						}
-					}
-					else if (clause.text.equals(Formula.LOG_FALSE))
-						literals.negativeLits.add(clause);
-					else
-						literals.positiveLits.add(clause);
-					newClauses.add(literals);
-				}
-				// Collections.sort(negLits);
-				// Collections.sort(posLits);
-				result.first = newClauses;
-			}
-			result.second = clausesWithRenameInfo.second;
-			result.third = clausesWithRenameInfo.third;
+				result.first = clauses;
+			Formula old = new Formula();
+			old.text = formula.text;
+			result.second = old;
 		}
 		catch (Exception ex)
 		{
@@ -225,6 +544,55 @@ public class Clausifier
 		return clausifier.toNegAndPosLitsWithRenameInfo();
 	}
 
+	/**
+	 * Convenience method
+	 *
+	 * @param f    formula
+	 * @param mode CNF mode
+	 * @return A three-element tuple, as toNegAndPosLitsWithRenameInfo(f)
+	 */
+	public static Tuple.Triple<List<Clause>, Formula, Map<String, String>> toNegAndPosLitsWithRenameInfo(Formula f, Mode mode)
+	{
+		Clausifier clausifier = new Clausifier(f.text, mode);
+		return clausifier.toNegAndPosLitsWithRenameInfo();
+	}
+
+	/**
+	 * This method converts the SUO-KIF Formula to clauses and hands
+	 * each clause to the consumer as soon as its variables have been
+	 * standardized apart, so that the clauses of a large formula need
+	 * not be held together.  The clauses come in the order of
+	 * toNegAndPosLitsWithRenameInfo().
+	 *
+	 * @param consumer receives the clauses
+	 * @return A Map of variable renamings, complete once the last clause
+	 * has been handed over.
+	 */
+	public Map<String, String> toNegAndPosLits(Consumer<Clause> consumer)
+	{
+		Map<String, String> allRenames = new HashMap<>();
+		Node cnf = toCNF(allRenames);
+		if (isNonEmpty(formula.text))
+		{
+			for (Node clause : conjuncts(cnf))
+				consumer.accept(toClause(standardizeApart(clause, new HashMap<>(), allRenames)));
+		}
+		return allRenames;
+	}
+
+	/**
+	 * Convenience method
+	 *
+	 * @param f        formula
+	 * @param consumer receives the clauses
+	 * @return A Map of variable renamings.
+	 */
+	public static Map<String, String> toNegAndPosLits(Formula f, Consumer<Clause> consumer)
+	{
+		Clausifier clausifier = new Clausifier(f.text);
+		return clausifier.toNegAndPosLits(consumer);
+	}
+
 	/**
 	 * Returns a String in which all variables and row variables have
 	 * been normalized -- renamed, in depth-first order of occurrence,
@@ -341,289 +709,290 @@ public class Clausifier
 	}
 
 	/**
-	 * This method converts every occurrence of '<=>' in the Formula
-	 * to a conjunct with two occurrences of '=>'.
+	 * This method runs the conversion steps up to conjunctive normal
+	 * form, before variables are standardized apart.
 	 *
-	 * @return A Formula with no occurrences of '<=>'.
+	 * @param allRenames A Map from all new vars in the Formula to their old counterparts.
+	 * @return A conjunction of disjunctions, or a single disjunction.
 	 */
-	private Formula equivalencesOut()
+	private Node toCNF(Map<String, String> allRenames)
 	{
-		Formula result = formula;
-		if (formula.listP() && !(formula.empty()))
+		Node f = equivalencesOut(root);
+		f = implicationsOut(f);
+		f = negationsIn(f);
+		f = renameVariables(f, new HashMap<>(), new HashMap<>(), allRenames);
+		f = existentialsOut(f);
+		f = universalsOut(f);
+		if (mode == Mode.DEFINITIONAL || (mode == Mode.AUTO && clauseCount(f) > threshold))
 		{
-			String head = formula.car();
-			String newFStr;
-			if (isNonEmpty(head) && Formula.listP(head))
-			{
-				Clausifier headF = new Clausifier(head);
-				String newHead = headF.equivalencesOut().text;
-				Clausifier clausifier = new Clausifier(formula.cdr());
-				newFStr = clausifier.equivalencesOut().cons(newHead).text;
-			}
-			else if (head.equals(Formula.IFF))
-			{
-				String second = formula.cadr();
-				Clausifier secondF = new Clausifier(second);
-				String newSecond = secondF.equivalencesOut().text;
-				String third = formula.caddr();
-				Clausifier thirdF = new Clausifier(third);
-				String newThird = thirdF.equivalencesOut().text;
-				newFStr = ("(and (=> " + newSecond + " " + newThird + ") (=> " + newThird + " " + newSecond + "))");
-			}
-			else
-			{
-				Clausifier fourth = new Clausifier(formula.cdrAsFormula().text);
-				newFStr = fourth.equivalencesOut().cons(head).text;
-			}
-			if (newFStr != null)
-			{
-				result = new Formula();
-				result.set(newFStr);
-			}
+			if (mode == Mode.AUTO)
+				switchCount.incrementAndGet();
+			definitionalCount.incrementAndGet();
+			f = definitionsOut(f);
 		}
-		return result;
+		else
+			distributedCount.incrementAndGet();
+		return disjunctionsIn(f);
 	}
 
 	/**
-	 * This method converts every occurrence of '(=> LHS RHS' in the
-	 * Formula to a disjunct of the form '(or (not LHS) RHS)'.
+	 * This method computes the number of clauses that distributing
+	 * 'or' over 'and' would yield.
 	 *
-	 * @return A Formula with no occurrences of '=>'.
+	 * @param n A formula tree without quantifiers, with 'not' accorded
+	 *          narrowest scope.
+	 * @return The number of clauses, Long.MAX_VALUE if it overflows.
 	 */
-	private Formula implicationsOut()
+	private static long clauseCount(Node n)
 	{
-		Formula result = formula;
-		String newFStr;
-		if (formula.listP() && !formula.empty())
+		String arg0 = n.head();
+		if (Formula.AND.equals(arg0))
 		{
-			String head = formula.car();
-			if (isNonEmpty(head) && Formula.listP(head))
-			{
-				Clausifier headF = new Clausifier(head);
-				String newHead = headF.implicationsOut().text;
-				Clausifier clausifier = new Clausifier(formula.cdr());
-				newFStr = clausifier.implicationsOut().cons(newHead).text;
-			}
-			else if (head.equals(Formula.IF))
-			{
-				String second = formula.cadr();
-				Clausifier secondF = new Clausifier(second);
-				String newSecond = secondF.implicationsOut().text;
-				String third = formula.caddr();
-				Clausifier thirdF = new Clausifier(third);
-				String newThird = thirdF.implicationsOut().text;
-				newFStr = "(or (not " + newSecond + ") " + newThird + ")";
-			}
-			else
+			long count = 0;
+			for (int i = 1; i < n.size(); i++)
 			{
-				Clausifier fourth = new Clausifier(formula.cdrAsFormula().text);
-				newFStr = fourth.implicationsOut().cons(head).text;
+				count += clauseCount(n.get(i));
+				if (count < 0)
+					return Long.MAX_VALUE;
 			}
-			if (newFStr != null)
+			return count;
+		}
+		if (Formula.OR.equals(arg0))
+		{
+			long count = 1;
+			for (int i = 1; i < n.size(); i++)
 			{
-				result = new Formula();
-				result.set(newFStr);
+				long c = clauseCount(n.get(i));
+				if (c != 0 && count > Long.MAX_VALUE / c)
+					return Long.MAX_VALUE;
+				count *= c;
 			}
+			return count;
 		}
-		return result;
+		return 1;
 	}
 
 	/**
-	 * This method 'pushes in' all occurrences of 'not', so that each
-	 * occurrence has the narrowest possible scope, and also removes
-	 * from the Formula all occurrences of '(not (not ...))'.
+	 * This method replaces each conjunction under a disjunction by a
+	 * new definitional literal, and adds clauses stating that the
+	 * literal implies each of the conjuncts.  As 'not' has been pushed
+	 * in, literals occur positively only, and the implication suffices
+	 * for the result to be satisfiable if and only if the formula is.
 	 *
-	 * @return A Formula with all occurrences of 'not' accorded
-	 * narrowest scope, and no occurrences of '(not (not ...))'.
+	 * @param n A formula tree without quantifiers, with 'not' accorded
+	 *          narrowest scope.
+	 * @return A tree in which no 'and' occurs under an 'or'.
 	 */
-	private Formula negationsIn()
+	private Node definitionsOut(Node n)
+	{
+		List<Node> definitions = new ArrayList<>();
+		Node result = definitionsOut(n, definitions);
+		if (definitions.isEmpty())
+			return result;
+		Node[] elements = new Node[definitions.size() + 2];
+		elements[0] = AND;
+		elements[1] = result;
+		for (int i = 0; i < definitions.size(); i++)
+			elements[i + 2] = definitions.get(i);
+		return Node.list(elements);
+	}
+
+	private Node definitionsOut(Node n, List<Node> definitions)
 	{
-		Formula f = formula;
-		Formula result = negationsIn_1();
-		// Here we repeatedly apply negationsIn_1() until there are no more changes.
-		while (!f.text.equals(result.text))
+		String arg0 = n.head();
+		if (Formula.AND.equals(arg0))
+			return map(n, e -> definitionsOut(e, definitions));
+		if (Formula.OR.equals(arg0))
 		{
-			f = result;
-			result = negationsIn_1(f);
+			return map(n, e -> {
+				Node newE = definitionsOut(e, definitions);
+				return Formula.AND.equals(newE.head()) ? newDefinition(newE, definitions) : newE;
+			});
 		}
-		return result;
+		return n;
 	}
 
 	/**
-	 * This method is used in negationsIn().  It recursively 'pushes
-	 * in' all occurrences of 'not', so that each occurrence has the
-	 * narrowest possible scope, and also removes from the Formula all
-	 * occurrences of '(not (not ...))'.
+	 * This method returns a new definitional literal for a conjunction
+	 * and adds the clauses that define it.
 	 *
-	 * @return A Formula with all occurrences of 'not' accorded
-	 * narrowest scope, and no occurrences of '(not (not ...))'.
+	 * @param conjunction A conjunction with no 'and' under an 'or'.
+	 * @param definitions A List collecting the defining clauses.
+	 * @return A literal whose arguments are the name of the definition,
+	 * unique to the formula, and the variables of the conjunction.
 	 */
-	private Formula negationsIn_1()
+	private Node newDefinition(Node conjunction, List<Node> definitions)
 	{
-		try
+		SortedSet<String> vars = new TreeSet<>();
+		collectVars(conjunction, vars);
+		Node[] elements = new Node[vars.size() + 2];
+		elements[0] = DEF;
+		elements[1] = Node.atom(newName(++definitionIndex));
+		int i = 2;
+		for (String var : vars)
+			elements[i++] = Node.atom(var);
+		Node literal = Node.list(elements);
+		definitionCount.incrementAndGet();
+		addDefinitions(literal, conjunction, definitions);
+		return literal;
+	}
+
+	private static void addDefinitions(Node literal, Node conjunction, List<Node> definitions)
+	{
+		for (int i = 1; i < conjunction.size(); i++)
 		{
-			if (formula.listP())
-			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				String arg1 = formula.cadr();
-				if (arg0.equals(Formula.NOT) && Formula.listP(arg1))
-				{
-					Formula arg1F = new Formula();
-					arg1F.set(arg1);
-					String arg0_of_arg1 = arg1F.car();
-					if (arg0_of_arg1.equals(Formula.NOT))
-					{
-						String arg1_of_arg1 = arg1F.cadr();
-						Formula arg1_of_arg1F = new Formula();
-						arg1_of_arg1F.set(arg1_of_arg1);
-						return arg1_of_arg1F;
-					}
-					if (Formula.isCommutative(arg0_of_arg1))
-					{
-						String newOp = (arg0_of_arg1.equals(Formula.AND) ? Formula.OR : Formula.AND);
-						return listAll(arg1F.cdrAsFormula(), "(not ", ")").cons(newOp);
-					}
-					if (Formula.isQuantifier(arg0_of_arg1))
-					{
-						String vars = arg1F.cadr();
-						String arg2_of_arg1 = arg1F.caddr();
-						String quant = (arg0_of_arg1.equals(Formula.UQUANT) ? Formula.EQUANT : Formula.UQUANT);
-						arg2_of_arg1 = ("(not " + arg2_of_arg1 + ")");
-						Formula arg2_of_arg1F = new Formula();
-						arg2_of_arg1F.set(arg2_of_arg1);
-						String newFStr = ("(" + quant + " " + vars + " " + negationsIn_1(arg2_of_arg1F).text + ")");
-						Formula newF = new Formula();
-						newF.set(newFStr);
-						return newF;
-					}
-					String newFStr = ("(not " + negationsIn_1(arg1F).text + ")");
-					Formula newF = new Formula();
-					newF.set(newFStr);
-					return newF;
-				}
-				if (Formula.isQuantifier(arg0))
-				{
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					String newArg2 = negationsIn_1(arg2F).text;
-					String newFStr = ("(" + arg0 + " " + arg1 + " " + newArg2 + ")");
-					Formula newF = new Formula();
-					newF.set(newFStr);
-					return newF;
-				}
-				if (Formula.listP(arg0))
-				{
-					Formula arg0F = new Formula();
-					arg0F.set(arg0);
-					return negationsIn_1(formula.cdrAsFormula()).cons(negationsIn_1(arg0F).text);
-				}
-				return negationsIn_1(formula.cdrAsFormula()).cons(arg0);
-			}
+			Node conjunct = conjunction.get(i);
+			if (Formula.AND.equals(conjunct.head()))
+				addDefinitions(literal, conjunct, definitions);
+			else
+				definitions.add(Node.list(OR, Node.list(NOT, literal), conjunct));
 		}
-		catch (Exception ex)
+	}
+
+	private static void collectVars(Node n, SortedSet<String> vars)
+	{
+		if (n.isList())
 		{
-			ex.printStackTrace();
+			for (Node element : n.elements)
+				collectVars(element, vars);
 		}
-		return formula;
+		else if (n.isVariable())
+			vars.add(n.atom);
 	}
 
 	/**
-	 * convenience method
+	 * This method converts every occurrence of '<=>' in the Formula
+	 * to a conjunct with two occurrences of '=>'.
+	 *
+	 * @param n A formula tree.
+	 * @return A tree with no occurrences of '<=>'.
 	 */
-	private static Formula negationsIn_1(Formula f)
+	private static Node equivalencesOut(Node n)
 	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.negationsIn_1();
+		if (n.size() == 0)
+			return n;
+		if (Formula.IFF.equals(n.head()))
+		{
+			Node second = equivalencesOut(n.get(1));
+			Node third = equivalencesOut(n.get(2));
+			return Node.list(AND, Node.list(IF, second, third), Node.list(IF, third, second));
+		}
+		return map(n, Clausifier::equivalencesOut);
 	}
 
 	/**
-	 * This method augments each element of the Formula by
-	 * concatenating optional Strings before and after the element.
-	 * Note that in most cases the input Formula will be simply a
-	 * list, not a well-formed SUO-KIF Formula, and that the output
-	 * will therefore not necessarily be a well-formed Formula.
+	 * This method converts every occurrence of '(=> LHS RHS' in the
+	 * Formula to a disjunct of the form '(or (not LHS) RHS)'.
 	 *
-	 * @param before A String that, if present, is prepended to every
-	 *               element of the Formula.
-	 * @param after  A String that, if present, is postpended to every
-	 *               element of the Formula.
-	 * @return A Formula, or, more likely, simply a list, with the
-	 * String values corresponding to before and after added to each
-	 * element.
+	 * @param n A formula tree.
+	 * @return A tree with no occurrences of '=>'.
 	 */
-	private Formula listAll(String before, String after)
+	private static Node implicationsOut(Node n)
 	{
-		Formula result = formula;
-		if (formula.listP())
+		if (n.size() == 0)
+			return n;
+		if (Formula.IF.equals(n.head()))
 		{
-			StringBuilder sb = new StringBuilder();
-			Formula f = formula;
-			while (!(f.empty()))
-			{
-				String element = f.car();
-				if (isNonEmpty(before))
-					element = (before + element);
-				if (isNonEmpty(after))
-					element += after;
-				sb.append(Formula.SPACE).append(element);
-				f = f.cdrAsFormula();
-			}
-			sb = new StringBuilder((Formula.LP + sb.toString().trim() + Formula.RP));
-			if (isNonEmpty(sb.toString()))
-			{
-				result = new Formula();
-				result.set(sb.toString());
-			}
+			Node second = implicationsOut(n.get(1));
+			Node third = implicationsOut(n.get(2));
+			return Node.list(OR, Node.list(NOT, second), third);
 		}
-		return result;
+		return map(n, Clausifier::implicationsOut);
 	}
 
 	/**
-	 * Convenience method
+	 * This method 'pushes in' all occurrences of 'not', so that each
+	 * occurrence has the narrowest possible scope, and also removes
+	 * from the Formula all occurrences of '(not (not ...))'.
+	 *
+	 * @param n A formula tree.
+	 * @return A tree with all occurrences of 'not' accorded
+	 * narrowest scope, and no occurrences of '(not (not ...))'.
 	 */
-	private static Formula listAll(Formula f, @SuppressWarnings("SameParameterValue") String before, @SuppressWarnings("SameParameterValue") String after)
+	private static Node negationsIn(Node n)
 	{
-		Clausifier clausifier = new Clausifier(f.text);
-		return clausifier.listAll(before, after);
+		if (n.size() == 0)
+			return n;
+		String arg0 = n.head();
+		Node arg1 = n.get(1);
+		if (Formula.NOT.equals(arg0) && arg1.isList())
+		{
+			String arg0_of_arg1 = arg1.head();
+			if (Formula.NOT.equals(arg0_of_arg1) || Formula.isCommutative(arg0_of_arg1) || Formula.isQuantifier(arg0_of_arg1))
+				return negation(arg1);
+			Node newArg1 = negationsIn(arg1);
+			return newArg1 == arg1 && n.size() == 2 ? n : Node.list(NOT, newArg1);
+		}
+		if (Formula.isQuantifier(arg0))
+		{
+			Node arg2 = n.get(2);
+			Node newArg2 = negationsIn(arg2);
+			return newArg2 == arg2 && n.size() == 3 ? n : Node.list(n.get(0), arg1, newArg2);
+		}
+		return map(n, Clausifier::negationsIn);
 	}
 
 	/**
-	 * This method increments VAR_INDEX and then returns the new int
-	 * value.  If VAR_INDEX is already at Integer.MAX_VALUE, then
-	 * VAR_INDEX is reset to 0.
+	 * This method returns the negation of a formula, with 'not'
+	 * pushed in as in negationsIn().
+	 *
+	 * @param n A formula tree.
+	 * @return The tree of '(not n)' with all occurrences of 'not'
+	 * accorded narrowest scope.
+	 */
+	private static Node negation(Node n)
+	{
+		if (!n.isList())
+			return Node.list(NOT, n);
+		String arg0 = n.head();
+		if (Formula.NOT.equals(arg0))
+			return negationsIn(n.get(1));
+		if (Formula.isCommutative(arg0))
+		{
+			Node[] elements = new Node[n.size()];
+			elements[0] = arg0.equals(Formula.AND) ? OR : AND;
+			for (int i = 1; i < elements.length; i++)
+				elements[i] = negation(n.get(i));
+			return Node.list(elements);
+		}
+		if (Formula.isQuantifier(arg0))
+		{
+			Node quant = arg0.equals(Formula.UQUANT) ? EQUANT : UQUANT;
+			return Node.list(quant, n.get(1), negation(n.get(2)));
+		}
+		return Node.list(NOT, negationsIn(n));
+	}
+
+	/**
+	 * This method increments the run's variable index and then returns
+	 * the new int value.  If the index is already at Integer.MAX_VALUE,
+	 * then it is reset to 0.
 	 *
 	 * @return An int value between 0 and Integer.MAX_VALUE inclusive.
 	 */
-	private static int incVarIndex()
+	private int incVarIndex()
 	{
-		int oldVal = VAR_INDEX;
-		if (oldVal == Integer.MAX_VALUE)
-			VAR_INDEX = 0;
+		if (varIndex == Integer.MAX_VALUE)
+			varIndex = 0;
 		else
-			++VAR_INDEX;
-		return VAR_INDEX;
+			++varIndex;
+		return varIndex;
 	}
 
 	/**
-	 * This method increments SKOLEM_INDEX and then returns the new int
-	 * value.  If SKOLEM_INDEX is already at Integer.MAX_VALUE, then
-	 * SKOLEM_INDEX is reset to 0.
+	 * This method increments the run's Skolem index and then returns
+	 * the new int value.  If the index is already at Integer.MAX_VALUE,
+	 * then it is reset to 0.
 	 *
 	 * @return An int value between 0 and Integer.MAX_VALUE inclusive.
 	 */
-	private static int incSkolemIndex()
+	private int incSkolemIndex()
 	{
-		int oldVal = SKOLEM_INDEX;
-		if (oldVal == Integer.MAX_VALUE)
-			SKOLEM_INDEX = 0;
+		if (skolemIndex == Integer.MAX_VALUE)
+			skolemIndex = 0;
 		else
-			++SKOLEM_INDEX;
-		return SKOLEM_INDEX;
+			++skolemIndex;
+		return skolemIndex;
 	}
 
 	/**
@@ -633,7 +1002,7 @@ public class Clausifier
 	 * @param prefix An optional variable prefix string.
 	 * @return A new SUO-KIF variable.
 	 */
-	private static String newVar(@SuppressWarnings("SameParameterValue") String prefix)
+	private String newVar(@SuppressWarnings("SameParameterValue") String prefix)
 	{
 		String base = Formula.VX;
 		String varIdx = Integer.toString(incVarIndex());
@@ -660,7 +1029,7 @@ public class Clausifier
 	 *
 	 * @return A new SUO-KIF variable
 	 */
-	private static String newVar()
+	private String newVar()
 	{
 		return newVar(null);
 	}
@@ -677,91 +1046,63 @@ public class Clausifier
 	public static Formula renameVariables(Formula f, Map<String, String> topLevelVars, Map<String, String> scopedRenames, Map<String, String> allRenames)
 	{
 		Clausifier clausifier = new Clausifier(f.text);
-		return clausifier.renameVariables(topLevelVars, scopedRenames, allRenames);
+		Formula result = new Formula();
+		result.set(clausifier.renameVariables(clausifier.root, topLevelVars, scopedRenames, allRenames).toString());
+		return result;
 	}
 
 	/**
-	 * This method returns a new Formula in which all variables have
+	 * This method returns a new formula tree in which all variables have
 	 * been renamed to ensure uniqueness.
 	 *
+	 * @param n             A formula tree.
 	 * @param topLevelVars  A Map that is used to track renames of implicitly universally quantified variables.
 	 * @param scopedRenames A Map that is used to track renames of explicitly quantified variables.
 	 * @param allRenames    A Map from all new vars in the Formula to their old counterparts.
-	 * @return A new SUO-KIF Formula with all variables renamed.
+	 * @return A new tree with all variables renamed.
 	 */
-	private Formula renameVariables(Map<String, String> topLevelVars, Map<String, String> scopedRenames, Map<String, String> allRenames)
+	private Node renameVariables(Node n, Map<String, String> topLevelVars, Map<String, String> scopedRenames, Map<String, String> allRenames)
 	{
-		try
+		if (n.isList())
 		{
-			if (formula.listP())
+			if (n.size() == 0)
+				return n;
+			if (Formula.isQuantifier(n.head()))
 			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				if (Formula.isQuantifier(arg0))
+				// Copy the scopedRenames map to protect variable scope as we descend below this quantifier.
+				Map<String, String> newScopedRenames = new HashMap<>(scopedRenames);
+
+				Node oldVars = n.get(1);
+				Node[] newVars = new Node[oldVars.size()];
+				for (int i = 0; i < newVars.length; i++)
 				{
-					// Copy the scopedRenames map to protect variable scope as we descend below this quantifier.
-					Map<String, String> newScopedRenames = new HashMap<>(scopedRenames);
-
-					String oldVars = formula.cadr();
-					Formula oldVarsF = new Formula();
-					oldVarsF.set(oldVars);
-					StringBuilder newVars = new StringBuilder();
-					while (!oldVarsF.empty())
-					{
-						String oldVar = oldVarsF.car();
-						String newVar = newVar();
-						newScopedRenames.put(oldVar, newVar);
-						allRenames.put(newVar, oldVar);
-						newVars.append(Formula.SPACE).append(newVar);
-						oldVarsF = oldVarsF.cdrAsFormula();
-					}
-					newVars = new StringBuilder((Formula.LP + newVars.toString().trim() + Formula.RP));
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					String newArg2 = Clausifier.renameVariables(arg2F, topLevelVars, newScopedRenames, allRenames).text;
-					String newFStr = (Formula.LP + arg0 + Formula.SPACE + newVars + Formula.SPACE + newArg2 + Formula.RP);
-					Formula newF = new Formula();
-					newF.set(newFStr);
-					return newF;
+					String oldVar = oldVars.get(i).toString();
+					String newVar = newVar();
+					newScopedRenames.put(oldVar, newVar);
+					allRenames.put(newVar, oldVar);
+					newVars[i] = Node.atom(newVar);
 				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = Clausifier.renameVariables(arg0F, topLevelVars, scopedRenames, allRenames).text;
-				String newRest = Clausifier.renameVariables(formula.cdrAsFormula(), topLevelVars, scopedRenames, allRenames).text;
-				Formula newRestF = new Formula();
-				newRestF.set(newRest);
-				String newFStr = newRestF.cons(newArg0).text;
-				Formula newF = new Formula();
-				newF.set(newFStr);
-				return newF;
+				Node newArg2 = renameVariables(n.get(2), topLevelVars, newScopedRenames, allRenames);
+				return Node.list(n.get(0), Node.list(newVars), newArg2);
 			}
-			if (Formula.isVariable(formula.text))
+			return map(n, e -> renameVariables(e, topLevelVars, scopedRenames, allRenames));
+		}
+		if (n.isVariable())
+		{
+			String rnv = scopedRenames.get(n.atom);
+			if (!isNonEmpty(rnv))
 			{
-				String rnv = scopedRenames.get(formula.text);
+				rnv = topLevelVars.get(n.atom);
 				if (!isNonEmpty(rnv))
 				{
-					rnv = topLevelVars.get(formula.text);
-					if (!isNonEmpty(rnv))
-					{
-						rnv = newVar();
-						topLevelVars.put(formula.text, rnv);
-						allRenames.put(rnv, formula.text);
-					}
+					rnv = newVar();
+					topLevelVars.put(n.atom, rnv);
+					allRenames.put(rnv, n.atom);
 				}
-				Formula newF = new Formula();
-				newF.set(rnv);
-				return newF;
 			}
+			return Node.atom(rnv);
 		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return formula;
+		return n;
 	}
 
 	/**
@@ -771,39 +1112,50 @@ public class Clausifier
 	 * @param vars A sorted SortedSet of the universally quantified
 	 *             variables that potentially define the skolem term.  The set may
 	 *             be empty.
-	 * @return A String.  The string will be a skolem functional term
+	 * @return A tree.  The tree will be a skolem functional term
 	 * (a list) if vars contains variables.  Otherwise, it will be an
 	 * atomic constant.
 	 */
-	private static String newSkolemTerm(SortedSet<String> vars)
+	private Node newSkolemTerm(SortedSet<String> vars)
 	{
-		StringBuilder sb = new StringBuilder(Formula.SK_PREF);
-		int idx = incSkolemIndex();
+		String idx = newName(incSkolemIndex());
 		if ((vars != null) && !vars.isEmpty())
 		{
-			sb.append(Formula.FN_SUFF + Formula.SPACE).append(idx);
+			Node[] elements = new Node[vars.size() + 2];
+			elements[0] = SKFN;
+			elements[1] = Node.atom(idx);
+			int i = 2;
 			for (String var : vars)
-			{
-				sb.append(Formula.SPACE).append(var);
-			}
-			sb = new StringBuilder((Formula.LP + sb + Formula.RP));
+				elements[i++] = Node.atom(var);
+			return Node.list(elements);
 		}
-		else
-			sb.append(idx);
-		return sb.toString();
+		return Node.atom(Formula.SK_PREF + idx);
+	}
+
+	/**
+	 * This method returns the name made of an index of this run and
+	 * the formula key.  It starts with the index, so that Skolem terms
+	 * are still recognized by Formula.isSkolemTerm().
+	 *
+	 * @param idx An index of this run.
+	 * @return A String, idx_key.
+	 */
+	private String newName(int idx)
+	{
+		return idx + "_" + key;
 	}
 
 	/**
-	 * This method returns a new Formula in which all existentially
+	 * This method returns a new formula tree in which all existentially
 	 * quantified variables have been replaced by Skolem terms.
 	 *
-	 * @return A new SUO-KIF Formula without existentially quantified
-	 * variables.
+	 * @param n A formula tree.
+	 * @return A new tree without existentially quantified variables.
 	 */
-	private Formula existentialsOut()
+	private Node existentialsOut(Node n)
 	{
 		// Existentially quantified variable substitution pairs: var -> skolem term.
-		Map<String, String> evSubs = new HashMap<>();
+		Map<String, Node> evSubs = new HashMap<>();
 
 		// Implicitly universally quantified variables.
 		SortedSet<String> iUQVs = new TreeSet<>();
@@ -815,110 +1167,63 @@ public class Clausifier
 		SortedSet<String> scopedUQVs = new TreeSet<>();
 
 		// Collect the implicitly universally qualified variables from the Formula.
-		collectIUQVars(iUQVs, scopedVars);
+		collectIUQVars(n, iUQVs, scopedVars);
 
 		// Do the recursive term replacement, and return the results.
-		return existentialsOut(evSubs, iUQVs, scopedUQVs);
+		return existentialsOut(n, evSubs, iUQVs, scopedUQVs);
 	}
 
 	/**
-	 * This method returns a new Formula in which all existentially
+	 * This method returns a new formula tree in which all existentially
 	 * quantified variables have been replaced by Skolem terms.
 	 *
+	 * @param n          A formula tree.
 	 * @param evSubs     A Map of variable - skolem term substitution
 	 *                   pairs.
 	 * @param iUQVs      A SortedSet of implicitly universally quantified
 	 *                   variables.
 	 * @param scopedUQVs A SortedSet of explicitly universally
 	 *                   quantified variables.
-	 * @return A new SUO-KIF Formula without existentially quantified
-	 * variables.
+	 * @return A new tree without existentially quantified variables.
 	 */
-	private Formula existentialsOut(Map<String, String> evSubs, SortedSet<String> iUQVs, SortedSet<String> scopedUQVs)
+	private Node existentialsOut(Node n, Map<String, Node> evSubs, SortedSet<String> iUQVs, SortedSet<String> scopedUQVs)
 	{
-		try
+		if (n.isList())
 		{
-			if (formula.listP())
+			if (n.size() == 0)
+				return n;
+			String arg0 = n.head();
+			if (Formula.UQUANT.equals(arg0))
 			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				if (arg0.equals(Formula.UQUANT))
-				{
-					// Copy the scoped variables set to protect variable scope as we descend below this quantifier.
-					SortedSet<String> newScopedUQVs = new TreeSet<>(scopedUQVs);
-					String varList = formula.cadr();
-					Formula varListF = new Formula();
-					varListF.set(varList);
-					while (!(varListF.empty()))
-					{
-						String var = varListF.car();
-						newScopedUQVs.add(var);
-						varListF.set(varListF.cdr());
-					}
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					String newStr = ("(forall " + varList + " " + existentialsOut(arg2F, evSubs, iUQVs, newScopedUQVs).text + ")");
-					formula.set(newStr);
-					return formula;
-				}
-				if (arg0.equals(Formula.EQUANT))
-				{
-					// Collect the relevant universally quantified variables.
-					SortedSet<String> uQVs = new TreeSet<>(iUQVs);
-					uQVs.addAll(scopedUQVs);
-					// Collect the existentially quantified variables.
-					List<String> eQVs = new ArrayList<>();
-					String varList = formula.cadr();
-					Formula varListF = new Formula();
-					varListF.set(varList);
-					while (!(varListF.empty()))
-					{
-						String var = varListF.car();
-						eQVs.add(var);
-						varListF.set(varListF.cdr());
-					}
-					// For each existentially quantified variable, create a corresponding skolem term, and store the pair in the evSubs map.
-					for (String var : eQVs)
-					{
-						String skTerm = newSkolemTerm(uQVs);
-						evSubs.put(var, skTerm);
-					}
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					return existentialsOut(arg2F, evSubs, iUQVs, scopedUQVs);
-				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = existentialsOut(arg0F, evSubs, iUQVs, scopedUQVs).text;
-				return existentialsOut(formula.cdrAsFormula(), evSubs, iUQVs, scopedUQVs).cons(newArg0);
+				// Copy the scoped variables set to protect variable scope as we descend below this quantifier.
+				SortedSet<String> newScopedUQVs = new TreeSet<>(scopedUQVs);
+				Node varList = n.get(1);
+				for (int i = 0; i < varList.size(); i++)
+					newScopedUQVs.add(varList.get(i).toString());
+				Node arg2 = n.get(2);
+				Node newArg2 = existentialsOut(arg2, evSubs, iUQVs, newScopedUQVs);
+				return newArg2 == arg2 && n.size() == 3 ? n : Node.list(UQUANT, varList, newArg2);
 			}
-			if (Formula.isVariable(formula.text))
+			if (Formula.EQUANT.equals(arg0))
 			{
-				String newTerm = evSubs.get(formula.text);
-				if (isNonEmpty(newTerm))
-					formula.set(newTerm);
-				return formula;
+				// Collect the relevant universally quantified variables.
+				SortedSet<String> uQVs = new TreeSet<>(iUQVs);
+				uQVs.addAll(scopedUQVs);
+				// For each existentially quantified variable, create a corresponding skolem term, and store the pair in the evSubs map.
+				Node varList = n.get(1);
+				for (int i = 0; i < varList.size(); i++)
+					evSubs.put(varList.get(i).toString(), newSkolemTerm(uQVs));
+				return existentialsOut(n.get(2), evSubs, iUQVs, scopedUQVs);
 			}
+			return map(n, e -> existentialsOut(e, evSubs, iUQVs, scopedUQVs));
 		}
-		catch (Exception ex)
+		if (n.isVariable())
 		{
-			ex.printStackTrace();
+			Node newTerm = evSubs.get(n.atom);
+			if (newTerm != null)
+				return newTerm;
 		}
-		return formula;
-	}
-
-	/**
-	 * Convenience method
-	 */
-	private static Formula existentialsOut(Formula f, Map<String, String> evSubs, SortedSet<String> iUQVs, SortedSet<String> scopedUQVs)
-	{
-		Clausifier clausifier = new Clausifier(f.text);
-		return clausifier.existentialsOut(evSubs, iUQVs, scopedUQVs);
+		return n;
 	}
 
 	/**
@@ -926,128 +1231,71 @@ public class Clausifier
 	 * only implicitly universally quantified and adds them to the
 	 * SortedSet iuqvs.  Note the iuqvs must be passed in.
 	 *
+	 * @param n          A formula tree.
 	 * @param iuqvs      A SortedSet for accumulating variables that appear
 	 *                   to be implicitly universally quantified.
 	 * @param scopedVars A SortedSet containing explicitly quantified
 	 *                   variables.
 	 */
-	private void collectIUQVars(SortedSet<String> iuqvs, SortedSet<String> scopedVars)
+	private static void collectIUQVars(Node n, SortedSet<String> iuqvs, SortedSet<String> scopedVars)
 	{
-		try
+		if (n.size() > 0)
 		{
-			if (formula.listP() && !formula.empty())
+			if (Formula.isQuantifier(n.head()))
 			{
-				String arg0 = formula.car();
-				if (Formula.isQuantifier(arg0))
-				{
-					// Copy the scopedVars set to protect variable  scope as we descend below this quantifier.
-					SortedSet<String> newScopedVars = new TreeSet<>(scopedVars);
-
-					String varList = formula.cadr();
-					Formula varListF = new Formula();
-					varListF.set(varList);
-					while (!(varListF.empty()))
-					{
-						String var = varListF.car();
-						newScopedVars.add(var);
-						varListF = varListF.cdrAsFormula();
-					}
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					collectIUQVars(arg2F, iuqvs, newScopedVars);
-				}
-				else
-				{
-					Formula arg0F = new Formula();
-					arg0F.set(arg0);
-					collectIUQVars(arg0F, iuqvs, scopedVars);
-					collectIUQVars(formula.cdrAsFormula(), iuqvs, scopedVars);
-				}
+				// Copy the scopedVars set to protect variable  scope as we descend below this quantifier.
+				SortedSet<String> newScopedVars = new TreeSet<>(scopedVars);
+				Node varList = n.get(1);
+				for (int i = 0; i < varList.size(); i++)
+					newScopedVars.add(varList.get(i).toString());
+				collectIUQVars(n.get(2), iuqvs, newScopedVars);
 			}
-			else if (Formula.isVariable(formula.text) && !(scopedVars.contains(formula.text)))
+			else
 			{
-				iuqvs.add(formula.text);
+				for (Node element : n.elements)
+					collectIUQVars(element, iuqvs, scopedVars);
 			}
 		}
-		catch (Exception ex)
+		else if (n.isVariable() && !(scopedVars.contains(n.atom)))
 		{
-			ex.printStackTrace();
+			iuqvs.add(n.atom);
 		}
 	}
 
 	/**
-	 * Convenience method
-	 */
-	private static void collectIUQVars(Formula f, SortedSet<String> iuqvs, SortedSet<String> scopedVars)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		temp.collectIUQVars(iuqvs, scopedVars);
-	}
-
-	/**
-	 * This method returns a new Formula in which explicit universal
+	 * This method returns a new formula tree in which explicit universal
 	 * quantifiers have been removed.
 	 *
-	 * @return A new SUO-KIF Formula without explicit universal
-	 * quantifiers.
-	 */
-	private Formula universalsOut()
-	{
-		try
-		{
-			if (formula.listP())
-			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				if (arg0.equals(Formula.UQUANT))
-				{
-					String arg2 = formula.caddr();
-					formula.set(arg2);
-					return universalsOut(formula);
-				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = universalsOut(arg0F).text;
-				return universalsOut(formula.cdrAsFormula()).cons(newArg0);
-			}
-		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return formula;
-	}
-
-	/**
-	 * Convenience method
+	 * @param n A formula tree.
+	 * @return A new tree without explicit universal quantifiers.
 	 */
-	private static Formula universalsOut(Formula f)
+	private static Node universalsOut(Node n)
 	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.universalsOut();
+		if (n.size() == 0)
+			return n;
+		if (Formula.UQUANT.equals(n.head()))
+			return universalsOut(n.get(2));
+		return map(n, Clausifier::universalsOut);
 	}
 
 	/**
-	 * This method returns a new Formula in which nested 'and', 'or',
+	 * This method returns a new formula tree in which nested 'and', 'or',
 	 * and 'not' operators have been unnested:
 	 * (not (not <literal> ...)) -> <literal>
 	 * (and (and <literal-sequence> ...)) -> (and <literal-sequence> ...)
 	 * (or (or <literal-sequence> ...)) -> (or <literal-sequence> ...)
 	 *
-	 * @return A new SUO-KIF Formula in which nested commutative
+	 * @param n A formula tree.
+	 * @return A new tree in which nested commutative
 	 * operators and 'not' have been unnested.
 	 */
-	private Formula nestedOperatorsOut()
+	private static Node nestedOperatorsOut(Node n)
 	{
-		Formula f = formula;
-		Formula result = nestedOperatorsOut_1();
+		Node f = n;
+		Node result = nestedOperatorsOut_1(n);
 
 		// Here we repeatedly apply nestedOperatorsOut_1() until there are no more changes.
-		while (!f.text.equals(result.text))
+		while (!f.same(result))
 		{
 			f = result;
 			result = nestedOperatorsOut_1(f);
@@ -1056,112 +1304,61 @@ public class Clausifier
 	}
 
 	/**
-	 * convenience method
-	 */
-	private static Formula nestedOperatorsOut(Formula f)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.nestedOperatorsOut();
-	}
-
-	/**
-	 * @return A new SUO-KIF Formula in which nested commutative
-	 * operators and 'not' have been unnested.
+	 * @param n A formula tree.
+	 * @return A new tree in which nested commutative
+	 * operators and 'not' have been unnested one level.
 	 */
-	private Formula nestedOperatorsOut_1()
+	private static Node nestedOperatorsOut_1(Node n)
 	{
-		try
+		if (n.size() == 0)
+			return n;
+		String arg0 = n.head();
+		if (Formula.isCommutative(arg0) || Formula.NOT.equals(arg0))
 		{
-			if (formula.listP())
+			// copied from the original list on first change
+			List<Node> literals = null;
+			for (int i = 1; i < n.size(); i++)
 			{
-				if (formula.empty())
+				Node lit = n.get(i);
+				if (arg0.equals(lit.head()))
 				{
-					return formula;
+					if (arg0.equals(Formula.NOT))
+						return nestedOperatorsOut_1(lit.get(1));
+					if (literals == null)
+						literals = new ArrayList<>(Arrays.asList(n.elements).subList(0, i));
+					for (int j = 1; j < lit.size(); j++)
+						literals.add(nestedOperatorsOut_1(lit.get(j)));
 				}
-				String arg0 = formula.car();
-				if (Formula.isCommutative(arg0) || arg0.equals(Formula.NOT))
+				else
 				{
-					List<String> literals = new ArrayList<>();
-					Formula restF = formula.cdrAsFormula();
-					while (!(restF.empty()))
-					{
-						String lit = restF.car();
-						Formula litF = new Formula();
-						litF.set(lit);
-						if (litF.listP())
-						{
-							String litFArg0 = litF.car();
-							if (litFArg0.equals(arg0))
-							{
-								if (arg0.equals(Formula.NOT))
-								{
-									String newFStr = litF.cadr();
-									Formula newF = new Formula();
-									newF.set(newFStr);
-									return nestedOperatorsOut_1(newF);
-								}
-								Formula rest2F = litF.cdrAsFormula();
-								while (!(rest2F.empty()))
-								{
-									String rest2arg0 = rest2F.car();
-									Formula rest2arg0F = new Formula();
-									rest2arg0F.set(rest2arg0);
-									literals.add(nestedOperatorsOut_1(rest2arg0F).text);
-									rest2F = rest2F.cdrAsFormula();
-								}
-							}
-							else
-								literals.add(nestedOperatorsOut_1(litF).text);
-						}
-						else
-							literals.add(lit);
-						restF = restF.cdrAsFormula();
-					}
-					StringBuilder sb = new StringBuilder((Formula.LP + arg0));
-					for (String literal : literals)
-						sb.append(Formula.SPACE).append(literal);
-					sb.append(Formula.RP);
-					Formula newF = new Formula();
-					newF.set(sb.toString());
-					return newF;
+					Node newLit = nestedOperatorsOut_1(lit);
+					if (newLit != lit && literals == null)
+						literals = new ArrayList<>(Arrays.asList(n.elements).subList(0, i));
+					if (literals != null)
+						literals.add(newLit);
 				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = nestedOperatorsOut_1(arg0F).text;
-				return nestedOperatorsOut_1(formula.cdrAsFormula()).cons(newArg0);
 			}
+			return literals == null ? n : Node.list(literals);
 		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return formula;
-	}
-
-	/**
-	 * convenience method
-	 */
-	private static Formula nestedOperatorsOut_1(Formula f)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.nestedOperatorsOut_1();
+		return map(n, Clausifier::nestedOperatorsOut_1);
 	}
 
 	/**
-	 * This method returns a new Formula in which all occurrences of
+	 * This method returns a new formula tree in which all occurrences of
 	 * 'or' have been accorded the least possible scope.
 	 * (or P (and Q R)) -> (and (or P Q) (or P R))
 	 *
-	 * @return A new SUO-KIF Formula in which occurrences of 'or' have
+	 * @param n A formula tree.
+	 * @return A new tree in which occurrences of 'or' have
 	 * been 'moved in' as far as possible.
 	 */
-	private Formula disjunctionsIn()
+	private static Node disjunctionsIn(Node n)
 	{
-		Formula f = formula;
-		Formula result = disjunctionsIn_1(nestedOperatorsOut());
+		Node f = n;
+		Node result = disjunctionsIn_1(nestedOperatorsOut(n));
 
 		// Here we repeatedly apply disjunctionIn_1() until there are no more changes.
-		while (!f.text.equals(result.text))
+		while (!f.same(result))
 		{
 			f = result;
 			result = disjunctionsIn_1(nestedOperatorsOut(f));
@@ -1170,271 +1367,134 @@ public class Clausifier
 	}
 
 	/**
-	 * @return A new SUO-KIF Formula in which occurrences of 'or' have
-	 * been 'moved in' as far as possible.
+	 * @param n A formula tree.
+	 * @return A new tree in which occurrences of 'or' have
+	 * been 'moved in' one step.  The disjuncts that are distributed
+	 * over the conjuncts are shared by the new disjunctions.
 	 */
-	private Formula disjunctionsIn_1()
+	private static Node disjunctionsIn_1(Node n)
 	{
-		try
+		if (n.size() == 0)
+			return n;
+		if (Formula.OR.equals(n.head()))
 		{
-			if (formula.listP())
+			List<Node> disjuncts = new ArrayList<>();
+			List<Node> conjuncts = new ArrayList<>();
+			for (int i = 1; i < n.size(); i++)
 			{
-				if (formula.empty())
+				Node disjunct = n.get(i);
+				if (Formula.AND.equals(disjunct.head()) && conjuncts.isEmpty())
 				{
-					return formula;
+					for (int j = 1; j < disjunct.size(); j++)
+						conjuncts.add(disjunctionsIn_1(disjunct.get(j)));
 				}
-				String arg0 = formula.car();
-				if (arg0.equals(Formula.OR))
-				{
-					List<String> disjuncts = new ArrayList<>();
-					List<String> conjuncts = new ArrayList<>();
-					Formula restF = formula.cdrAsFormula();
-					while (!(restF.empty()))
-					{
-						String disjunct = restF.car();
-						Formula disjunctF = new Formula();
-						disjunctF.set(disjunct);
-						if (disjunctF.listP() && disjunctF.car().equals(Formula.AND) && conjuncts.isEmpty())
-						{
-							Formula rest2F = disjunctionsIn_1(disjunctF.cdrAsFormula());
-							while (!(rest2F.empty()))
-							{
-								conjuncts.add(rest2F.car());
-								rest2F = rest2F.cdrAsFormula();
-							}
-						}
-						else
-							disjuncts.add(disjunct);
-						restF = restF.cdrAsFormula();
-					}
-
-					if (conjuncts.isEmpty())
-					{
-						return formula;
-					}
-
-					Formula resultF = new Formula();
-					resultF.set("()");
-					StringBuilder disjunctsString = new StringBuilder();
-					for (String disjunct : disjuncts)
-						disjunctsString.append(Formula.SPACE).append(disjunct);
-					disjunctsString = new StringBuilder((Formula.LP + disjunctsString.toString().trim() + Formula.RP));
-					Formula disjunctsF = new Formula();
-					disjunctsF.set(disjunctsString.toString());
-					for (String conjunct : conjuncts)
-					{
-						String newDisjuncts = disjunctionsIn_1(disjunctsF.cons(conjunct).cons(Formula.OR)).text;
-						resultF = resultF.cons(newDisjuncts);
-					}
-					resultF = resultF.cons(Formula.AND);
-					return resultF;
-				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = disjunctionsIn_1(arg0F).text;
-				return disjunctionsIn_1(formula.cdrAsFormula()).cons(newArg0);
+				else
+					disjuncts.add(disjunct);
 			}
-		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return formula;
-	}
 
-	/**
-	 * convenience method
-	 */
-	private static Formula disjunctionsIn_1(Formula f)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.disjunctionsIn_1();
-	}
+			if (conjuncts.isEmpty())
+			{
+				return n;
+			}
 
-	/**
-	 * This method returns an List of clauses.  Each clause is a
-	 * LISP list (really, a Formula) containing one or more Formulas.
-	 * The LISP list is assumed to be a disjunction, but there is no
-	 * 'or' at the head.
-	 *
-	 * @return An List of LISP lists, each of which contains one
-	 * or more Formulas.
-	 */
-	private List<Formula> operatorsOut()
-	{
-		List<Formula> result = new ArrayList<>();
-		try
-		{
-			List<Formula> clauses = new ArrayList<>();
-			if (isNonEmpty(formula.text))
+			// the new conjunction lists the conjuncts last first
+			Node[] result = new Node[conjuncts.size() + 1];
+			result[0] = AND;
+			for (int k = 0; k < conjuncts.size(); k++)
 			{
-				if (formula.listP())
-				{
-					String arg0 = formula.car();
-					if (arg0.equals(Formula.AND))
-					{
-						Formula restF = formula.cdrAsFormula();
-						while (!(restF.empty()))
-						{
-							String fStr = restF.car();
-							Formula newF = new Formula();
-							newF.set(fStr);
-							clauses.add(newF);
-							restF = restF.cdrAsFormula();
-						}
-					}
-				}
-				if (clauses.isEmpty())
-					clauses.add(formula);
-				for (Formula f : clauses)
-				{
-					Formula clauseF = new Formula();
-					clauseF.set("()");
-					if (f.listP())
-					{
-						if (f.car().equals(Formula.OR))
-						{
-							f = f.cdrAsFormula();
-							while (!(f.empty()))
-							{
-								String lit = f.car();
-								clauseF = clauseF.cons(lit);
-								f = f.cdrAsFormula();
-							}
-						}
-					}
-					if (clauseF.empty())
-						clauseF = clauseF.cons(f.text);
-					result.add(clauseF);
-				}
+				Node[] elements = new Node[disjuncts.size() + 2];
+				elements[0] = OR;
+				elements[1] = conjuncts.get(k);
+				for (int i = 0; i < disjuncts.size(); i++)
+					elements[i + 2] = disjuncts.get(i);
+				result[conjuncts.size() - k] = disjunctionsIn_1(Node.list(elements));
 			}
+			return Node.list(result);
 		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return result;
+		return map(n, Clausifier::disjunctionsIn_1);
 	}
 
 	/**
-	 * This method returns a Formula in which variables for separate
-	 * clauses have been 'standardized apart'.
+	 * This method breaks a formula in conjunctive normal form into its
+	 * clauses.
 	 *
-	 * @param renameMap A Map for capturing one-to-one variable rename
-	 *                  correspondences.  Keys are new variables.  Values are old
-	 *                  variables.
-	 * @return A Formula.
+	 * @param n A conjunction of clauses, or a single clause.
+	 * @return The clauses.
 	 */
-	private Formula standardizeApart(Map<String, String> renameMap)
+	private static List<Node> conjuncts(Node n)
 	{
-		Formula result = formula;
-		try
-		{
-			Map<String, String> reverseRenames;
-			if (renameMap != null)
-				reverseRenames = renameMap;
-			else
-				reverseRenames = new HashMap<>();
-
-			// First, break the Formula into separate clauses, if necessary.
-			List<Formula> clauses = new ArrayList<>();
-			if (isNonEmpty(formula.text))
-			{
-				if (formula.listP())
-				{
-					String arg0 = formula.car();
-					if (arg0.equals(Formula.AND))
-					{
-						Formula restF = formula.cdrAsFormula();
-						while (!(restF.empty()))
-						{
-							String fStr = restF.car();
-							Formula newF = new Formula();
-							newF.set(fStr);
-							clauses.add(newF);
-							restF = restF.cdrAsFormula();
-						}
-					}
-				}
-				if (clauses.isEmpty())
-					clauses.add(formula);
-				// 'Standardize apart' by renaming the variables in each clause.
-				int n = clauses.size();
-				for (int i = 0; i < n; i++)
-				{
-					Map<String, String> renames = new HashMap<>();
-					Formula oldClause = clauses.remove(0);
-					clauses.add(standardizeApart_1(oldClause, renames, reverseRenames));
-				}
-
-				// Construct the new Formula to return.
-				if (n > 1)
-				{
-					StringBuilder newFStr = new StringBuilder("(and");
-					for (Formula f : clauses)
-					{
-						newFStr.append(Formula.SPACE).append(f.text);
-					}
-					newFStr.append(Formula.RP);
-					Formula newF = new Formula();
-					newF.set(newFStr.toString());
-					result = newF;
-				}
-				else
-					result = clauses.get(0);
-			}
-		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return result;
+		if (Formula.AND.equals(n.head()) && n.size() > 1)
+			return Arrays.asList(n.elements).subList(1, n.size());
+		return Collections.singletonList(n);
 	}
 
 	/**
-	 * This is a helper method for standardizeApart(renameMap).  It
-	 * assumes that the Formula will be a single clause.
+	 * This method renames the variables of a clause, so that the
+	 * variables of separate clauses are 'standardized apart'.
 	 *
+	 * @param n              A clause.
 	 * @param renames        A Map of correspondences between old variables
 	 *                       and new variables.
 	 * @param reverseRenames A Map of correspondences between new
 	 *                       variables and old variables.
-	 * @return A Formula
+	 * @return A clause.
 	 */
-	private Formula standardizeApart_1(Map<String, String> renames, Map<String, String> reverseRenames)
+	private Node standardizeApart(Node n, Map<String, String> renames, Map<String, String> reverseRenames)
 	{
-		Formula result = formula;
-		if (formula.listP() && !(formula.empty()))
-		{
-			String arg0 = formula.car();
-			Formula arg0F = new Formula();
-			arg0F.set(arg0);
-			arg0F = standardizeApart_1(arg0F, renames, reverseRenames);
-			result = standardizeApart_1(formula.cdrAsFormula(), renames, reverseRenames).cons(arg0F.text);
-		}
-		else if (Formula.isVariable(formula.text))
+		if (n.isList())
+			return map(n, e -> standardizeApart(e, renames, reverseRenames));
+		if (n.isVariable())
 		{
-			String rnv = renames.get(formula.text);
+			String rnv = renames.get(n.atom);
 			if (!isNonEmpty(rnv))
 			{
 				rnv = newVar();
-				renames.put(formula.text, rnv);
-				reverseRenames.put(rnv, formula.text);
+				renames.put(n.atom, rnv);
+				reverseRenames.put(rnv, n.atom);
 			}
-			Formula rnvF = new Formula();
-			rnvF.set(rnv);
-			result = rnvF;
+			return Node.atom(rnv);
 		}
-		return result;
+		return n;
 	}
 
 	/**
-	 * Convenience method
+	 * This method splits a clause into its negative and positive
+	 * literals.  The clause is assumed to be a disjunction, or a single
+	 * literal.
+	 *
+	 * @param n A clause.
+	 * @return A Clause.
 	 */
-	private static Formula standardizeApart_1(Formula f, Map<String, String> renames, Map<String, String> reverseRenames)
+	private static Clause toClause(Node n)
 	{
-		Clausifier clausifier = new Clausifier(f.text);
-		return clausifier.standardizeApart_1(renames, reverseRenames);
+		Clause clause = new Clause();
+		if (Formula.OR.equals(n.head()) && n.size() > 1)
+		{
+			// the literals come out last first, as the LISP-style consing of the clause list leaves them
+			for (int i = n.size() - 1; i > 0; i--)
+				addLiteral(clause, n.get(i));
+		}
+		else
+			addLiteral(clause, n);
+		return clause;
+	}
+
+	private static void addLiteral(Clause clause, Node lit)
+	{
+		boolean isNegLit = false;
+		if (Formula.NOT.equals(lit.head()))
+		{
+			lit = lit.get(1);
+			isNegLit = true;
+		}
+		Formula litF = new Formula();
+		litF.set(lit.toString());
+		if (litF.text.equals(Formula.LOG_FALSE))
+			isNegLit = true;
+		if (isNegLit)
+			clause.negativeLits.add(litF);
+		else
+			clause.positiveLits.add(litF);
 	}
 
 	/**
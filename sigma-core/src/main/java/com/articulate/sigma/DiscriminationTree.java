@@ -0,0 +1,375 @@
+package com.articulate.sigma;
+
+import java.util.*;
+
+/**
+ * Discrimination tree.
+ * Index of values by term. A term is keyed by its preorder token sequence : an atom is a token, a list of n elements
+ * is the token "(n" followed by the tokens of its elements, and a variable is a wildcard edge. Retrieval walks the
+ * tree along the query's tokens, so that the terms that cannot match are never looked at : a query variable passes
+ * over a whole subterm of the tree, a wildcard edge of the tree passes over a whole subterm of the query.
+ * Wildcards forget which variable they stand for, so that the walk alone is exact only for terms in which no
+ * variable occurs twice; the candidates reached where either term has a repeated variable are checked.
+ * Row variables are taken as ordinary variables, that stand for one term.
+ *
+ * @param <V> value type
+ */
+public final class DiscriminationTree<V>
+{
+	/**
+	 * Tree node : reached after a sequence of tokens, holding the values of the terms whose sequence ends here
+	 */
+	private static final class Node<V>
+	{
+		/**
+		 * Number of elements if the edge leading to this node is a list token, 0 otherwise
+		 */
+		final int arity;
+
+		/**
+		 * Children by token, null if none
+		 */
+		Map<String, Node<V>> children;
+
+		/**
+		 * Child along the variable edge, null if none
+		 */
+		Node<V> star;
+
+		/**
+		 * Entries of the terms whose sequence ends here, null if none
+		 */
+		List<Entry<V>> entries;
+
+		Node(int arity)
+		{
+			this.arity = arity;
+		}
+	}
+
+	private static final class Entry<V>
+	{
+		/**
+		 * Insertion number, to return values in insertion order
+		 */
+		final int seq;
+
+		final String text;
+
+		/**
+		 * Whether no variable occurs twice in the term
+		 */
+		final boolean linear;
+
+		final V value;
+
+		Entry(int seq, String text, boolean linear, V value)
+		{
+			this.seq = seq;
+			this.text = text;
+			this.linear = linear;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Flattened term : tokens in preorder, null for a variable, with the end of the subterm that starts at each token
+	 */
+	private static final class Flat
+	{
+		final List<String> tokens = new ArrayList<>();
+
+		final List<Integer> arities = new ArrayList<>();
+
+		int[] ends;
+
+		boolean linear = true;
+
+		Flat(Term t)
+		{
+			List<Integer> ends = new ArrayList<>();
+			flatten(t, ends, new HashSet<>());
+			this.ends = new int[ends.size()];
+			for (int i = 0; i < this.ends.length; i++)
+				this.ends[i] = ends.get(i);
+		}
+
+		private void flatten(Term t, List<Integer> ends, Set<String> vars)
+		{
+			int i = this.tokens.size();
+			ends.add(0);
+			if (t.isList())
+			{
+				this.tokens.add(Formula.LP + t.size());
+				this.arities.add(t.size());
+				for (int j = 0; j < t.size(); j++)
+					flatten(t.getChild(j), ends, vars);
+			}
+			else if (isVariable(t))
+			{
+				this.tokens.add(null);
+				this.arities.add(0);
+				if (!vars.add(t.getText().trim()))
+					this.linear = false;
+			}
+			else
+			{
+				this.tokens.add(t.getText().trim());
+				this.arities.add(0);
+			}
+			ends.set(i, this.tokens.size());
+		}
+	}
+
+	private enum Mode
+	{
+		UNIFIABLE, INSTANCES, GENERALIZATIONS
+	}
+
+	private final Node<V> root = new Node<>(0);
+
+	private int size = 0;
+
+	// A D D
+
+	/**
+	 * Add value
+	 *
+	 * @param key   term the value is indexed by
+	 * @param value value
+	 */
+	public void add(Term key, V value)
+	{
+		Flat flat = new Flat(key);
+		Node<V> node = this.root;
+		for (int i = 0; i < flat.tokens.size(); i++)
+		{
+			String token = flat.tokens.get(i);
+			if (token == null)
+			{
+				if (node.star == null)
+					node.star = new Node<>(0);
+				node = node.star;
+			}
+			else
+			{
+				if (node.children == null)
+					node.children = new HashMap<>(4);
+				int arity = flat.arities.get(i);
+				node = node.children.computeIfAbsent(token, k -> new Node<>(arity));
+			}
+		}
+		if (node.entries == null)
+			node.entries = new ArrayList<>(1);
+		node.entries.add(new Entry<>(this.size++, key.getText(), flat.linear, value));
+	}
+
+	/**
+	 * Size
+	 *
+	 * @return number of values added
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	// R E T R I E V E
+
+	/**
+	 * Values of the terms that unify with the query, the variables of the query and of the indexed terms being
+	 * taken apart
+	 *
+	 * @param query query term
+	 * @return values, in insertion order
+	 */
+	public List<V> getUnifiable(Term query)
+	{
+		return retrieve(query, Mode.UNIFIABLE);
+	}
+
+	/**
+	 * Values of the terms that are instances of the query
+	 *
+	 * @param query query term
+	 * @return values, in insertion order
+	 */
+	public List<V> getInstances(Term query)
+	{
+		return retrieve(query, Mode.INSTANCES);
+	}
+
+	/**
+	 * Values of the terms the query is an instance of
+	 *
+	 * @param query query term
+	 * @return values, in insertion order
+	 */
+	public List<V> getGeneralizations(Term query)
+	{
+		return retrieve(query, Mode.GENERALIZATIONS);
+	}
+
+	private List<V> retrieve(Term query, Mode mode)
+	{
+		Flat flat = new Flat(query);
+		List<Entry<V>> candidates = new ArrayList<>();
+		retrieve(this.root, flat, 0, mode, candidates);
+		candidates.sort(Comparator.comparingInt(e -> e.seq));
+
+		List<V> result = new ArrayList<>(candidates.size());
+		Term apart = null;
+		for (Entry<V> entry : candidates)
+		{
+			if (!flat.linear || !entry.linear)
+			{
+				Term term = Term.parse(entry.text);
+				boolean match;
+				switch (mode)
+				{
+				case INSTANCES:
+					match = match(query, term, new HashMap<>());
+					break;
+				case GENERALIZATIONS:
+					match = match(term, query, new HashMap<>());
+					break;
+				default:
+					if (apart == null)
+						apart = Term.parse(renameApart(query));
+					match = new Unifier().unify(apart, term);
+					break;
+				}
+				if (!match)
+					continue;
+			}
+			result.add(entry.value);
+		}
+		return result;
+	}
+
+	/**
+	 * Walk the tree along the query tokens
+	 *
+	 * @param node       tree node reached
+	 * @param query      flattened query
+	 * @param pos        position of the next query token
+	 * @param mode       retrieval mode
+	 * @param candidates collects the entries reached at the end of the query
+	 */
+	private void retrieve(Node<V> node, Flat query, int pos, Mode mode, List<Entry<V>> candidates)
+	{
+		if (pos == query.tokens.size())
+		{
+			if (node.entries != null)
+				candidates.addAll(node.entries);
+			return;
+		}
+		String token = query.tokens.get(pos);
+		if (token == null)
+		{
+			if (mode == Mode.GENERALIZATIONS)
+			{
+				if (node.star != null)
+					retrieve(node.star, query, pos + 1, mode, candidates);
+			}
+			else
+				skip(node, 1, query, pos + 1, mode, candidates);
+			return;
+		}
+		if (node.children != null)
+		{
+			Node<V> child = node.children.get(token);
+			if (child != null)
+				retrieve(child, query, pos + 1, mode, candidates);
+		}
+		if (mode != Mode.INSTANCES && node.star != null)
+			retrieve(node.star, query, query.ends[pos], mode, candidates);
+	}
+
+	/**
+	 * Pass over subterms of the tree, then go on walking along the query tokens
+	 *
+	 * @param node    tree node reached
+	 * @param pending number of whole subterms still to pass over
+	 */
+	private void skip(Node<V> node, int pending, Flat query, int pos, Mode mode, List<Entry<V>> candidates)
+	{
+		if (pending == 0)
+		{
+			retrieve(node, query, pos, mode, candidates);
+			return;
+		}
+		if (node.star != null)
+			skip(node.star, pending - 1, query, pos, mode, candidates);
+		if (node.children != null)
+			for (Node<V> child : node.children.values())
+				skip(child, pending - 1 + child.arity, query, pos, mode, candidates);
+	}
+
+	// C H E C K
+
+	/**
+	 * One-way matching
+	 *
+	 * @param pattern  pattern term
+	 * @param target   target term, whose variables are taken as constants
+	 * @param bindings bindings of the pattern variables
+	 * @return whether the target is an instance of the pattern
+	 */
+	private static boolean match(Term pattern, Term target, Map<String, Term> bindings)
+	{
+		if (isVariable(pattern))
+		{
+			Term bound = bindings.putIfAbsent(pattern.getText().trim(), target);
+			return bound == null || same(bound, target);
+		}
+		if (!pattern.isList())
+			return !target.isList() && pattern.getText().trim().equals(target.getText().trim());
+		if (!target.isList() || pattern.size() != target.size())
+			return false;
+		for (int i = 0; i < pattern.size(); i++)
+			if (!match(pattern.getChild(i), target.getChild(i), bindings))
+				return false;
+		return true;
+	}
+
+	private static boolean same(Term t1, Term t2)
+	{
+		if (!t1.isList() || !t2.isList())
+			return !t1.isList() && !t2.isList() && t1.getText().trim().equals(t2.getText().trim());
+		if (t1.size() != t2.size())
+			return false;
+		for (int i = 0; i < t1.size(); i++)
+			if (!same(t1.getChild(i), t2.getChild(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Rename the variables of a term with a '#' suffix, which no KIF variable has, so that they are apart from
+	 * those of the indexed terms
+	 *
+	 * @param t term
+	 * @return text of the renamed term
+	 */
+	private static String renameApart(Term t)
+	{
+		if (isVariable(t))
+			return t.getText().trim() + "#";
+		if (!t.isList())
+			return t.getText();
+		StringBuilder sb = new StringBuilder(Formula.LP);
+		for (int i = 0; i < t.size(); i++)
+		{
+			if (i > 0)
+				sb.append(Formula.SPACE);
+			sb.append(renameApart(t.getChild(i)));
+		}
+		return sb.append(Formula.RP).toString();
+	}
+
+	private static boolean isVariable(Term t)
+	{
+		return t.getKind() == Term.Kind.VARIABLE || t.getKind() == Term.Kind.ROW_VARIABLE;
+	}
+}
@@ -101,8 +101,15 @@ public class Formula implements Comparable<Formula>, Serializable
 
 	/**
 	 * A list of clausal (resolution) forms generated from this Formula.
+	 * Volatile so that a form computed by one thread is seen whole by the others.
 	 */
-	private Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm = null;
+	private volatile Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm = null;
+
+	/**
+	 * Parsed term tree for the formula text, built on demand.
+	 * It is only valid for the very String it was parsed from.
+	 */
+	private transient Term term;
 
 	/**
 	 * The source file in which the formula appears.
@@ -143,15 +150,54 @@ public class Formula implements Comparable<Formula>, Serializable
 	public Tuple.Triple<List<Clause>, Formula, Map<String, String>> getClausalForm()
 	{
 		logger.entering("Formula", "getClausalForm");
-		if (clausalForm == null)
+		Tuple.Triple<List<Clause>, Formula, Map<String, String>> result = this.clausalForm;
+		if (result == null && isNonEmpty(this.text))
 		{
-			if (isNonEmpty(this.text))
-				this.clausalForm = Clausifier.toNegAndPosLitsWithRenameInfo(this);
+			// clausification is deterministic: threads racing here compute equal forms
+			result = Clausifier.toNegAndPosLitsWithRenameInfo(this);
+			this.clausalForm = result;
 		}
-		logger.exiting("Formula", "getClausalForm", clausalForm);
+		logger.exiting("Formula", "getClausalForm", result);
+		return result;
+	}
+
+	/**
+	 * Returns the clauses of this Formula converted in the given CNF
+	 * mode.  Only the form of the automatic mode, that of
+	 * getClausalForm(), is kept; the others are computed on each call.
+	 *
+	 * @param mode CNF mode
+	 * @return Tuple
+	 */
+	public Tuple.Triple<List<Clause>, Formula, Map<String, String>> getClausalForm(Clausifier.Mode mode)
+	{
+		if (mode == Clausifier.Mode.AUTO)
+			return getClausalForm();
+		if (!isNonEmpty(this.text))
+			return null;
+		return Clausifier.toNegAndPosLitsWithRenameInfo(this, mode);
+	}
+
+	/**
+	 * Clausal form, if already computed
+	 *
+	 * @return clausal form or null
+	 */
+	Tuple.Triple<List<Clause>, Formula, Map<String, String>> peekClausalForm()
+	{
 		return this.clausalForm;
 	}
 
+	/**
+	 * Set clausal form computed elsewhere (cache, formula with the same text)
+	 *
+	 * @param clausalForm clausal form
+	 */
+	void setClausalForm(Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm)
+	{
+		this.clausalForm = clausalForm;
+	}
+
 	/**
 	 * Returns a List of Clause objects.  Each such Clause contains, in
 	 * turn, a pair of List objects.  Each List object in a pair
@@ -199,6 +245,28 @@ public class Formula implements Comparable<Formula>, Serializable
 		this.text = s;
 	}
 
+	/**
+	 * Get parsed term.
+	 * The term tree is built on first access and reused as long as the text is unchanged.
+	 *
+	 * @return term tree for the formula text, null if text is null
+	 */
+	public Term getTerm()
+	{
+		String s = this.text;
+		if (s == null)
+			return null;
+		Term t = this.term;
+		if (t == null || t.getText() != s)
+		{
+			// text was replaced with its own cdr, as when walking down a list
+			Term rest = t == null ? null : t.cachedRest();
+			t = rest != null && rest.getText() == s ? rest : Term.parse(s);
+			this.term = t;
+		}
+		return t;
+	}
+
 	/**
 	 * Get source file
 	 *
@@ -345,81 +413,11 @@ public class Formula implements Comparable<Formula>, Serializable
 	{
 		// logger.entering("Formula", "car");
 		String result = null;
-		if (this.listP())
+		Term term = this.getTerm();
+		if (term != null && term.isList())
 		{
-			if (this.empty())
-			{
-				// NS: Clean this up someday.
-				result = "";  // this.text;
-			}
-			else
-			{
-				StringBuilder sb = new StringBuilder();
-				List<Character> quoteChars = Arrays.asList('"', '\'');
-				int level = 0;
-				char prev = '0';
-				boolean insideQuote = false;
-				char quoteCharInForce = '0';
-
-				String input = this.text.trim();
-				int len = input.length();
-				int end = len - 1;
-				for (int i = 1; i < end; i++)
-				{
-					char ch = input.charAt(i);
-					if (!insideQuote)
-					{
-						if (ch == '(')
-						{
-							sb.append(ch);
-							level++;
-						}
-						else if (ch == ')')
-						{
-							sb.append(ch);
-							level--;
-							if (level <= 0)
-							{
-								break;
-							}
-						}
-						else if (Character.isWhitespace(ch) && (level <= 0))
-						{
-							if (sb.length() > 0)
-							{
-								break;
-							}
-						}
-						else if (quoteChars.contains(ch) && (prev != '\\'))
-						{
-							sb.append(ch);
-							insideQuote = true;
-							quoteCharInForce = ch;
-						}
-						else
-						{
-							sb.append(ch);
-						}
-					}
-					else if (quoteChars.contains(ch) && (ch == quoteCharInForce) && (prev != '\\'))
-					{
-						sb.append(ch);
-						insideQuote = false;
-						quoteCharInForce = '0';
-						if (level <= 0)
-						{
-							break;
-						}
-					}
-					else
-					{
-						sb.append(ch);
-					}
-					prev = ch;
-
-				}
-				result = sb.toString();
-			}
+			// NS: Clean this up someday.
+			result = term.size() == 0 ? "" : term.get(0);
 		}
 		// logger.exiting("Formula", "car", result);
 		return result;
@@ -436,91 +434,13 @@ public class Formula implements Comparable<Formula>, Serializable
 	{
 		// logger.entering("Formula", "cdr");
 		String result = null;
-		if (this.listP())
+		Term term = this.getTerm();
+		if (term != null)
 		{
-			if (this.empty())
-			{
-				result = this.text;
-			}
-			else
+			Term rest = term.rest();
+			if (rest != null)
 			{
-				List<Character> quoteChars = Arrays.asList('"', '\'');
-				int level = 0;
-				char prev = '0';
-				boolean insideQuote = false;
-				char quoteCharInForce = '0';
-				int carCount = 0;
-
-				String input = text.trim();
-				int len = input.length();
-				int end = len - 1;
-				int i = 1;
-				for (; i < end; i++)
-				{
-					char ch = input.charAt(i);
-					if (!insideQuote)
-					{
-						if (ch == '(')
-						{
-							carCount++;
-							level++;
-						}
-						else if (ch == ')')
-						{
-							carCount++;
-							level--;
-							if (level <= 0)
-							{
-								break;
-							}
-						}
-						else if (Character.isWhitespace(ch) && (level <= 0))
-						{
-							if (carCount > 0)
-							{
-								break;
-							}
-						}
-						else if (quoteChars.contains(ch) && (prev != '\\'))
-						{
-							carCount++;
-							insideQuote = true;
-							quoteCharInForce = ch;
-						}
-						else
-						{
-							carCount++;
-						}
-					}
-					else if (quoteChars.contains(ch) && (ch == quoteCharInForce) && (prev != '\\'))
-					{
-						carCount++;
-						insideQuote = false;
-						quoteCharInForce = '0';
-						if (level <= 0)
-						{
-							break;
-						}
-					}
-					else
-					{
-						carCount++;
-					}
-					prev = ch;
-
-				}
-				if (carCount > 0)
-				{
-					int j = i + 1;
-					if (j < end)
-					{
-						result = "(" + input.substring(j, end).trim() + ")";
-					}
-					else
-					{
-						result = "()";
-					}
-				}
+				result = rest.getText();
 			}
 		}
 		// logger.exiting("Formula", "cdr", result);
@@ -586,11 +506,13 @@ public class Formula implements Comparable<Formula>, Serializable
 	 */
 	public Formula cdrAsFormula()
 	{
-		String cdr = this.cdr();
-		if (listP(cdr))
+		Term term = this.getTerm();
+		Term rest = term == null ? null : term.rest();
+		if (rest != null)
 		{
 			Formula f = new Formula();
-			f.set(cdr);
+			f.set(rest.getText());
+			f.term = rest;
 			return f;
 		}
 		return null;
@@ -695,7 +617,25 @@ public class Formula implements Comparable<Formula>, Serializable
 	 */
 	public static boolean empty(String s)
 	{
-		return listP(s) && s.matches("\\(\\s*\\)");
+		// same as matching \(\s*\)
+		if (s == null || s.length() < 2 || s.charAt(0) != '(' || s.charAt(s.length() - 1) != ')')
+			return false;
+		for (int i = 1, end = s.length() - 1; i < end; i++)
+		{
+			switch (s.charAt(i))
+			{
+				case ' ':
+				case '\t':
+				case '\n':
+				case '\u000B':
+				case '\f':
+				case '\r':
+					break;
+				default:
+					return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -718,8 +658,14 @@ public class Formula implements Comparable<Formula>, Serializable
 	{
 		if (isNonEmpty(s))
 		{
-			String str = s.trim();
-			return str.startsWith("(") && str.endsWith(")");
+			// same as trimming, without the copy
+			int lo = 0;
+			int hi = s.length() - 1;
+			while (lo <= hi && s.charAt(lo) <= ' ')
+				lo++;
+			while (hi > lo && s.charAt(hi) <= ' ')
+				hi--;
+			return hi > lo && s.charAt(lo) == '(' && s.charAt(hi) == ')';
 		}
 		return false;
 	}
@@ -735,14 +681,10 @@ public class Formula implements Comparable<Formula>, Serializable
 	 */
 	public int listLength()
 	{
-		int result = -1;
-		if (this.listP())
-		{
-			result = 0;
-			while (isNonEmpty(this.getArgument(result)))
-				++result;
-		}
-		return result;
+		Term term = this.getTerm();
+		if (term != null && term.isList())
+			return term.size();
+		return -1;
 	}
 
 	/**
@@ -753,14 +695,11 @@ public class Formula implements Comparable<Formula>, Serializable
 	public List<String> literalToList()
 	{
 		List<String> tuple = new ArrayList<>();
-		Formula f = this;
-		if (f.listP())
+		Term term = this.getTerm();
+		if (term != null && term.isList())
 		{
-			while (!f.empty())
-			{
-				tuple.add(f.car());
-				f = f.cdrAsFormula();
-			}
+			for (int i = 0, n = term.size(); i < n; i++)
+				tuple.add(term.get(i));
 		}
 		return tuple;
 	}
@@ -1054,18 +993,8 @@ public class Formula implements Comparable<Formula>, Serializable
 	 */
 	public String getArgument(int argnum)
 	{
-		String result = "";
-		Formula form = new Formula();
-		form.set(this.text);
-		for (int i = 0; form.listP(); i++)
-		{
-			result = form.car();
-			if (i == argnum)
-			{
-				break;
-			}
-			form.set(form.cdr());
-		}
+		Term term = this.getTerm();
+		String result = term == null ? null : term.get(argnum);
 		return result == null ? "" : result;
 	}
 
@@ -1099,61 +1028,6 @@ public class Formula implements Comparable<Formula>, Serializable
 
 	// U N I F I C A T I O N
 
-	/**
-	 * Unify var
-	 *
-	 * @return a Map of variable substitutions if successful, null if not
-	 */
-	private SortedMap<String, String> unifyVar(String f1, String f2, SortedMap<String, String> m)
-	{
-		if (m.containsKey(f1))
-			return unifyInternal(m.get(f1), f2, m);
-		else if (m.containsKey(f2))
-			return unifyInternal(m.get(f2), f1, m);
-		else if (f2.contains(f1))
-			return null;
-		else
-		{
-			m.put(f1, f2);
-			return m;
-		}
-	}
-
-	/**
-	 * Unify (internal)
-	 *
-	 * @return a Map of variable substitutions if successful, null if not
-	 */
-	private SortedMap<String, String> unifyInternal(String f1, String f2, SortedMap<String, String> m)
-	{
-		if (m == null)
-			return null;
-		else if (f1.equals(f2))
-			return m;
-		else if (isVariable(f1))
-			return unifyVar(f1, f2, m);
-		else if (isVariable(f2))
-			return unifyVar(f2, f1, m);
-		else if (listP(f1) && listP(f2))
-		{
-			Formula form1 = new Formula();
-			form1.set(f1);
-
-			Formula form2 = new Formula();
-			form2.set(f2);
-
-			SortedMap<String, String> res = unifyInternal(form1.car(), form2.car(), m);
-			if (res == null)
-				return null;
-			else
-				return unifyInternal(form1.cdr(), form2.cdr(), res);
-		}
-		else
-		{
-			return null;
-		}
-	}
-
 	/**
 	 * Attempt to unify one formula with another. Return a Map of
 	 * variable substitutions if successful, null if not. If two
@@ -1164,35 +1038,38 @@ public class Formula implements Comparable<Formula>, Serializable
 	 * when unifying clauses in resolution.  This needs to be
 	 * corrected by renaming variables so each clause does not
 	 * duplicate names from the other.
+	 * The substitution is triangular : a value may contain variables
+	 * that are themselves bound in the map, which substitute() resolves.
 	 *
 	 * @param f formula
 	 * @return a Map of variable substitutions if successful, null if not
 	 */
 	public SortedMap<String, String> unify(Formula f)
 	{
-		SortedMap<String, String> result = new TreeMap<>();
-		result = unifyInternal(f.text, this.text, result);
-		return result;
+		Term t1 = f.getTerm();
+		Term t2 = this.getTerm();
+		if (t1 == null || t2 == null)
+			return null;
+		Unifier unifier = new Unifier();
+		if (!unifier.unify(t1, t2))
+			return null;
+		return unifier.getBindings();
 	}
 
 	/**
 	 * Use a SortedMap of [varName, value] to substitute value in for
-	 * varName wherever it appears in the formula.  This is
-	 * iterative, since values can themselves contain varNames.
+	 * varName wherever it appears in the formula.  Values can themselves
+	 * contain varNames: they are substituted into as they are met, so
+	 * that the formula is rewritten in one pass.
 	 *
 	 * @param m sorted map of [var, value] pairs
 	 * @return formula
 	 */
 	public Formula substitute(SortedMap<String, String> m)
 	{
-		Formula result;
-		String newForm = null;
-		while (newForm == null || !newForm.equals(text))
-		{
-			newForm = text;
-			result = substituteVariables(m);
-			this.text = result.text;
-		}
+		Term term = getTerm();
+		if (term != null)
+			this.text = Unifier.substitute(term, m);
 		return this;
 	}
 
@@ -3247,56 +3124,80 @@ public class Formula implements Comparable<Formula>, Serializable
 		}
 	}
 
+	/**
+	 * Test whether the relations of this formula are applied to as many arguments as their valence
+	 *
+	 * @param kb knowledge base the valences are looked up in
+	 * @return false if a relation is applied to a number of arguments other than its valence
+	 */
 	@SuppressWarnings("BooleanMethodIsAlwaysInverted") public boolean hasCorrectArity(KB kb)
 	{
 		return hasCorrectArity(this.text, kb);
 	}
 
+	/**
+	 * Test whether the relations of a formula are applied to as many arguments as their valence.
+	 * The formula is checked in one pass over its term tree. The variable lists of quantifiers, lists headed by a
+	 * variable, a string or a list, and lists with a row variable argument are not checked, nor are relations whose
+	 * valence is unknown or variable. The KB is only read, so that formulas may be checked in parallel once the
+	 * KB's valences have been cached.
+	 *
+	 * @param formula formula string
+	 * @param kb      knowledge base the valences are looked up in
+	 * @return false if a relation is applied to a number of arguments other than its valence
+	 */
 	public boolean hasCorrectArity(String formula, KB kb)
 	{
-		boolean arityCorrect = true;
-
-		formula = formula.replaceAll("exists\\s+(\\([^(]+?\\))", "");
-		formula = formula.replaceAll("forall\\s+(\\([^(]+?\\))", "");
-		formula = formula.replaceAll("\".*?\"", "?MATCH");
-		Pattern p = Pattern.compile("(\\([^(]+?\\))");
+		return hasCorrectArity(Term.parse(formula), kb);
+	}
 
-		Matcher m = p.matcher(formula);
-		while (m.find() && arityCorrect)
+	private static boolean hasCorrectArity(Term t, KB kb)
+	{
+		if (!t.isList())
+			return true;
+		int n = t.size();
+		int first = 0;
+		Term head = n > 0 ? t.getChild(0) : null;
+		if (head != null && !head.isList() && (UQUANT.equals(head.getText()) || EQUANT.equals(head.getText())) && n > 1 && isVariableList(t.getChild(1)))
 		{
-			String f = m.group(1);
-			if (f.length() > 2)
-				f = f.substring(1, f.length() - 1);
-			String[] split = f.split(" ");
-			if (split.length > 1)
+			// the quantifier and its variable list are left out, the body is checked
+			first = 2;
+		}
+		else if (n > 1 && head.getKind() == Term.Kind.ATOM)
+		{
+			String rel = head.getText();
+			int arity = rel.equals(IF) || rel.equals(IFF) ? 2 : kb.getValence(rel);
+			if (arity >= 1 && n - 1 != arity)
 			{
-				String rel = split[0];
-				if (!rel.startsWith("?"))
-				{
-					int arity;
-					if (rel.equals("=>") || rel.equals("<=>"))
-						arity = 2;
-					else
-						arity = kb.getValence(rel);
-
-					boolean startsWith = false;
-					// disregard statements using the @ROW variable as it
-					// will more often than not resolve to a wrong arity
-					for (int i = 1; i < split.length; i++)
-						if (split[i].startsWith("@"))
-						{
-							startsWith = true;
-							break;
-						}
-					if (!startsWith)
-						if (arity >= 1 && split.length - 1 != arity)
-							arityCorrect = false;
-				}
+				// disregard statements using the @ROW variable as it will more often than not resolve to a wrong arity
+				boolean row = false;
+				for (int i = 1; i < n && !row; i++)
+					row = t.getChild(i).getKind() == Term.Kind.ROW_VARIABLE;
+				if (!row)
+					return false;
 			}
-			formula = formula.replace("(" + f + ")", "?MATCH");
-			m = p.matcher(formula);
+			first = 1;
 		}
-		return arityCorrect;
+		for (int i = first; i < n; i++)
+			if (!hasCorrectArity(t.getChild(i), kb))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Whether a term is the variable list of a quantifier
+	 *
+	 * @param t term
+	 * @return whether t is a list with no list element
+	 */
+	private static boolean isVariableList(Term t)
+	{
+		if (!t.isList())
+			return false;
+		for (int i = 0; i < t.size(); i++)
+			if (t.getChild(i).isList())
+				return false;
+		return true;
 	}
 
 	// I N S T A N T I A T E
@@ -0,0 +1,743 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KIF;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Formula index.
+ * Positional index of the formulas of a KB : (kind, argument position, term ID) maps to a posting list
+ * of formula IDs. Formula IDs are allocated in load order, so that posting lists are sorted and list
+ * the formulas in the order they were loaded, as the string-keyed KB.formulas map does.
+ * Lookups hash the term through the symbol table and do not build key strings.
+ * An index mapped from a snapshot is read-only : formulas are materialized as they are first asked for
+ * and posting lists are decoded from the mapping.
+ */
+public class FormulaIndex implements Serializable
+{
+	private static final long serialVersionUID = -2171283412196806419L;
+
+	/**
+	 * Kind of position a term occurs in, as in the keys built by KIF.createKey
+	 */
+	public enum Kind
+	{
+		/**
+		 * Argument of a top-level statement ("arg-N-term")
+		 */
+		ARG("arg"),
+		/**
+		 * Antecedent of a rule ("ant-term")
+		 */
+		ANT("ant"),
+		/**
+		 * Consequent of a rule ("cons-term")
+		 */
+		CONS("cons"),
+		/**
+		 * Nested in a statement ("stmt-term")
+		 */
+		STMT("stmt");
+
+		private final String prefix;
+
+		Kind(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		/**
+		 * Kind from name
+		 *
+		 * @param name name as used in KB.ask : "arg", "ant", "cons" or "stmt"
+		 * @return kind, null if name is not a kind
+		 */
+		public static Kind of(String name)
+		{
+			for (Kind kind : values())
+			{
+				if (kind.prefix.equals(name))
+					return kind;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Sorted list of formula IDs.
+	 */
+	public static final class Postings implements Serializable
+	{
+		private static final long serialVersionUID = 7036427185322904556L;
+
+		private int[] ids = new int[2];
+
+		private int size;
+
+		/**
+		 * Add formula ID, keeping the list sorted and without duplicates
+		 *
+		 * @param id formula ID
+		 * @return true if the ID was not already in the list
+		 */
+		boolean add(int id)
+		{
+			int i = this.size;
+			if (i > 0 && this.ids[i - 1] >= id)
+			{
+				i = Arrays.binarySearch(this.ids, 0, this.size, id);
+				if (i >= 0)
+					return false;
+				i = -i - 1;
+			}
+			if (this.size == this.ids.length)
+				this.ids = Arrays.copyOf(this.ids, 2 * this.size);
+			System.arraycopy(this.ids, i, this.ids, i + 1, this.size - i);
+			this.ids[i] = id;
+			this.size++;
+			return true;
+		}
+
+		/**
+		 * Whether the list holds a formula ID
+		 *
+		 * @param id formula ID
+		 * @return true if the ID is in the list; answered without search for an ID above the last, as a formula
+		 * being loaded has
+		 */
+		boolean contains(int id)
+		{
+			if (this.size == 0 || this.ids[this.size - 1] < id)
+				return false;
+			return Arrays.binarySearch(this.ids, 0, this.size, id) >= 0;
+		}
+
+		/**
+		 * Remove formula ID
+		 *
+		 * @param id formula ID
+		 * @return true if the ID was in the list
+		 */
+		boolean remove(int id)
+		{
+			int i = Arrays.binarySearch(this.ids, 0, this.size, id);
+			if (i < 0)
+				return false;
+			System.arraycopy(this.ids, i + 1, this.ids, i, this.size - i - 1);
+			this.size--;
+			return true;
+		}
+
+		/**
+		 * Get formula ID
+		 *
+		 * @param i index in list
+		 * @return i-th formula ID
+		 */
+		public int get(int i)
+		{
+			if (i >= this.size)
+				throw new IndexOutOfBoundsException("Posting " + i + " of " + this.size);
+			return this.ids[i];
+		}
+
+		/**
+		 * Size
+		 *
+		 * @return number of formula IDs
+		 */
+		public int size()
+		{
+			return this.size;
+		}
+	}
+
+	// M E M B E R S
+
+	/**
+	 * Symbol table that term IDs come from.
+	 */
+	private final SymbolTable symbols;
+
+	/**
+	 * Formulas indexed by formula ID.
+	 */
+	private final List<Formula> formulas = new ArrayList<>();
+
+	/**
+	 * Formula IDs of the formulas, by identity.
+	 */
+	private final Map<Formula, Integer> ids = new IdentityHashMap<>();
+
+	/**
+	 * Posting lists, indexed by kind, argument position (0 for all kinds but ARG), term ID.
+	 */
+	private final Postings[][][] tables = new Postings[Kind.values().length][][];
+
+	/**
+	 * Snapshot the formulas and posting lists are decoded from, null if the index is built in memory
+	 */
+	private transient MappedSnapshot mapped;
+
+	// C O N S T R U C T O R
+
+	/**
+	 * Constructor
+	 *
+	 * @param symbols symbol table that term IDs come from
+	 */
+	public FormulaIndex(SymbolTable symbols)
+	{
+		this.symbols = symbols;
+		for (int k = 0; k < this.tables.length; k++)
+			this.tables[k] = new Postings[1][];
+	}
+
+	// R E G I S T E R
+
+	/**
+	 * Register formula, allocating its formula ID if it has none
+	 *
+	 * @param f formula
+	 * @return formula ID
+	 */
+	public int register(Formula f)
+	{
+		if (this.mapped != null)
+			return registerMapped(f);
+		Integer id = this.ids.get(f);
+		if (id == null)
+		{
+			id = this.formulas.size();
+			this.formulas.add(f);
+			this.ids.put(f, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Register formula of a mapped index, which is read-only
+	 *
+	 * @param f formula
+	 * @return formula ID
+	 * @throws UnsupportedOperationException if the formula is not one of the index
+	 */
+	private synchronized int registerMapped(Formula f)
+	{
+		Integer id = this.ids.get(f);
+		if (id == null)
+			throw new UnsupportedOperationException("Formula index is a read-only snapshot");
+		return id;
+	}
+
+	/**
+	 * Register the formulas of a parsed file in the order they appear in the file, so that
+	 * formula IDs follow the load order whatever order the file's keys are merged in.
+	 *
+	 * @param kif parsed file
+	 */
+	public void register(KIF kif)
+	{
+		for (String text : kif.formulaSet)
+		{
+			List<Formula> fs = kif.formulas.get(text);
+			if (fs != null)
+			{
+				for (Formula f : fs)
+					register(f);
+			}
+		}
+	}
+
+	// A D D
+
+	/**
+	 * Index formula under a key as built by KIF.createKey ("arg-N-term", "ant-term", "cons-term", "stmt-term").
+	 * Other keys (formula text, formula ID) are not positional and are ignored.
+	 *
+	 * @param key KIF key
+	 * @param f   formula
+	 * @return true if the key is positional
+	 */
+	public boolean add(String key, Formula f)
+	{
+		Postings postings = postingsForKey(key, true);
+		if (postings == null)
+			return false;
+		postings.add(register(f));
+		return true;
+	}
+
+	/**
+	 * Remove formula from under a key as built by KIF.createKey. The formula keeps its formula ID.
+	 *
+	 * @param key KIF key
+	 * @param f   formula
+	 * @return true if the formula was indexed under this key
+	 */
+	public boolean remove(String key, Formula f)
+	{
+		Integer id = this.ids.get(f);
+		if (id == null)
+			return false;
+		Postings postings = postingsForKey(key, false);
+		return postings != null && postings.remove(id);
+	}
+
+	/**
+	 * Whether a formula is indexed under a key as built by KIF.createKey
+	 *
+	 * @param key KIF key
+	 * @param f   formula
+	 * @return true if the key is positional and the formula is indexed under it
+	 */
+	public boolean contains(String key, Formula f)
+	{
+		Integer id = this.ids.get(f);
+		if (id == null)
+			return false;
+		Postings postings = postingsForKey(key, false);
+		return postings != null && postings.contains(id);
+	}
+
+	/**
+	 * Whether a key as built by KIF.createKey is positional, that is indexed in posting lists
+	 *
+	 * @param key KIF key
+	 * @return true for "arg-N-term", "ant-term", "cons-term" and "stmt-term" keys
+	 */
+	public static boolean isPositional(String key)
+	{
+		int dash = key.indexOf('-');
+		if (dash < 0)
+			return false;
+		Kind kind = Kind.of(key.substring(0, dash));
+		if (kind == null)
+			return false;
+		if (kind != Kind.ARG)
+			return true;
+		int dash2 = key.indexOf('-', dash + 1);
+		if (dash2 < 0)
+			return false;
+		try
+		{
+			return Integer.parseInt(key.substring(dash + 1, dash2)) >= 0;
+		}
+		catch (NumberFormatException ex)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Posting list for a key as built by KIF.createKey
+	 *
+	 * @param key    KIF key
+	 * @param create whether to create the posting list if there is none
+	 * @return posting list, null if the key is not positional or if there is none and it is not to be created
+	 */
+	private Postings postingsForKey(String key, boolean create)
+	{
+		int dash = key.indexOf('-');
+		if (dash < 0)
+			return null;
+		Kind kind = Kind.of(key.substring(0, dash));
+		if (kind == null)
+			return null;
+		int argnum = 0;
+		int from = dash + 1;
+		if (kind == Kind.ARG)
+		{
+			int dash2 = key.indexOf('-', from);
+			if (dash2 < 0)
+				return null;
+			try
+			{
+				argnum = Integer.parseInt(key.substring(from, dash2));
+			}
+			catch (NumberFormatException ex)
+			{
+				return null;
+			}
+			if (argnum < 0)
+				return null;
+			from = dash2 + 1;
+		}
+		String term = key.substring(from);
+		return create ? postings(kind, argnum, this.symbols.intern(term)) : getPostings(kind, argnum, term);
+	}
+
+	/**
+	 * Index formula
+	 *
+	 * @param kind   kind of position
+	 * @param argnum argument position (ignored if kind is not ARG)
+	 * @param term   term
+	 * @param f      formula
+	 */
+	public void add(Kind kind, int argnum, String term, Formula f)
+	{
+		int formulaId = register(f);
+		postings(kind, argnum, this.symbols.intern(term)).add(formulaId);
+	}
+
+	/**
+	 * Posting list, created if there is none
+	 *
+	 * @param kind   kind of position
+	 * @param argnum argument position (ignored if kind is not ARG)
+	 * @param termId term ID
+	 * @return posting list
+	 */
+	private Postings postings(Kind kind, int argnum, int termId)
+	{
+		Postings[][] table = this.tables[kind.ordinal()];
+		int a = kind == Kind.ARG ? argnum : 0;
+		if (a >= table.length)
+		{
+			table = Arrays.copyOf(table, a + 1);
+			this.tables[kind.ordinal()] = table;
+		}
+		Postings[] row = table[a];
+		if (row == null || termId >= row.length)
+		{
+			int n = Math.max(termId + 1, this.symbols.size());
+			row = row == null ? new Postings[n] : Arrays.copyOf(row, Math.max(n, 2 * row.length));
+			table[a] = row;
+		}
+		Postings postings = row[termId];
+		if (postings == null)
+		{
+			postings = new Postings();
+			row[termId] = postings;
+		}
+		return postings;
+	}
+
+	// A C C E S S
+
+	/**
+	 * Get formula
+	 *
+	 * @param id formula ID
+	 * @return formula with this ID
+	 */
+	public Formula getFormula(int id)
+	{
+		if (this.mapped != null)
+			return materialize(id);
+		return this.formulas.get(id);
+	}
+
+	/**
+	 * Get formula of a mapped index, decoding it from the snapshot the first time it is asked for
+	 *
+	 * @param id formula ID
+	 * @return formula with this ID
+	 */
+	private synchronized Formula materialize(int id)
+	{
+		Formula f = this.formulas.get(id);
+		if (f == null)
+		{
+			f = this.mapped.formula(id);
+			this.formulas.set(id, f);
+			this.ids.put(f, id);
+		}
+		return f;
+	}
+
+	/**
+	 * Number of formulas
+	 *
+	 * @return number of registered formulas, which is also the upper bound (exclusive) of formula IDs
+	 */
+	public int size()
+	{
+		return this.formulas.size();
+	}
+
+	/**
+	 * Get posting list
+	 *
+	 * @param kind   kind of position
+	 * @param argnum argument position (ignored if kind is not ARG)
+	 * @param term   term
+	 * @return posting list of the formulas where term occurs at this position, null if there is none
+	 */
+	public Postings getPostings(Kind kind, int argnum, String term)
+	{
+		int termId = this.symbols.lookup(term);
+		if (termId < 0)
+			return null;
+		int a = kind == Kind.ARG ? argnum : 0;
+		if (this.mapped != null)
+		{
+			int[] ids = this.mapped.postings(kind.ordinal(), a, termId);
+			if (ids == null)
+				return null;
+			Postings postings = new Postings();
+			postings.ids = ids;
+			postings.size = ids.length;
+			return postings;
+		}
+		Postings[][] table = this.tables[kind.ordinal()];
+		if (a < 0 || a >= table.length)
+			return null;
+		Postings[] row = table[a];
+		if (row == null || termId >= row.length)
+			return null;
+		return row[termId];
+	}
+
+	// Q U E R Y
+
+	/**
+	 * Ask
+	 *
+	 * @param kind   kind of position
+	 * @param argnum argument position (ignored if kind is not ARG)
+	 * @param term   term
+	 * @return formulas where term occurs at this position, in load order
+	 */
+	public List<Formula> ask(Kind kind, int argnum, String term)
+	{
+		Postings postings = getPostings(kind, argnum, term);
+		if (postings == null)
+			return new ArrayList<>();
+		List<Formula> result = new ArrayList<>(postings.size);
+		for (int i = 0; i < postings.size; i++)
+			result.add(getFormula(postings.ids[i]));
+		return result;
+	}
+
+	/**
+	 * Ask for formulas with terms in given argument positions
+	 *
+	 * @param argnums argument positions
+	 * @param terms   terms, one per argument position
+	 * @return read-only list of the formulas where each term occurs in its argument position, in load order
+	 */
+	public List<Formula> askArgs(int[] argnums, String[] terms)
+	{
+		Postings[] lists = new Postings[argnums.length];
+		for (int i = 0; i < argnums.length; i++)
+		{
+			lists[i] = getPostings(Kind.ARG, argnums[i], terms[i]);
+			if (lists[i] == null)
+				return Collections.emptyList();
+		}
+		return new FormulaList(intersect(lists));
+	}
+
+	/**
+	 * Read-only list of formulas backed by formula IDs, formulas being looked up as they are accessed.
+	 */
+	private final class FormulaList extends AbstractList<Formula> implements RandomAccess
+	{
+		private final int[] ids;
+
+		FormulaList(int[] ids)
+		{
+			this.ids = ids;
+		}
+
+		@Override public Formula get(int i)
+		{
+			return getFormula(this.ids[i]);
+		}
+
+		@Override public int size()
+		{
+			return this.ids.length;
+		}
+	}
+
+	// B I N A R Y
+
+	/**
+	 * Write the posting lists: for each kind, the number of argument positions, then for each position
+	 * the number of non-empty lists, then for each its term ID, size and formula IDs.
+	 * The directory has the same layout, with, for each list, its term ID and the offset of its size.
+	 *
+	 * @param out       output, whose size() is the offset of what is written next
+	 * @param directory directory output
+	 * @throws IOException io exception
+	 */
+	void writePostings(DataOutputStream out, DataOutput directory) throws IOException
+	{
+		if (this.mapped != null)
+		{
+			this.mapped.copyPostings(out, directory);
+			return;
+		}
+		for (Postings[][] table : this.tables)
+		{
+			out.writeInt(table.length);
+			directory.writeInt(table.length);
+			for (Postings[] row : table)
+			{
+				int count = 0;
+				if (row != null)
+				{
+					for (Postings postings : row)
+					{
+						if (postings != null && postings.size > 0)
+							count++;
+					}
+				}
+				out.writeInt(count);
+				directory.writeInt(count);
+				if (count == 0)
+					continue;
+				for (int termId = 0; termId < row.length; termId++)
+				{
+					Postings postings = row[termId];
+					if (postings == null || postings.size == 0)
+						continue;
+					out.writeInt(termId);
+					directory.writeInt(termId);
+					directory.writeInt(out.size());
+					out.writeInt(postings.size);
+					for (int i = 0; i < postings.size; i++)
+						out.writeInt(postings.ids[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read posting lists written by writePostings() into this index, whose symbol table and
+	 * formulas must have been restored with the same IDs
+	 *
+	 * @param in input
+	 * @throws IOException io exception
+	 */
+	void readPostings(DataInput in) throws IOException
+	{
+		int symbolCount = this.symbols.size();
+		int formulaCount = this.formulas.size();
+		for (int k = 0; k < this.tables.length; k++)
+		{
+			Postings[][] table = new Postings[Math.max(1, in.readInt())][];
+			for (int a = 0; a < table.length; a++)
+			{
+				int count = in.readInt();
+				if (count == 0)
+					continue;
+				Postings[] row = new Postings[symbolCount];
+				for (int n = 0; n < count; n++)
+				{
+					int termId = in.readInt();
+					int size = in.readInt();
+					if (termId < 0 || termId >= symbolCount || size < 0)
+						throw new IOException("Bad posting list for term " + termId);
+					Postings postings = new Postings();
+					postings.ids = new int[Math.max(2, size)];
+					for (int i = 0; i < size; i++)
+					{
+						int id = in.readInt();
+						if (id < 0 || id >= formulaCount)
+							throw new IOException("Bad formula ID " + id);
+						postings.ids[i] = id;
+					}
+					postings.size = size;
+					row[termId] = postings;
+				}
+				table[a] = row;
+			}
+			this.tables[k] = table;
+		}
+	}
+
+	/**
+	 * Map the index to a snapshot, whose formulas and posting lists are then decoded as they are asked for.
+	 * The symbols must have been restored with the same IDs.
+	 *
+	 * @param snapshot mapped snapshot
+	 */
+	void map(MappedSnapshot snapshot)
+	{
+		this.formulas.clear();
+		this.ids.clear();
+		this.formulas.addAll(Collections.nCopies(snapshot.getFormulaCount(), null));
+		this.mapped = snapshot;
+	}
+
+	// I N T E R S E C T
+
+	/**
+	 * Intersect posting lists, starting from the shortest. Each ID that remains is searched for in the
+	 * next list by galloping from the position of the previous one, so that intersecting a short list
+	 * with a long one costs O(short * log(long / short)) rather than O(long).
+	 *
+	 * @param lists posting lists
+	 * @return sorted formula IDs that are in all lists
+	 */
+	static int[] intersect(Postings... lists)
+	{
+		Postings[] sorted = lists.clone();
+		Arrays.sort(sorted, (p1, p2) -> Integer.compare(p1.size, p2.size));
+		int[] result = Arrays.copyOf(sorted[0].ids, sorted[0].size);
+		int n = result.length;
+		for (int k = 1; k < sorted.length && n > 0; k++)
+		{
+			Postings p = sorted[k];
+			int m = 0;
+			int j = 0;
+			for (int i = 0; i < n && j < p.size; i++)
+			{
+				int id = result[i];
+				j = gallop(p.ids, j, p.size, id);
+				if (j < p.size && p.ids[j] == id)
+				{
+					result[m++] = id;
+					j++;
+				}
+			}
+			n = m;
+		}
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Galloping search
+	 *
+	 * @param a    sorted array
+	 * @param from start index (inclusive)
+	 * @param to   end index (exclusive)
+	 * @param key  value searched for
+	 * @return index of the first element in [from, to) that is not less than key, to if there is none
+	 */
+	static int gallop(int[] a, int from, int to, int key)
+	{
+		// exponential probe for an upper bound
+		int lo = from;
+		int step = 1;
+		int hi = from;
+		while (hi < to && a[hi] < key)
+		{
+			lo = hi + 1;
+			hi = from + step;
+			step <<= 1;
+		}
+		if (hi > to)
+			hi = to;
+
+		// binary search in [lo, hi)
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
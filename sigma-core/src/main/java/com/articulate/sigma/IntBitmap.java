@@ -0,0 +1,537 @@
+package com.articulate.sigma;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compressed bitmap over non-negative ints (typically symbol IDs), in the manner of roaring bitmaps.
+ * Values are split on their high 16 bits into containers, each holding the low 16 bits of its values,
+ * either as a sorted char array (up to 4096 values, 2 bytes a value) or as a 65536-bit bitmap
+ * (8 KB, whatever the number of values). Symbol IDs are dense, so closure rows of a few values cost
+ * a few bytes each and rows spanning most of the symbol table cost one bit a symbol.
+ */
+final class IntBitmap implements Serializable
+{
+	private static final long serialVersionUID = 6090417232964287455L;
+
+	/**
+	 * Maximum cardinality of an array container
+	 */
+	private static final int ARRAY_MAX = 4096;
+
+	/**
+	 * High 16 bits of the values in each container, sorted
+	 */
+	private char[] highs = new char[1];
+
+	/**
+	 * Containers, in the order of highs
+	 */
+	private Container[] containers = new Container[1];
+
+	/**
+	 * Number of containers
+	 */
+	private int containerCount;
+
+	/**
+	 * Number of values
+	 */
+	private int size;
+
+	// A C C E S S
+
+	/**
+	 * Add value
+	 *
+	 * @param value value (non-negative)
+	 * @return true if the value was not already present
+	 */
+	boolean add(int value)
+	{
+		int i = containerIndex((char) (value >>> 16), true);
+		Container c = this.containers[i];
+		int cardinality = c.cardinality;
+		c = c.add((char) value);
+		this.containers[i] = c;
+		if (c.cardinality == cardinality)
+			return false;
+		this.size++;
+		return true;
+	}
+
+	/**
+	 * Add all values
+	 *
+	 * @param other other set
+	 * @return true if this set changed
+	 */
+	boolean addAll(IntBitmap other)
+	{
+		if (other == this)
+			return false;
+		int oldSize = this.size;
+		for (int j = 0; j < other.containerCount; j++)
+		{
+			int i = containerIndex(other.highs[j], true);
+			Container c = this.containers[i];
+			int cardinality = c.cardinality;
+			c = c.or(other.containers[j]);
+			this.containers[i] = c;
+			this.size += c.cardinality - cardinality;
+		}
+		return this.size != oldSize;
+	}
+
+	/**
+	 * Contains
+	 *
+	 * @param value value
+	 * @return true if value is in this set
+	 */
+	boolean contains(int value)
+	{
+		if (value < 0)
+			return false;
+		int i = containerIndex((char) (value >>> 16), false);
+		return i >= 0 && this.containers[i].contains((char) value);
+	}
+
+	/**
+	 * Contains all
+	 *
+	 * @param other other set
+	 * @return true if all values of other are in this set
+	 */
+	boolean containsAll(IntBitmap other)
+	{
+		if (other.size > this.size)
+			return false;
+		for (int j = 0; j < other.containerCount; j++)
+		{
+			int i = containerIndex(other.highs[j], false);
+			if (i < 0 || !this.containers[i].containsAll(other.containers[j]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Size
+	 *
+	 * @return number of values
+	 */
+	int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Is empty
+	 *
+	 * @return true if this set has no values
+	 */
+	boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+	/**
+	 * To array
+	 *
+	 * @return values, in ascending order
+	 */
+	int[] toArray()
+	{
+		int[] result = new int[this.size];
+		int n = 0;
+		for (int i = 0; i < this.containerCount; i++)
+			n = this.containers[i].toArray(this.highs[i] << 16, result, n);
+		return result;
+	}
+
+	/**
+	 * Estimated size in bytes
+	 *
+	 * @return approximate number of bytes held by this set
+	 */
+	long sizeInBytes()
+	{
+		long bytes = 32L + 2L * this.highs.length + 4L * this.containers.length;
+		for (int i = 0; i < this.containerCount; i++)
+			bytes += this.containers[i].sizeInBytes();
+		return bytes;
+	}
+
+	// B I N A R Y
+
+	/**
+	 * Write the containers as they are: container count, then for each its high bits, kind (0 array, 1 bitmap),
+	 * cardinality, and the array's chars or the bitmap's 1024 longs
+	 *
+	 * @param out output
+	 * @throws IOException io exception
+	 */
+	void write(DataOutput out) throws IOException
+	{
+		out.writeInt(this.containerCount);
+		for (int i = 0; i < this.containerCount; i++)
+		{
+			Container c = this.containers[i];
+			out.writeChar(this.highs[i]);
+			out.writeByte(c instanceof BitmapContainer ? 1 : 0);
+			out.writeInt(c.cardinality);
+			if (c instanceof BitmapContainer)
+			{
+				for (long word : ((BitmapContainer) c).words)
+					out.writeLong(word);
+			}
+			else
+			{
+				char[] values = ((ArrayContainer) c).values;
+				for (int j = 0; j < c.cardinality; j++)
+					out.writeChar(values[j]);
+			}
+		}
+	}
+
+	/**
+	 * Read a set written by write()
+	 *
+	 * @param in input
+	 * @return set
+	 * @throws IOException io exception
+	 */
+	static IntBitmap read(DataInput in) throws IOException
+	{
+		IntBitmap result = new IntBitmap();
+		int count = in.readInt();
+		result.highs = new char[Math.max(1, count)];
+		result.containers = new Container[Math.max(1, count)];
+		for (int i = 0; i < count; i++)
+		{
+			result.highs[i] = in.readChar();
+			byte kind = in.readByte();
+			int cardinality = in.readInt();
+			Container c;
+			if (kind == 1)
+			{
+				BitmapContainer bitmap = new BitmapContainer();
+				for (int w = 0; w < bitmap.words.length; w++)
+					bitmap.words[w] = in.readLong();
+				c = bitmap;
+			}
+			else if (kind == 0 && cardinality <= ARRAY_MAX)
+			{
+				ArrayContainer array = new ArrayContainer();
+				array.values = new char[Math.max(4, cardinality)];
+				for (int j = 0; j < cardinality; j++)
+					array.values[j] = in.readChar();
+				c = array;
+			}
+			else
+				throw new IOException("Bad bitmap container " + kind + " of " + cardinality);
+			c.cardinality = cardinality;
+			result.containers[i] = c;
+			result.size += cardinality;
+		}
+		result.containerCount = count;
+		return result;
+	}
+
+	// C O N T A I N E R S
+
+	/**
+	 * Index of the container for the high 16 bits of a value
+	 *
+	 * @param high   high 16 bits
+	 * @param create whether to create the container if there is none
+	 * @return index in containers, negative if there is none and it is not to be created
+	 */
+	private int containerIndex(char high, boolean create)
+	{
+		int i = Arrays.binarySearch(this.highs, 0, this.containerCount, high);
+		if (i >= 0 || !create)
+			return i;
+		i = -i - 1;
+		if (this.containerCount == this.highs.length)
+		{
+			this.highs = Arrays.copyOf(this.highs, 2 * this.containerCount);
+			this.containers = Arrays.copyOf(this.containers, 2 * this.containerCount);
+		}
+		System.arraycopy(this.highs, i, this.highs, i + 1, this.containerCount - i);
+		System.arraycopy(this.containers, i, this.containers, i + 1, this.containerCount - i);
+		this.highs[i] = high;
+		this.containers[i] = new ArrayContainer();
+		this.containerCount++;
+		return i;
+	}
+
+	/**
+	 * Set of the low 16 bits of the values that share their high 16 bits
+	 */
+	private abstract static class Container implements Serializable
+	{
+		private static final long serialVersionUID = -6412946326094813283L;
+
+		int cardinality;
+
+		abstract boolean contains(char low);
+
+		/**
+		 * Add value
+		 *
+		 * @param low low 16 bits
+		 * @return this container or the container that replaces it
+		 */
+		abstract Container add(char low);
+
+		/**
+		 * Add all values
+		 *
+		 * @param other other container
+		 * @return this container or the container that replaces it
+		 */
+		abstract Container or(Container other);
+
+		abstract boolean containsAll(Container other);
+
+		abstract int toArray(int high, int[] result, int offset);
+
+		abstract long sizeInBytes();
+	}
+
+	/**
+	 * Sorted array of up to ARRAY_MAX values
+	 */
+	private static final class ArrayContainer extends Container
+	{
+		private static final long serialVersionUID = 2806519713417357207L;
+
+		private char[] values = new char[4];
+
+		@Override boolean contains(char low)
+		{
+			return Arrays.binarySearch(this.values, 0, this.cardinality, low) >= 0;
+		}
+
+		@Override Container add(char low)
+		{
+			int i = Arrays.binarySearch(this.values, 0, this.cardinality, low);
+			if (i >= 0)
+				return this;
+			if (this.cardinality == ARRAY_MAX)
+				return toBitmap().add(low);
+			i = -i - 1;
+			if (this.cardinality == this.values.length)
+				this.values = Arrays.copyOf(this.values, Math.min(2 * this.cardinality, ARRAY_MAX));
+			System.arraycopy(this.values, i, this.values, i + 1, this.cardinality - i);
+			this.values[i] = low;
+			this.cardinality++;
+			return this;
+		}
+
+		@Override Container or(Container other)
+		{
+			if (other instanceof BitmapContainer)
+				return ((BitmapContainer) other).copy().or(this);
+			ArrayContainer that = (ArrayContainer) other;
+			if (that.cardinality == 0)
+				return this;
+
+			// merge
+			char[] merged = new char[this.cardinality + that.cardinality];
+			int i = 0;
+			int j = 0;
+			int n = 0;
+			while (i < this.cardinality && j < that.cardinality)
+			{
+				char a = this.values[i];
+				char b = that.values[j];
+				if (a < b)
+				{
+					merged[n++] = a;
+					i++;
+				}
+				else if (b < a)
+				{
+					merged[n++] = b;
+					j++;
+				}
+				else
+				{
+					merged[n++] = a;
+					i++;
+					j++;
+				}
+			}
+			while (i < this.cardinality)
+				merged[n++] = this.values[i++];
+			while (j < that.cardinality)
+				merged[n++] = that.values[j++];
+			if (n == this.cardinality)
+				return this;
+			if (n > ARRAY_MAX)
+			{
+				BitmapContainer bitmap = new BitmapContainer();
+				for (int k = 0; k < n; k++)
+					bitmap.set(merged[k]);
+				return bitmap;
+			}
+			this.values = merged;
+			this.cardinality = n;
+			return this;
+		}
+
+		@Override boolean containsAll(Container other)
+		{
+			if (other.cardinality > this.cardinality)
+				return false;
+			if (other instanceof BitmapContainer)
+			{
+				long[] words = ((BitmapContainer) other).words;
+				for (int w = 0; w < words.length; w++)
+				{
+					for (long word = words[w]; word != 0; word &= word - 1)
+					{
+						if (!contains((char) ((w << 6) + Long.numberOfTrailingZeros(word))))
+							return false;
+					}
+				}
+				return true;
+			}
+			ArrayContainer that = (ArrayContainer) other;
+			int i = 0;
+			for (int j = 0; j < that.cardinality; j++)
+			{
+				char b = that.values[j];
+				while (i < this.cardinality && this.values[i] < b)
+					i++;
+				if (i == this.cardinality || this.values[i] != b)
+					return false;
+			}
+			return true;
+		}
+
+		@Override int toArray(int high, int[] result, int offset)
+		{
+			for (int i = 0; i < this.cardinality; i++)
+				result[offset++] = high | this.values[i];
+			return offset;
+		}
+
+		@Override long sizeInBytes()
+		{
+			return 32L + 2L * this.values.length;
+		}
+
+		private BitmapContainer toBitmap()
+		{
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int i = 0; i < this.cardinality; i++)
+				bitmap.set(this.values[i]);
+			return bitmap;
+		}
+	}
+
+	/**
+	 * Bitmap of the 65536 possible values
+	 */
+	private static final class BitmapContainer extends Container
+	{
+		private static final long serialVersionUID = -1878436127934524893L;
+
+		private final long[] words = new long[1024];
+
+		@Override boolean contains(char low)
+		{
+			return (this.words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override Container add(char low)
+		{
+			set(low);
+			return this;
+		}
+
+		@Override Container or(Container other)
+		{
+			if (other instanceof BitmapContainer)
+			{
+				long[] that = ((BitmapContainer) other).words;
+				int n = 0;
+				for (int w = 0; w < this.words.length; w++)
+				{
+					this.words[w] |= that[w];
+					n += Long.bitCount(this.words[w]);
+				}
+				this.cardinality = n;
+			}
+			else
+			{
+				ArrayContainer that = (ArrayContainer) other;
+				for (int i = 0; i < that.cardinality; i++)
+					set(that.values[i]);
+			}
+			return this;
+		}
+
+		@Override boolean containsAll(Container other)
+		{
+			if (other instanceof BitmapContainer)
+			{
+				long[] that = ((BitmapContainer) other).words;
+				for (int w = 0; w < this.words.length; w++)
+				{
+					if ((that[w] & ~this.words[w]) != 0)
+						return false;
+				}
+				return true;
+			}
+			ArrayContainer that = (ArrayContainer) other;
+			for (int i = 0; i < that.cardinality; i++)
+			{
+				if (!contains(that.values[i]))
+					return false;
+			}
+			return true;
+		}
+
+		@Override int toArray(int high, int[] result, int offset)
+		{
+			for (int w = 0; w < this.words.length; w++)
+			{
+				for (long word = this.words[w]; word != 0; word &= word - 1)
+					result[offset++] = high | ((w << 6) + Long.numberOfTrailingZeros(word));
+			}
+			return offset;
+		}
+
+		@Override long sizeInBytes()
+		{
+			return 32L + 8L * this.words.length;
+		}
+
+		private void set(char low)
+		{
+			long bit = 1L << low;
+			int w = low >>> 6;
+			if ((this.words[w] & bit) == 0)
+			{
+				this.words[w] |= bit;
+				this.cardinality++;
+			}
+		}
+
+		private BitmapContainer copy()
+		{
+			BitmapContainer copy = new BitmapContainer();
+			System.arraycopy(this.words, 0, copy.words, 0, this.words.length);
+			copy.cardinality = this.cardinality;
+			return copy;
+		}
+	}
+}
@@ -17,17 +17,29 @@ package com.articulate.sigma;
 
 import com.articulate.sigma.kif.KIF;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 
 /**
  * Contains methods for reading, writing knowledge bases and their
@@ -82,6 +94,17 @@ public class KB implements Serializable
 	 */
 	private boolean isVisible = true;
 
+	/**
+	 * The symbol table that maps the constants of this KB to int IDs.
+	 * The relation caches are built on these IDs.
+	 */
+	private final SymbolTable symbols = new SymbolTable(16384);
+
+	/**
+	 * The positional index of the formulas of this KB, which answers ask() and its variants.
+	 */
+	private final FormulaIndex formulaIndex = new FormulaIndex(symbols);
+
 	/**
 	 * A synchronized SortedSet of Strings, which are all the terms in the KB.
 	 */
@@ -91,13 +114,13 @@ public class KB implements Serializable
 	 * A Map of all the Formula objects in the KB.  Each key is a String representation of a Formula.  Each value is the Formula
 	 * object corresponding to the key.
 	 */
-	public final Map<String, Formula> formulaMap = new LinkedHashMap<>();
+	public final Map<String, Formula> formulaMap;
 
 	/**
 	 * A Map of Lists of String formulae, containing all the formulae in the KB.  Keys are the formula itself, a formula ID, and term
 	 * indexes created in KIF.createKey().  The actual formula can be retrieved by using the returned String as the key for the variable formulaMap
 	 */
-	public final Map<String, List<Formula>> formulas = new HashMap<>();
+	public final Map<String, List<Formula>> formulas;
 
 	/**
 	 * The natural language formatting strings for relations in the KB. It is a Map of language keys and Map values.
@@ -134,7 +157,7 @@ public class KB implements Serializable
 	/**
 	 * Relation valences
 	 */
-	private final Map<String, int[]> relationValences = new HashMap<>();
+	private final Map<String, int[]> relationValences = new ConcurrentHashMap<>();
 
 	/**
 	 * A List of the names of cached transitive relations.
@@ -159,6 +182,45 @@ public class KB implements Serializable
 	 */
 	private final List<RelationCache> relationCaches = new ArrayList<>();
 
+	/**
+	 * Interval labeling of the subclass cache, which answers isSubclass().
+	 * It is rebuilt with the relation caches, and is null while they are being built.
+	 */
+	private transient SubsumptionIndex subsumptionIndex = null;
+
+	/**
+	 * Discrimination tree of the atomic formulas, built on first use and dropped when the formulas change
+	 */
+	private transient volatile DiscriminationTree<Formula> assertionIndex = null;
+
+	/**
+	 * Discrimination trees of the negative (0) and positive (1) clause literals, built on first use and dropped
+	 * when the formulas change
+	 */
+	private transient volatile List<DiscriminationTree<Clause>> literalIndexes = null;
+
+	/**
+	 * Whether the relation caches are out of date with respect to the formulas, because their build
+	 * has been deferred to the end of a load session.
+	 */
+	private boolean relationCachesDirty = false;
+
+	/**
+	 * Nesting depth of load sessions.
+	 */
+	private int loadDepth = 0;
+
+	/**
+	 * KIF readers of the constituents merged in the current load session whose arity check
+	 * is deferred to the end of the session.
+	 */
+	private final List<KIF> pendingArityChecks = new ArrayList<>();
+
+	/**
+	 * Whether this KB is mapped from a snapshot, in which case it cannot be modified.
+	 */
+	private final boolean readOnly;
+
 	/**
 	 * If true, assertions of the form (predicate x x) will be included in the relation cache tables.
 	 */
@@ -183,6 +245,9 @@ public class KB implements Serializable
 	{
 		name = null;
 		kbDir = null;
+		formulaMap = new LinkedHashMap<>();
+		formulas = new HashMap<>();
+		readOnly = false;
 	}
 
 	/**
@@ -195,6 +260,9 @@ public class KB implements Serializable
 	{
 		name = n;
 		kbDir = dir;
+		formulaMap = new LinkedHashMap<>();
+		formulas = new HashMap<>();
+		readOnly = false;
 	}
 
 	/**
@@ -220,6 +288,28 @@ public class KB implements Serializable
 		name = n;
 		KBManager mgr = KBManager.getMgr();
 		kbDir = mgr.getPref("kbDir");
+		formulaMap = new LinkedHashMap<>();
+		formulas = new HashMap<>();
+		readOnly = false;
+	}
+
+	/**
+	 * Constructor of a read-only KB mapped from a snapshot, whose formulas are decoded as they are asked for.
+	 *
+	 * @param n          name
+	 * @param dir        directory
+	 * @param visibility visibility
+	 * @param snapshot   mapped snapshot
+	 */
+	KB(String n, String dir, boolean visibility, MappedSnapshot snapshot)
+	{
+		name = n;
+		kbDir = dir;
+		isVisible = visibility;
+		formulaIndex.map(snapshot);
+		formulaMap = snapshot.formulaMap(formulaIndex);
+		formulas = snapshot.keyMap(formulaIndex);
+		readOnly = true;
 	}
 
 	/**
@@ -232,6 +322,40 @@ public class KB implements Serializable
 		return this.terms;
 	}
 
+	/**
+	 * Returns the symbol table of this KB.
+	 *
+	 * @return the symbol table mapping the constants of this KB to int IDs.
+	 */
+	public SymbolTable getSymbols()
+	{
+		return this.symbols;
+	}
+
+	/**
+	 * Get formula index
+	 *
+	 * @return the positional index of the formulas of this KB
+	 */
+	public FormulaIndex getFormulaIndex()
+	{
+		return this.formulaIndex;
+	}
+
+	/**
+	 * Add terms to the KB, in their canonical form as given by the symbol table.
+	 *
+	 * @param newTerms terms
+	 */
+	protected void addTerms(Collection<String> newTerms)
+	{
+		synchronized (this.terms)
+		{
+			for (String term : newTerms)
+				this.terms.add(symbols.canonical(term));
+		}
+	}
+
 	/**
 	 * Return List of all nonrelTerms in an List
 	 *
@@ -305,6 +429,27 @@ public class KB implements Serializable
 		return isVisible;
 	}
 
+	/**
+	 * Read-only
+	 *
+	 * @return whether this KB is mapped from a snapshot and cannot be modified
+	 */
+	public boolean isReadOnly()
+	{
+		return readOnly;
+	}
+
+	/**
+	 * Check that this KB can be modified
+	 *
+	 * @throws UnsupportedOperationException if this KB is mapped from a snapshot
+	 */
+	private void checkWritable()
+	{
+		if (readOnly)
+			throw new UnsupportedOperationException("KB " + name + " is a read-only snapshot");
+	}
+
 	/**
 	 * If this method returns true, then reflexive assertions will be
 	 * included in the relation caches built when Sigma starts up.
@@ -498,7 +643,7 @@ public class KB implements Serializable
 				}
 				if (result == null)
 				{
-					cache = new RelationCache(relName, keyArg, valueArg);
+					cache = new RelationCache(symbols, relName, keyArg, valueArg);
 					getRelationCaches().add(cache);
 					result = cache;
 				}
@@ -525,8 +670,7 @@ public class KB implements Serializable
 		int count = 0;
 		if ((cache != null) && !keyTerm.isEmpty() && !valueTerm.isEmpty())
 		{
-			Set<String> valueSet = cache.computeIfAbsent(keyTerm, k -> new HashSet<>());
-			if (valueSet.add(valueTerm))
+			if (cache.add(symbols.intern(keyTerm), symbols.intern(valueTerm)))
 				count++;
 		}
 		return count;
@@ -550,33 +694,57 @@ public class KB implements Serializable
 		RelationCache cache = getRelationCache(relation, keyArg, valueArg);
 		if (cache != null)
 		{
-			Set<String> values = cache.get(term);
+			IntBitmap values = cache.getRow(symbols.lookup(term));
 			if (values != null)
-				result.addAll(values);
+			{
+				for (int value : values.toArray())
+					result.add(symbols.getName(value));
+			}
 		}
 		return result;
 	}
 
+	/**
+	 * Tests whether value is in the Set indexed by term in the RelationCache
+	 * identified by relation, keyArg, and valueArg, without building the Set.
+	 *
+	 * @param relation A String, the name of a relation
+	 * @param term     A String (key) that indexes a Set
+	 * @param keyArg   An int value that, with relation and valueArg,
+	 *                 identifies a RelationCache
+	 * @param valueArg An int value that, with relation and keyArg,
+	 *                 identifies a RelationCache
+	 * @param value    A String, the value looked for
+	 * @return whether the cached Set contains value
+	 */
+	public boolean hasCachedRelationValue(String relation, String term, int keyArg, int valueArg, String value)
+	{
+		RelationCache cache = getRelationCache(relation, keyArg, valueArg);
+		if (cache == null)
+			return false;
+		IntBitmap values = cache.getRow(symbols.lookup(term));
+		return values != null && values.contains(symbols.lookup(value));
+	}
+
 	/**
 	 * Check arity
 	 */
 	public void checkArity()
 	{
+		checkWritable();
+		Set<Formula> rejected = findIncorrectArity(formulaMap.values());
 		List<String> toRemove = new ArrayList<>();
-		if (formulaMap.size() > 0)
+		for (Formula f : formulaMap.values())
 		{
-			for (String s : formulaMap.keySet())
+			if (rejected.contains(f))
 			{
-				Formula f = formulaMap.get(s);
-				if (!f.hasCorrectArity(this))
-				{
-					errors.add("Formula in " + f.sourceFile + " rejected due to arity error: <br/>" + f.text);
-					toRemove.add(f.text);
-				}
+				errors.add("Formula in " + f.sourceFile + " rejected due to arity error: <br/>" + f.text);
+				toRemove.add(f.text);
 			}
 		}
 		for (String s : toRemove)
 			formulaMap.remove(s);
+		dropLiteralIndexes();
 	}
 
 	/**
@@ -608,75 +776,38 @@ public class KB implements Serializable
 						inst1 = getRelationCache("instance", 1, 2);
 						inst2 = getRelationCache("instance", 2, 1);
 					}
-					Set<String> c1Keys = c1.keySet();
+					count = TransitiveClosure.close(c1, c2, symbols.size(), MAX_CACHE_SIZE);
+					c1.setIsClosureComputed();
+					c2.setIsClosureComputed();
 
-					boolean changed = true;
-					while (changed)
+					// Here we try to ensure that instances of Relation have at least some entry in the
+					// "instance" caches, since this information is sometimes considered
+					// redundant and so could be left out of .kif files.
+					if (isSubrelationCache)
 					{
-						changed = false;
-						for (String keyTerm : c1Keys)
+						for (int key : c1.keyIds())
 						{
-							if (keyTerm == null || keyTerm.isEmpty())
-								logger.warning("Error in KB.computeTransitiveCacheClosure(" + relationName + ") \n   keyTerm == " + ((keyTerm == null) ?
-										null :
-										"\"" + keyTerm + "\""));
+							String keyTerm = symbols.getName(key);
+							if (keyTerm.isEmpty())
+							{
+								logger.warning("Error in KB.computeTransitiveCacheClosure(" + relationName + ") \n   keyTerm == \"" + keyTerm + "\"");
+								continue;
+							}
+							String valTerm = "Relation";
+							if (keyTerm.endsWith("Fn"))
+								valTerm = "Function";
 							else
 							{
-								Set<String> valSet = c1.get(keyTerm);
-								String[] valArr = valSet.toArray(new String[0]);
-								for (String valTerm : valArr)
-								{
-									Set<String> valSet2 = c1.get(valTerm);
-									if (valSet2 != null)
-									{
-										for (String s : valSet2)
-										{
-											if (count >= MAX_CACHE_SIZE)
-												break;
-											if (valSet.add(s))
-											{
-												changed = true;
-												count++;
-											}
-										}
-									}
-									if (count < MAX_CACHE_SIZE)
-									{
-										valSet2 = c2.computeIfAbsent(valTerm, k -> new HashSet<>());
-										if (valSet2.add(keyTerm))
-										{
-											changed = true;
-											count++;
-										}
-									}
-								}
-								// Here we try to ensure that instances of Relation have at least some entry in the
-								// "instance" caches, since this information is sometimes considered
-								// redundant and so could be left out of .kif files.
-								if (isSubrelationCache)
-								{
-									String valTerm = "Relation";
-									if (keyTerm.endsWith("Fn"))
-										valTerm = "Function";
-									else
-									{
-										String nsDelim = StringUtil.getKifNamespaceDelimiter();
-										int ndIdx = keyTerm.indexOf(nsDelim);
-										String stripped = keyTerm;
-										if (ndIdx > -1)
-											stripped = keyTerm.substring(nsDelim.length() + ndIdx);
-										if (Character.isLowerCase(stripped.charAt(0)) && !keyTerm.contains("("))
-											valTerm = "Predicate";
-									}
-									addRelationCacheEntry(inst1, keyTerm, valTerm);
-									addRelationCacheEntry(inst2, valTerm, keyTerm);
-								}
+								String nsDelim = StringUtil.getKifNamespaceDelimiter();
+								int ndIdx = keyTerm.indexOf(nsDelim);
+								String stripped = keyTerm;
+								if (ndIdx > -1)
+									stripped = keyTerm.substring(nsDelim.length() + ndIdx);
+								if (Character.isLowerCase(stripped.charAt(0)) && !keyTerm.contains("("))
+									valTerm = "Predicate";
 							}
-						}
-						if (changed)
-						{
-							c1.setIsClosureComputed();
-							c2.setIsClosureComputed();
+							addRelationCacheEntry(inst1, keyTerm, valTerm);
+							addRelationCacheEntry(inst2, valTerm, keyTerm);
 						}
 					}
 				}
@@ -705,37 +836,30 @@ public class KB implements Serializable
 			RelationCache ic2 = getRelationCache("instance", 2, 1);
 			RelationCache sc1 = getRelationCache("subclass", 1, 2);
 
-			Set<String> ic1KeySet = ic1.keySet();
-			for (String ic1KeyTerm : ic1KeySet)
+			for (int ic1Key : ic1.keyIds())
 			{
-				Set<String> ic1ValSet = ic1.get(ic1KeyTerm);
-
-				String[] ic1ValArr = ic1ValSet.toArray(new String[0]);
-				for (String ic1ValTerm : ic1ValArr)
+				IntBitmap ic1ValSet = ic1.getRow(ic1Key);
+				for (int ic1Val : ic1ValSet.toArray())
 				{
-					if (ic1ValTerm != null)
+					IntBitmap sc1ValSet = sc1.getRow(ic1Val);
+					if (sc1ValSet != null)
 					{
-						Set<String> sc1ValSet = sc1.get(ic1ValTerm);
-						if (sc1ValSet != null)
+						for (int s : sc1ValSet.toArray())
 						{
-							for (String s : sc1ValSet)
+							if (count >= MAX_CACHE_SIZE)
+								break;
+							if (ic1ValSet.add(s))
 							{
-								if (count >= MAX_CACHE_SIZE)
-									break;
-								if (ic1ValSet.add(s))
-								{
-									count++;
-								}
+								count++;
 							}
 						}
 					}
 				}
 				if (count < MAX_CACHE_SIZE)
 				{
-					for (String ic1ValTerm : ic1ValSet)
+					for (int ic1Val : ic1ValSet.toArray())
 					{
-						Set<String> ic2ValSet = ic2.computeIfAbsent(ic1ValTerm, k -> new HashSet<>());
-						if (ic2ValSet.add(ic1KeyTerm))
+						if (ic2.add(ic1Val, ic1Key))
 						{
 							count++;
 						}
@@ -772,46 +896,44 @@ public class KB implements Serializable
 			if (sc2 != null)
 			{
 				// int passes = 0; 	// One pass is sufficient.
+				count = dc1.entryCount();
 				boolean changed = true;
 				while (changed)
 				{
 					changed = false;
 
-					Set<String> dc1KeySet = dc1.keySet();
-					String[] dc1KeyArr = dc1KeySet.toArray(new String[0]);
+					int[] dc1KeyArr = dc1.keyIds();
 					for (int i = 0; (i < dc1KeyArr.length) && (count < MAX_CACHE_SIZE); i++)
 					{
-						String dc1KeyTerm = dc1KeyArr[i];
-						Set<String> dc1ValSet = dc1.get(dc1KeyTerm);
-						String[] dc1ValArr = dc1ValSet.toArray(new String[0]);
-						for (String dc1ValTerm : dc1ValArr)
+						int dc1Key = dc1KeyArr[i];
+						IntBitmap dc1ValSet = dc1.getRow(dc1Key);
+						for (int dc1Val : dc1ValSet.toArray())
 						{
-							Set<String> sc2ValSet = sc2.get(dc1ValTerm);
+							IntBitmap sc2ValSet = sc2.getRow(dc1Val);
 							if (sc2ValSet != null)
 							{
+								int size = dc1ValSet.size();
 								if (dc1ValSet.addAll(sc2ValSet))
 								{
 									changed = true;
+									count += dc1ValSet.size() - size;
 								}
 							}
 						}
-						Set<String> sc2ValSet = sc2.get(dc1KeyTerm);
+						IntBitmap sc2ValSet = sc2.getRow(dc1Key);
 						if (sc2ValSet != null)
 						{
-							for (String sc2ValTerm : sc2ValSet)
+							for (int sc2Val : sc2ValSet.toArray())
 							{
-								Set<String> dc1ValSet2 = dc1.computeIfAbsent(sc2ValTerm, k -> new HashSet<>());
+								IntBitmap dc1ValSet2 = dc1.getOrCreateRow(sc2Val);
+								int size = dc1ValSet2.size();
 								if (dc1ValSet2.addAll(dc1ValSet))
 								{
 									changed = true;
+									count += dc1ValSet2.size() - size;
 								}
 							}
 						}
-						count = 0;
-						for (Set<String> dc1ValSet3 : dc1.values())
-						{
-							count += dc1ValSet3.size();
-						}
 					}
 					if (changed)
 						dc1.setIsClosureComputed();
@@ -922,6 +1044,36 @@ public class KB implements Serializable
 		return null;
 	}
 
+	/**
+	 * Relation valences, as cached by cacheRelationValences(), for snapshots
+	 *
+	 * @return map of relation names to their valences
+	 */
+	Map<String, int[]> getRelationValences()
+	{
+		return relationValences;
+	}
+
+	/**
+	 * Relations with relation arguments, as cached by cacheRelnsWithRelnArgs(), for snapshots
+	 *
+	 * @return map of relation names to their relation argument signatures, null if not cached
+	 */
+	Map<String, boolean[]> getRelnsWithRelnArgs()
+	{
+		return relnsWithRelnArgs;
+	}
+
+	/**
+	 * Set relations with relation arguments, when restoring a snapshot
+	 *
+	 * @param relnsWithRelnArgs map of relation names to their relation argument signatures
+	 */
+	void setRelnsWithRelnArgs(Map<String, boolean[]> relnsWithRelnArgs)
+	{
+		this.relnsWithRelnArgs = relnsWithRelnArgs;
+	}
+
 	/**
 	 * Cache relation valences
 	 */
@@ -1098,7 +1250,7 @@ public class KB implements Serializable
 		boolean result = false;
 		try
 		{
-			result = getCachedRelationValues("instance", i, 1, 2).contains(c);
+			result = hasCachedRelationValue("instance", i, 1, 2, c);
 			// was: getAllInstancesWithPredicateSubsumption(c);
 		}
 		catch (Exception ex)
@@ -1146,14 +1298,8 @@ public class KB implements Serializable
 		boolean result = child.equals(parent);
 		if (!result)
 		{
-			List<String> preds = Arrays.asList("instance", "subclass", "subrelation");
-			for (String pred : preds)
-			{
-				Set<String> parents = getCachedRelationValues(pred, child, 1, 2);
-				result = parents.contains(parent);
-				if (result)
-					break;
-			}
+			result = hasCachedRelationValue("instance", child, 1, 2, parent) || isSubclass(child, parent) || hasCachedRelationValue("subrelation", child, 1, 2,
+					parent);
 		}
 		return result;
 	}
@@ -1170,7 +1316,11 @@ public class KB implements Serializable
 		boolean result = false;
 		if (!c1.isEmpty() && !c2.isEmpty())
 		{
-			result = getCachedRelationValues("subclass", c1, 1, 2).contains(c2);
+			SubsumptionIndex index = subsumptionIndex;
+			if (index != null)
+				result = index.isSubclass(symbols.lookup(c1), symbols.lookup(c2));
+			else
+				result = hasCachedRelationValue("subclass", c1, 1, 2, c2);
 			// was: getAllSubClassesWithPredicateSubsumption(c2);
 		}
 		return result;
@@ -1187,8 +1337,34 @@ public class KB implements Serializable
 	 *                            else if false, any existing caches are used and augmented
 	 */
 	public void buildRelationCaches(boolean clearExistingCaches)
+	{
+		checkWritable();
+		buildRelationCaches(clearExistingCaches, null);
+	}
+
+	/**
+	 * Builds all of the relation caches for the current KB.  If
+	 * RelationCache Map objects already exist, they are cleared and
+	 * discarded.  New RelationCache Maps are created, and all caches
+	 * are rebuilt.
+	 */
+	public void buildRelationCaches()
+	{
+		buildRelationCaches(true);
+	}
+
+	/**
+	 * Builds the relation caches from the ground assertions in scope and closes them.
+	 *
+	 * @param clearExistingCaches If true, all existing caches are
+	 *                            cleared and discarded and completely new caches are created,
+	 *                            else if false, any existing caches are used and augmented
+	 * @param scope               KIF reader whose formulas are cached, null for all the formulas in the KB
+	 */
+	private void buildRelationCaches(boolean clearExistingCaches, KIF scope)
 	{
 		logger.entering("KB", "buildRelationCaches", "clearExistingCaches = " + clearExistingCaches);
+		subsumptionIndex = null;
 		long totalCacheEntries = 0L;
 		int i;
 		for (i = 1; true; i++)
@@ -1196,7 +1372,7 @@ public class KB implements Serializable
 			initRelationCaches(clearExistingCaches);
 			clearExistingCaches = false;
 
-			cacheGroundAssertionsAndPredSubsumptionEntailments();
+			cacheGroundAssertionsAndPredSubsumptionEntailments(scope);
 			for (String relationName : getCachedTransitiveRelationNames())
 			{
 				computeTransitiveCacheClosure(relationName);
@@ -1215,13 +1391,7 @@ public class KB implements Serializable
 			long entriesAfterThisIteration = 0L;
 			for (RelationCache relationCache : getRelationCaches())
 			{
-				if (!relationCache.isEmpty())
-				{
-					for (Set<String> values : relationCache.values())
-					{
-						entriesAfterThisIteration += values.size();
-					}
-				}
+				entriesAfterThisIteration += relationCache.entryCount();
 			}
 			if (entriesAfterThisIteration > totalCacheEntries)
 				totalCacheEntries = entriesAfterThisIteration;
@@ -1230,26 +1400,90 @@ public class KB implements Serializable
 			if (i > 4)
 				break;
 		}
+		if (scope == null)
+			relationCachesDirty = false;
+		subsumptionIndex = new SubsumptionIndex(getRelationCache("subclass", 1, 2), symbols.size());
+		if (logger.isLoggable(Level.FINE))
+		{
+			long bytes = 0L;
+			for (RelationCache relationCache : getRelationCaches())
+				bytes += relationCache.sizeInBytes();
+			logger.fine("Cache size == " + bytes + " bytes");
+		}
 		logger.info("Caching cycles == " + i + "\n Cache entries == " + totalCacheEntries);
 		logger.exiting("KB", "buildRelationCaches");
 	}
 
 	/**
-	 * Builds all of the relation caches for the current KB.  If
-	 * RelationCache Map objects already exist, they are cleared and
-	 * discarded.  New RelationCache Maps are created, and all caches
-	 * are rebuilt.
+	 * Maintains the relation caches after a constituent has been merged into a KB whose caches
+	 * are already built.  Only the ground assertions of the constituent are added before the caches
+	 * are closed again.  The caches are rebuilt from scratch if there are none yet, or if the
+	 * constituent changes which relations are cached.
+	 *
+	 * @param file KIF reader the constituent has been read into
 	 */
-	public void buildRelationCaches()
+	private void updateRelationCaches(KIF file)
 	{
-		buildRelationCaches(true);
+		if (getRelationCaches().isEmpty() || relationCachesDirty || file.formulas.containsKey("arg-0-subrelation"))
+		{
+			buildRelationCaches();
+			return;
+		}
+		Set<String> relationNames = new HashSet<>(getCachedRelationNames());
+		buildRelationCaches(false, file);
+		if (!relationNames.equals(new HashSet<>(getCachedRelationNames())))
+			buildRelationCaches();
+	}
+
+	/**
+	 * Relinks the legacy cache variables and rebuilds the subsumption index once closed relation
+	 * caches have been restored from a snapshot rather than built.
+	 *
+	 * @param index whether to build the subsumption index, without which isSubclass() falls back to the cache rows
+	 */
+	void restoreRelationCaches(boolean index)
+	{
+		relationCachesDirty = false;
+		if (getRelationCaches().isEmpty())
+			return;
+		parents = getRelationCache("subclass", 1, 2);
+		children = getRelationCache("subclass", 2, 1);
+		disjoint = getRelationCache("disjoint", 1, 2);
+		if (index)
+			subsumptionIndex = new SubsumptionIndex(getRelationCache("subclass", 1, 2), symbols.size());
+	}
+
+	/**
+	 * Ground assertions of a predicate
+	 *
+	 * @param predicate predicate
+	 * @param scope     KIF reader whose formulas are looked up, null for all the formulas in the KB
+	 * @return formulas with the predicate in argument position 0; those of the KIF reader that did not make it into the KB are left out
+	 */
+	private List<Formula> askPredicate(String predicate, KIF scope)
+	{
+		if (scope == null)
+			return ask("arg", 0, predicate);
+		List<Formula> result = new ArrayList<>();
+		List<Formula> forms = scope.formulas.get("arg-0-" + predicate);
+		if (forms != null)
+		{
+			for (Formula f : forms)
+			{
+				if (formulaMap.get(f.text) == f)
+					result.add(f);
+			}
+		}
+		return result;
 	}
 
 	/**
 	 * Populates all caches with ground assertions, from which
 	 * closures can be computed.
+	 *
+	 * @param scope KIF reader whose formulas are cached, null for all the formulas in the KB
 	 */
-	private void cacheGroundAssertionsAndPredSubsumptionEntailments()
+	private void cacheGroundAssertionsAndPredSubsumptionEntailments(KIF scope)
 	{
 		logger.entering("KB", "cacheGroundAssertionsAndPredSubsumptionEntailments");
 		List<String> symmetric = getCachedSymmetricRelationNames();
@@ -1266,7 +1500,7 @@ public class KB implements Serializable
 			Set<Formula> formulae = new HashSet<>();
 			for (String value : relationSet)
 			{
-				List<Formula> forms = ask("arg", 0, value);
+				List<Formula> forms = askPredicate(value, scope);
 				if (forms != null)
 					formulae.addAll(forms);
 			}
@@ -1278,8 +1512,8 @@ public class KB implements Serializable
 				{
 					if ((f.text.indexOf("(", 2) == -1) && !f.sourceFile.endsWith(_cacheFileSuffix))
 					{
-						String arg1 = f.getArgument(1).intern();
-						String arg2 = f.getArgument(2).intern();
+						String arg1 = f.getArgument(1);
+						String arg2 = f.getArgument(2);
 
 						if (!arg1.isEmpty() && !arg2.isEmpty())
 						{
@@ -1309,8 +1543,8 @@ public class KB implements Serializable
 			if (relation.equals("disjoint"))
 			{
 				formulae.clear();
-				List<Formula> partitions = ask("arg", 0, "partition");
-				List<Formula> decompositions = ask("arg", 0, "disjointDecomposition");
+				List<Formula> partitions = askPredicate("partition", scope);
+				List<Formula> decompositions = askPredicate("disjointDecomposition", scope);
 				if (partitions != null)
 					formulae.addAll(partitions);
 				if (decompositions != null)
@@ -1327,8 +1561,8 @@ public class KB implements Serializable
 							{
 								if (i != j)
 								{
-									String arg1 = args.get(i).intern();
-									String arg2 = args.get(j).intern();
+									String arg1 = args.get(i);
+									String arg2 = args.get(j);
 									if (!arg1.isEmpty() && !arg2.isEmpty())
 									{
 										count += addRelationCacheEntry(c1, arg1, arg2);
@@ -1538,8 +1772,8 @@ public class KB implements Serializable
 	 * @return an List of Formulas in which the two terms
 	 * provided appear in the indicated argument positions.  If there
 	 * are no Formula(s) matching the given terms and respective
-	 * argument positions, return an empty List.  Iterate
-	 * through the smallest list of results.
+	 * argument positions, return an empty List.  The posting lists
+	 * of the two terms are intersected.  The List is read-only.
 	 */
 	public List<Formula> askWithRestriction(int argnum1, String term1, int argnum2, String term2)
 	{
@@ -1548,22 +1782,9 @@ public class KB implements Serializable
 		{
 			if (!term1.isEmpty() && !term2.isEmpty())
 			{
-				List<Formula> partial1 = ask("arg", argnum1, term1);
-				List<Formula> partial2 = ask("arg", argnum2, term2);
-				List<Formula> partial = partial1;
-				int arg = argnum2;
-				String term = term2;
-				if (partial1.size() > partial2.size())
-				{
-					partial = partial2;
-					arg = argnum1;
-					term = term1;
-				}
-				for (Formula f : partial)
-				{
-					if (f.getArgument(arg).equals(term))
-						result.add(f);
-				}
+				checkAsk("arg", argnum1, term1);
+				checkAsk("arg", argnum2, term2);
+				result = formulaIndex.askArgs(new int[] { argnum1, argnum2 }, new String[] { term1, term2 });
 			}
 		}
 		catch (Exception ex)
@@ -1586,91 +1807,22 @@ public class KB implements Serializable
 	 * @param term2   term 2
 	 * @param argnum3 number of args 3
 	 * @param term3   term 3
-	 * @return List of formulae.
+	 * @return read-only List of formulae.
 	 */
 	public List<Formula> askWithTwoRestrictions(int argnum1, String term1, int argnum2, String term2, int argnum3, String term3)
 	{
-		String[] args = new String[6];
-		args[0] = "argnum1 = " + argnum1;
-		args[1] = "term1 = " + term1;
-		args[0] = "argnum2 = " + argnum2;
-		args[1] = "term2 = " + term2;
-		args[0] = "argnum3 = " + argnum3;
-		args[1] = "term3 = " + term3;
-
-		logger.entering("KB", "askWithTwoRestrictions", args);
+		if (logger.isLoggable(Level.FINER))
+		{
+			String[] args = { "argnum1 = " + argnum1, "term1 = " + term1, "argnum2 = " + argnum2, "term2 = " + term2, "argnum3 = " + argnum3, "term3 = " + term3 };
+			logger.entering("KB", "askWithTwoRestrictions", args);
+		}
 		List<Formula> result = new ArrayList<>();
 		if (!term1.isEmpty() && !term2.isEmpty() && !term3.isEmpty())
 		{
-			List<Formula> partialA = new ArrayList<>();           // will get the smallest list
-			List<Formula> partial1 = ask("arg", argnum1, term1);
-			List<Formula> partial2 = ask("arg", argnum2, term2);
-			List<Formula> partial3 = ask("arg", argnum3, term3);
-			int argB = -1;
-			String termB = "";
-			int argC = -1;
-			String termC = "";
-			if (partial1 == null || partial2 == null || partial3 == null)
-				return result;
-			if (partial1.size() > partial2.size() && partial1.size() > partial3.size())
-			{
-				argC = argnum1;
-				termC = term1;
-				if (partial2.size() > partial3.size())
-				{
-					argB = argnum2;
-					termB = term2;
-					partialA = partial3;
-				}
-				else
-				{
-					argB = argnum3;
-					termB = term3;
-					partialA = partial2;
-				}
-			}
-			if (partial2.size() > partial1.size() && partial2.size() > partial3.size())
-			{
-				argC = argnum2;
-				termC = term2;
-				if (partial1.size() > partial3.size())
-				{
-					argB = argnum1;
-					termB = term1;
-					partialA = partial3;
-				}
-				else
-				{
-					argB = argnum3;
-					termB = term3;
-					partialA = partial1;
-				}
-			}
-			if (partial3.size() > partial1.size() && partial3.size() > partial2.size())
-			{
-				argC = argnum3;
-				termC = term3;
-				if (partial1.size() > partial2.size())
-				{
-					argB = argnum1;
-					termB = term1;
-					partialA = partial2;
-				}
-				else
-				{
-					argB = argnum2;
-					termB = term2;
-					partialA = partial1;
-				}
-			}
-			for (Formula f : partialA)
-			{
-				if (f.getArgument(argB).equals(termB))
-				{
-					if (f.getArgument(argC).equals(termC))
-						result.add(f);
-				}
-			}
+			checkAsk("arg", argnum1, term1);
+			checkAsk("arg", argnum2, term2);
+			checkAsk("arg", argnum3, term3);
+			result = formulaIndex.askArgs(new int[] { argnum1, argnum2, argnum3 }, new String[] { term1, term2, term3 });
 		}
 		logger.exiting("KB", "askWithTwoRestrictions", result);
 		return result;
@@ -1743,7 +1895,28 @@ public class KB implements Serializable
 	 */
 	public List<Formula> ask(String kind, int argnum, String term)
 	{
+		checkAsk(kind, argnum, term);
+		FormulaIndex.Kind indexKind = FormulaIndex.Kind.of(kind);
+		if (indexKind != null)
+			return formulaIndex.ask(indexKind, argnum, term);
+
 		List<Formula> result = new ArrayList<>();
+		List<Formula> formulas = this.formulas.get(kind + "-" + term);
+		if (formulas != null)
+			result.addAll(formulas);
+		return result;
+	}
+
+	/**
+	 * Check the arguments of an ask
+	 *
+	 * @param kind   kind
+	 * @param argnum argument position
+	 * @param term   term
+	 * @throws IllegalArgumentException if the term is null, empty or a string
+	 */
+	private void checkAsk(String kind, int argnum, String term)
+	{
 		if (term == null || term.isEmpty())
 		{
 			String msg = "Error in KB.ask(\"" + kind + "\", " + argnum + ", \"" + term + "\"): " + "search term is null, or an empty string";
@@ -1756,14 +1929,6 @@ public class KB implements Serializable
 			logger.warning(msg);
 			throw new IllegalArgumentException(msg);
 		}
-		List<Formula> formulas;
-		if (kind.equals("arg"))
-			formulas = this.formulas.get(kind + "-" + argnum + "-" + term);
-		else
-			formulas = this.formulas.get(kind + "-" + term);
-		if (formulas != null)
-			result.addAll(formulas);
-		return result;
 	}
 
 	/**
@@ -2366,7 +2531,10 @@ public class KB implements Serializable
 
 	/**
 	 * Add a new KB constituent by reading in the file, and then merging
-	 * the formulas with the existing set of formulas.
+	 * the formulas with the existing set of formulas.  Outside a load session, assertion
+	 * caches that are already built are brought up to date with the ground assertions of the
+	 * file rather than rebuilt.  Within a load session, they are only marked out of date, and
+	 * the arity check is deferred to the end of the session.
 	 *
 	 * @param filename     - The full path of the file being added
 	 * @param buildCachesP - If true, forces the assertion caches to be rebuilt
@@ -2374,6 +2542,7 @@ public class KB implements Serializable
 	 */
 	public void addConstituent(String filename, boolean buildCachesP, boolean performArity)
 	{
+		checkWritable();
 		if (logger.isLoggable(Level.FINER))
 		{
 			String[] params = { "filename = " + filename, "buildCachesP = " + buildCachesP, "performArity = " + performArity };
@@ -2389,96 +2558,470 @@ public class KB implements Serializable
 			//}
 			File constituent = new File(filename);
 			String canonicalPath = constituent.getCanonicalPath();
-			KIF file = new KIF();
+			KIF file = new KIF(symbols);
 
 			if (constituents.contains(canonicalPath))
 				errors.add("Error: " + canonicalPath + " already loaded.");
 			logger.info("Adding " + canonicalPath + " to KB.");
-			try
-			{
-				file.readFile(canonicalPath);
-				errors.addAll(file.warningSet);
-			}
-			catch (Exception ex1)
+			errors.addAll(readConstituent(file, canonicalPath));
+			mergeConstituent(file, canonicalPath, performArity && !isLoading());
+			if (performArity && isLoading())
+				pendingArityChecks.add(file);
+
+			// Clear the formatMap and termFormatMap for this KB.
+			clearFormatMaps();
+			if (buildCachesP && !canonicalPath.endsWith(_cacheFileSuffix))
 			{
-				StringBuilder error = new StringBuilder();
-				error.append(ex1.getMessage());
-				if (ex1 instanceof ParseException)
-					error.append(" at line ").append(((ParseException) ex1).getErrorOffset());
-				error.append(" in file ").append(canonicalPath);
-				logger.severe(error.toString());
-				errors.add(error.toString());
+				if (isLoading())
+					relationCachesDirty = true;
+				else
+					updateRelationCaches(file);
 			}
+		}
+		catch (Exception ex)
+		{
+			logger.severe(ex.getMessage() + "; \nStack Trace: " + Arrays.toString(ex.getStackTrace()));
+		}
 
-			logger.info("Parsed file " + canonicalPath + " containing " + file.formulas.keySet().size() + " KIF expressions");
-			int count = 0;
-			for (String key : file.formulas.keySet())
-			{
-				// Iterate through the formulas in the file, adding them to the KB, at the appropriate key.
-				// Note that this is a slow operation that needs to be improved
-				List<Formula> list = formulas.computeIfAbsent(key, k -> new ArrayList<>());
-				List<Formula> newList = file.formulas.get(key);
-				for (Formula f : newList)
-				{
-					boolean correctArity = true;
-					if (performArity)
-					{
-						if (!f.hasCorrectArity(this))
-						{
-							errors.add("The following formula rejected for incorrect arity: " + f.text);
-							System.err.println("ERROR Formula rejected for incorrect arity: " + f.text);
-							correctArity = false;
-						}
-					}
-					if (correctArity)
-					{
-						String internedFormula = f.text.intern();
-						if (!list.contains(f))
-						{
-							list.add(f);
-							formulaMap.put(internedFormula, f);
-						}
-						else
-						{
-							StringBuilder error = new StringBuilder();
-							error.append("WARNING: Duplicate axiom in ");
-							error.append(f.sourceFile).append(" at line ").append(f.startLine).append("<br />");
-							error.append(f.text).append("<p>");
-							Formula existingFormula = formulaMap.get(internedFormula);
-							error.append("WARNING: Existing formula appears in ");
-							error.append(existingFormula.sourceFile).append(" at line ").append(existingFormula.startLine).append("<br />");
-							error.append("<p>");
-							System.err.println("WARNING: Duplicate detected.");
-							errors.add(error.toString());
-						}
-					}
+		logger.exiting("KB", "addConstituent", "Constituent " + filename + "successfully added to KB: " + this.name);
+	}
+
+	/**
+	 * Add KB constituents in bulk. The files are parsed concurrently, each by its own
+	 * KIF reader, then merged one after the other in the order they are given in, so
+	 * that the resulting KB does not depend on the order the parses complete in.
+	 * The files are added in a load session, so the relation caches are built once, after
+	 * all the files are merged, and the arity check, if requested, is then performed against
+	 * the complete KB.
+	 *
+	 * @param filenames    - The full paths of the files being added
+	 * @param performArity - If true, perform arity check
+	 */
+	public void addConstituents(Collection<String> filenames, boolean performArity)
+	{
+		checkWritable();
+		logger.entering("KB", "addConstituents", filenames);
+		List<String> canonicalPaths = new ArrayList<>();
+		for (String filename : filenames)
+		{
+			try
+			{
+				canonicalPaths.add(new File(filename).getCanonicalPath());
+			}
+			catch (Exception ex)
+			{
+				logger.severe(ex.getMessage() + "; \nStack Trace: " + Arrays.toString(ex.getStackTrace()));
+				errors.add(ex.getMessage() + " in file " + filename);
+			}
+		}
+		if (canonicalPaths.isEmpty())
+			return;
+
+		// parse concurrently
+		// Terms are not canonicalized while parsing, so that parser threads do not contend for the symbol table.
+		int threadCount = Math.min(canonicalPaths.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		List<KIF> files = new ArrayList<>();
+		beginLoad();
+		try
+		{
+			List<Future<SortedSet<String>>> futures = new ArrayList<>();
+			for (String canonicalPath : canonicalPaths)
+			{
+				KIF file = new KIF();
+				files.add(file);
+				futures.add(executor.submit(() -> readConstituent(file, canonicalPath)));
+			}
+
+			// merge in the order given
+			for (int i = 0; i < files.size(); i++)
+			{
+				String canonicalPath = canonicalPaths.get(i);
+				if (constituents.contains(canonicalPath))
+					errors.add("Error: " + canonicalPath + " already loaded.");
+				logger.info("Adding " + canonicalPath + " to KB.");
+				try
+				{
+					errors.addAll(futures.get(i).get());
 				}
-				if ((count++ % 100) == 1)
+				catch (ExecutionException ex)
 				{
-					System.out.print(".");
+					logger.severe(ex.getCause() + " in file " + canonicalPath);
+					errors.add(ex.getCause() + " in file " + canonicalPath);
 				}
+				mergeConstituent(files.get(i), canonicalPath, false);
+				if (performArity)
+					pendingArityChecks.add(files.get(i));
+				if (!canonicalPath.endsWith(_cacheFileSuffix))
+					relationCachesDirty = true;
 			}
+		}
+		catch (InterruptedException ex)
+		{
+			logger.severe("Interrupted while adding constituents " + canonicalPaths);
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdown();
+
+			// Clear the formatMap and termFormatMap for this KB.
+			clearFormatMaps();
+			endLoad();
+		}
+		logger.exiting("KB", "addConstituents", "Constituents successfully added to KB: " + this.name);
+	}
+
+	/**
+	 * Begin a load session. Until the matching endLoad(), constituents that are added
+	 * only mark the relation caches as out of date, and their arity check is deferred,
+	 * so that a KB made of many files is cached and checked once instead of once per file.
+	 * Queries made during a session see the relation caches as they were when it began.
+	 * Sessions nest: only the outermost endLoad() commits.
+	 */
+	public void beginLoad()
+	{
+		checkWritable();
+		loadDepth++;
+	}
+
+	/**
+	 * End a load session. When the outermost session ends, the relation caches are built
+	 * if any constituent added in the session requested them, then the deferred arity
+	 * checks are performed against the complete KB.
+	 */
+	public void endLoad()
+	{
+		if (loadDepth == 0)
+			throw new IllegalStateException("No load session to end");
+		if (--loadDepth > 0)
+			return;
+		boolean build = relationCachesDirty;
+		if (build)
+			buildRelationCaches();
+		if (!pendingArityChecks.isEmpty() && rejectIncorrectArity(pendingArityChecks) > 0 && build)
+			buildRelationCaches();
+		pendingArityChecks.clear();
+	}
+
+	/**
+	 * Whether a load session is in progress
+	 *
+	 * @return true between beginLoad() and the matching endLoad()
+	 */
+	public boolean isLoading()
+	{
+		return loadDepth > 0;
+	}
 
-			synchronized (this.getTerms())
+	/**
+	 * Add KB constituents in bulk, with arity check.
+	 *
+	 * @param filenames - The full paths of the files being added
+	 */
+	public void addConstituents(Collection<String> filenames)
+	{
+		addConstituents(filenames, true);
+	}
+
+	/**
+	 * Compute the clausal forms of all the formulas of the KB.
+	 *
+	 * @return number of formulas clausified
+	 */
+	public int makeClausalForms()
+	{
+		return makeClausalForms(null);
+	}
+
+	/**
+	 * Compute the clausal forms of all the formulas of the KB, reusing those of a cache file.
+	 * Formulas are taken once per text, however many keys they are filed under. Those whose text
+	 * is in the cache get the cached form, the others are clausified in parallel, in batches,
+	 * on the common fork-join pool. The cache is then rewritten with the forms of the formulas of
+	 * the KB, so that it holds no forms of axioms that have since changed.
+	 *
+	 * @param cacheFile clausal form cache file, null for none
+	 * @return number of formulas clausified, those whose form came from the cache excluded
+	 */
+	public int makeClausalForms(File cacheFile)
+	{
+		logger.entering("KB", "makeClausalForms", cacheFile);
+
+		// one formula per text
+		Map<String, Formula> unique = new LinkedHashMap<>();
+		List<Formula> aliases = new ArrayList<>();
+		for (List<Formula> fs : formulas.values())
+		{
+			for (Formula f : fs)
 			{
-				this.getTerms().addAll(file.terms);
+				if (f.text == null || f.text.isEmpty())
+					continue;
+				Formula f0 = unique.putIfAbsent(f.text, f);
+				if (f0 != null && f0 != f)
+					aliases.add(f);
 			}
-			if (!constituents.contains(canonicalPath))
-				constituents.add(canonicalPath);
-			logger.info("File " + canonicalPath + " loaded");
+		}
 
-			// Clear the formatMap and termFormatMap for this KB.
-			clearFormatMaps();
-			if (buildCachesP && !canonicalPath.endsWith(_cacheFileSuffix))
-				buildRelationCaches();
+		// forms from cache
+		Map<Long, Tuple.Triple<List<Clause>, Formula, Map<String, String>>> cached = Collections.emptyMap();
+		if (cacheFile != null)
+		{
+			try
+			{
+				cached = ClausalFormCache.read(cacheFile);
+			}
+			catch (IOException ex)
+			{
+				logger.warning("Clausal form cache " + cacheFile + " not read: " + ex);
+			}
 		}
-		catch (Exception ex)
+		List<Formula> pending = new ArrayList<>();
+		for (Formula f : unique.values())
 		{
-			logger.severe(ex.getMessage() + "; \nStack Trace: " + Arrays.toString(ex.getStackTrace()));
+			if (f.peekClausalForm() != null)
+				continue;
+			Tuple.Triple<List<Clause>, Formula, Map<String, String>> form = cached.get(ClausalFormCache.hash(f.text));
+			// the text is checked as another text may have the same hash
+			if (form == null || !f.text.equals(form.second.text))
+			{
+				pending.add(f);
+				continue;
+			}
+			f.setClausalForm(form);
 		}
 
-		logger.exiting("KB", "addConstituent", "Constituent " + filename + "successfully added to KB: " + this.name);
+		// clausify the others
+		long switched = Clausifier.getSwitchCount();
+		ForkJoinPool.commonPool().invoke(new ClausifyTask(pending.toArray(new Formula[0]), 0, pending.size()));
+		for (Formula f : aliases)
+			f.setClausalForm(unique.get(f.text).peekClausalForm());
+		logger.info(pending.size() + " formulas clausified, " + (Clausifier.getSwitchCount() - switched) + " of them in definitional CNF, " + (unique.size() - pending.size()) + " reused");
+
+		if (cacheFile != null)
+		{
+			try
+			{
+				ClausalFormCache.write(unique.values(), cacheFile);
+			}
+			catch (IOException ex)
+			{
+				logger.severe("Clausal form cache " + cacheFile + " not written: " + ex);
+			}
+		}
+		logger.exiting("KB", "makeClausalForms", pending.size());
+		return pending.size();
+	}
+
+	/**
+	 * Clausify a range of formulas, splitting it in halves down to batch size
+	 */
+	private static class ClausifyTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private static final int BATCH = 64;
+
+		private final Formula[] formulas;
+
+		private final int from;
+
+		private final int to;
+
+		ClausifyTask(Formula[] formulas, int from, int to)
+		{
+			this.formulas = formulas;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override protected void compute()
+		{
+			if (to - from <= BATCH)
+			{
+				for (int i = from; i < to; i++)
+					formulas[i].getClausalForm();
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ClausifyTask(formulas, from, middle), new ClausifyTask(formulas, middle, to));
+		}
+	}
+
+	/**
+	 * Read a constituent file
+	 *
+	 * @param file          KIF reader the file is read into
+	 * @param canonicalPath canonical path of the file
+	 * @return errors and warnings raised while reading the file
+	 */
+	private SortedSet<String> readConstituent(KIF file, String canonicalPath)
+	{
+		SortedSet<String> result = new TreeSet<>();
+		try
+		{
+			file.readFile(canonicalPath);
+			result.addAll(file.warningSet);
+		}
+		catch (Exception ex1)
+		{
+			StringBuilder error = new StringBuilder();
+			error.append(ex1.getMessage());
+			if (ex1 instanceof ParseException)
+				error.append(" at line ").append(((ParseException) ex1).getErrorOffset());
+			error.append(" in file ").append(canonicalPath);
+			logger.severe(error.toString());
+			result.add(error.toString());
+		}
+		logger.info("Parsed file " + canonicalPath + " containing " + file.formulas.keySet().size() + " KIF expressions");
+		return result;
+	}
+
+	/**
+	 * Merge the formulas and terms of a constituent file that has been read
+	 * with the existing set of formulas and terms.
+	 *
+	 * @param file          KIF reader the file has been read into
+	 * @param canonicalPath canonical path of the file
+	 * @param performArity  whether to reject formulas of incorrect arity
+	 */
+	private void mergeConstituent(KIF file, String canonicalPath, boolean performArity)
+	{
+		dropLiteralIndexes();
+		formulaIndex.register(file);
+		Set<Formula> rejected = Collections.emptySet();
+		if (performArity)
+		{
+			List<Formula> fs = new ArrayList<>();
+			for (List<Formula> list : file.formulas.values())
+				fs.addAll(list);
+			rejected = findIncorrectArity(fs);
+		}
+		int count = 0;
+		for (String key : file.formulas.keySet())
+		{
+			// Iterate through the formulas in the file, adding them to the KB, at the appropriate key.
+			// Membership is looked up in the posting list of the key, the lists of the other keys (formula text, ID) are short.
+			List<Formula> list = formulas.computeIfAbsent(key, k -> new ArrayList<>());
+			List<Formula> newList = file.formulas.get(key);
+			for (Formula f : newList)
+			{
+				boolean correctArity = true;
+				if (performArity)
+				{
+					if (rejected.contains(f))
+					{
+						errors.add("The following formula rejected for incorrect arity: " + f.text);
+						System.err.println("ERROR Formula rejected for incorrect arity: " + f.text);
+						correctArity = false;
+					}
+				}
+				if (correctArity)
+				{
+					String internedFormula = f.text.intern();
+					boolean present = FormulaIndex.isPositional(key) ? formulaIndex.contains(key, f) : list.contains(f);
+					if (!present)
+					{
+						list.add(f);
+						formulaIndex.add(key, f);
+						formulaMap.put(internedFormula, f);
+					}
+					else
+					{
+						StringBuilder error = new StringBuilder();
+						error.append("WARNING: Duplicate axiom in ");
+						error.append(f.sourceFile).append(" at line ").append(f.startLine).append("<br />");
+						error.append(f.text).append("<p>");
+						Formula existingFormula = formulaMap.get(internedFormula);
+						error.append("WARNING: Existing formula appears in ");
+						error.append(existingFormula.sourceFile).append(" at line ").append(existingFormula.startLine).append("<br />");
+						error.append("<p>");
+						System.err.println("WARNING: Duplicate detected.");
+						errors.add(error.toString());
+					}
+				}
+			}
+			if ((count++ % 100) == 1)
+			{
+				System.out.print(".");
+			}
+		}
+
+		addTerms(file.terms);
+		if (!constituents.contains(canonicalPath))
+			constituents.add(canonicalPath);
+		logger.info("File " + canonicalPath + " loaded");
+	}
 
+	/**
+	 * Check the arity of formulas, in parallel. The relation caches that getValence() reads are
+	 * created beforehand, so that the KB is only read while the formulas are checked.
+	 *
+	 * @param fs formulas
+	 * @return the formulas of incorrect arity (identity set)
+	 */
+	private Set<Formula> findIncorrectArity(Collection<Formula> fs)
+	{
+		Set<Formula> result = Collections.newSetFromMap(new IdentityHashMap<>());
+		if (fs.isEmpty())
+			return result;
+		getRelationCache("subrelation", 1, 2);
+		getRelationCache("instance", 1, 2);
+		result.addAll(fs.parallelStream().filter(f -> !f.hasCorrectArity(this)).collect(Collectors.toList()));
+		return result;
+	}
+
+	/**
+	 * Remove the formulas of incorrect arity that have been merged from constituent files.
+	 *
+	 * @param files KIF readers the files have been read into
+	 * @return number of formulas removed
+	 */
+	private int rejectIncorrectArity(List<KIF> files)
+	{
+		int count = 0;
+		for (KIF file : files)
+		{
+			List<Formula> checked = new ArrayList<>();
+			for (String text : file.formulaSet)
+			{
+				List<Formula> fs = file.formulas.get(text);
+				if (fs != null)
+					checked.addAll(fs);
+			}
+			Set<Formula> rejected = findIncorrectArity(checked);
+			for (Formula f : checked)
+			{
+				if (rejected.contains(f))
+				{
+					errors.add("The following formula rejected for incorrect arity: " + f.text);
+					System.err.println("ERROR Formula rejected for incorrect arity: " + f.text);
+				}
+			}
+			if (rejected.isEmpty())
+				continue;
+			for (Map.Entry<String, List<Formula>> entry : file.formulas.entrySet())
+			{
+				String key = entry.getKey();
+				for (Formula f : entry.getValue())
+				{
+					if (rejected.contains(f))
+					{
+						List<Formula> list = formulas.get(key);
+						if (list != null && list.remove(f))
+							formulaIndex.remove(key, f);
+					}
+				}
+			}
+			for (Formula f : rejected)
+			{
+				if (formulaMap.get(f.text) == f)
+					formulaMap.remove(f.text);
+			}
+			dropLiteralIndexes();
+			count += rejected.size();
+		}
+		return count;
 	}
 
 	/**
@@ -2634,9 +3177,8 @@ public class KB implements Serializable
 	 * @param queryLit The query, which is assumed to be a List
 	 *                 (atomic literal) consisting of a single predicate and its
 	 *                 arguments.  The arguments could be variables, constants, or a
-	 *                 mix of the two, but only the first constant encountered in a
-	 *                 left to right sweep over the literal will be used in the actual
-	 *                 query.
+	 *                 mix of the two.  The atomic formulas that are instances of the
+	 *                 literal are retrieved from the assertion index.
 	 * @return An List of Formula objects, or an empty List
 	 * if no answers are retrieved.
 	 */
@@ -2674,29 +3216,137 @@ public class KB implements Serializable
 				}
 			}
 			else
+				result = getAssertionIndex().getInstances(Term.parse(Formula.LP + String.join(Formula.SPACE, queryLit) + Formula.RP));
+		}
+		return result;
+	}
+
+	// L I T E R A L   I N D E X E S
+
+	/**
+	 * Get the discrimination tree of the atomic formulas of the KB, that is the formulas that are neither
+	 * rules nor logical combinations.
+	 *
+	 * @return tree of the atomic formulas, by formula, in load order
+	 */
+	public DiscriminationTree<Formula> getAssertionIndex()
+	{
+		DiscriminationTree<Formula> index = assertionIndex;
+		if (index == null)
+		{
+			index = new DiscriminationTree<>();
+			for (Formula f : loadedFormulas())
 			{
-				String constant = null;
-				int cIdx = -1;
-				int qlLen = queryLit.size();
-				for (int i = 1; i < qlLen; i++)
+				Term t = f.getTerm();
+				if (t.isList() && t.size() > 0 && !t.getChild(0).isList() && !Formula.isLogicalOperator(t.getChild(0).getText()))
+					index.add(t, f);
+			}
+			assertionIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Get the discrimination tree of the literals of the clausal forms of the formulas of the KB.
+	 * The clausal forms must have been computed first, by makeClausalForms(), which clausifies the whole
+	 * KB, and again once formulas have been added.
+	 *
+	 * @param positive whether to get the tree of the positive literals, else that of the negative literals
+	 * @return tree of the literals, by clause; a clause is listed once for each distinct literal
+	 * @throws IllegalStateException if a formula of the KB has no clausal form yet
+	 */
+	public DiscriminationTree<Clause> getLiteralIndex(boolean positive)
+	{
+		List<DiscriminationTree<Clause>> indexes = literalIndexes;
+		if (indexes == null)
+		{
+			indexes = Arrays.asList(new DiscriminationTree<>(), new DiscriminationTree<>());
+			for (Formula f : loadedFormulas())
+			{
+				Tuple.Triple<List<Clause>, Formula, Map<String, String>> form = f.peekClausalForm();
+				if (form == null)
+					throw new IllegalStateException("No clausal form for " + f.text + ", makeClausalForms() first");
+				if (form.first == null)
+					continue;
+				for (Clause clause : form.first)
 				{
-					String term = queryLit.get(i);
-					if (!term.isEmpty() && !isVariable(term))
-					{
-						constant = term;
-						cIdx = i;
-						break;
-					}
+					addLiterals(indexes.get(0), clause.negativeLits, clause);
+					addLiterals(indexes.get(1), clause.positiveLits, clause);
 				}
-				if (constant != null)
-					result = askWithRestriction(cIdx, constant, 0, pred);
-				else
-					result = ask("arg", 0, pred);
 			}
+			literalIndexes = indexes;
+		}
+		return indexes.get(positive ? 1 : 0);
+	}
+
+	/**
+	 * Formulas of the KB in load order
+	 *
+	 * @return formulas, in formula ID order, less those that did not make it into the KB
+	 */
+	private List<Formula> loadedFormulas()
+	{
+		List<Formula> result = new ArrayList<>(formulaMap.size());
+		for (int id = 0; id < formulaIndex.size(); id++)
+		{
+			Formula f = formulaIndex.getFormula(id);
+			if (formulaMap.get(f.text) == f)
+				result.add(f);
 		}
 		return result;
 	}
 
+	private static void addLiterals(DiscriminationTree<Clause> index, List<Formula> literals, Clause clause)
+	{
+		Set<String> seen = new HashSet<>();
+		for (Formula literal : literals)
+			if (seen.add(literal.text))
+				index.add(Term.parse(literal.text), clause);
+	}
+
+	/**
+	 * Atomic formulas of the KB that unify with a literal
+	 *
+	 * @param literal literal, whose variables are taken apart from those of the formulas
+	 * @return formulas, in load order
+	 */
+	public List<Formula> askUnifiable(String literal)
+	{
+		return getAssertionIndex().getUnifiable(Term.parse(literal));
+	}
+
+	/**
+	 * Atomic formulas of the KB that are instances of a literal
+	 *
+	 * @param literal literal
+	 * @return formulas, in load order
+	 */
+	public List<Formula> askInstances(String literal)
+	{
+		return getAssertionIndex().getInstances(Term.parse(literal));
+	}
+
+	/**
+	 * Atomic formulas of the KB that a literal is an instance of
+	 *
+	 * @param literal literal
+	 * @return formulas, in load order
+	 */
+	public List<Formula> askGeneralizations(String literal)
+	{
+		return getAssertionIndex().getGeneralizations(Term.parse(literal));
+	}
+
+	/**
+	 * Drop the literal indexes, once the formulas have changed. Subclasses that add or remove formulas
+	 * other than through this class call it.
+	 */
+	protected void dropLiteralIndexes()
+	{
+		assertionIndex = null;
+		literalIndexes = null;
+	}
+
 	/**
 	 * This method retrieves the upward transitive closure of all Class
 	 * names contained in the input set.  The members of the input set are
@@ -3195,10 +3845,14 @@ public class KB implements Serializable
 	 * Instances of RelationCache hold the cached extensions and, when
 	 * possible, the computed closures, of selected relations.
 	 * Canonical examples are the caches for subclass and instance.
+	 * Entries are held as rows of symbol IDs indexed by the key's symbol ID.
+	 * The Map interface is a read-only String view of them.
 	 */
-	static class RelationCache extends HashMap<String, Set<String>>
+	static class RelationCache extends AbstractMap<String, Set<String>> implements Serializable
 	{
-		private static final long serialVersionUID = 4096365216833534082L;
+		private static final long serialVersionUID = 4096365216833534083L;
+
+		private final SymbolTable symbols;
 
 		private final String relationName;
 
@@ -3233,12 +3887,308 @@ public class KB implements Serializable
 			return closureComputed;
 		}
 
-		public RelationCache(String predName, int keyArg, int valueArg)
+		/**
+		 * Value rows indexed by key ID
+		 */
+		private IntBitmap[] rows = new IntBitmap[64];
+
+		/**
+		 * Number of non-null rows
+		 */
+		private int keyCount;
+
+		/**
+		 * Snapshot rows the rows are decoded from, null if the cache is built in memory
+		 */
+		private transient MappedSnapshot.Rows mapped;
+
+		public RelationCache(SymbolTable symbols, String predName, int keyArg, int valueArg)
 		{
+			this.symbols = symbols;
 			relationName = predName;
 			keyArgument = keyArg;
 			valueArgument = valueArg;
 		}
+
+		/**
+		 * Get row
+		 *
+		 * @param key key ID
+		 * @return the IDs of the values for this key, null if none
+		 */
+		IntBitmap getRow(int key)
+		{
+			if (mapped != null)
+				return materialize(key);
+			return key >= 0 && key < rows.length ? rows[key] : null;
+		}
+
+		/**
+		 * Get row of a mapped cache, decoding it from the snapshot the first time it is asked for
+		 *
+		 * @param key key ID
+		 * @return the IDs of the values for this key, null if none
+		 */
+		private synchronized IntBitmap materialize(int key)
+		{
+			if (key < 0)
+				return null;
+			IntBitmap row = key < rows.length ? rows[key] : null;
+			if (row == null)
+			{
+				row = mapped.find(key);
+				if (row == null)
+					return null;
+				if (key >= rows.length)
+					rows = Arrays.copyOf(rows, Math.max(2 * rows.length, key + 1));
+				rows[key] = row;
+			}
+			return row;
+		}
+
+		/**
+		 * Map the cache to snapshot rows, which are then decoded as they are asked for
+		 *
+		 * @param rows snapshot rows
+		 */
+		void map(MappedSnapshot.Rows rows)
+		{
+			clear();
+			mapped = rows;
+			keyCount = rows.size();
+		}
+
+		/**
+		 * Get row, creating it if needed
+		 *
+		 * @param key key ID
+		 * @return the IDs of the values for this key
+		 */
+		IntBitmap getOrCreateRow(int key)
+		{
+			if (mapped != null)
+				throw new UnsupportedOperationException("Relation cache " + relationName + " is a read-only snapshot");
+			if (key >= rows.length)
+				rows = Arrays.copyOf(rows, Math.max(2 * rows.length, key + 1));
+			IntBitmap row = rows[key];
+			if (row == null)
+			{
+				row = new IntBitmap();
+				rows[key] = row;
+				keyCount++;
+			}
+			return row;
+		}
+
+		/**
+		 * Add entry
+		 *
+		 * @param key   key ID
+		 * @param value value ID
+		 * @return true if this is a new entry
+		 */
+		boolean add(int key, int value)
+		{
+			return getOrCreateRow(key).add(value);
+		}
+
+		/**
+		 * Keys
+		 *
+		 * @return IDs of the keys that have a row
+		 */
+		int[] keyIds()
+		{
+			if (mapped != null)
+				return mapped.keys();
+			int[] result = new int[keyCount];
+			int n = 0;
+			for (int key = 0; key < rows.length && n < keyCount; key++)
+			{
+				if (rows[key] != null)
+					result[n++] = key;
+			}
+			return result;
+		}
+
+		/**
+		 * Entry count
+		 *
+		 * @return number of key-value entries
+		 */
+		long entryCount()
+		{
+			long count = 0L;
+			for (int key : keyIds())
+				count += getRow(key).size();
+			return count;
+		}
+
+		/**
+		 * Estimated size in bytes
+		 *
+		 * @return approximate number of bytes held by the rows
+		 */
+		long sizeInBytes()
+		{
+			long bytes = 4L * rows.length;
+			for (IntBitmap row : rows)
+			{
+				if (row != null)
+					bytes += row.sizeInBytes();
+			}
+			return bytes;
+		}
+
+		/**
+		 * Write rows : number of rows, then for each the key ID and its values.
+		 * The directory has the number of rows, then for each the key ID and the offset of its values.
+		 *
+		 * @param out       output, whose size() is the offset of what is written next
+		 * @param directory directory output
+		 * @throws IOException io exception
+		 */
+		void writeRows(DataOutputStream out, DataOutput directory) throws IOException
+		{
+			int[] keys = keyIds();
+			out.writeInt(keys.length);
+			directory.writeInt(keys.length);
+			for (int key : keys)
+			{
+				out.writeInt(key);
+				directory.writeInt(key);
+				directory.writeInt(out.size());
+				getRow(key).write(out);
+			}
+		}
+
+		/**
+		 * Read rows written by writeRows()
+		 *
+		 * @param in input
+		 * @throws IOException io exception
+		 */
+		void readRows(DataInput in) throws IOException
+		{
+			for (int n = in.readInt(); n > 0; n--)
+			{
+				int key = in.readInt();
+				if (key < 0)
+					throw new IOException("Bad cache key " + key);
+				getOrCreateRow(key);
+				rows[key] = IntBitmap.read(in);
+			}
+		}
+
+		@Override public Set<String> get(Object key)
+		{
+			IntBitmap row = key instanceof String ? getRow(symbols.lookup((String) key)) : null;
+			return row == null ? null : new SymbolSet(symbols, row);
+		}
+
+		@Override public boolean containsKey(Object key)
+		{
+			return key instanceof String && getRow(symbols.lookup((String) key)) != null;
+		}
+
+		@Override public int size()
+		{
+			return keyCount;
+		}
+
+		@Override public void clear()
+		{
+			Arrays.fill(rows, null);
+			keyCount = 0;
+			mapped = null;
+		}
+
+		@Override public Set<Entry<String, Set<String>>> entrySet()
+		{
+			return new AbstractSet<Entry<String, Set<String>>>()
+			{
+				@Override public Iterator<Entry<String, Set<String>>> iterator()
+				{
+					final int[] keys = keyIds();
+					return new Iterator<Entry<String, Set<String>>>()
+					{
+						private int i = 0;
+
+						@Override public boolean hasNext()
+						{
+							return i < keys.length;
+						}
+
+						@Override public Entry<String, Set<String>> next()
+						{
+							if (i >= keys.length)
+								throw new NoSuchElementException();
+							int key = keys[i++];
+							return new SimpleImmutableEntry<>(symbols.getName(key), new SymbolSet(symbols, getRow(key)));
+						}
+					};
+				}
+
+				@Override public int size()
+				{
+					return keyCount;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Read-only view of a set of symbol IDs as a set of names.
+	 */
+	private static class SymbolSet extends AbstractSet<String>
+	{
+		private final SymbolTable symbols;
+
+		private final IntBitmap ids;
+
+		SymbolSet(SymbolTable symbols, IntBitmap ids)
+		{
+			this.symbols = symbols;
+			this.ids = ids;
+		}
+
+		@Override public boolean contains(Object o)
+		{
+			return o instanceof String && ids.contains(symbols.lookup((String) o));
+		}
+
+		@Override public boolean containsAll(Collection<?> c)
+		{
+			if (c instanceof SymbolSet && ((SymbolSet) c).symbols == symbols)
+				return ids.containsAll(((SymbolSet) c).ids);
+			return super.containsAll(c);
+		}
+
+		@Override public int size()
+		{
+			return ids.size();
+		}
+
+		@Override public Iterator<String> iterator()
+		{
+			final int[] values = ids.toArray();
+			return new Iterator<String>()
+			{
+				private int i = 0;
+
+				@Override public boolean hasNext()
+				{
+					return i < values.length;
+				}
+
+				@Override public String next()
+				{
+					if (i >= values.length)
+						throw new NoSuchElementException();
+					return symbols.getName(values[i++]);
+				}
+			};
+		}
 	}
 
 	/**
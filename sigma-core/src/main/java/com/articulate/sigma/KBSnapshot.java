@@ -0,0 +1,682 @@
+package com.articulate.sigma;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * KB snapshot.
+ * Versioned binary image of a built KB, written and read without Java serialization.
+ * After the header (magic, version) the file is a sequence of sections, each a tag, a byte length and
+ * its bytes, so that a reader can skip what it does not need. Sections come in dependency order :
+ * the symbol table first, then the formula table, the KB keys, the index postings, the terms, the relation
+ * caches, the relation signatures and the errors. Constants are written as symbol IDs and formulas
+ * as formula IDs (those of the formula index), so each string is held once.
+ * The formula table, the KB keys, the postings and the caches are each followed by an index section
+ * (record offsets, hash tables, directories) that read() skips and map() uses to decode records in place.
+ * Clausal forms, format maps and per-formula error logs are not part of the snapshot; they are rebuilt on demand.
+ */
+public final class KBSnapshot
+{
+	/**
+	 * Magic number ("SGKB")
+	 */
+	static final int MAGIC = 0x53474B42;
+
+	/**
+	 * Format version
+	 */
+	static final int VERSION = 1;
+
+	// S E C T I O N S
+
+	static final int END = 0;
+
+	static final int HEADER = 1;
+
+	static final int SYMBOLS = 2;
+
+	static final int FORMULAS = 3;
+
+	static final int KEYS = 4;
+
+	static final int POSTINGS = 5;
+
+	static final int TERMS = 6;
+
+	static final int CACHES = 7;
+
+	static final int SIGNATURES = 8;
+
+	static final int ERRORS = 9;
+
+	static final int FORMULA_INDEX = 10;
+
+	static final int KEY_INDEX = 11;
+
+	static final int POSTINGS_INDEX = 12;
+
+	static final int CACHE_INDEX = 13;
+
+	/**
+	 * Upper bound (exclusive) of the section tags of this version
+	 */
+	static final int SECTION_COUNT = 14;
+
+	/**
+	 * Marks a free slot in the hash tables of the index sections
+	 */
+	static final int FREE = -1;
+
+	/**
+	 * KB key kind : literal string
+	 */
+	static final byte KEY_STRING = 0;
+
+	/**
+	 * KB key kind : the text of the first formula under the key
+	 */
+	static final byte KEY_TEXT = 1;
+
+	private KBSnapshot()
+	{
+	}
+
+	// W R I T E
+
+	/**
+	 * Write snapshot to file
+	 *
+	 * @param kb   KB
+	 * @param file file
+	 * @throws IOException io exception
+	 */
+	public static void write(KB kb, File file) throws IOException
+	{
+		try (OutputStream os = new FileOutputStream(file))
+		{
+			write(kb, os);
+		}
+	}
+
+	/**
+	 * Write snapshot to stream. The stream is not closed.
+	 *
+	 * @param kb KB
+	 * @param os output stream
+	 * @throws IOException io exception
+	 */
+	public static void write(KB kb, OutputStream os) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		SymbolTable symbols = kb.getSymbols();
+		FormulaIndex formulaIndex = kb.getFormulaIndex();
+
+		// formula IDs : those of the index, then any formula the index does not know of
+		List<Formula> formulas = new ArrayList<>();
+		Map<Formula, Integer> formulaIds = new IdentityHashMap<>();
+		for (int id = 0; id < formulaIndex.size(); id++)
+		{
+			Formula f = formulaIndex.getFormula(id);
+			formulaIds.put(f, id);
+			formulas.add(f);
+		}
+		for (List<Formula> fs : kb.formulas.values())
+		{
+			for (Formula f : fs)
+				formulaIds.computeIfAbsent(f, k -> {
+					formulas.add(k);
+					return formulas.size() - 1;
+				});
+		}
+		for (Formula f : kb.formulaMap.values())
+			formulaIds.computeIfAbsent(f, k -> {
+				formulas.add(k);
+				return formulas.size() - 1;
+			});
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+		SectionOutput section = new SectionOutput(buffer);
+		ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream(1 << 12);
+		SectionOutput index = new SectionOutput(indexBuffer);
+
+		// header
+		writeString(section, kb.name);
+		writeString(section, kb.kbDir);
+		section.writeBoolean(kb.isVisible());
+		section.writeInt(kb.constituents.size());
+		for (String constituent : kb.constituents)
+			writeString(section, constituent);
+		writeSection(out, HEADER, buffer, section);
+
+		// symbols, in ID order
+		int symbolCount = symbols.size();
+		section.writeInt(symbolCount);
+		for (int id = 0; id < symbolCount; id++)
+			writeString(section, symbols.getName(id));
+		writeSection(out, SYMBOLS, buffer, section);
+
+		// formulas, in ID order, with their source files
+		Map<String, Integer> sourceFiles = new LinkedHashMap<>();
+		for (Formula f : formulas)
+		{
+			if (f.sourceFile != null)
+				sourceFiles.putIfAbsent(f.sourceFile, sourceFiles.size());
+		}
+		section.writeInt(sourceFiles.size());
+		for (String sourceFile : sourceFiles.keySet())
+			writeString(section, sourceFile);
+		section.writeInt(formulas.size());
+		for (Formula f : formulas)
+		{
+			index.writeInt(section.size());
+			writeString(section, f.text);
+			section.writeInt(f.sourceFile == null ? -1 : sourceFiles.get(f.sourceFile));
+			section.writeInt(f.startLine);
+			section.writeInt(f.endLine);
+		}
+		writeSection(out, FORMULAS, buffer, section);
+
+		// formula index : record offsets, then formula map formulas by text hash
+		int[] table = hashTable(kb.formulaMap.size());
+		for (Map.Entry<String, Formula> entry : kb.formulaMap.entrySet())
+			insert(table, entry.getKey().hashCode(), formulaIds.get(entry.getValue()));
+		writeHashTable(index, table);
+		writeSection(out, FORMULA_INDEX, indexBuffer, index);
+
+		// formula map and KB keys
+		section.writeInt(kb.formulaMap.size());
+		for (Formula f : kb.formulaMap.values())
+			section.writeInt(formulaIds.get(f));
+		section.writeInt(kb.formulas.size());
+		table = hashTable(kb.formulas.size());
+		for (Map.Entry<String, List<Formula>> entry : kb.formulas.entrySet())
+		{
+			String key = entry.getKey();
+			List<Formula> fs = entry.getValue();
+			insert(table, key.hashCode(), section.size());
+			if (!fs.isEmpty() && key.equals(fs.get(0).text))
+				section.writeByte(KEY_TEXT);
+			else
+			{
+				section.writeByte(KEY_STRING);
+				writeString(section, key);
+			}
+			section.writeInt(fs.size());
+			for (Formula f : fs)
+				section.writeInt(formulaIds.get(f));
+		}
+		writeSection(out, KEYS, buffer, section);
+
+		// key index : KB keys by hash
+		writeHashTable(index, table);
+		writeSection(out, KEY_INDEX, indexBuffer, index);
+
+		// index postings, and their directory
+		formulaIndex.writePostings(section, index);
+		writeSection(out, POSTINGS, buffer, section);
+		writeSection(out, POSTINGS_INDEX, indexBuffer, index);
+
+		// terms, which are canonical symbols
+		synchronized (kb.terms)
+		{
+			section.writeInt(kb.terms.size());
+			for (String term : kb.terms)
+			{
+				int id = symbols.lookup(term);
+				if (id < 0)
+					throw new IOException("Term is not a symbol: " + term);
+				section.writeInt(id);
+			}
+		}
+		writeSection(out, TERMS, buffer, section);
+
+		// relation caches
+		List<KB.RelationCache> caches = kb.getRelationCaches();
+		section.writeInt(caches.size());
+		for (KB.RelationCache cache : caches)
+		{
+			index.writeInt(section.size());
+			writeString(section, cache.getRelationName());
+			section.writeInt(cache.getKeyArgument());
+			section.writeInt(cache.getValueArgument());
+			section.writeBoolean(cache.getIsClosureComputed());
+			cache.writeRows(section, index);
+		}
+		writeSection(out, CACHES, buffer, section);
+		writeSection(out, CACHE_INDEX, indexBuffer, index);
+
+		// relation signatures
+		Map<String, int[]> valences = kb.getRelationValences();
+		section.writeInt(valences.size());
+		for (Map.Entry<String, int[]> entry : valences.entrySet())
+		{
+			writeString(section, entry.getKey());
+			int[] valence = entry.getValue();
+			section.writeInt(valence.length);
+			for (int v : valence)
+				section.writeInt(v);
+		}
+		Map<String, boolean[]> relnsWithRelnArgs = kb.getRelnsWithRelnArgs();
+		section.writeInt(relnsWithRelnArgs == null ? -1 : relnsWithRelnArgs.size());
+		if (relnsWithRelnArgs != null)
+		{
+			for (Map.Entry<String, boolean[]> entry : relnsWithRelnArgs.entrySet())
+			{
+				writeString(section, entry.getKey());
+				boolean[] signature = entry.getValue();
+				section.writeInt(signature.length);
+				for (boolean b : signature)
+					section.writeBoolean(b);
+			}
+		}
+		writeSection(out, SIGNATURES, buffer, section);
+
+		// errors
+		section.writeInt(kb.errors.size());
+		for (String error : kb.errors)
+			writeString(section, error);
+		writeSection(out, ERRORS, buffer, section);
+
+		out.writeInt(END);
+		out.flush();
+	}
+
+	/**
+	 * Write section and reset its buffer
+	 *
+	 * @param out     output
+	 * @param tag     section tag
+	 * @param buffer  section buffer
+	 * @param section section output, writing to buffer
+	 * @throws IOException io exception
+	 */
+	private static void writeSection(DataOutputStream out, int tag, ByteArrayOutputStream buffer, SectionOutput section) throws IOException
+	{
+		section.flush();
+		out.writeInt(tag);
+		out.writeInt(buffer.size());
+		buffer.writeTo(out);
+		buffer.reset();
+		section.rewind();
+	}
+
+	/**
+	 * Section output, whose size() is the offset in the current section
+	 */
+	private static final class SectionOutput extends DataOutputStream
+	{
+		SectionOutput(OutputStream out)
+		{
+			super(out);
+		}
+
+		void rewind()
+		{
+			this.written = 0;
+		}
+	}
+
+	// H A S H   T A B L E S
+
+	/**
+	 * Empty open-addressing hash table of (hash, value) pairs
+	 *
+	 * @param n number of entries
+	 * @return table, whose capacity is a power of 2 at least twice n
+	 */
+	private static int[] hashTable(int n)
+	{
+		int capacity = Integer.highestOneBit(Math.max(1, 2 * n - 1)) * 2;
+		int[] table = new int[2 * capacity];
+		for (int i = 1; i < table.length; i += 2)
+			table[i] = FREE;
+		return table;
+	}
+
+	/**
+	 * Insert into hash table, by linear probing
+	 *
+	 * @param table hash table
+	 * @param hash  hash
+	 * @param value value (non-negative)
+	 */
+	private static void insert(int[] table, int hash, int value)
+	{
+		int mask = table.length / 2 - 1;
+		int i = hash & mask;
+		while (table[2 * i + 1] != FREE)
+			i = (i + 1) & mask;
+		table[2 * i] = hash;
+		table[2 * i + 1] = value;
+	}
+
+	/**
+	 * Write hash table : capacity, then (hash, value) pairs
+	 *
+	 * @param out   output
+	 * @param table hash table
+	 * @throws IOException io exception
+	 */
+	private static void writeHashTable(DataOutput out, int[] table) throws IOException
+	{
+		out.writeInt(table.length / 2);
+		for (int v : table)
+			out.writeInt(v);
+	}
+
+	/**
+	 * Write string as its UTF-8 byte length (-1 for null) followed by its bytes
+	 *
+	 * @param out output
+	 * @param s   string, may be null
+	 * @throws IOException io exception
+	 */
+	static void writeString(DataOutput out, String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	// R E A D
+
+	/**
+	 * Read snapshot from file
+	 *
+	 * @param file file
+	 * @return KB
+	 * @throws IOException io exception, if the file is not a snapshot of this version
+	 */
+	public static KB read(File file) throws IOException
+	{
+		try (InputStream is = new FileInputStream(file))
+		{
+			return read(is);
+		}
+	}
+
+	/**
+	 * Read snapshot from stream. The stream is not closed.
+	 *
+	 * @param is input stream
+	 * @return KB
+	 * @throws IOException io exception, if the stream is not a snapshot of this version
+	 */
+	public static KB read(InputStream is) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a KB snapshot");
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("KB snapshot version " + version + " is not supported (expected " + VERSION + ")");
+
+		KB kb = null;
+		Formula[] formulas = null;
+		for (int tag = in.readInt(); tag != END; tag = in.readInt())
+		{
+			int length = in.readInt();
+			if (length < 0)
+				throw new IOException("Bad length " + length + " of section " + tag);
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			DataInputStream section = new DataInputStream(new ByteArrayInputStream(bytes));
+			if (tag == HEADER)
+			{
+				kb = readHeader(section);
+				continue;
+			}
+			if (kb == null)
+				throw new IOException("Section " + tag + " comes before the header");
+			switch (tag)
+			{
+			case SYMBOLS:
+				readSymbols(section, kb.getSymbols());
+				break;
+			case FORMULAS:
+				formulas = readFormulas(section, kb.getFormulaIndex());
+				break;
+			case KEYS:
+				readKeys(section, kb, requireFormulas(formulas, tag));
+				break;
+			case POSTINGS:
+				requireFormulas(formulas, tag);
+				kb.getFormulaIndex().readPostings(section);
+				break;
+			case TERMS:
+				readTerms(section, kb);
+				break;
+			case CACHES:
+				readCaches(section, kb);
+				break;
+			case SIGNATURES:
+				readSignatures(section, kb);
+				break;
+			case ERRORS:
+				readErrors(section, kb);
+				break;
+			default:
+				// index sections, which are for map(), and sections of a later revision of this version are skipped
+				break;
+			}
+		}
+		if (kb == null)
+			throw new IOException("KB snapshot has no header");
+		kb.restoreRelationCaches(true);
+		return kb;
+	}
+
+	// M A P
+
+	/**
+	 * Map snapshot file. The KB is read-only : its header, symbols, terms, signatures and errors are read
+	 * at once, while its formulas, KB keys, posting lists and relation cache rows are decoded from the mapping
+	 * as they are asked for. The mapping is shared through the page cache with any other process that maps
+	 * the same file, which must not be modified while it is mapped.
+	 *
+	 * @param file file
+	 * @return read-only KB
+	 * @throws IOException io exception, if the file is not a snapshot of this version or has no index sections
+	 */
+	public static KB map(File file) throws IOException
+	{
+		MappedSnapshot snapshot = new MappedSnapshot(file);
+		DataInput in = snapshot.input(HEADER);
+		String name = readString(in);
+		String kbDir = readString(in);
+		boolean isVisible = in.readBoolean();
+		KB kb = new KB(name, kbDir, isVisible, snapshot);
+		for (int n = in.readInt(); n > 0; n--)
+			kb.constituents.add(readString(in));
+
+		readSymbols(snapshot.input(SYMBOLS), kb.getSymbols());
+		readTerms(snapshot.input(TERMS), kb);
+		List<KB.RelationCache> caches = kb.getRelationCaches();
+		for (int i = 0; i < snapshot.getCacheCount(); i++)
+		{
+			in = snapshot.cacheHeader(i);
+			String relationName = readString(in);
+			int keyArg = in.readInt();
+			int valueArg = in.readInt();
+			KB.RelationCache cache = new KB.RelationCache(kb.getSymbols(), relationName, keyArg, valueArg);
+			if (in.readBoolean())
+				cache.setIsClosureComputed();
+			cache.map(snapshot.cacheRows(i));
+			caches.add(cache);
+		}
+		readSignatures(snapshot.input(SIGNATURES), kb);
+		readErrors(snapshot.input(ERRORS), kb);
+
+		// the subsumption index would decode every subclass row; isSubclass() uses the rows instead
+		kb.restoreRelationCaches(false);
+		return kb;
+	}
+
+	private static KB readHeader(DataInput in) throws IOException
+	{
+		String name = readString(in);
+		String kbDir = readString(in);
+		boolean isVisible = in.readBoolean();
+		KB kb = new KB(name, kbDir, isVisible);
+		for (int n = in.readInt(); n > 0; n--)
+			kb.constituents.add(readString(in));
+		return kb;
+	}
+
+	private static void readSymbols(DataInput in, SymbolTable symbols) throws IOException
+	{
+		int count = in.readInt();
+		for (int id = 0; id < count; id++)
+		{
+			if (symbols.intern(readString(in)) != id)
+				throw new IOException("Duplicate symbol " + id);
+		}
+	}
+
+	private static Formula[] readFormulas(DataInput in, FormulaIndex index) throws IOException
+	{
+		String[] sourceFiles = new String[in.readInt()];
+		for (int i = 0; i < sourceFiles.length; i++)
+			sourceFiles[i] = readString(in);
+		Formula[] formulas = new Formula[in.readInt()];
+		for (int id = 0; id < formulas.length; id++)
+		{
+			Formula f = new Formula();
+			f.set(readString(in));
+			int sourceFile = in.readInt();
+			f.sourceFile = sourceFile < 0 ? null : sourceFiles[sourceFile];
+			f.startLine = in.readInt();
+			f.endLine = in.readInt();
+			if (index.register(f) != id)
+				throw new IOException("Formula " + id + " is out of sequence");
+			formulas[id] = f;
+		}
+		return formulas;
+	}
+
+	private static Formula[] requireFormulas(Formula[] formulas, int tag) throws IOException
+	{
+		if (formulas == null)
+			throw new IOException("Section " + tag + " comes before the formulas");
+		return formulas;
+	}
+
+	private static void readKeys(DataInput in, KB kb, Formula[] formulas) throws IOException
+	{
+		for (int n = in.readInt(); n > 0; n--)
+		{
+			Formula f = formula(formulas, in.readInt());
+			kb.formulaMap.put(f.text, f);
+		}
+		for (int n = in.readInt(); n > 0; n--)
+		{
+			byte kind = in.readByte();
+			String key = kind == KEY_STRING ? readString(in) : null;
+			int size = in.readInt();
+			List<Formula> fs = new ArrayList<>(size);
+			for (int i = 0; i < size; i++)
+				fs.add(formula(formulas, in.readInt()));
+			if (kind == KEY_TEXT && !fs.isEmpty())
+				key = fs.get(0).text;
+			else if (kind != KEY_STRING)
+				throw new IOException("Bad key kind " + kind);
+			kb.formulas.put(key, fs);
+		}
+	}
+
+	private static Formula formula(Formula[] formulas, int id) throws IOException
+	{
+		if (id < 0 || id >= formulas.length)
+			throw new IOException("Bad formula ID " + id);
+		return formulas[id];
+	}
+
+	private static void readTerms(DataInput in, KB kb) throws IOException
+	{
+		SymbolTable symbols = kb.getSymbols();
+		int count = in.readInt();
+		List<String> terms = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+		{
+			int id = in.readInt();
+			if (id < 0 || id >= symbols.size())
+				throw new IOException("Bad term " + id);
+			terms.add(symbols.getName(id));
+		}
+		kb.addTerms(terms);
+	}
+
+	private static void readCaches(DataInput in, KB kb) throws IOException
+	{
+		List<KB.RelationCache> caches = kb.getRelationCaches();
+		for (int n = in.readInt(); n > 0; n--)
+		{
+			String relationName = readString(in);
+			int keyArg = in.readInt();
+			int valueArg = in.readInt();
+			KB.RelationCache cache = new KB.RelationCache(kb.getSymbols(), relationName, keyArg, valueArg);
+			if (in.readBoolean())
+				cache.setIsClosureComputed();
+			cache.readRows(in);
+			caches.add(cache);
+		}
+	}
+
+	private static void readSignatures(DataInput in, KB kb) throws IOException
+	{
+		Map<String, int[]> valences = kb.getRelationValences();
+		for (int n = in.readInt(); n > 0; n--)
+		{
+			String relation = readString(in);
+			int[] valence = new int[in.readInt()];
+			for (int i = 0; i < valence.length; i++)
+				valence[i] = in.readInt();
+			valences.put(relation, valence);
+		}
+		int count = in.readInt();
+		if (count < 0)
+			return;
+		Map<String, boolean[]> relnsWithRelnArgs = new HashMap<>();
+		for (int n = count; n > 0; n--)
+		{
+			String relation = readString(in);
+			boolean[] signature = new boolean[in.readInt()];
+			for (int i = 0; i < signature.length; i++)
+				signature[i] = in.readBoolean();
+			relnsWithRelnArgs.put(relation, signature);
+		}
+		kb.setRelnsWithRelnArgs(relnsWithRelnArgs);
+	}
+
+	private static void readErrors(DataInput in, KB kb) throws IOException
+	{
+		for (int n = in.readInt(); n > 0; n--)
+			kb.errors.add(readString(in));
+	}
+
+	/**
+	 * Read string written by writeString()
+	 *
+	 * @param in input
+	 * @return string, null if null was written
+	 * @throws IOException io exception
+	 */
+	static String readString(DataInput in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,714 @@
+package com.articulate.sigma;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static com.articulate.sigma.KBSnapshot.*;
+
+/**
+ * Mapped snapshot.
+ * Snapshot file written by KBSnapshot, mapped read-only into memory. Formulas, KB keys, posting lists and
+ * relation cache rows are decoded in place through the index sections : formula record offsets, hash tables
+ * of the formula map texts and of the KB keys, and directories of the posting lists and cache rows, sorted
+ * by term or key ID and binary searched. Nothing is decoded when the file is mapped except the small tables
+ * needed to find the sections.
+ * Reads are absolute, so that the mapping is shared by all threads without locking.
+ */
+final class MappedSnapshot
+{
+	/**
+	 * Mapped file
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Position of each section's data, by tag
+	 */
+	private final int[] starts = new int[SECTION_COUNT];
+
+	/**
+	 * Length of each section's data, by tag
+	 */
+	private final int[] lengths = new int[SECTION_COUNT];
+
+	/**
+	 * Source files of the formulas
+	 */
+	private final String[] sourceFiles;
+
+	/**
+	 * Number of formulas
+	 */
+	private final int formulaCount;
+
+	/**
+	 * Number of formulas in the formula map
+	 */
+	private final int formulaMapCount;
+
+	/**
+	 * Number of KB keys
+	 */
+	private final int keyCount;
+
+	/**
+	 * Position of the first KB key entry
+	 */
+	private final int firstKey;
+
+	/**
+	 * Position of the pairs of the posting directory of each kind and argument position, and their number
+	 */
+	private final int[][] postingPairs;
+
+	private final int[][] postingCounts;
+
+	/**
+	 * Position of the header of each relation cache
+	 */
+	private final int[] cacheHeaders;
+
+	/**
+	 * Rows of each relation cache
+	 */
+	private final Rows[] cacheRows;
+
+	// C O N S T R U C T O R
+
+	/**
+	 * Map snapshot file
+	 *
+	 * @param file file
+	 * @throws IOException io exception, if the file is not a snapshot of this version or has no index sections
+	 */
+	MappedSnapshot(File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("KB snapshot " + file + " is too large to be mapped");
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		int limit = this.buffer.limit();
+		if (limit < 12 || this.buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a KB snapshot: " + file);
+		int version = this.buffer.getInt(4);
+		if (version != VERSION)
+			throw new IOException("KB snapshot version " + version + " is not supported (expected " + VERSION + ")");
+
+		// sections
+		Arrays.fill(this.starts, -1);
+		int pos = 8;
+		for (int tag = this.buffer.getInt(pos); tag != END; tag = this.buffer.getInt(pos))
+		{
+			int length = pos + 8 <= limit ? this.buffer.getInt(pos + 4) : -1;
+			if (length < 0 || pos + 8 + length + 4 > limit)
+				throw new IOException("KB snapshot " + file + " is truncated");
+			if (tag > 0 && tag < SECTION_COUNT)
+			{
+				this.starts[tag] = pos + 8;
+				this.lengths[tag] = length;
+			}
+			pos += 8 + length;
+		}
+		for (int tag = HEADER; tag < SECTION_COUNT; tag++)
+		{
+			if (this.starts[tag] < 0)
+				throw new IOException("KB snapshot " + file + " has no section " + tag + ", it can only be read");
+		}
+
+		// formulas
+		DataInputStream in = input(FORMULAS);
+		this.sourceFiles = new String[in.readInt()];
+		for (int i = 0; i < this.sourceFiles.length; i++)
+			this.sourceFiles[i] = readString(in);
+		this.formulaCount = in.readInt();
+
+		// KB keys
+		this.formulaMapCount = this.buffer.getInt(this.starts[KEYS]);
+		this.keyCount = this.buffer.getInt(this.starts[KEYS] + 4 + 4 * this.formulaMapCount);
+		this.firstKey = this.starts[KEYS] + 8 + 4 * this.formulaMapCount;
+
+		// posting directory
+		int kinds = FormulaIndex.Kind.values().length;
+		this.postingPairs = new int[kinds][];
+		this.postingCounts = new int[kinds][];
+		pos = this.starts[POSTINGS_INDEX];
+		for (int k = 0; k < kinds; k++)
+		{
+			int positions = this.buffer.getInt(pos);
+			pos += 4;
+			this.postingPairs[k] = new int[positions];
+			this.postingCounts[k] = new int[positions];
+			for (int a = 0; a < positions; a++)
+			{
+				int n = this.buffer.getInt(pos);
+				this.postingPairs[k][a] = pos + 4;
+				this.postingCounts[k][a] = n;
+				pos += 4 + 8 * n;
+			}
+		}
+
+		// cache directory
+		int cacheCount = this.buffer.getInt(this.starts[CACHES]);
+		this.cacheHeaders = new int[cacheCount];
+		this.cacheRows = new Rows[cacheCount];
+		pos = this.starts[CACHE_INDEX];
+		for (int i = 0; i < cacheCount; i++)
+		{
+			this.cacheHeaders[i] = this.starts[CACHES] + this.buffer.getInt(pos);
+			int n = this.buffer.getInt(pos + 4);
+			this.cacheRows[i] = new Rows(pos + 8, n);
+			pos += 8 + 8 * n;
+		}
+	}
+
+	// A C C E S S
+
+	/**
+	 * Section input
+	 *
+	 * @param tag section tag
+	 * @return input reading the section from its start
+	 */
+	DataInputStream input(int tag)
+	{
+		return input(this.starts[tag], this.starts[tag] + this.lengths[tag]);
+	}
+
+	/**
+	 * Input
+	 *
+	 * @param from position (inclusive)
+	 * @param to   position (exclusive)
+	 * @return input reading the mapping between the positions
+	 */
+	private DataInputStream input(int from, int to)
+	{
+		ByteBuffer slice = this.buffer.duplicate();
+		slice.limit(to);
+		slice.position(from);
+		return new DataInputStream(new BufferInputStream(slice));
+	}
+
+	/**
+	 * Number of formulas
+	 *
+	 * @return number of formulas, which is also the upper bound (exclusive) of formula IDs
+	 */
+	int getFormulaCount()
+	{
+		return this.formulaCount;
+	}
+
+	/**
+	 * Decode formula
+	 *
+	 * @param id formula ID
+	 * @return new formula
+	 */
+	Formula formula(int id)
+	{
+		if (id < 0 || id >= this.formulaCount)
+			throw new IndexOutOfBoundsException("No formula " + id);
+		int pos = this.starts[FORMULAS] + this.buffer.getInt(this.starts[FORMULA_INDEX] + 4 * id);
+		Formula f = new Formula();
+		f.set(string(pos));
+		pos += 4 + Math.max(0, this.buffer.getInt(pos));
+		int sourceFile = this.buffer.getInt(pos);
+		f.sourceFile = sourceFile < 0 ? null : this.sourceFiles[sourceFile];
+		f.startLine = this.buffer.getInt(pos + 4);
+		f.endLine = this.buffer.getInt(pos + 8);
+		return f;
+	}
+
+	/**
+	 * Decode posting list
+	 *
+	 * @param kind   kind ordinal
+	 * @param a      argument position (0 for all kinds but ARG)
+	 * @param termId term ID
+	 * @return formula IDs, null if there is no posting list for this position and term
+	 */
+	int[] postings(int kind, int a, int termId)
+	{
+		if (a < 0 || a >= this.postingCounts[kind].length)
+			return null;
+		int offset = search(this.postingPairs[kind][a], this.postingCounts[kind][a], termId);
+		if (offset < 0)
+			return null;
+		int pos = this.starts[POSTINGS] + offset;
+		int[] ids = new int[this.buffer.getInt(pos)];
+		ByteBuffer slice = this.buffer.duplicate();
+		slice.position(pos + 4);
+		slice.asIntBuffer().get(ids);
+		return ids;
+	}
+
+	/**
+	 * Copy the posting lists and their directory as they are mapped
+	 *
+	 * @param out       output
+	 * @param directory directory output
+	 * @throws IOException io exception
+	 */
+	void copyPostings(DataOutput out, DataOutput directory) throws IOException
+	{
+		out.write(bytes(POSTINGS));
+		directory.write(bytes(POSTINGS_INDEX));
+	}
+
+	/**
+	 * Number of relation caches
+	 *
+	 * @return number of relation caches
+	 */
+	int getCacheCount()
+	{
+		return this.cacheHeaders.length;
+	}
+
+	/**
+	 * Relation cache header input
+	 *
+	 * @param i cache index
+	 * @return input reading the relation name, key and value arguments and closure flag of the cache
+	 */
+	DataInputStream cacheHeader(int i)
+	{
+		return input(this.cacheHeaders[i], this.starts[CACHES] + this.lengths[CACHES]);
+	}
+
+	/**
+	 * Relation cache rows
+	 *
+	 * @param i cache index
+	 * @return rows of the cache
+	 */
+	Rows cacheRows(int i)
+	{
+		return this.cacheRows[i];
+	}
+
+	/**
+	 * Read-only formula map, in load order
+	 *
+	 * @param index formula index formulas are materialized through
+	 * @return formula map
+	 */
+	Map<String, Formula> formulaMap(FormulaIndex index)
+	{
+		return new FormulaMap(index);
+	}
+
+	/**
+	 * Read-only map of KB keys to formulas
+	 *
+	 * @param index formula index formulas are materialized through
+	 * @return key map
+	 */
+	Map<String, List<Formula>> keyMap(FormulaIndex index)
+	{
+		return new KeyMap(index);
+	}
+
+	// D E C O D E
+
+	/**
+	 * Search the directory for a key
+	 *
+	 * @param pairs position of the (key, offset) pairs, sorted by key
+	 * @param n     number of pairs
+	 * @param key   key
+	 * @return offset, -1 if the key is not in the directory
+	 */
+	private int search(int pairs, int n, int key)
+	{
+		int lo = 0;
+		int hi = n;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int k = this.buffer.getInt(pairs + 8 * mid);
+			if (k < key)
+				lo = mid + 1;
+			else if (k > key)
+				hi = mid;
+			else
+				return this.buffer.getInt(pairs + 8 * mid + 4);
+		}
+		return -1;
+	}
+
+	/**
+	 * Look up a hash table
+	 *
+	 * @param table position of the table (capacity, then (hash, value) pairs)
+	 * @param hash  hash
+	 * @param from  index of the slot the search resumes from, 0 to start it
+	 * @return index of the next slot from there with this hash, plus 1, 0 if there is none
+	 */
+	private int probe(int table, int hash, int from)
+	{
+		int mask = this.buffer.getInt(table) - 1;
+		for (int i = from == 0 ? hash & mask : from & mask; ; i = (i + 1) & mask)
+		{
+			int pos = table + 4 + 8 * i;
+			if (this.buffer.getInt(pos + 4) == FREE)
+				return 0;
+			if (this.buffer.getInt(pos) == hash)
+				return i + 1;
+		}
+	}
+
+	/**
+	 * Value in a hash table slot
+	 *
+	 * @param table position of the table
+	 * @param slot  slot index plus 1, as returned by probe()
+	 * @return value
+	 */
+	private int slotValue(int table, int slot)
+	{
+		return this.buffer.getInt(table + 4 + 8 * (slot - 1) + 4);
+	}
+
+	/**
+	 * Decode string written by KBSnapshot.writeString()
+	 *
+	 * @param pos position
+	 * @return string, null if null was written
+	 */
+	private String string(int pos)
+	{
+		int length = this.buffer.getInt(pos);
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		ByteBuffer slice = this.buffer.duplicate();
+		slice.position(pos + 4);
+		slice.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Section bytes
+	 *
+	 * @param tag section tag
+	 * @return copy of the section's data
+	 */
+	private byte[] bytes(int tag)
+	{
+		byte[] bytes = new byte[this.lengths[tag]];
+		ByteBuffer slice = this.buffer.duplicate();
+		slice.position(this.starts[tag]);
+		slice.get(bytes);
+		return bytes;
+	}
+
+	// R O W S
+
+	/**
+	 * Rows of a relation cache
+	 */
+	final class Rows
+	{
+		/**
+		 * Position of the (key ID, offset) pairs
+		 */
+		private final int pairs;
+
+		/**
+		 * Number of rows
+		 */
+		private final int count;
+
+		Rows(int pairs, int count)
+		{
+			this.pairs = pairs;
+			this.count = count;
+		}
+
+		/**
+		 * Size
+		 *
+		 * @return number of rows
+		 */
+		int size()
+		{
+			return this.count;
+		}
+
+		/**
+		 * Keys
+		 *
+		 * @return IDs of the keys that have a row, in ascending order
+		 */
+		int[] keys()
+		{
+			int[] keys = new int[this.count];
+			for (int i = 0; i < this.count; i++)
+				keys[i] = buffer.getInt(this.pairs + 8 * i);
+			return keys;
+		}
+
+		/**
+		 * Decode row
+		 *
+		 * @param key key ID
+		 * @return new set of the IDs of the values for this key, null if none
+		 */
+		IntBitmap find(int key)
+		{
+			int offset = search(this.pairs, this.count, key);
+			if (offset < 0)
+				return null;
+			try
+			{
+				return IntBitmap.read(input(starts[CACHES] + offset, starts[CACHES] + lengths[CACHES]));
+			}
+			catch (IOException ex)
+			{
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	// M A P S
+
+	/**
+	 * Read-only formula map : formulas by text, through the formula index hash table
+	 */
+	private final class FormulaMap extends AbstractMap<String, Formula>
+	{
+		private final FormulaIndex index;
+
+		FormulaMap(FormulaIndex index)
+		{
+			this.index = index;
+		}
+
+		@Override public Formula get(Object key)
+		{
+			if (!(key instanceof String))
+				return null;
+			int table = starts[FORMULA_INDEX] + 4 * formulaCount;
+			for (int slot = probe(table, key.hashCode(), 0); slot != 0; slot = probe(table, key.hashCode(), slot))
+			{
+				Formula f = this.index.getFormula(slotValue(table, slot));
+				if (key.equals(f.text))
+					return f;
+			}
+			return null;
+		}
+
+		@Override public boolean containsKey(Object key)
+		{
+			return get(key) != null;
+		}
+
+		@Override public int size()
+		{
+			return formulaMapCount;
+		}
+
+		@Override public Set<Entry<String, Formula>> entrySet()
+		{
+			return new AbstractSet<Entry<String, Formula>>()
+			{
+				@Override public Iterator<Entry<String, Formula>> iterator()
+				{
+					return new Iterator<Entry<String, Formula>>()
+					{
+						private int i = 0;
+
+						@Override public boolean hasNext()
+						{
+							return i < formulaMapCount;
+						}
+
+						@Override public Entry<String, Formula> next()
+						{
+							if (i >= formulaMapCount)
+								throw new NoSuchElementException();
+							Formula f = index.getFormula(buffer.getInt(starts[KEYS] + 4 + 4 * i++));
+							return new SimpleImmutableEntry<>(f.text, f);
+						}
+					};
+				}
+
+				@Override public int size()
+				{
+					return formulaMapCount;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Read-only map of KB keys to formulas, through the key index hash table
+	 */
+	private final class KeyMap extends AbstractMap<String, List<Formula>>
+	{
+		private final FormulaIndex index;
+
+		KeyMap(FormulaIndex index)
+		{
+			this.index = index;
+		}
+
+		@Override public List<Formula> get(Object key)
+		{
+			if (!(key instanceof String))
+				return null;
+			int table = starts[KEY_INDEX];
+			for (int slot = probe(table, key.hashCode(), 0); slot != 0; slot = probe(table, key.hashCode(), slot))
+			{
+				int pos = starts[KEYS] + slotValue(table, slot);
+				if (key.equals(key(pos)))
+					return formulas(pos);
+			}
+			return null;
+		}
+
+		@Override public boolean containsKey(Object key)
+		{
+			return get(key) != null;
+		}
+
+		@Override public int size()
+		{
+			return keyCount;
+		}
+
+		@Override public Set<Entry<String, List<Formula>>> entrySet()
+		{
+			return new AbstractSet<Entry<String, List<Formula>>>()
+			{
+				@Override public Iterator<Entry<String, List<Formula>>> iterator()
+				{
+					return new Iterator<Entry<String, List<Formula>>>()
+					{
+						private int i = 0;
+
+						private int pos = firstKey;
+
+						@Override public boolean hasNext()
+						{
+							return i < keyCount;
+						}
+
+						@Override public Entry<String, List<Formula>> next()
+						{
+							if (i >= keyCount)
+								throw new NoSuchElementException();
+							Entry<String, List<Formula>> entry = new SimpleImmutableEntry<>(key(pos), formulas(pos));
+							int ids = idsOf(pos);
+							pos = ids + 4 + 4 * buffer.getInt(ids);
+							i++;
+							return entry;
+						}
+					};
+				}
+
+				@Override public int size()
+				{
+					return keyCount;
+				}
+			};
+		}
+
+		/**
+		 * Key of an entry
+		 *
+		 * @param pos position of the entry
+		 * @return key
+		 */
+		private String key(int pos)
+		{
+			if (buffer.get(pos) == KEY_STRING)
+				return string(pos + 1);
+			return this.index.getFormula(buffer.getInt(idsOf(pos) + 4)).text;
+		}
+
+		/**
+		 * Formulas of an entry
+		 *
+		 * @param pos position of the entry
+		 * @return read-only list of the formulas under the key
+		 */
+		private List<Formula> formulas(int pos)
+		{
+			final int ids = idsOf(pos);
+			final int size = buffer.getInt(ids);
+			return new AbstractList<Formula>()
+			{
+				@Override public Formula get(int i)
+				{
+					if (i < 0 || i >= size)
+						throw new IndexOutOfBoundsException("Formula " + i + " of " + size);
+					return index.getFormula(buffer.getInt(ids + 4 + 4 * i));
+				}
+
+				@Override public int size()
+				{
+					return size;
+				}
+			};
+		}
+
+		/**
+		 * Position of the formula IDs of an entry
+		 *
+		 * @param pos position of the entry
+		 * @return position of the number of formulas, followed by their IDs
+		 */
+		private int idsOf(int pos)
+		{
+			if (buffer.get(pos) == KEY_STRING)
+				return pos + 1 + 4 + Math.max(0, buffer.getInt(pos + 1));
+			return pos + 1;
+		}
+	}
+
+	// I N P U T
+
+	/**
+	 * Input stream reading a byte buffer from its position to its limit
+	 */
+	private static final class BufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override public int read()
+		{
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+		}
+
+		@Override public int read(byte[] b, int off, int len)
+		{
+			if (len == 0)
+				return 0;
+			if (!this.buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override public int available()
+		{
+			return this.buffer.remaining();
+		}
+	}
+}
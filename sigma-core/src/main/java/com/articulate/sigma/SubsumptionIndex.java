@@ -0,0 +1,153 @@
+package com.articulate.sigma;
+
+import java.util.Arrays;
+
+/**
+ * Subsumption index.
+ * Interval labeling of a spanning tree of the closed subclass cache. Each class gets as tree parent
+ * its ancestor with the most ancestors, which is one of its direct superclasses, and the tree is numbered
+ * in pre and post order, so that a tree ancestor's interval encloses its descendants' intervals.
+ * A class whose ancestors are all tree ancestors (single inheritance all the way up) is answered from the
+ * intervals alone; a class with multiple inheritance somewhere above it, or on a cycle, falls back to its
+ * closed cache row.
+ */
+final class SubsumptionIndex
+{
+	private static final int NONE = -1;
+
+	/**
+	 * Closed cache the index is built from, looking from the keys toward the superclasses
+	 */
+	private final KB.RelationCache up;
+
+	/**
+	 * Preorder number by class ID, NONE if the class is not in the index
+	 */
+	private final int[] pre;
+
+	/**
+	 * Postorder number by class ID
+	 */
+	private final int[] post;
+
+	/**
+	 * Whether the tree ancestors of a class are all its ancestors, by class ID
+	 */
+	private final boolean[] exact;
+
+	/**
+	 * Build the index
+	 *
+	 * @param up        closed cache, looking from the keys toward the superclasses (keyArg 1, valueArg 2)
+	 * @param nodeCount upper bound on the IDs in the cache
+	 */
+	SubsumptionIndex(KB.RelationCache up, int nodeCount)
+	{
+		this.up = up;
+		this.pre = new int[nodeCount];
+		this.post = new int[nodeCount];
+		this.exact = new boolean[nodeCount];
+		Arrays.fill(this.pre, NONE);
+
+		// nodes and their number of ancestors
+		int[] ancestorCount = new int[nodeCount];
+		boolean[] known = new boolean[nodeCount];
+		boolean[] cyclic = new boolean[nodeCount];
+		for (int key : up.keyIds())
+		{
+			IntBitmap row = up.getRow(key);
+			known[key] = true;
+			ancestorCount[key] = row.size();
+			cyclic[key] = row.contains(key);
+			for (int value : row.toArray())
+				known[value] = true;
+		}
+
+		// tree parent: the ancestor with the most ancestors, none for classes on a cycle
+		// Along tree edges the number of ancestors strictly decreases, so there is no tree cycle.
+		int[] parent = new int[nodeCount];
+		Arrays.fill(parent, NONE);
+		int[] childCount = new int[nodeCount];
+		for (int key : up.keyIds())
+		{
+			if (cyclic[key])
+				continue;
+			int best = NONE;
+			for (int value : up.getRow(key).toArray())
+			{
+				if (best == NONE || ancestorCount[value] > ancestorCount[best])
+					best = value;
+			}
+			parent[key] = best;
+			if (best != NONE)
+				childCount[best]++;
+		}
+
+		// children, in ID order
+		int[] childStart = new int[nodeCount + 1];
+		for (int id = 0; id < nodeCount; id++)
+			childStart[id + 1] = childStart[id] + childCount[id];
+		int[] children = new int[childStart[nodeCount]];
+		int[] fill = Arrays.copyOf(childStart, nodeCount);
+		for (int id = 0; id < nodeCount; id++)
+		{
+			if (parent[id] != NONE)
+				children[fill[parent[id]]++] = id;
+		}
+
+		// pre and post order numbering from the roots, with tree depth
+		int[] depth = new int[nodeCount];
+		int[] stack = new int[nodeCount];
+		int[] next = new int[nodeCount];
+		int preOrder = 0;
+		int postOrder = 0;
+		for (int root = 0; root < nodeCount; root++)
+		{
+			if (!known[root] || parent[root] != NONE)
+				continue;
+			int top = 0;
+			stack[0] = root;
+			next[0] = childStart[root];
+			this.pre[root] = preOrder++;
+			while (top >= 0)
+			{
+				int node = stack[top];
+				if (next[top] < childStart[node + 1])
+				{
+					int child = children[next[top]++];
+					depth[child] = depth[node] + 1;
+					this.pre[child] = preOrder++;
+					top++;
+					stack[top] = child;
+					next[top] = childStart[child];
+					continue;
+				}
+				this.post[node] = postOrder++;
+				this.exact[node] = !cyclic[node] && depth[node] == ancestorCount[node];
+				top--;
+			}
+		}
+	}
+
+	/**
+	 * Test subsumption
+	 *
+	 * @param c1 class ID
+	 * @param c2 class ID
+	 * @return whether the closed cache supports the conclusion that c1 is a subclass of c2
+	 */
+	boolean isSubclass(int c1, int c2)
+	{
+		if (c1 < 0 || c2 < 0)
+			return false;
+		if (c1 < this.pre.length && c2 < this.pre.length && this.pre[c1] != NONE && this.pre[c2] != NONE)
+		{
+			if (this.pre[c2] < this.pre[c1] && this.post[c1] < this.post[c2])
+				return true;
+			if (this.exact[c1])
+				return false;
+		}
+		IntBitmap row = this.up.getRow(c1);
+		return row != null && row.contains(c2);
+	}
+}
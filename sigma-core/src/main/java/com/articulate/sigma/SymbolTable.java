@@ -0,0 +1,206 @@
+package com.articulate.sigma;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Symbol table.
+ * Maps each constant of a KB to a dense int ID (0, 1, 2...) in order of first appearance, and back.
+ * The String held for an ID is the canonical instance of that constant, so that all structures
+ * that go through the table share it.
+ */
+public class SymbolTable implements Serializable
+{
+	private static final long serialVersionUID = 2598434870717226011L;
+
+	/**
+	 * Marks a free slot in the hash table.
+	 */
+	private static final int FREE = -1;
+
+	/**
+	 * Names indexed by ID.
+	 */
+	private String[] names;
+
+	/**
+	 * Open-addressing hash table of IDs.
+	 */
+	private int[] slots;
+
+	/**
+	 * Number of symbols.
+	 */
+	private int size;
+
+	// C O N S T R U C T O R
+
+	/**
+	 * Constructor
+	 */
+	public SymbolTable()
+	{
+		this(1024);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity expected number of symbols
+	 */
+	public SymbolTable(int capacity)
+	{
+		int n = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1) * 2;
+		this.names = new String[n / 2];
+		this.slots = new int[n];
+		Arrays.fill(this.slots, FREE);
+	}
+
+	// A C C E S S
+
+	/**
+	 * Intern a symbol
+	 *
+	 * @param name symbol name
+	 * @return ID of this symbol, newly allocated if it was not known
+	 */
+	public synchronized int intern(String name)
+	{
+		int mask = this.slots.length - 1;
+		int i = hash(name) & mask;
+		for (int id = this.slots[i]; id != FREE; id = this.slots[i])
+		{
+			if (this.names[id].equals(name))
+				return id;
+			i = (i + 1) & mask;
+		}
+		int id = this.size++;
+		if (id == this.names.length)
+			this.names = Arrays.copyOf(this.names, 2 * id);
+		this.names[id] = name;
+		this.slots[i] = id;
+		if (2 * this.size > this.slots.length)
+			rehash();
+		return id;
+	}
+
+	/**
+	 * Look up a symbol
+	 *
+	 * @param name symbol name
+	 * @return ID of this symbol, -1 if it is not known
+	 */
+	public synchronized int lookup(String name)
+	{
+		if (name == null)
+			return -1;
+		int mask = this.slots.length - 1;
+		int i = hash(name) & mask;
+		for (int id = this.slots[i]; id != FREE; id = this.slots[i])
+		{
+			if (this.names[id].equals(name))
+				return id;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Canonical name
+	 *
+	 * @param name symbol name
+	 * @return the canonical instance of this name, the symbol being interned if it was not known
+	 */
+	public synchronized String canonical(String name)
+	{
+		int id = intern(name); // may grow the names array
+		return this.names[id];
+	}
+
+	/**
+	 * Canonical name of a run of chars, without building a string if the symbol is known
+	 *
+	 * @param chars  buffer
+	 * @param offset offset of the name in the buffer
+	 * @param length length of the name
+	 * @return the canonical instance of this name, the symbol being interned if it was not known
+	 */
+	public synchronized String canonical(char[] chars, int offset, int length)
+	{
+		int h = 0;
+		for (int k = 0; k < length; k++)
+			h = 31 * h + chars[offset + k];
+		int mask = this.slots.length - 1;
+		int i = hash(h) & mask;
+		for (int id = this.slots[i]; id != FREE; id = this.slots[i])
+		{
+			if (matches(this.names[id], chars, offset, length))
+				return this.names[id];
+			i = (i + 1) & mask;
+		}
+		int id = intern(new String(chars, offset, length)); // may grow the names array
+		return this.names[id];
+	}
+
+	private static boolean matches(String name, char[] chars, int offset, int length)
+	{
+		if (name.length() != length)
+			return false;
+		for (int k = 0; k < length; k++)
+			if (name.charAt(k) != chars[offset + k])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Get name
+	 *
+	 * @param id symbol ID
+	 * @return name of the symbol with this ID
+	 * @throws IndexOutOfBoundsException if the ID has not been allocated
+	 */
+	public synchronized String getName(int id)
+	{
+		if (id < 0 || id >= this.size)
+			throw new IndexOutOfBoundsException("No symbol " + id);
+		return this.names[id];
+	}
+
+	/**
+	 * Size
+	 *
+	 * @return number of symbols, which is also the upper bound (exclusive) of IDs
+	 */
+	public synchronized int size()
+	{
+		return this.size;
+	}
+
+	// H A S H
+
+	private static int hash(String name)
+	{
+		return hash(name.hashCode());
+	}
+
+	private static int hash(int hashCode)
+	{
+		int h = hashCode * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void rehash()
+	{
+		int[] newSlots = new int[2 * this.slots.length];
+		Arrays.fill(newSlots, FREE);
+		int mask = newSlots.length - 1;
+		for (int id = 0; id < this.size; id++)
+		{
+			int i = hash(this.names[id]) & mask;
+			while (newSlots[i] != FREE)
+				i = (i + 1) & mask;
+			newSlots[i] = id;
+		}
+		this.slots = newSlots;
+	}
+}
@@ -0,0 +1,393 @@
+package com.articulate.sigma;
+
+/**
+ * Term.
+ * Immutable parsed view of a SUO-KIF S-expression string. A list is scanned once
+ * into the offsets of its top-level elements; element strings and sub-terms are
+ * materialized lazily and cached, so that car/cdr-style navigation (element access,
+ * length, rest of list) is answered without re-scanning the text.
+ * The element boundaries are exactly those produced by the LISP-like operations
+ * of Formula (car, cdr), including their tolerance of unbalanced input.
+ */
+public final class Term
+{
+	/**
+	 * Term kind
+	 */
+	public enum Kind
+	{
+		ATOM, VARIABLE, ROW_VARIABLE, STRING, LIST
+	}
+
+	/**
+	 * Offsets of the top-level elements of a list, shared by a list and all the rests (cdrs) derived from it.
+	 */
+	private static final class Scan
+	{
+		/**
+		 * The string the offsets refer to.
+		 */
+		final String source;
+
+		/**
+		 * Number of elements.
+		 */
+		final int count;
+
+		/**
+		 * Element triples : start (inclusive), end (exclusive), start of rest.
+		 */
+		final int[] bounds;
+
+		/**
+		 * End (exclusive) of the region the rests are taken from.
+		 */
+		final int limit;
+
+		/**
+		 * Lazily materialized element strings.
+		 */
+		final String[] elements;
+
+		/**
+		 * Lazily parsed element terms.
+		 */
+		final Term[] children;
+
+		Scan(String source, int count, int[] bounds, int limit)
+		{
+			this.source = source;
+			this.count = count;
+			this.bounds = bounds;
+			this.limit = limit;
+			this.elements = new String[count];
+			this.children = new Term[count];
+		}
+	}
+
+	// M E M B E R S
+
+	/**
+	 * The string this term stands for.
+	 */
+	private final String text;
+
+	/**
+	 * The kind of term.
+	 */
+	private final Kind kind;
+
+	/**
+	 * Element offsets (null if not a list).
+	 */
+	private final Scan scan;
+
+	/**
+	 * Index of this list's first element in the scan.
+	 */
+	private final int offset;
+
+	/**
+	 * Whether the text is an empty list, as in Formula.empty()
+	 */
+	private final boolean empty;
+
+	/**
+	 * Cached rest (cdr) of this list.
+	 */
+	private Term rest;
+
+	// C O N S T R U C T O R
+
+	private Term(String text, Kind kind, Scan scan, int offset, boolean empty)
+	{
+		this.text = text;
+		this.kind = kind;
+		this.scan = scan;
+		this.offset = offset;
+		this.empty = empty;
+	}
+
+	/**
+	 * Parse
+	 *
+	 * @param text formula string
+	 * @return term for this string, null if string is null
+	 */
+	public static Term parse(String text)
+	{
+		if (text == null)
+			return null;
+		if (Formula.listP(text))
+			return new Term(text, Kind.LIST, scan(text), 0, Formula.empty(text));
+		return new Term(text, kindOf(text), null, 0, false);
+	}
+
+	// A C C E S S
+
+	/**
+	 * Get text
+	 *
+	 * @return the string this term was parsed from
+	 */
+	public String getText()
+	{
+		return this.text;
+	}
+
+	/**
+	 * Get kind
+	 *
+	 * @return kind of term
+	 */
+	public Kind getKind()
+	{
+		return this.kind;
+	}
+
+	/**
+	 * Whether this term is a list
+	 *
+	 * @return true if this term is a list
+	 */
+	public boolean isList()
+	{
+		return this.kind == Kind.LIST;
+	}
+
+	/**
+	 * Whether this term is an empty list
+	 *
+	 * @return true if this term is an empty list
+	 */
+	public boolean isEmpty()
+	{
+		return this.empty;
+	}
+
+	/**
+	 * Size
+	 *
+	 * @return number of top-level elements if this is a list, 0 otherwise
+	 */
+	public int size()
+	{
+		return this.scan == null ? 0 : this.scan.count - this.offset;
+	}
+
+	/**
+	 * Get element
+	 *
+	 * @param i element index (0 is the predicate position)
+	 * @return string for the i-th element, null if there is no such element
+	 */
+	public String get(int i)
+	{
+		if (i < 0 || i >= size())
+			return null;
+		int k = this.offset + i;
+		String element = this.scan.elements[k];
+		if (element == null)
+		{
+			element = this.scan.source.substring(this.scan.bounds[3 * k], this.scan.bounds[3 * k + 1]);
+			this.scan.elements[k] = element;
+		}
+		return element;
+	}
+
+	/**
+	 * Get child
+	 *
+	 * @param i element index (0 is the predicate position)
+	 * @return term for the i-th element, null if there is no such element
+	 */
+	public Term getChild(int i)
+	{
+		String element = get(i);
+		if (element == null)
+			return null;
+		int k = this.offset + i;
+		Term child = this.scan.children[k];
+		if (child == null)
+		{
+			child = parse(element);
+			this.scan.children[k] = child;
+		}
+		return child;
+	}
+
+	/**
+	 * Rest
+	 *
+	 * @return the rest (cdr) of this list, the list itself if it is empty, null if there is none
+	 */
+	public Term rest()
+	{
+		if (this.kind != Kind.LIST)
+			return null;
+		if (this.empty)
+			return this;
+		if (size() == 0)
+			return null;
+		Term result = this.rest;
+		if (result == null)
+		{
+			int k = this.offset;
+			int from = this.scan.bounds[3 * k + 2];
+			String restText = from < this.scan.limit ? "(" + this.scan.source.substring(from, this.scan.limit).trim() + ")" : "()";
+			result = new Term(restText, Kind.LIST, this.scan, k + 1, k + 1 == this.scan.count && restText.length() == 2);
+			this.rest = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Rest, if already computed
+	 *
+	 * @return cached rest (cdr) of this list, null if it has not been computed
+	 */
+	Term cachedRest()
+	{
+		return this.rest;
+	}
+
+	public String toString()
+	{
+		return this.text;
+	}
+
+	// P A R S E
+
+	/**
+	 * Kind of a non-list string
+	 *
+	 * @param s string
+	 * @return kind
+	 */
+	private static Kind kindOf(String s)
+	{
+		String str = s.trim();
+		if (str.isEmpty())
+			return Kind.ATOM;
+		switch (str.charAt(0))
+		{
+			case '?':
+				return Kind.VARIABLE;
+			case '@':
+				return Kind.ROW_VARIABLE;
+			case '"':
+			case '\'':
+				return Kind.STRING;
+			default:
+				return Kind.ATOM;
+		}
+	}
+
+	/**
+	 * Scan the top-level elements of a list.  The first element is taken from the
+	 * untrimmed inside of the list, the following ones from the trimmed rest, as
+	 * successive calls of car() on successive cdr() strings would.
+	 *
+	 * @param s list string
+	 * @return element offsets
+	 */
+	private static Scan scan(String s)
+	{
+		int lo = 0;
+		int hi = s.length();
+		while (lo < hi && s.charAt(lo) <= ' ')
+			lo++;
+		while (hi > lo && s.charAt(hi - 1) <= ' ')
+			hi--;
+		int end = hi - 1; // closing parenthesis
+		int limit = end;
+		while (limit > lo + 1 && s.charAt(limit - 1) <= ' ')
+			limit--;
+
+		int[] bounds = new int[24];
+		int count = 0;
+		int from = lo + 1;
+		int to = end;
+		while (from < to)
+		{
+			int start = -1;
+			int stop = to;
+			int next = to + 1;
+			int level = 0;
+			char prev = '0';
+			boolean insideQuote = false;
+			char quoteCharInForce = '0';
+			for (int i = from; i < to; i++)
+			{
+				char ch = s.charAt(i);
+				if (!insideQuote)
+				{
+					if (ch == '(')
+					{
+						if (start < 0)
+							start = i;
+						level++;
+					}
+					else if (ch == ')')
+					{
+						if (start < 0)
+							start = i;
+						level--;
+						if (level <= 0)
+						{
+							stop = i + 1;
+							next = i + 1;
+							break;
+						}
+					}
+					else if (Character.isWhitespace(ch) && (level <= 0))
+					{
+						if (start >= 0)
+						{
+							stop = i;
+							next = i + 1;
+							break;
+						}
+					}
+					else if ((ch == '"' || ch == '\'') && (prev != '\\'))
+					{
+						if (start < 0)
+							start = i;
+						insideQuote = true;
+						quoteCharInForce = ch;
+					}
+					else if (start < 0)
+						start = i;
+				}
+				else if ((ch == quoteCharInForce) && (prev != '\\'))
+				{
+					insideQuote = false;
+					quoteCharInForce = '0';
+					if (level <= 0)
+					{
+						stop = i + 1;
+						next = i + 1;
+						break;
+					}
+				}
+				prev = ch;
+			}
+			if (start < 0)
+				break;
+
+			if (3 * count + 3 > bounds.length)
+				bounds = java.util.Arrays.copyOf(bounds, 2 * bounds.length);
+			bounds[3 * count] = start;
+			bounds[3 * count + 1] = stop;
+			bounds[3 * count + 2] = next;
+			count++;
+
+			// the rest is trimmed
+			from = next;
+			to = limit;
+			while (from < to && s.charAt(from) <= ' ')
+				from++;
+		}
+		return new Scan(s, count, bounds, limit);
+	}
+}
@@ -0,0 +1,177 @@
+package com.articulate.sigma;
+
+import java.util.Arrays;
+
+/**
+ * Transitive closure of a relation cache.
+ * The graph of the ground entries (key ID to value ID) is condensed into its strongly connected
+ * components, which Tarjan's algorithm yields successors first. Each component is then closed
+ * once, from the already closed rows of its successors, so that every row is written in a single
+ * pass instead of being re-merged until a fixpoint is reached. The inverse cache is filled in the
+ * same pass.
+ */
+final class TransitiveClosure
+{
+	private static final int UNVISITED = -1;
+
+	private TransitiveClosure()
+	{
+	}
+
+	/**
+	 * Close a relation cache and its inverse. Entries are added in a fixed order (components
+	 * in the order they are completed, values in row order) and adding stops as soon as the limit
+	 * is reached, so that the same caches are always truncated the same way.
+	 *
+	 * @param up        cache to close, looking from the keys toward the values (keyArg 1, valueArg 2)
+	 * @param down      inverse cache, looking from the values toward the keys (keyArg 2, valueArg 1)
+	 * @param nodeCount upper bound on the IDs in the caches
+	 * @param limit     maximum number of entries to add, over both caches
+	 * @return number of entries added, over both caches
+	 */
+	static long close(KB.RelationCache up, KB.RelationCache down, int nodeCount, long limit)
+	{
+		// ground successors, snapshot before rows are written
+		int[][] successors = new int[nodeCount][];
+		for (int key : up.keyIds())
+			successors[key] = up.getRow(key).toArray();
+
+		int[] index = new int[nodeCount];
+		int[] lowLink = new int[nodeCount];
+		int[] component = new int[nodeCount];
+		boolean[] onStack = new boolean[nodeCount];
+		Arrays.fill(index, UNVISITED);
+		Arrays.fill(component, UNVISITED);
+
+		int[] stack = new int[nodeCount];
+		int stackSize = 0;
+		int[] callStack = new int[nodeCount];
+		int[] callNext = new int[nodeCount];
+		int nextIndex = 0;
+		int componentCount = 0;
+		long count = 0L;
+
+		for (int root : up.keyIds())
+		{
+			if (index[root] != UNVISITED)
+				continue;
+
+			// iterative depth-first search
+			int depth = 0;
+			callStack[0] = root;
+			callNext[0] = 0;
+			index[root] = lowLink[root] = nextIndex++;
+			stack[stackSize++] = root;
+			onStack[root] = true;
+			while (depth >= 0)
+			{
+				int node = callStack[depth];
+				int[] succ = successors[node];
+				if (succ != null && callNext[depth] < succ.length)
+				{
+					int next = succ[callNext[depth]++];
+					if (index[next] == UNVISITED)
+					{
+						index[next] = lowLink[next] = nextIndex++;
+						stack[stackSize++] = next;
+						onStack[next] = true;
+						depth++;
+						callStack[depth] = next;
+						callNext[depth] = 0;
+					}
+					else if (onStack[next])
+						lowLink[node] = Math.min(lowLink[node], index[next]);
+					continue;
+				}
+
+				// node done
+				depth--;
+				if (depth >= 0)
+				{
+					int parent = callStack[depth];
+					lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+				}
+				if (lowLink[node] != index[node])
+					continue;
+
+				// node is the root of a component, whose members are on top of the stack
+				int start = stackSize;
+				do
+				{
+					start--;
+					onStack[stack[start]] = false;
+					component[stack[start]] = componentCount;
+				}
+				while (stack[start] != node);
+				int[] members = Arrays.copyOfRange(stack, start, stackSize);
+				stackSize = start;
+
+				if (count < limit)
+					count += closeComponent(up, down, members, componentCount, component, successors, limit - count);
+				componentCount++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Close the rows of the members of a component, whose successor components are all closed.
+	 *
+	 * @param up         cache to close
+	 * @param down       inverse cache
+	 * @param members    member IDs
+	 * @param c          component number
+	 * @param component  component number by ID
+	 * @param successors ground successors by ID
+	 * @param limit      maximum number of entries to add, over both caches
+	 * @return number of entries added, over both caches
+	 */
+	private static long closeComponent(KB.RelationCache up, KB.RelationCache down, int[] members, int c, int[] component, int[][] successors, long limit)
+	{
+		// values reachable from the component
+		IntBitmap reach = new IntBitmap();
+		boolean cyclic = members.length > 1;
+		for (int member : members)
+		{
+			int[] succ = successors[member];
+			if (succ == null)
+				continue;
+			for (int s : succ)
+			{
+				if (component[s] == c)
+				{
+					cyclic = true;
+					continue;
+				}
+				reach.add(s);
+				IntBitmap row = up.getRow(s);
+				if (row != null)
+					reach.addAll(row);
+			}
+		}
+		if (cyclic)
+		{
+			for (int member : members)
+				reach.add(member);
+		}
+		if (reach.isEmpty())
+			return 0L;
+
+		long count = 0L;
+		int[] values = reach.toArray();
+		for (int member : members)
+		{
+			IntBitmap row = up.getOrCreateRow(member);
+			for (int value : values)
+			{
+				if (count >= limit)
+					return count;
+				if (row.add(value))
+					count++;
+				if (down.add(value, member))
+					count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,273 @@
+package com.articulate.sigma;
+
+import java.util.*;
+
+/**
+ * Unifier.
+ * Unifies term trees, recording bindings as a triangular substitution : a variable is bound to the term it was unified
+ * with, which may itself contain bound variables, and bindings are followed when terms are compared or substituted.
+ * Variables are numbered on first sight and their bindings kept in arrays indexed by number. Each binding is pushed on a
+ * trail, so that a caller that backtracks undoes the bindings made since a mark. The occurs check walks the
+ * term, following bindings. Variables of the two terms are taken to share scope : a variable named alike in both is the
+ * same variable. Row variables are unified as ordinary variables.
+ */
+public final class Unifier
+{
+	/**
+	 * Variable numbers by name
+	 */
+	private final Map<String, Integer> ids = new HashMap<>();
+
+	/**
+	 * Variable names by number
+	 */
+	private String[] names = new String[16];
+
+	/**
+	 * Bound values by variable number, null if unbound
+	 */
+	private Term[] values = new Term[16];
+
+	/**
+	 * Numbers of the variables bound, in binding order
+	 */
+	private int[] trail = new int[16];
+
+	private int trailSize = 0;
+
+	// B A C K T R A C K I N G
+
+	/**
+	 * Mark
+	 *
+	 * @return the current trail position, to undo the bindings made after it
+	 */
+	public int mark()
+	{
+		return this.trailSize;
+	}
+
+	/**
+	 * Undo the bindings made since mark
+	 *
+	 * @param mark trail position returned by mark()
+	 */
+	public void undo(int mark)
+	{
+		while (this.trailSize > mark)
+			this.values[this.trail[--this.trailSize]] = null;
+	}
+
+	// U N I F I C A T I O N
+
+	/**
+	 * Unify two terms, extending the current bindings
+	 *
+	 * @param t1 term
+	 * @param t2 term
+	 * @return whether the terms unify; if not, the bindings are left as they were
+	 */
+	public boolean unify(Term t1, Term t2)
+	{
+		int mark = mark();
+		if (unifyInternal(t1, t2))
+			return true;
+		undo(mark);
+		return false;
+	}
+
+	private boolean unifyInternal(Term t1, Term t2)
+	{
+		t1 = deref(t1);
+		t2 = deref(t2);
+		if (t1 == t2 || t1.getText().equals(t2.getText()))
+			return true;
+		if (isVariable(t1))
+			return bind(id(t1), t2);
+		if (isVariable(t2))
+			return bind(id(t2), t1);
+		if (!t1.isList() || !t2.isList())
+			return false;
+		int n = t1.size();
+		if (n != t2.size())
+			return false;
+		for (int i = 0; i < n; i++)
+			if (!unifyInternal(t1.getChild(i), t2.getChild(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Bind variable, unless it occurs in the value
+	 *
+	 * @param id    variable number
+	 * @param value value, dereferenced
+	 * @return whether the variable was bound
+	 */
+	private boolean bind(int id, Term value)
+	{
+		if (occurs(id, value))
+			return false;
+		this.values[id] = value;
+		if (this.trailSize == this.trail.length)
+			this.trail = Arrays.copyOf(this.trail, 2 * this.trailSize);
+		this.trail[this.trailSize++] = id;
+		return true;
+	}
+
+	/**
+	 * Occurs check
+	 *
+	 * @param id variable number
+	 * @param t  term
+	 * @return whether the variable occurs in the term, bindings followed
+	 */
+	private boolean occurs(int id, Term t)
+	{
+		t = deref(t);
+		if (isVariable(t))
+			return id(t) == id;
+		if (!t.isList())
+			return false;
+		for (int i = 0; i < t.size(); i++)
+			if (occurs(id, t.getChild(i)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Follow bindings
+	 *
+	 * @param t term
+	 * @return t if it is not a bound variable, else the term the chain of bindings from t ends with
+	 */
+	private Term deref(Term t)
+	{
+		while (isVariable(t))
+		{
+			Term value = this.values[id(t)];
+			if (value == null)
+				break;
+			t = value;
+		}
+		return t;
+	}
+
+	private static boolean isVariable(Term t)
+	{
+		return t.getKind() == Term.Kind.VARIABLE || t.getKind() == Term.Kind.ROW_VARIABLE;
+	}
+
+	/**
+	 * Variable number, assigned on first sight
+	 *
+	 * @param var variable term
+	 * @return number
+	 */
+	private int id(Term var)
+	{
+		String name = var.getText().trim();
+		Integer id = this.ids.get(name);
+		if (id != null)
+			return id;
+		int n = this.ids.size();
+		if (n == this.names.length)
+		{
+			this.names = Arrays.copyOf(this.names, 2 * n);
+			this.values = Arrays.copyOf(this.values, 2 * n);
+		}
+		this.names[n] = name;
+		this.ids.put(name, n);
+		return n;
+	}
+
+	// B I N D I N G S
+
+	/**
+	 * Get bindings
+	 *
+	 * @return map of bound variables to the terms they are bound to (triangular : values may contain bound variables)
+	 */
+	public SortedMap<String, String> getBindings()
+	{
+		SortedMap<String, String> result = new TreeMap<>();
+		for (int i = 0; i < this.trailSize; i++)
+		{
+			int id = this.trail[i];
+			result.put(this.names[id], this.values[id].getText());
+		}
+		return result;
+	}
+
+	/**
+	 * Substitute
+	 *
+	 * @param t term
+	 * @return text of the term with the bindings applied, in one pass
+	 */
+	public String substitute(Term t)
+	{
+		StringBuilder sb = new StringBuilder();
+		substitute(t, sb);
+		return sb.toString();
+	}
+
+	private void substitute(Term t, StringBuilder sb)
+	{
+		t = deref(t);
+		if (!t.isList())
+		{
+			sb.append(t.getText());
+			return;
+		}
+		sb.append(Formula.LP);
+		for (int i = 0; i < t.size(); i++)
+		{
+			if (i > 0)
+				sb.append(Formula.SPACE);
+			substitute(t.getChild(i), sb);
+		}
+		sb.append(Formula.RP);
+	}
+
+	/**
+	 * Substitute values for variables, in one pass. Values are substituted into in turn, so that the map may be
+	 * triangular; a variable met again while its own value is being substituted into is left as is. As with
+	 * Formula.substituteVariables(), any atom that is a key of the map is replaced.
+	 *
+	 * @param t term
+	 * @param m map of variables to values
+	 * @return text of the term with the values substituted
+	 */
+	public static String substitute(Term t, Map<String, String> m)
+	{
+		StringBuilder sb = new StringBuilder();
+		substitute(t, m, new HashSet<>(), sb);
+		return sb.toString();
+	}
+
+	private static void substitute(Term t, Map<String, String> m, Set<String> expanding, StringBuilder sb)
+	{
+		if (!t.isList())
+		{
+			String text = t.getText();
+			String value = m.get(text);
+			if (value == null || !expanding.add(text))
+			{
+				sb.append(text);
+				return;
+			}
+			substitute(Term.parse(value), m, expanding, sb);
+			expanding.remove(text);
+			return;
+		}
+		sb.append(Formula.LP);
+		for (int i = 0; i < t.size(); i++)
+		{
+			if (i > 0)
+				sb.append(Formula.SPACE);
+			substitute(t.getChild(i), m, expanding, sb);
+		}
+		sb.append(Formula.RP);
+	}
+}
@@ -15,10 +15,21 @@ package com.articulate.sigma.kif;
 import com.articulate.sigma.Formula;
 import com.articulate.sigma.KBManager;
 import com.articulate.sigma.StringUtil;
+import com.articulate.sigma.SymbolTable;
 
 import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 
 /**
@@ -56,6 +67,7 @@ public class KIF implements Serializable
 
 	/**
 	 * A Map of Lists of Formulas.  @see KIF.createKey for key format.
+	 * Not filled if formulas are passed to a sink.
 	 */
 	public final Map<String, List<Formula>> formulas = new HashMap<>();
 
@@ -64,6 +76,34 @@ public class KIF implements Serializable
 	 */
 	public final Set<String> formulaSet = new LinkedHashSet<>();
 
+	/**
+	 * Files up to this size are memory-mapped and decoded in one go, larger ones are streamed. The decoded chars take
+	 * twice the file size, so this bounds the memory a read holds on top of what it parses to; it is well above the
+	 * size of the SUMO files, which are thus read whole and, above the parallel threshold, parsed in parallel parts
+	 */
+	private static final long MAP_LIMIT = 1L << 25;
+
+	/**
+	 * Size of the buffer streamed input is read through
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Default size of the input from which it is parsed in parallel parts
+	 */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 22;
+
+	/**
+	 * Least size of a part of the input parsed in parallel, unless the threshold is lower
+	 */
+	private static final int PART_SIZE = 1 << 18;
+
+	/**
+	 * Size of the input, in chars, from which it is parsed in parallel parts, by default none if there is a single
+	 * thread to parse them
+	 */
+	private int parallelThreshold = ForkJoinPool.getCommonPoolParallelism() > 1 ? DEFAULT_PARALLEL_THRESHOLD : Integer.MAX_VALUE;
+
 	/**
 	 * File name
 	 */
@@ -89,11 +129,47 @@ public class KIF implements Serializable
 	 */
 	public final SortedSet<String> warningSet = new TreeSet<>();
 
+	/**
+	 * Symbol table terms are canonicalized through (null if none)
+	 */
+	private final SymbolTable symbols;
+
+	/**
+	 * Receiver of the formulas as they are parsed (null if none)
+	 */
+	private transient FormulaSink sink;
+
+	/**
+	 * Receiver of the formulas of a KIF input as they are parsed, instead of the formulas map
+	 */
+	public interface FormulaSink
+	{
+		/**
+		 * Accept a formula
+		 *
+		 * @param f    formula, with its text, source file and lines
+		 * @param keys keys the formula would have been filed under in the formulas map (@see KIF.createKey), the
+		 *             formula text and the formula ID
+		 */
+		void accept(Formula f, Set<String> keys);
+	}
+
 	/**
 	 * Constructor
 	 */
 	public KIF()
 	{
+		this(null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param symbols symbol table terms are canonicalized through, so that they share their string with the KB (may be null)
+	 */
+	public KIF(SymbolTable symbols)
+	{
+		this.symbols = symbols;
 	}
 
 	/**
@@ -106,6 +182,30 @@ public class KIF implements Serializable
 		return this.filename;
 	}
 
+	/**
+	 * Set sink. Formulas are then passed to the sink, in the order they appear in the input, and the formulas map is
+	 * not filled. Duplicates are reported in the warning set and not passed. The sink is called from the thread that
+	 * parses, even when parts of the input are parsed in parallel. An exception thrown by the sink stops parsing and
+	 * is reported in the warning set, as parse errors are.
+	 *
+	 * @param sink receiver of the formulas, null to fill the formulas map
+	 */
+	public void setSink(FormulaSink sink)
+	{
+		this.sink = sink;
+	}
+
+	/**
+	 * Set parallel threshold
+	 *
+	 * @param parallelThreshold size of the input, in chars, from which files are parsed in parallel parts
+	 *                          (Integer.MAX_VALUE to parse in one go, 0 to always split)
+	 */
+	public void setParallelThreshold(int parallelThreshold)
+	{
+		this.parallelThreshold = parallelThreshold;
+	}
+
 	/**
 	 * @return int Returns an integer value denoting the current parse
 	 * mode.
@@ -151,10 +251,6 @@ public class KIF implements Serializable
 	 */
 	@SuppressWarnings("UnusedReturnValue") protected Set<String> parse(Reader reader)
 	{
-		logger.entering("KIF", "parse");
-		int mode = this.getParseMode();
-		logger.info("Parsing " + this.getFilename() + " with parseMode = " + ((mode == RELAXED_PARSE_MODE) ? "RELAXED_PARSE_MODE" : "NORMAL_PARSE_MODE"));
-
 		if (reader == null)
 		{
 			String errStr = "No Input Reader Specified";
@@ -164,29 +260,110 @@ public class KIF implements Serializable
 			logger.warning("Exiting KIF.parse without doing anything.");
 			return warningSet;
 		}
+		return parse(new KIFLexer(reader, BUFFER_SIZE));
+	}
+
+	/**
+	 * Parse the tokens of a lexer, as parse(Reader) does.
+	 *
+	 * @param st lexer
+	 * @return a Set of warnings
+	 */
+	private Set<String> parse(KIFLexer st)
+	{
+		logger.entering("KIF", "parse");
+		int mode = this.getParseMode();
+		logger.info("Parsing " + this.getFilename() + " with parseMode = " + ((mode == RELAXED_PARSE_MODE) ? "RELAXED_PARSE_MODE" : "NORMAL_PARSE_MODE"));
+		count++;
+
+		int duplicateCount = merge(parsePart(st, symbols, totalLinesForComments, null, true), 0);
+		return endParse(duplicateCount);
+	}
+
+	/**
+	 * Parse input held in a buffer, as parse(Reader) does. Input of at least parallelThreshold chars is split at the
+	 * ends of lines where no formula is open and the parts are parsed in parallel, then merged in input order, their
+	 * line numbers shifted by the lines of the parts before them. A part that ends in some state a formula depends on
+	 * (an error, an open formula, a left-over antecedent flag, a formula error that quotes its line number) is parsed
+	 * again, with the rest of the input, in one go, so that the outcome is that of parsing the whole input in one go.
+	 *
+	 * @param input  input
+	 * @param length length of the input in the buffer
+	 * @return a Set of warnings
+	 */
+	private Set<String> parse(char[] input, int length)
+	{
+		logger.entering("KIF", "parse");
+		int mode = this.getParseMode();
+		logger.info("Parsing " + this.getFilename() + " with parseMode = " + ((mode == RELAXED_PARSE_MODE) ? "RELAXED_PARSE_MODE" : "NORMAL_PARSE_MODE"));
+		count++;
+
+		int partSize = Math.max(Math.min(PART_SIZE, parallelThreshold), length / (4 * ForkJoinPool.getCommonPoolParallelism()) + 1);
+		int[] bounds = length < parallelThreshold ? new int[] { 0, length } : split(input, length, partSize);
+		if (bounds.length == 2)
+		{
+			int duplicateCount = merge(parsePart(new KIFLexer(input, 0, length), symbols, totalLinesForComments, null, true), 0);
+			return endParse(duplicateCount);
+		}
+
+		Part[] parts = new Part[bounds.length - 1];
+		ForkJoinPool.commonPool().invoke(new ParseTask(input, bounds, parts, 0, parts.length));
+		int duplicateCount = 0;
+		int lineOffset = totalLinesForComments;
+		Formula last = null;
+		for (int i = 0; i < parts.length; i++)
+		{
+			Part part = parts[i];
+			if (part.error != null || !part.clean)
+			{
+				duplicateCount += merge(parsePart(new KIFLexer(input, bounds[i], length), symbols, lineOffset, last, true), 0);
+				break;
+			}
+			duplicateCount += merge(part, lineOffset);
+			if (part.error != null)
+				break;
+			lineOffset += part.lines;
+			if (!part.formulas.isEmpty())
+				last = part.formulas.get(part.formulas.size() - 1);
+		}
+		logger.info("Parsed " + this.getFilename() + " in " + parts.length + " parts");
+		return endParse(duplicateCount);
+	}
+
+	/**
+	 * Parse the formulas of a part of the input
+	 *
+	 * @param st         lexer over the part
+	 * @param table      symbol table terms are canonicalized through (may be null)
+	 * @param lineOffset number to add to the line numbers of the lexer
+	 * @param last       last formula parsed before the part, that errors before the first formula refer to (may be null)
+	 * @param live       whether formulas are added as they are parsed, else kept in the part until it is merged
+	 * @return parsed part
+	 */
+	private Part parsePart(KIFLexer st, SymbolTable table, int lineOffset, Formula last, boolean live)
+	{
+		Part part = new Part(live);
+		int mode = this.getParseMode();
 		StringBuilder expression = new StringBuilder();
 		String errStart = "Parsing error in " + filename;
-		int duplicateCount = 0;
+		int linesForComments = lineOffset;
+		boolean inAntecedent = false;
 		try
 		{
-			count++;
-			StreamTokenizer_s st = new StreamTokenizer_s(reader);
-			KIF.setupStreamTokenizer(st);
 			int parenLevel = 0;
 			boolean inRule = false;
 			int argumentNum = -1;
-			boolean inAntecedent = false;
 			boolean inConsequent = false;
-			Formula f = new Formula();
+			Formula f = last == null ? new Formula() : last;
 			Set<String> keySet = new HashSet<>();
 			boolean isEOL = false;
 			do
 			{
 				int lastVal = st.ttype;
-				st.nextToken();
+				st.next();
 				// Check the situation when multiple KIF statements read as one
 				// This relies on extra blank line to separate KIF statements
-				if (st.ttype == StreamTokenizer.TT_EOL)
+				if (st.ttype == KIFLexer.TT_EOL)
 				{
 					if (isEOL)
 					{
@@ -196,7 +373,7 @@ public class KIF implements Serializable
 						{
 							String errStr = errStart + ": possible missed closing parenthesis near line " + f.startLine;
 							logger.warning(errStr);
-							logger.fine("st.sval=" + st.sval);
+							logger.fine("st.sval=" + st.token());
 							int eLen = expression.length();
 							if (eLen > 300)
 								logger.fine("expression == ... " + expression.substring(eLen - 300));
@@ -221,7 +398,7 @@ public class KIF implements Serializable
 					if (parenLevel == 0)
 					{
 						f = new Formula();
-						f.startLine = st.lineno() + totalLinesForComments;
+						f.startLine = st.lineno() + linesForComments;
 						f.sourceFile = filename;
 					}
 					parenLevel++;
@@ -236,7 +413,7 @@ public class KIF implements Serializable
 						}
 					}
 					if ((parenLevel != 0) && (lastVal != 40) && (expression.length() > 0))
-						expression.append(" ");   // add back whitespace that ST removes
+						appendSpace(expression);   // add back whitespace that ST removes
 					expression.append("(");
 				}
 				else if (st.ttype == 41)
@@ -247,16 +424,8 @@ public class KIF implements Serializable
 					if (parenLevel == 0)
 					{
 						// The end of the statement...
-						String fStr = StringUtil.normalizeSpaceChars(expression.toString());
-						f.text = StringUtil.replaceDateTime(fStr).intern();
-						if (formulaSet.contains(f.text))
-						{
-							String warning = ("WARNING: Duplicate formula at line " + f.startLine + " of " + f.sourceFile + ": " + expression);
-							//lineStart + totalLinesForComments + expression;
-							warningSet.add(warning);
-							System.err.println(warning);
-							duplicateCount++;
-						}
+						// spaces are normalized as the expression is built
+						f.text = StringUtil.replaceDateTime(expression.toString()).intern();
 						// Check argument validity ONLY if we are in NORMAL_PARSE_MODE.
 						if (mode == NORMAL_PARSE_MODE)
 						{
@@ -265,9 +434,10 @@ public class KIF implements Serializable
 								validArgs = f.badQuantification();
 							if (!validArgs.isEmpty())
 							{
+								part.invalid = f;
 								String errStr = errStart + ": Invalid number of arguments near line " + f.startLine;
 								logger.warning(errStr);
-								logger.fine("st.sval = " + st.sval);
+								logger.fine("st.sval = " + st.token());
 								int eLen = expression.length();
 								if (eLen > 300)
 									logger.fine("expression == ... " + expression.substring(eLen - 300));
@@ -279,39 +449,30 @@ public class KIF implements Serializable
 						// Make the formula itself a key
 						keySet.add(f.text);
 						keySet.add(f.createID());
-						f.endLine = st.lineno() + totalLinesForComments;
-						for (String fKey : keySet)
+						f.endLine = st.lineno() + linesForComments;
+						if (part.live)
 						{
-							// Add the expression but ...
-							if (formulas.containsKey(fKey))
-							{
-								if (!formulaSet.contains(f.text))
-								{
-									// don't add keys if formula is already present
-									List<Formula> list = formulas.get(fKey);
-									if (!list.contains(f))
-										list.add(f);
-								}
-							}
-							else
-							{
-								List<Formula> list = new ArrayList<>();
-								list.add(f);
-								formulas.put(fKey, list);
-							}
+							if (add(f, keySet))
+								part.duplicateCount++;
 						}
-						formulaSet.add(f.text);
+						else
+						{
+							part.formulas.add(f);
+							part.keys.add(keySet);
+						}
+						if (!f.errors.isEmpty())
+							part.clean = false;
 						inConsequent = false;
 						inRule = false;
 						argumentNum = -1;
 						expression = new StringBuilder();
-						keySet.clear();
+						keySet = new HashSet<>();
 					}
 					else if (parenLevel < 0)
 					{
 						String errStr = errStart + ": Extra closing parenthesis found near line " + f.startLine;
 						logger.warning(errStr);
-						logger.fine("st.sval = " + st.sval);
+						logger.fine("st.sval = " + st.token());
 						int eLen = expression.length();
 						if (eLen > 300)
 							logger.fine("expression == ... " + expression.substring(eLen - 300));
@@ -320,49 +481,44 @@ public class KIF implements Serializable
 						throw new ParseException(errStr, f.startLine);
 					}
 				}
-				else if (st.ttype == 34)
+				else if (st.ttype == KIFLexer.TT_STRING)
 				{
 					// " - It's a string
-					st.sval = StringUtil.escapeQuoteChars(st.sval);
 					if (lastVal != 40) // Add back whitespace that ST removes
-						expression.append(" ");
+						appendSpace(expression);
 					expression.append("\"");
-					String com = st.sval;
-					totalLinesForComments += countChar(com, (char) 0X0A);
-					expression.append(com);
+					linesForComments += countChar(st.string, st.stringLength, (char) 0X0A);
+					appendString(expression, st.string, st.stringLength);
 					expression.append("\"");
 					if (parenLevel < 2)   // Don't care if parenLevel > 1
 						argumentNum = argumentNum + 1;
 				}
-				else if ((st.ttype == StreamTokenizer.TT_NUMBER) ||           // number
-						(st.sval != null && (Character.isDigit(st.sval.charAt(0)))))
+				else if (st.ttype == KIFLexer.TT_WORD && Character.isDigit(st.first()))
 				{
+					// number
 					if (lastVal != 40) // add back whitespace that ST removes
-						expression.append(" ");
-					if (st.nval == 0)
-						expression.append(st.sval);
-					else
-						expression.append(st.nval);
+						appendSpace(expression);
+					st.appendWord(expression);
 					if (parenLevel < 2) // Don't care if parenLevel > 1
 						argumentNum = argumentNum + 1; // RAP - added on 11/27/04
 				}
-				else if (st.ttype == StreamTokenizer.TT_WORD)
+				else if (st.ttype == KIFLexer.TT_WORD)
 				{
 					// A token
-					if (("=>".equals(st.sval) || "<=>".equals(st.sval)) && parenLevel == 1)
+					if ((st.is("=>") || st.is("<=>")) && parenLevel == 1)
 						// RAP - added parenLevel clause on 11/27/04 to
 						// Prevent implications embedded in statements from being rules
 						inRule = true;
 					if (parenLevel < 2) // Don't care if parenLevel > 1
 						argumentNum = argumentNum + 1;
 					if (lastVal != 40) // Add back whitespace that ST removes
-						expression.append(" ");
-					expression.append(st.sval);
+						appendSpace(expression);
+					st.appendWord(expression);
 					if (expression.length() > 64000)
 					{
 						String errStr = errStart + ": Sentence over 64000 characters new line " + f.startLine;
 						logger.warning(errStr);
-						logger.fine("st.sval = " + st.sval);
+						logger.fine("st.sval = " + st.token());
 						int eLen = expression.length();
 						if (eLen > 300)
 							logger.fine("expression == ... " + expression.substring(eLen - 300));
@@ -371,11 +527,12 @@ public class KIF implements Serializable
 						throw new ParseException(errStr, f.startLine);
 					}
 					// Build the terms list and create special keys ONLY if we are in NORMAL_PARSE_MODE.
-					if ((mode == NORMAL_PARSE_MODE) && (st.sval.charAt(0) != '?') && (st.sval.charAt(0) != '@'))
+					if ((mode == NORMAL_PARSE_MODE) && (st.first() != '?') && (st.first() != '@'))
 					{
 						// Variables are not terms
-						terms.add(st.sval); // Collect all terms
-						String key = createKey(st.sval, inAntecedent, inConsequent, argumentNum, parenLevel);
+						String term = table == null ? new String(st.buffer(), st.start, st.length) : table.canonical(st.buffer(), st.start, st.length);
+						part.terms.add(term); // Collect all terms
+						String key = createKey(term, inAntecedent, inConsequent, argumentNum, parenLevel);
 						keySet.add(key); // Collect all the keys until the end of the statement is reached.
 					}
 				}
@@ -384,11 +541,11 @@ public class KIF implements Serializable
 					// AB: 5/2007 - allow '`' in relaxed parse mode.
 					expression.append(" `");
 				}
-				else if (st.ttype != StreamTokenizer.TT_EOF)
+				else if (st.ttype != KIFLexer.TT_EOF)
 				{
 					String errStr = errStart + ": Illegal character near line " + f.startLine;
 					logger.warning(errStr);
-					logger.fine("st.sval = " + st.sval);
+					logger.fine("st.sval = " + st.token());
 					int eLen = expression.length();
 					if (eLen > 300)
 						logger.fine("expression == ... " + expression.substring(eLen - 300));
@@ -397,13 +554,13 @@ public class KIF implements Serializable
 					throw new ParseException(errStr, f.startLine);
 				}
 			}
-			while (st.ttype != StreamTokenizer.TT_EOF);
+			while (st.ttype != KIFLexer.TT_EOF);
 
 			if (!keySet.isEmpty() || expression.length() > 0)
 			{
 				String errStr = errStart + ": Missed closing parenthesis near line " + f.startLine;
 				logger.warning(errStr);
-				logger.fine("st.sval == " + st.sval);
+				logger.fine("st.sval == " + st.token());
 				int eLen = expression.length();
 				if (eLen > 300)
 					logger.fine("expression == ... " + expression.substring(eLen - 300));
@@ -414,11 +571,116 @@ public class KIF implements Serializable
 		}
 		catch (Exception ex)
 		{
+			part.error = ex;
+		}
+		part.lines = st.lineno() - 1 + linesForComments - lineOffset;
+		part.stringLines = linesForComments - lineOffset;
+		if (inAntecedent)
+			part.clean = false;
+		return part;
+	}
+
+	/**
+	 * Add the formulas and terms of a parsed part, and report its error if any
+	 *
+	 * @param part       parsed part
+	 * @param lineOffset number to add to the line numbers of the formulas
+	 * @return number of duplicate formulas
+	 */
+	private int merge(Part part, int lineOffset)
+	{
+		int duplicateCount = part.duplicateCount;
+		for (int i = 0; i < part.formulas.size(); i++)
+		{
+			Formula f = part.formulas.get(i);
+			f.startLine += lineOffset;
+			f.endLine += lineOffset;
+			try
+			{
+				if (add(f, part.keys.get(i)))
+					duplicateCount++;
+			}
+			catch (RuntimeException ex)
+			{
+				// thrown by the sink
+				part.error = ex;
+				break;
+			}
+		}
+		for (String term : part.terms)
+			terms.add(symbols == null ? term : symbols.canonical(term)); // Collect all terms
+		totalLinesForComments += part.stringLines;
+		if (part.invalid != null && formulaSet.contains(part.invalid.text))
+		{
+			duplicateCount++;
+			warnDuplicate(part.invalid);
+		}
+		if (part.error != null)
+		{
+			Exception ex = part.error;
 			warningSet.add("Error in KIF.parse(): " + ex.getMessage());
 			logger.severe("Error in KIF.parse(): " + ex.getMessage());
 			logger.severe("Error: " + Arrays.toString(ex.getStackTrace()));
 			ex.printStackTrace();
 		}
+		return duplicateCount;
+	}
+
+	/**
+	 * Add a formula to the formulas map, or pass it to the sink
+	 *
+	 * @param f    formula
+	 * @param keys keys of the formula
+	 * @return whether the formula is a duplicate, which is not added
+	 */
+	private boolean add(Formula f, Set<String> keys)
+	{
+		boolean duplicate = formulaSet.contains(f.text);
+		if (duplicate)
+			warnDuplicate(f);
+		else if (sink != null)
+			sink.accept(f, keys);
+		if (sink == null)
+		{
+			for (String fKey : keys)
+			{
+				// Add the expression but ...
+				if (formulas.containsKey(fKey))
+				{
+					if (!duplicate)
+					{
+						// don't add keys if formula is already present
+						// f is new and its keys are a set, so that it is not in the list yet
+						formulas.get(fKey).add(f);
+					}
+				}
+				else
+				{
+					List<Formula> list = new ArrayList<>();
+					list.add(f);
+					formulas.put(fKey, list);
+				}
+			}
+		}
+		formulaSet.add(f.text);
+		return duplicate;
+	}
+
+	private void warnDuplicate(Formula f)
+	{
+		String warning = ("WARNING: Duplicate formula at line " + f.startLine + " of " + f.sourceFile + ": " + f.text);
+		warningSet.add(warning);
+		System.err.println(warning);
+	}
+
+	/**
+	 * Report warnings at the end of parsing
+	 *
+	 * @param duplicateCount number of duplicate formulas
+	 * @return a Set of warnings
+	 */
+	private Set<String> endParse(int duplicateCount)
+	{
 		if (duplicateCount > 0)
 		{
 			String warning = "WARNING in KIF.parse(Reader): " + duplicateCount + " duplicate statement" + (duplicateCount > 1 ? "s " : " ") + //
@@ -436,6 +698,150 @@ public class KIF implements Serializable
 		return warningSet;
 	}
 
+	/**
+	 * Split input into parts at ends of lines where no formula is open, strings and comments being skipped as the
+	 * lexer does.
+	 *
+	 * @param input  input
+	 * @param length length of the input in the buffer
+	 * @param size   least size of a part
+	 * @return offsets of the starts of the parts, followed by the length
+	 */
+	static int[] split(char[] input, int length, int size)
+	{
+		List<Integer> bounds = new ArrayList<>();
+		bounds.add(0);
+		int depth = 0;
+		int next = size;
+		for (int i = 0; i < length; i++)
+		{
+			switch (input[i])
+			{
+			case '"':
+				for (i++; i < length && input[i] != '"'; i++)
+					if (input[i] == '\\')
+						i++;
+				break;
+			case ';':
+				while (i + 1 < length && input[i + 1] != '\n' && input[i + 1] != '\r')
+					i++;
+				break;
+			case '(':
+				depth++;
+				break;
+			case ')':
+				depth--;
+				break;
+			case '\n':
+				if (depth == 0 && i + 1 >= next && i + 1 < length)
+				{
+					bounds.add(i + 1);
+					next = i + 1 + size;
+				}
+				break;
+			}
+		}
+		bounds.add(length);
+		int[] result = new int[bounds.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	/**
+	 * Formulas, keys and terms parsed from a part of the input, to be merged in input order
+	 */
+	private static class Part
+	{
+		/**
+		 * Whether formulas are added as they are parsed, instead of being kept here
+		 */
+		final boolean live;
+
+		final List<Formula> formulas = new ArrayList<>();
+
+		/**
+		 * Keys of each formula
+		 */
+		final List<Set<String>> keys = new ArrayList<>();
+
+		final Set<String> terms = new HashSet<>();
+
+		/**
+		 * Duplicate formulas met as formulas were added
+		 */
+		int duplicateCount;
+
+		/**
+		 * Formula found to have invalid arguments, null if none
+		 */
+		Formula invalid;
+
+		/**
+		 * Error parsing stopped at, null if none
+		 */
+		Exception error;
+
+		/**
+		 * Lines read, counting the ends of lines in strings
+		 */
+		int lines;
+
+		/**
+		 * Ends of lines in strings
+		 */
+		int stringLines;
+
+		/**
+		 * Whether the parse state at the end of the part is that at the start of a file, and no formula error quotes a
+		 * line number, so that the next part may be parsed on its own
+		 */
+		boolean clean = true;
+
+		Part(boolean live)
+		{
+			this.live = live;
+		}
+	}
+
+	/**
+	 * Parse a range of parts, splitting it in halves down to single parts
+	 */
+	private class ParseTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final char[] input;
+
+		private final int[] bounds;
+
+		private final Part[] parts;
+
+		private final int from;
+
+		private final int to;
+
+		ParseTask(char[] input, int[] bounds, Part[] parts, int from, int to)
+		{
+			this.input = input;
+			this.bounds = bounds;
+			this.parts = parts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override protected void compute()
+		{
+			if (to - from == 1)
+			{
+				parts[from] = parsePart(new KIFLexer(input, bounds[from], bounds[from + 1]), new SymbolTable(), 0, null, false);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ParseTask(input, bounds, parts, from, middle), new ParseTask(input, bounds, parts, middle, to));
+		}
+	}
+
 	/**
 	 * This routine creates a key that relates a token in a
 	 * logical statement to the entire statement.  It prepends
@@ -493,23 +899,71 @@ public class KIF implements Serializable
 	/**
 	 * Count the number of appearances of a certain character in a string.
 	 *
-	 * @param str - the string to be tested.
-	 * @param c   - the character to be counted.
+	 * @param str    - the chars of the string to be tested.
+	 * @param length - the length of the string.
+	 * @param c      - the character to be counted.
 	 */
-	private int countChar(String str, @SuppressWarnings("SameParameterValue") char c)
+	private int countChar(char[] str, int length, @SuppressWarnings("SameParameterValue") char c)
 	{
 		int len = 0;
-		char[] cArray = str.toCharArray();
-		for (char value : cArray)
+		for (int i = 0; i < length; i++)
 		{
-			if (value == c)
+			if (str[i] == c)
 				len++;
 		}
 		return len;
 	}
 
 	/**
-	 * Read a KIF file.
+	 * Append a space, unless it would follow an open parenthesis, as StringUtil.normalizeSpaceChars() does
+	 *
+	 * @param sb - the formula text being built.
+	 */
+	private static void appendSpace(StringBuilder sb)
+	{
+		int n = sb.length();
+		if (n == 0 || sb.charAt(n - 1) != '(')
+			sb.append(' ');
+	}
+
+	/**
+	 * Append the contents of a string as they appear in formula text : double quotes are escaped as
+	 * StringUtil.escapeQuoteChars() does, runs of whitespace are collapsed to one space and whitespace
+	 * after an open parenthesis is dropped, as StringUtil.normalizeSpaceChars() does.
+	 *
+	 * @param sb     - the formula text being built.
+	 * @param str    - the chars of the string.
+	 * @param length - the length of the string.
+	 */
+	private static void appendString(StringBuilder sb, char[] str, int length)
+	{
+		char prevCh = 'x';
+		boolean space = false;
+		for (int i = 0; i < length; i++)
+		{
+			char ch = str[i];
+			if (ch == ' ' || ch == '\t' || ch == '\n' || ch == 0x0B || ch == '\f' || ch == '\r')
+			{
+				space = true;
+				prevCh = ch;
+				continue;
+			}
+			if (space && sb.charAt(sb.length() - 1) != '(')
+				sb.append(' ');
+			space = false;
+			if ((ch == '"') && (prevCh != '\\'))
+				sb.append('\\');
+			sb.append(ch);
+			prevCh = ch;
+		}
+		if (space && sb.charAt(sb.length() - 1) != '(')
+			sb.append(' ');
+	}
+
+	/**
+	 * Read a KIF file, as UTF-8. Files up to MAP_LIMIT (32 MB) bytes are memory-mapped and decoded in one go, and
+	 * parsed in parallel parts if above the parallel threshold, larger ones are streamed through a buffer and parsed
+	 * sequentially in constant memory.
 	 *
 	 * @param fileName - the full pathname of the file.
 	 * @throws Exception exception
@@ -521,21 +975,61 @@ public class KIF implements Serializable
 		Exception exThr = null;
 		this.file = new File(fileName);
 		this.filename = file.getCanonicalPath();
-		try (FileReader fr = new FileReader(this.file))
+		try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ))
 		{
-			parse(fr);
+			long size = channel.size();
+			long start = System.nanoTime();
+			if (size <= MAP_LIMIT)
+			{
+				CharBuffer chars = map(channel, size);
+				parse(chars.array(), chars.position());
+			}
+			else
+				parse(new KIFLexer(new InputStreamReader(Channels.newInputStream(channel), utf8Decoder()), BUFFER_SIZE));
+			long time = Math.max(1, System.nanoTime() - start);
+			logger.info(String.format("Parsed %s : %d bytes in %d ms (%.1f MB/s)", this.filename, size, time / 1000000, size * 1000. / time));
 		}
 		catch (Exception ex)
 		{
 			exThr = ex;
 			String er = ex.getMessage();
 			logger.severe("ERROR in KIF.readFile(\"" + fileName + "\"):" + "  " + er);
-			KBManager.getMgr().setError(KBManager.getMgr().getError() + "\n<br/>" + er + " in file " + fileName + "\n<br/>");
+			KBManager mgr = KBManager.getMgr();
+			synchronized (mgr)
+			{
+				mgr.setError(mgr.getError() + "\n<br/>" + er + " in file " + fileName + "\n<br/>");
+			}
 		}
 		logger.exiting("KIF", "readFile");
 		if (exThr != null)
 			throw exThr;
 	}
-}
 
+	/**
+	 * Map a file and decode it
+	 *
+	 * @param channel file channel
+	 * @param size    file size, at most Integer.MAX_VALUE
+	 * @return decoded file, up to its position
+	 * @throws IOException io exception
+	 */
+	private static CharBuffer map(FileChannel channel, long size) throws IOException
+	{
+		MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		CharBuffer chars = CharBuffer.allocate((int) size); // UTF-8 decodes to at most one char per byte
+		CharsetDecoder decoder = utf8Decoder();
+		decoder.decode(bytes, chars, true);
+		decoder.flush(chars);
+		return chars;
+	}
 
+	/**
+	 * UTF-8 decoder that replaces malformed input, as readers do
+	 *
+	 * @return decoder
+	 */
+	private static CharsetDecoder utf8Decoder()
+	{
+		return StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+}
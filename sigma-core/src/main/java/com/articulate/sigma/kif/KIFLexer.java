@@ -0,0 +1,379 @@
+package com.articulate.sigma.kif;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * SUO-KIF lexer.
+ * Splits a char buffer into the tokens KIF.parse() reads, as StreamTokenizer_s set up by
+ * KIF.setupStreamTokenizer() does : words are runs of -.0-9:&lt;=&gt;?@A-Z_a-z and of chars above 255,
+ * strings are delimited by double quotes with backslash escapes, ';' starts a comment that runs
+ * to the end of the line, ends of lines are tokens and other chars below 256 are tokens of their own.
+ * Words are not copied : they are reported as offsets into the buffer. String contents are decoded
+ * into a buffer that is reused from one string to the next.
+ * The buffer holds either the whole input or a window onto a reader, refilled as it is consumed, so
+ * that input of any size is read in constant memory.
+ */
+final class KIFLexer
+{
+	/**
+	 * End of input token type
+	 */
+	static final int TT_EOF = -1;
+
+	/**
+	 * End of line token type
+	 */
+	static final int TT_EOL = '\n';
+
+	/**
+	 * Word token type
+	 */
+	static final int TT_WORD = -3;
+
+	/**
+	 * String token type
+	 */
+	static final int TT_STRING = '"';
+
+	private static final byte WHITESPACE = 1;
+
+	private static final byte WORD = 2;
+
+	private static final byte QUOTE = 3;
+
+	private static final byte COMMENT = 4;
+
+	/**
+	 * Char classes below 256, 0 for ordinary chars
+	 */
+	private static final byte[] CLASSES = new byte[256];
+
+	static
+	{
+		for (int c = 0; c <= ' '; c++)
+			CLASSES[c] = WHITESPACE;
+		for (String range : new String[] { "-.", "09", "::", "<@", "AZ", "__", "az" })
+			for (int c = range.charAt(0); c <= range.charAt(1); c++)
+				CLASSES[c] = WORD;
+		CLASSES['"'] = QUOTE;
+		CLASSES[';'] = COMMENT;
+	}
+
+	private char[] buf;
+
+	private int end;
+
+	/**
+	 * Reader the buffer is refilled from, null if the buffer holds the whole input or the reader is exhausted
+	 */
+	private Reader reader;
+
+	private int pos;
+
+	/**
+	 * Current line number, from 1; ends of lines within strings are not counted
+	 */
+	private int lineno = 1;
+
+	/**
+	 * Type of the current token : TT_EOF, TT_EOL, TT_WORD, TT_STRING or the char of an ordinary char token
+	 */
+	int ttype = 0;
+
+	/**
+	 * Offset of the current word in the buffer
+	 */
+	int start;
+
+	/**
+	 * Length of the current word
+	 */
+	int length;
+
+	/**
+	 * Decoded contents of the current string
+	 */
+	char[] string = new char[64];
+
+	/**
+	 * Length of the decoded contents of the current string
+	 */
+	int stringLength;
+
+	/**
+	 * Constructor
+	 *
+	 * @param buf input
+	 * @param end length of the input in the buffer
+	 */
+	KIFLexer(char[] buf, int end)
+	{
+		this(buf, 0, end);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param buf  input
+	 * @param from offset of the start of the input in the buffer
+	 * @param to   offset of the end of the input in the buffer
+	 */
+	KIFLexer(char[] buf, int from, int to)
+	{
+		this.buf = buf;
+		this.pos = from;
+		this.end = to;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param reader     input
+	 * @param bufferSize initial size of the buffer window
+	 */
+	KIFLexer(Reader reader, int bufferSize)
+	{
+		this(new char[bufferSize], 0);
+		this.reader = reader;
+	}
+
+	/**
+	 * Line number
+	 *
+	 * @return the current line number
+	 */
+	int lineno()
+	{
+		return this.lineno;
+	}
+
+	private static byte classOf(char c)
+	{
+		return c < 256 ? CLASSES[c] : WORD;
+	}
+
+	/**
+	 * Read the next token
+	 *
+	 * @return its type
+	 */
+	int next() throws IOException
+	{
+		while (true)
+		{
+			if (this.pos >= this.end && !fill(this.pos))
+				return this.ttype = TT_EOF;
+			char c = this.buf[this.pos++];
+			switch (classOf(c))
+			{
+			case WHITESPACE:
+				if (c == '\r')
+				{
+					this.lineno++;
+					if ((this.pos < this.end || fill(this.pos)) && this.buf[this.pos] == '\n')
+						this.pos++;
+					return this.ttype = TT_EOL;
+				}
+				if (c == '\n')
+				{
+					this.lineno++;
+					return this.ttype = TT_EOL;
+				}
+				continue;
+			case WORD:
+				this.start = this.pos - 1;
+				while ((this.pos < this.end || fill(this.start)) && classOf(this.buf[this.pos]) == WORD)
+					this.pos++;
+				this.length = this.pos - this.start;
+				return this.ttype = TT_WORD;
+			case QUOTE:
+				readString();
+				return this.ttype = TT_STRING;
+			case COMMENT:
+				while ((this.pos < this.end || fill(this.pos)) && this.buf[this.pos] != '\n' && this.buf[this.pos] != '\r')
+					this.pos++;
+				continue;
+			default:
+				return this.ttype = c;
+			}
+		}
+	}
+
+	/**
+	 * Read the contents of a string up to the closing quote or the end of the input, decoding escapes as
+	 * StreamTokenizer_s does : \a \b \f \n \r \t \v, octal codes up to \377, and any other char after a backslash
+	 * stands for itself.
+	 */
+	private void readString() throws IOException
+	{
+		this.stringLength = 0;
+		int d = read();
+		while (d >= 0 && d != '"')
+		{
+			int c;
+			if (d == '\\')
+			{
+				c = read();
+				int first = c;
+				if (c >= '0' && c <= '7')
+				{
+					c = c - '0';
+					int c2 = read();
+					if ('0' <= c2 && c2 <= '7')
+					{
+						c = (c << 3) + (c2 - '0');
+						c2 = read();
+						if ('0' <= c2 && c2 <= '7' && first <= '3')
+						{
+							c = (c << 3) + (c2 - '0');
+							d = read();
+						}
+						else
+							d = c2;
+					}
+					else
+						d = c2;
+				}
+				else
+				{
+					switch (c)
+					{
+					case 'a':
+						c = 0x7;
+						break;
+					case 'b':
+						c = '\b';
+						break;
+					case 'f':
+						c = 0xC;
+						break;
+					case 'n':
+						c = '\n';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+					case 't':
+						c = '\t';
+						break;
+					case 'v':
+						c = 0xB;
+						break;
+					}
+					d = read();
+				}
+			}
+			else
+			{
+				c = d;
+				d = read();
+			}
+			if (this.stringLength == this.string.length)
+				this.string = Arrays.copyOf(this.string, 2 * this.stringLength);
+			this.string[this.stringLength++] = (char) c;
+		}
+		// a char read past the end of an unterminated string is given back
+		if (d >= 0 && d != '"')
+			this.pos--;
+	}
+
+	private int read() throws IOException
+	{
+		return this.pos < this.end || fill(this.pos) ? this.buf[this.pos++] : -1;
+	}
+
+	/**
+	 * Refill the buffer from the reader, once all of it has been consumed. The chars from keep on are moved to the
+	 * start of the buffer, which is grown if they fill it.
+	 *
+	 * @param keep offset of the first char still needed, that of the word being read or the current position
+	 * @return whether more chars were read
+	 * @throws IOException if the reader fails
+	 */
+	private boolean fill(int keep) throws IOException
+	{
+		if (this.reader == null)
+			return false;
+		int kept = this.end - keep;
+		if (kept == this.buf.length)
+			this.buf = Arrays.copyOf(this.buf, 2 * this.buf.length);
+		else
+			System.arraycopy(this.buf, keep, this.buf, 0, kept);
+		this.pos -= keep;
+		this.start -= keep;
+		this.end = kept;
+		int n;
+		do
+			n = this.reader.read(this.buf, this.end, this.buf.length - this.end);
+		while (n == 0);
+		if (n < 0)
+		{
+			this.reader = null;
+			return false;
+		}
+		this.end += n;
+		return true;
+	}
+
+	/**
+	 * Whether the current word is a given string
+	 *
+	 * @param s string
+	 * @return true if the current token is a word with the same chars as s
+	 */
+	boolean is(String s)
+	{
+		if (this.ttype != TT_WORD || this.length != s.length())
+			return false;
+		for (int i = 0; i < this.length; i++)
+			if (this.buf[this.start + i] != s.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * First char of the current word
+	 *
+	 * @return first char
+	 */
+	char first()
+	{
+		return this.buf[this.start];
+	}
+
+	/**
+	 * Append the current word
+	 *
+	 * @param sb string builder
+	 */
+	void appendWord(StringBuilder sb)
+	{
+		sb.append(this.buf, this.start, this.length);
+	}
+
+	/**
+	 * Text of the current token, for messages
+	 *
+	 * @return the word or the string contents, null for other tokens
+	 */
+	String token()
+	{
+		if (this.ttype == TT_WORD)
+			return new String(this.buf, this.start, this.length);
+		if (this.ttype == TT_STRING)
+			return new String(this.string, 0, this.stringLength);
+		return null;
+	}
+
+	/**
+	 * Input buffer
+	 *
+	 * @return buffer the words are offsets into
+	 */
+	char[] buffer()
+	{
+		return this.buf;
+	}
+}
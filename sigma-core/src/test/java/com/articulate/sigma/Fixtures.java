@@ -0,0 +1,77 @@
+package com.articulate.sigma;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Formulas, files and KBs the tests are run on
+ */
+final class Fixtures
+{
+	private Fixtures()
+	{
+	}
+
+	/**
+	 * Make a formula
+	 *
+	 * @param s formula text
+	 * @return formula, not in any KB
+	 */
+	static Formula make(String s)
+	{
+		Formula f = new Formula();
+		f.set(s);
+		return f;
+	}
+
+	/**
+	 * Write a temporary KIF file, deleted on exit
+	 *
+	 * @param prefix  file name prefix
+	 * @param content file content, written as UTF-8
+	 * @return file
+	 * @throws IOException exception
+	 */
+	static File write(String prefix, String content) throws IOException
+	{
+		File file = File.createTempFile(prefix, ".kif");
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	/**
+	 * Load a KB from statements, written to a temporary KIF file
+	 *
+	 * @param name       KB name, also the file name prefix
+	 * @param statements statements, one per line
+	 * @return KB, whose directory is that of the file
+	 * @throws IOException exception
+	 */
+	static KB load(String name, List<String> statements) throws IOException
+	{
+		File file = write(name, String.join("\n", statements) + "\n");
+		KB kb = new KB(name, file.getParent());
+		kb.addConstituent(file.getPath());
+		return kb;
+	}
+
+	/**
+	 * Texts of formulas
+	 *
+	 * @param formulas formulas
+	 * @return texts, in the same order
+	 */
+	static List<String> texts(List<Formula> formulas)
+	{
+		List<String> texts = new ArrayList<>();
+		for (Formula f : formulas)
+			texts.add(f.text);
+		return texts;
+	}
+}
@@ -35,28 +35,8 @@ public class SUMOKb extends KB implements Serializable
 
 	private static void makeKB(final KB kb, final String[] filePaths)
 	{
-		for (final String filePath : filePaths)
-		{
-			System.out.println("\n" + filePath);
-			kb.addConstituent(filePath);
-		}
-	}
-
-	public boolean makeClausalForms()
-	{
-		long count = 0;
-		for (List<Formula> fs : this.formulas.values())
-		{
-			for (Formula f : fs)
-			{
-				/* Tuple.Triplet<List<Clause>, Formula, Map<String, String>> cf = */
-				f.getClausalForm();
-				if ((count++ % 100L) == 0)
-					System.out.println();
-				System.out.print('!');
-			}
-		}
-		return true;
+		System.out.println("\n" + String.join("\n", filePaths));
+		kb.addConstituents(Arrays.asList(filePaths));
 	}
 
 	protected static String[] getFiles(final String dirName, final boolean full)
@@ -0,0 +1,107 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static com.articulate.sigma.Fixtures.load;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+public class TestClausalFormCache
+{
+	private static final String[] STATEMENTS = { //
+			"(instance instance BinaryPredicate)", //
+			"(subclass Dog Canine)", //
+			"(=> (instance ?X Dog) (exists (?Y) (and (instance ?Y Dog) (parent ?X ?Y))))", //
+			"(<=> (friend ?X ?Y) (or (friend ?Y ?X) (and (instance ?X Dog) (not (instance ?Y Cat)))))", //
+			"(forall (?X) (=> (instance ?X Animal) (exists (?Z ?W) (and (part ?Z ?X) (part ?W ?X)))))", //
+	};
+
+	private static String toString(Tuple.Triple<List<Clause>, Formula, Map<String, String>> form)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Clause clause : form.first)
+		{
+			sb.append('[');
+			for (Formula lit : clause.negativeLits)
+				sb.append(" -").append(lit.text);
+			for (Formula lit : clause.positiveLits)
+				sb.append(" +").append(lit.text);
+			sb.append(" ]");
+		}
+		return sb.append(new TreeMap<>(form.third)).append(form.second.text).toString();
+	}
+
+	@Test public void makeTest() throws IOException
+	{
+		KB kb = load("clauses", Arrays.asList(STATEMENTS));
+		assertEquals(STATEMENTS.length, kb.makeClausalForms());
+		for (Formula f : kb.formulaMap.values())
+		{
+			assertNotNull(f.peekClausalForm());
+			assertEquals(toString(Clausifier.toNegAndPosLitsWithRenameInfo(f)), toString(f.getClausalForm()));
+		}
+
+		// already made
+		assertEquals(0, kb.makeClausalForms());
+	}
+
+	@Test public void cacheTest() throws IOException
+	{
+		File cache = File.createTempFile("clauses", ".cache");
+		cache.deleteOnExit();
+		assertSame(true, cache.delete());
+
+		KB kb = load("clauses", Arrays.asList(STATEMENTS));
+		assertEquals(STATEMENTS.length, kb.makeClausalForms(cache));
+		assertEquals(STATEMENTS.length, ClausalFormCache.read(cache).size());
+
+		// unchanged axioms come from the cache
+		KB kb2 = load("clauses", Arrays.asList(STATEMENTS));
+		assertEquals(0, kb2.makeClausalForms(cache));
+		for (Formula f : kb.formulaMap.values())
+			assertEquals(toString(f.getClausalForm()), toString(kb2.formulaMap.get(f.text).peekClausalForm()));
+
+		// changed axioms are clausified again, and the forms of those gone are dropped
+		List<String> statements = new ArrayList<>(Arrays.asList(STATEMENTS));
+		statements.set(2, "(=> (instance ?X Cat) (exists (?Y) (and (instance ?Y Cat) (parent ?X ?Y))))");
+		KB kb3 = load("clauses", statements);
+		assertEquals(1, kb3.makeClausalForms(cache));
+		assertEquals(STATEMENTS.length, ClausalFormCache.read(cache).size());
+		assertEquals(null, ClausalFormCache.read(cache).get(ClausalFormCache.hash(STATEMENTS[2])));
+	}
+
+	@Test public void collisionTest() throws IOException
+	{
+		File cache = File.createTempFile("clauses", ".cache");
+		cache.deleteOnExit();
+
+		// an entry filed under the hash of a statement but made from another text, as if the two texts collided
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(cache)))
+		{
+			out.writeInt(ClausalFormCache.MAGIC);
+			out.writeInt(ClausalFormCache.VERSION);
+			out.writeInt(1);
+			out.writeLong(ClausalFormCache.hash(STATEMENTS[1]));
+			KBSnapshot.writeString(out, "(subclass Cat Feline)");
+			out.writeInt(1);
+			out.writeInt(0);
+			out.writeInt(1);
+			KBSnapshot.writeString(out, "(subclass Cat Feline)");
+			out.writeInt(0);
+		}
+
+		// the form is not taken for that statement
+		KB kb = load("clauses", Arrays.asList(STATEMENTS));
+		assertEquals(STATEMENTS.length, kb.makeClausalForms(cache));
+		Formula f = kb.formulaMap.get(STATEMENTS[1]);
+		assertEquals(toString(Clausifier.toNegAndPosLitsWithRenameInfo(f)), toString(f.getClausalForm()));
+		assertEquals(STATEMENTS[1], ClausalFormCache.read(cache).get(ClausalFormCache.hash(STATEMENTS[1])).second.text);
+	}
+}
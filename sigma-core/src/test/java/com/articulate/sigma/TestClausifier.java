@@ -0,0 +1,189 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.articulate.sigma.Fixtures.make;
+import static com.articulate.sigma.Fixtures.texts;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestClausifier
+{
+	private static final String[] FORMULAS = { //
+			"(=> (instance ?X Dog) (exists (?Y) (and (instance ?Y Dog) (parent ?X ?Y))))", //
+			"(<=> (friend ?X ?Y) (or (friend ?Y ?X) (and (instance ?X Dog) (not (instance ?Y Cat)))))", //
+			"(forall (?X) (=> (instance ?X Animal) (exists (?Z ?W) (and (part ?Z ?X) (part ?W ?X)))))", //
+			"(exists (?A) (instance ?A Dog))", //
+	};
+
+	private static String clausify(String s)
+	{
+		return show(Clausifier.toNegAndPosLitsWithRenameInfo(make(s)));
+	}
+
+	private static String show(Tuple.Triple<List<Clause>, Formula, Map<String, String>> cf)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Clause clause : cf.first)
+		{
+			sb.append('[');
+			for (Formula lit : clause.negativeLits)
+				sb.append(" -").append(lit.text);
+			for (Formula lit : clause.positiveLits)
+				sb.append(" +").append(lit.text);
+			sb.append(" ]");
+		}
+		return sb.append(new TreeMap<>(cf.third)).toString();
+	}
+
+	@Test public void clausifyTest()
+	{
+		Tuple.Triple<List<Clause>, Formula, Map<String, String>> cf = Clausifier.toNegAndPosLitsWithRenameInfo(make(FORMULAS[0]));
+		assertEquals(2, cf.first.size());
+		assertEquals("(instance ?X3 Dog)", cf.first.get(0).negativeLits.get(0).text);
+		assertEquals("(parent ?X3 (SkFn 1_" + key(FORMULAS[0]) + " ?X3))", cf.first.get(0).positiveLits.get(0).text);
+		assertEquals("?X", Clausifier.getOriginalVar("?X4", cf.third));
+
+		// numbering restarts with each run, the formula key keeps Skolem terms apart
+		cf = Clausifier.toNegAndPosLitsWithRenameInfo(make(FORMULAS[3]));
+		assertEquals("(instance Sk1_" + key(FORMULAS[3]) + " Dog)", cf.first.get(0).positiveLits.get(0).text);
+		assertTrue(Formula.isSkolemTerm("Sk1_" + key(FORMULAS[3])));
+	}
+
+	@Test public void skolemTest()
+	{
+		// the same individual must not be both P and Q
+		String p = Clausifier.toNegAndPosLitsWithRenameInfo(make("(exists (?X) (P ?X))")).first.get(0).positiveLits.get(0).getArgument(1);
+		String q = Clausifier.toNegAndPosLitsWithRenameInfo(make("(exists (?Y) (Q ?Y))")).first.get(0).positiveLits.get(0).getArgument(1);
+		assertTrue(p, Formula.isSkolemTerm(p));
+		assertTrue(q, Formula.isSkolemTerm(q));
+		assertFalse(p.equals(q));
+		assertEquals(p, Clausifier.toNegAndPosLitsWithRenameInfo(make("(exists (?X) (P ?X))")).first.get(0).positiveLits.get(0).getArgument(1));
+	}
+
+	private static String key(String s)
+	{
+		return Long.toUnsignedString(ClausalFormCache.hash(make(s).text));
+	}
+
+	@Test public void deterministicTest()
+	{
+		// counters are per run: clausifying other formulas in between does not change the result
+		String first = clausify(FORMULAS[0]);
+		for (String s : FORMULAS)
+			clausify(s);
+		assertEquals(first, clausify(FORMULAS[0]));
+	}
+
+	@Test public void streamTest()
+	{
+		for (String s : FORMULAS)
+		{
+			final List<Clause> clauses = new ArrayList<>();
+			Map<String, String> renames = Clausifier.toNegAndPosLits(make(s), clauses::add);
+			Tuple.Triple<List<Clause>, Formula, Map<String, String>> cf = Clausifier.toNegAndPosLitsWithRenameInfo(make(s));
+			assertEquals(cf.first.size(), clauses.size());
+			for (int i = 0; i < clauses.size(); i++)
+			{
+				assertEquals(texts(cf.first.get(i).negativeLits), texts(clauses.get(i).negativeLits));
+				assertEquals(texts(cf.first.get(i).positiveLits), texts(clauses.get(i).positiveLits));
+			}
+			assertEquals(cf.third, renames);
+		}
+	}
+
+	/**
+	 * (or (and p0 q0) ... (and p11 q11)), which has 2^12 clauses once distributed
+	 */
+	private static String blowUp()
+	{
+		StringBuilder sb = new StringBuilder("(or");
+		for (int i = 0; i < 12; i++)
+			sb.append(" (and (p").append(i).append(" ?X) (q").append(i).append(" ?X))");
+		return sb.append(')').toString();
+	}
+
+	@Test public void distributeTest()
+	{
+		final int[] count = { 0 };
+		new Clausifier(blowUp(), Clausifier.Mode.DISTRIBUTE).toNegAndPosLits(clause -> {
+			assertEquals(12, clause.positiveLits.size());
+			count[0]++;
+		});
+		assertEquals(4096, count[0]);
+	}
+
+	@Test public void definitionalTest()
+	{
+		String s0 = "(or (and (p ?X) (q ?X)) (r ?Y))";
+		Tuple.Triple<List<Clause>, Formula, Map<String, String>> cf = Clausifier.toNegAndPosLitsWithRenameInfo(make(s0), Clausifier.Mode.DEFINITIONAL);
+		assertEquals(3, cf.first.size());
+		// (or (Def 1_key ?X) (r ?Y)), (or (not (Def 1_key ?X)) (p ?X)), (or (not (Def 1_key ?X)) (q ?X))
+		String def = "Def 1_" + key(s0);
+		assertEquals("[(r ?X4), (" + def + " ?X3)]", texts(cf.first.get(0).positiveLits).toString());
+		assertEquals("[(" + def + " ?X5)]", texts(cf.first.get(1).negativeLits).toString());
+		assertEquals("[(p ?X5)]", texts(cf.first.get(1).positiveLits).toString());
+		assertEquals("[(q ?X6)]", texts(cf.first.get(2).positiveLits).toString());
+
+		// another formula defines other literals
+		String s1 = "(or (and (s ?X) (t ?X)) (u ?X))";
+		cf = Clausifier.toNegAndPosLitsWithRenameInfo(make(s1), Clausifier.Mode.DEFINITIONAL);
+		assertEquals(Clausifier.DEF_PRED, cf.first.get(1).negativeLits.get(0).getArgument(0));
+		assertFalse(def.equals(Clausifier.DEF_PRED + " " + cf.first.get(1).negativeLits.get(0).getArgument(1)));
+
+		// formulas with no conjunction under a disjunction are the same in either mode
+		for (String s : new String[] { FORMULAS[3], "(or (p ?X) (q ?X))" })
+			assertEquals(clausify(s), show(Clausifier.toNegAndPosLitsWithRenameInfo(make(s), Clausifier.Mode.DEFINITIONAL)));
+	}
+
+	@Test public void autoTest()
+	{
+		Clausifier.resetCounters();
+		Tuple.Triple<List<Clause>, Formula, Map<String, String>> cf = Clausifier.toNegAndPosLitsWithRenameInfo(make(blowUp()));
+		assertEquals(1 + 24, cf.first.size());
+		assertEquals(1, Clausifier.getSwitchCount());
+		assertEquals(12, Clausifier.getDefinitionCount());
+
+		cf = new Clausifier(blowUp(), Clausifier.Mode.AUTO, 5000).toNegAndPosLitsWithRenameInfo();
+		assertEquals(4096, cf.first.size());
+		assertEquals(1, Clausifier.getSwitchCount());
+		assertEquals(1, Clausifier.getDistributedCount());
+	}
+
+	@Test public void concurrentTest() throws InterruptedException, ExecutionException
+	{
+		final Map<String, String> expected = new HashMap<>();
+		for (String s : FORMULAS)
+			expected.put(s, clausify(s));
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<Boolean>> futures = new ArrayList<>();
+			for (int t = 0; t < 8; t++)
+			{
+				futures.add(executor.submit(new Callable<Boolean>()
+				{
+					@Override public Boolean call()
+					{
+						for (int i = 0; i < 50; i++)
+							for (String s : FORMULAS)
+								if (!expected.get(s).equals(clausify(s)))
+									return false;
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> future : futures)
+				assertTrue(future.get());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
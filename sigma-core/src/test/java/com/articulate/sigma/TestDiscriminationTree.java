@@ -0,0 +1,111 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static com.articulate.sigma.Fixtures.load;
+import static com.articulate.sigma.Fixtures.texts;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestDiscriminationTree
+{
+	private static final String[] TERMS = { "(p a b)", "(p a ?X)", "(p ?X ?X)", "(p (f a) b)", "(q a)", "(p ?X (f ?Y))", "(p a b c)" };
+
+	private static DiscriminationTree<String> tree(String... terms)
+	{
+		DiscriminationTree<String> tree = new DiscriminationTree<>();
+		for (String term : terms)
+			tree.add(Term.parse(term), term);
+		return tree;
+	}
+
+	@Test public void retrieveTest()
+	{
+		DiscriminationTree<String> tree = tree(TERMS);
+		assertEquals(7, tree.size());
+		assertEquals("[(p a b), (p a ?X)]", tree.getUnifiable(Term.parse("(p a b)")).toString());
+		assertEquals("[(p a b), (p a ?X), (p ?X ?X), (p (f a) b), (p ?X (f ?Y))]", tree.getUnifiable(Term.parse("(p ?X ?Y)")).toString());
+		assertEquals("[(p a ?X), (p ?X (f ?Y))]", tree.getUnifiable(Term.parse("(p ?Z (f ?Z))")).toString());
+		assertEquals("[(p a b), (p a ?X)]", tree.getInstances(Term.parse("(p a ?Y)")).toString());
+		assertEquals("[(p ?X ?X)]", tree.getInstances(Term.parse("(p ?Z ?Z)")).toString());
+		assertEquals("[(p a ?X), (p ?X ?X)]", tree.getGeneralizations(Term.parse("(p a a)")).toString());
+		assertEquals("[(p a ?X), (p ?X (f ?Y))]", tree.getGeneralizations(Term.parse("(p a (f b))")).toString());
+		assertEquals("[]", tree.getGeneralizations(Term.parse("(p ?X a)")).toString());
+	}
+
+	@Test public void randomTest()
+	{
+		Random random = new Random(5);
+		for (int trial = 0; trial < 50; trial++)
+		{
+			List<String> terms = new ArrayList<>();
+			for (int i = 0; i < 60; i++)
+				terms.add(randomTerm(random, 3));
+			DiscriminationTree<String> tree = tree(terms.toArray(new String[0]));
+			for (int i = 0; i < 20; i++)
+			{
+				String query = randomTerm(random, 3);
+				List<String> unifiable = new ArrayList<>();
+				List<String> instances = new ArrayList<>();
+				List<String> generalizations = new ArrayList<>();
+				for (String term : terms)
+				{
+					if (new Unifier().unify(Term.parse(query.replace("?", "?Q")), Term.parse(term)))
+						unifiable.add(term);
+					if (new Unifier().unify(Term.parse(query), Term.parse(term.replace("?", "c"))))
+						instances.add(term);
+					if (new Unifier().unify(Term.parse(term), Term.parse(query.replace("?", "c"))))
+						generalizations.add(term);
+				}
+				assertEquals(query, unifiable, tree.getUnifiable(Term.parse(query)));
+				assertEquals(query, instances, tree.getInstances(Term.parse(query)));
+				assertEquals(query, generalizations, tree.getGeneralizations(Term.parse(query)));
+			}
+		}
+	}
+
+	@Test public void kbTest() throws IOException
+	{
+		KB kb = load("literals", Arrays.asList( //
+				"(domain part 1 Object)", //
+				"(domain part 2 Object)", //
+				"(domain friend 1 Animal)", //
+				"(=> (instance ?X Dog) (instance ?X Animal))"));
+
+		assertEquals(3, kb.getAssertionIndex().size());
+		assertEquals("[(domain part 1 Object), (domain part 2 Object)]", texts(kb.askWithLiteral(Arrays.asList("domain", "part", "?N", "?C"))).toString());
+		assertEquals("[(domain part 2 Object)]", texts(kb.askInstances("(domain ?R 2 ?C)")).toString());
+		assertEquals("[(domain friend 1 Animal)]", texts(kb.askUnifiable("(domain ?R 1 Animal)")).toString());
+
+		try
+		{
+			kb.getLiteralIndex(true);
+			fail();
+		}
+		catch (IllegalStateException ex)
+		{
+			// the clausal forms come first
+		}
+		kb.makeClausalForms();
+		List<Clause> clauses = kb.getLiteralIndex(true).getUnifiable(Term.parse("(instance Fido ?C)"));
+		assertEquals(1, clauses.size());
+		assertEquals("(instance ?X2 Dog)", clauses.get(0).negativeLits.get(0).text);
+		assertEquals(0, kb.getLiteralIndex(false).getUnifiable(Term.parse("(domain ?R ?N ?C)")).size());
+	}
+
+	private static String randomTerm(Random random, int depth)
+	{
+		int r = random.nextInt(depth > 0 ? 6 : 4);
+		if (r < 2)
+			return "?" + "XYZ".charAt(random.nextInt(3));
+		if (r < 4)
+			return "abf".substring(random.nextInt(3)).substring(0, 1);
+		StringBuilder sb = new StringBuilder("(").append("pf".charAt(random.nextInt(2)));
+		for (int n = 1 + random.nextInt(2); n > 0; n--)
+			sb.append(' ').append(randomTerm(random, depth - 1));
+		return sb.append(')').toString();
+	}
+}
@@ -0,0 +1,79 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.articulate.sigma.Fixtures.load;
+import static com.articulate.sigma.Fixtures.make;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestFormula
+{
+	@Test public void lispTest()
+	{
+		Formula f = make("(=> (instance ?X \"a (quoted) string\") (exists (?Y) (part ?Y ?X)))");
+		assertEquals("=>", f.car());
+		assertEquals("((instance ?X \"a (quoted) string\") (exists (?Y) (part ?Y ?X)))", f.cdr());
+		assertEquals("(instance ?X \"a (quoted) string\")", f.getArgument(1));
+		assertEquals("(exists (?Y) (part ?Y ?X))", f.getArgument(2));
+		assertEquals("", f.getArgument(3));
+		assertEquals("", f.getArgument(-1));
+		assertEquals(3, f.listLength());
+
+		Formula rest = f.cdrAsFormula();
+		assertEquals(f.cdr(), rest.text);
+		assertEquals(f.getArgument(1), rest.car());
+		assertEquals("((exists (?Y) (part ?Y ?X)))", rest.cdr());
+
+		Term t = f.getTerm();
+		assertEquals(Term.Kind.LIST, t.getKind());
+		assertEquals(Term.Kind.STRING, t.getChild(1).getChild(2).getKind());
+		assertEquals(Term.Kind.VARIABLE, t.getChild(1).getChild(1).getKind());
+		assertSame(t, f.getTerm());
+	}
+
+	@Test public void emptyTest()
+	{
+		Formula f = make("( )");
+		assertEquals("", f.car());
+		assertEquals("( )", f.cdr());
+		assertEquals(0, f.listLength());
+		assertEquals("()", make("(a)").cdr());
+		assertNull(make("a").cdr());
+		assertEquals(-1, make("a").listLength());
+	}
+
+	@Test public void walkTest()
+	{
+		// walking down the list by replacing the text with its cdr
+		Formula f = make("(a (b c) \"d e\" ?F)");
+		StringBuilder sb = new StringBuilder();
+		while (!f.empty())
+		{
+			sb.append(f.car()).append('|');
+			f.text = f.cdr();
+		}
+		assertEquals("a|(b c)|\"d e\"|?F|", sb.toString());
+	}
+
+	@Test public void arityTest() throws IOException
+	{
+		KB kb = load("arity", Arrays.asList("(instance part BinaryPredicate)", "(valence part 2)", "(instance MotherFn UnaryFunction)"));
+
+		assertTrue(make("(part ?X (MotherFn ?Y))").hasCorrectArity(kb));
+		assertFalse(make("(part ?X (MotherFn ?Y ?Z))").hasCorrectArity(kb));
+		assertFalse(make("(=> (part ?X ?Y ?Z) (part ?Y ?X))").hasCorrectArity(kb));
+		assertFalse(make("(=> (part ?X ?Y))").hasCorrectArity(kb));
+		assertTrue(make("(exists (?X ?Y) (and (part ?X ?Y) (unknown ?X)))").hasCorrectArity(kb));
+		assertFalse(make("(forall (?X) (not (part ?X)))").hasCorrectArity(kb));
+		// row variables and strings
+		assertTrue(make("(part @ROW)").hasCorrectArity(kb));
+		assertTrue(make("(part ?X \"a (part b c d) string\")").hasCorrectArity(kb));
+	}
+}
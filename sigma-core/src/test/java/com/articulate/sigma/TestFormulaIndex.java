@@ -0,0 +1,105 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.articulate.sigma.Fixtures.make;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestFormulaIndex
+{
+	@Test public void askTest()
+	{
+		FormulaIndex index = new FormulaIndex(new SymbolTable());
+		Formula f1 = make("(instance Fido Dog)");
+		Formula f2 = make("(instance Rex Dog)");
+		Formula f3 = make("(subclass Dog Canine)");
+		Formula f4 = make("(=> (instance ?X Dog) (attribute ?X Loyal))");
+		for (Formula f : Arrays.asList(f1, f2, f3, f4))
+			index.register(f);
+
+		assertTrue(index.add("arg-0-instance", f2));
+		assertTrue(index.add("arg-0-instance", f1));
+		assertTrue(index.add("arg-1-Fido", f1));
+		assertTrue(index.add("arg-2-Dog", f1));
+		assertTrue(index.add("arg-1-Rex", f2));
+		assertTrue(index.add("arg-2-Dog", f2));
+		assertTrue(index.add("arg-1-Dog", f3));
+		assertTrue(index.add("ant-Dog", f4));
+		assertTrue(index.add("cons-Loyal", f4));
+		assertFalse(index.add(f1.text, f1));
+
+		// load order, whatever order the postings were added in
+		assertEquals(Arrays.asList(f1, f2), index.ask(FormulaIndex.Kind.ARG, 0, "instance"));
+		assertEquals(Arrays.asList(f4), index.ask(FormulaIndex.Kind.ANT, 3, "Dog"));
+		assertTrue(index.ask(FormulaIndex.Kind.STMT, 0, "Dog").isEmpty());
+		assertTrue(index.ask(FormulaIndex.Kind.ARG, 1, "Unknown").isEmpty());
+		assertNull(index.getPostings(FormulaIndex.Kind.ARG, 7, "Dog"));
+
+		List<Formula> result = index.askArgs(new int[] { 0, 2 }, new String[] { "instance", "Dog" });
+		assertEquals(Arrays.asList(f1, f2), result);
+		result = index.askArgs(new int[] { 0, 1, 2 }, new String[] { "instance", "Rex", "Dog" });
+		assertEquals(Arrays.asList(f2), result);
+		result = index.askArgs(new int[] { 0, 1 }, new String[] { "instance", "Dog" });
+		assertTrue(result.isEmpty());
+	}
+
+	@Test public void containsTest()
+	{
+		FormulaIndex index = new FormulaIndex(new SymbolTable());
+		Formula f1 = make("(instance Fido Dog)");
+		Formula f2 = make("(instance Rex Dog)");
+		Formula copy = make("(instance Fido Dog)");
+		index.register(f1);
+		index.register(f2);
+		index.add("arg-0-instance", f2);
+
+		assertTrue(index.contains("arg-0-instance", f2));
+		assertFalse(index.contains("arg-0-instance", f1));
+		assertFalse(index.contains("arg-1-Rex", f2));
+		index.add("arg-0-instance", f1);
+		assertTrue(index.contains("arg-0-instance", f1));
+		// membership is by identity, as that of the KB's formula lists
+		assertFalse(index.contains("arg-0-instance", copy));
+		assertFalse(index.contains(f1.text, f1));
+
+		assertTrue(FormulaIndex.isPositional("arg-0-instance"));
+		assertTrue(FormulaIndex.isPositional("stmt-Dog"));
+		assertFalse(FormulaIndex.isPositional("arg-x-Dog"));
+		assertFalse(FormulaIndex.isPositional(f1.text));
+		assertFalse(FormulaIndex.isPositional("instance"));
+	}
+
+	@Test public void intersectTest()
+	{
+		Random random = new Random(7);
+		for (int round = 0; round < 200; round++)
+		{
+			FormulaIndex.Postings[] lists = new FormulaIndex.Postings[1 + random.nextInt(3)];
+			Set<Integer> expected = null;
+			for (int k = 0; k < lists.length; k++)
+			{
+				lists[k] = new FormulaIndex.Postings();
+				Set<Integer> ids = new TreeSet<>();
+				int n = random.nextInt(k == 0 ? 2000 : 20);
+				for (int i = 0; i < n; i++)
+				{
+					int id = random.nextInt(3000);
+					lists[k].add(id);
+					ids.add(id);
+				}
+				if (expected == null)
+					expected = ids;
+				else
+					expected.retainAll(ids);
+			}
+			int[] actual = FormulaIndex.intersect(lists);
+			assertEquals(new ArrayList<>(expected), Arrays.stream(actual).boxed().collect(Collectors.toList()));
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestIntBitmap
+{
+	@Test public void setTest()
+	{
+		Random random = new Random(3);
+		for (int trial = 0; trial < 200; trial++)
+		{
+			// small ranges stay in one container and go past the array limit, large ones span containers
+			int range = 1 + random.nextInt(trial % 3 == 0 ? 300000 : 10000);
+			IntBitmap bitmap = new IntBitmap();
+			TreeSet<Integer> reference = new TreeSet<>();
+			for (int n = random.nextInt(20000); n > 0; n--)
+			{
+				int value = random.nextInt(range);
+				assertEquals(reference.add(value), bitmap.add(value));
+			}
+			IntBitmap other = new IntBitmap();
+			TreeSet<Integer> otherReference = new TreeSet<>();
+			for (int n = random.nextInt(8000); n > 0; n--)
+			{
+				int value = random.nextInt(range);
+				other.add(value);
+				otherReference.add(value);
+			}
+			assertEquals(otherReference.containsAll(reference), other.containsAll(bitmap));
+			assertEquals(reference.addAll(otherReference), bitmap.addAll(other));
+			assertTrue(bitmap.containsAll(other));
+
+			assertEquals(reference.size(), bitmap.size());
+			int[] values = bitmap.toArray();
+			int i = 0;
+			for (int value : reference)
+				assertEquals(value, values[i++]);
+			for (int n = 0; n < 1000; n++)
+			{
+				int value = random.nextInt(range + 10);
+				assertEquals(reference.contains(value), bitmap.contains(value));
+			}
+		}
+	}
+
+	@Test public void writeReadTest() throws IOException
+	{
+		Random random = new Random(7);
+		for (int trial = 0; trial < 20; trial++)
+		{
+			// dense enough for bitmap containers in some trials
+			IntBitmap bitmap = new IntBitmap();
+			int range = 1 + random.nextInt(200000);
+			for (int n = random.nextInt(trial % 2 == 0 ? 100 : 50000); n > 0; n--)
+				bitmap.add(random.nextInt(range));
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bitmap.write(new DataOutputStream(bytes));
+			IntBitmap bitmap2 = IntBitmap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+			assertEquals(bitmap.size(), bitmap2.size());
+			assertTrue(Arrays.equals(bitmap.toArray(), bitmap2.toArray()));
+			assertTrue(bitmap2.add(range));
+		}
+	}
+
+	@Test public void emptyTest()
+	{
+		IntBitmap bitmap = new IntBitmap();
+		assertTrue(bitmap.isEmpty());
+		assertFalse(bitmap.contains(0));
+		assertFalse(bitmap.contains(-1));
+		assertEquals(0, bitmap.toArray().length);
+		assertTrue(bitmap.containsAll(new IntBitmap()));
+		assertFalse(bitmap.addAll(new IntBitmap()));
+	}
+}
@@ -0,0 +1,124 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+import static com.articulate.sigma.Fixtures.load;
+import static com.articulate.sigma.Fixtures.texts;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestKBSnapshot
+{
+	private static final String[] STATEMENTS = { //
+			"(instance subclass TransitiveRelation)", //
+			"(instance instance BinaryPredicate)", //
+			"(subclass Dog Canine)", //
+			"(subclass Canine Animal)", //
+			"(subclass Puppy Dog)", //
+			"(disjoint Animal Plant)", //
+			"(instance Fido Puppy)", //
+			"(documentation Dog EnglishLanguage \"A domestic \u00e9l\u00e8ve.\")", //
+			"(=> (instance ?X Dog) (attribute ?X Loyal))", //
+	};
+
+	private static KB roundTrip(KB kb) throws IOException
+	{
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		KBSnapshot.write(kb, os);
+		return KBSnapshot.read(new ByteArrayInputStream(os.toByteArray()));
+	}
+
+	@Test public void roundTripTest() throws IOException
+	{
+		KB kb = load("snapshot", Arrays.asList(STATEMENTS));
+		KB kb2 = roundTrip(kb);
+		assertSameKB(kb, kb2);
+
+		// the restored KB is snapshotted like any other
+		KB kb3 = roundTrip(kb2);
+		assertEquals(kb2.formulaMap.keySet(), kb3.formulaMap.keySet());
+	}
+
+	@Test public void mapTest() throws IOException
+	{
+		KB kb = load("snapshot", Arrays.asList(STATEMENTS));
+		File file = File.createTempFile("snapshot", ".kb");
+		file.deleteOnExit();
+		KBSnapshot.write(kb, file);
+		KB kb2 = KBSnapshot.map(file);
+		assertTrue(kb2.isReadOnly());
+		assertSameKB(kb, kb2);
+		assertEquals(new ArrayList<>(kb.formulaMap.keySet()), new ArrayList<>(kb2.formulaMap.keySet()));
+		assertFalse(kb2.formulaMap.containsKey("(subclass Dog Plant)"));
+		assertEquals(null, kb2.formulas.get("arg-1-Plant2"));
+		assertSame(kb2.formulaMap.get("(subclass Dog Canine)"), kb2.ask("arg", 1, "Dog").get(0));
+
+		try
+		{
+			kb2.addConstituent(file.getPath());
+			fail();
+		}
+		catch (UnsupportedOperationException ignored)
+		{
+		}
+
+		// a mapped KB is snapshotted like any other
+		KB kb3 = roundTrip(kb2);
+		assertSameKB(kb, kb3);
+	}
+
+	private static void assertSameKB(KB kb, KB kb2)
+	{
+		assertEquals(kb.name, kb2.name);
+		assertEquals(kb.constituents, kb2.constituents);
+		assertEquals(kb.terms, kb2.terms);
+		assertEquals(kb.errors, kb2.errors);
+		assertEquals(kb.formulaMap.keySet(), kb2.formulaMap.keySet());
+		assertEquals(kb.formulas.keySet(), kb2.formulas.keySet());
+		for (String key : kb.formulas.keySet())
+		{
+			List<Formula> fs = kb.formulas.get(key);
+			List<Formula> fs2 = kb2.formulas.get(key);
+			assertEquals(fs.size(), fs2.size());
+			for (int i = 0; i < fs.size(); i++)
+			{
+				assertEquals(fs.get(i).text, fs2.get(i).text);
+				assertEquals(fs.get(i).sourceFile, fs2.get(i).sourceFile);
+				assertEquals(fs.get(i).startLine, fs2.get(i).startLine);
+				assertSame(kb2.formulaMap.get(fs2.get(i).text), fs2.get(i));
+			}
+		}
+		for (String term : kb.terms)
+		{
+			for (String kind : new String[] { "arg", "ant", "cons", "stmt" })
+				assertEquals(texts(kb.ask(kind, 1, term)), texts(kb2.ask(kind, 1, term)));
+		}
+
+		assertEquals(kb.getCachedRelationValues("subclass", "Puppy", 1, 2), kb2.getCachedRelationValues("subclass", "Puppy", 1, 2));
+		assertEquals(kb.getCachedRelationValues("instance", "Fido", 1, 2), kb2.getCachedRelationValues("instance", "Fido", 1, 2));
+		assertEquals(kb.getCachedRelationValues("disjoint", "Plant", 1, 2), kb2.getCachedRelationValues("disjoint", "Plant", 1, 2));
+		assertTrue(kb2.isSubclass("Puppy", "Animal"));
+		assertFalse(kb2.isSubclass("Animal", "Puppy"));
+		assertTrue(kb2.isInstanceOf("Fido", "Canine"));
+		assertEquals(kb.parents, kb2.parents);
+		assertEquals(kb.getValence("subclass"), kb2.getValence("subclass"));
+	}
+
+	@Test public void badHeaderTest()
+	{
+		try
+		{
+			KBSnapshot.read(new ByteArrayInputStream(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7 }));
+			fail();
+		}
+		catch (IOException ignored)
+		{
+		}
+	}
+}
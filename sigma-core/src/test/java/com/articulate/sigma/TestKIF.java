@@ -0,0 +1,134 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KIF;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static com.articulate.sigma.Fixtures.texts;
+import static com.articulate.sigma.Fixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestKIF
+{
+	private static KIF read(String s) throws Exception
+	{
+		return read(write("parse", s), Integer.MAX_VALUE);
+	}
+
+	private static KIF read(File file, int parallelThreshold) throws Exception
+	{
+		KIF kif = new KIF(new SymbolTable());
+		kif.setParallelThreshold(parallelThreshold);
+		kif.readFile(file.getPath()); // parse errors are reported in the warning set
+		return kif;
+	}
+
+	private static String dump(KIF kif)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(kif.formulaSet).append(kif.terms).append(kif.warningSet);
+		for (String key : new TreeSet<>(kif.formulas.keySet()))
+			for (Formula f : kif.formulas.get(key))
+				sb.append(key).append('=').append(f.startLine).append('-').append(f.endLine);
+		return sb.toString();
+	}
+
+	@Test public void parseTest() throws Exception
+	{
+		KIF kif = read("; header comment\n" + //
+				"(documentation Foo EnglishLanguage \"A \\\"quoted\\\" word,\n  split  over lines\")\n" + //
+				"(=> (instance ?X Foo) ; trailing comment\r\n  (instance ?X Bar))\n" + //
+				"(length Foo 12)\n");
+
+		List<String> texts = new ArrayList<>(kif.formulaSet);
+		assertEquals(Arrays.asList( //
+				"(documentation Foo EnglishLanguage \"A \\\"quoted\\\" word, split over lines\")", //
+				"(=> (instance ?X Foo) (instance ?X Bar))", //
+				"(length Foo 12)"), texts);
+		assertEquals("[=>, Bar, EnglishLanguage, Foo, documentation, instance, length]", kif.terms.toString());
+
+		Formula f = kif.formulas.get(texts.get(0)).get(0);
+		assertEquals(2, f.startLine);
+		assertEquals(3, f.endLine);
+		f = kif.formulas.get(texts.get(1)).get(0);
+		assertEquals(4, f.startLine);
+		assertEquals(5, f.endLine);
+		assertEquals(6, kif.formulas.get(texts.get(2)).get(0).startLine);
+
+		assertEquals(Collections.singletonList(kif.formulas.get(texts.get(1)).get(0)), kif.formulas.get("ant-Foo"));
+		assertEquals(Collections.singletonList(kif.formulas.get(texts.get(1)).get(0)), kif.formulas.get("cons-Bar"));
+		assertEquals(Collections.singletonList(kif.formulas.get(texts.get(2)).get(0)), kif.formulas.get("arg-1-Foo").subList(1, 2));
+		assertTrue(kif.warningSet.isEmpty());
+	}
+
+	@Test public void utf8Test() throws Exception
+	{
+		KIF kif = read("(instance \u041c\u043e\u0441\u043a\u0432\u0430 City)\n(documentation \u041c\u043e\u0441\u043a\u0432\u0430 EnglishLanguage \"\u00c0 la carte \ud83c\udf7d\")\n");
+		assertEquals("[City, EnglishLanguage, documentation, instance, \u041c\u043e\u0441\u043a\u0432\u0430]", kif.terms.toString());
+		assertTrue(kif.formulaSet.contains("(documentation \u041c\u043e\u0441\u043a\u0432\u0430 EnglishLanguage \"\u00c0 la carte \ud83c\udf7d\")"));
+	}
+
+	@Test public void parallelTest() throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+		{
+			sb.append("(instance I").append(i % 1500).append(" C").append(i % 1500 % 7).append(")\n");
+			if (i % 100 == 0)
+				sb.append("; (comment \"\n(documentation C").append(i).append(" EnglishLanguage \"two\nlines (\")\r\n");
+			if (i % 300 == 0)
+				sb.append("(=> (instance ?X C").append(i).append(")\n  (instance ?X C0))\n\n");
+		}
+		String s = sb.toString();
+		File file = write("parse", s);
+		KIF whole = read(file, Integer.MAX_VALUE);
+		assertEquals(dump(whole), dump(read(file, 0)));
+		assertEquals(500, whole.warningSet.size()); // duplicates
+
+		// an error stops parsing where it does in one go
+		file = write("parse", s.substring(0, s.length() / 2) + "(instance Foo\n\n" + s.substring(s.length() / 2));
+		whole = read(file, Integer.MAX_VALUE);
+		assertEquals(dump(whole), dump(read(file, 0)));
+		assertTrue(whole.warningSet.last().contains("possible missed closing parenthesis"));
+	}
+
+	@Test public void sinkTest() throws Exception
+	{
+		File file = write("parse", "(instance Foo Bar)\n(=> (instance ?X Foo) (instance ?X Bar))\n(instance Foo Bar)\n(subclass Bar Baz)\n");
+		KIF whole = read(file, Integer.MAX_VALUE);
+
+		List<Formula> formulas = new ArrayList<>();
+		Map<String, Set<String>> keys = new TreeMap<>();
+		KIF kif = new KIF(new SymbolTable());
+		kif.setSink((f, fkeys) -> {
+			formulas.add(f);
+			keys.put(f.text, new TreeSet<>(fkeys));
+		});
+		kif.readFile(file.getPath());
+
+		assertTrue(kif.formulas.isEmpty());
+		assertEquals(new ArrayList<>(whole.formulaSet), new ArrayList<>(kif.formulaSet));
+		assertEquals(whole.terms, kif.terms);
+		assertEquals(whole.warningSet, kif.warningSet); // the duplicate is warned, not passed
+		assertEquals(new ArrayList<>(whole.formulaSet), texts(formulas)); // in input order, once each
+
+		// each formula comes with the keys it is filed under in the map
+		Map<String, Set<String>> expected = new TreeMap<>();
+		for (String key : whole.formulas.keySet())
+			for (Formula f : whole.formulas.get(key))
+				expected.computeIfAbsent(f.text, k -> new TreeSet<>()).add(key);
+		assertEquals(expected, keys);
+		assertTrue(keys.get("(instance Foo Bar)").contains("arg-1-Foo"));
+	}
+
+	@Test public void errorTest() throws Exception
+	{
+		KIF kif = read("(instance Foo Bar)\n(instance Foo\n\n");
+		assertEquals(1, kif.formulaSet.size());
+		assertEquals(1, kif.warningSet.size());
+		assertTrue(kif.warningSet.first().endsWith("possible missed closing parenthesis near line 2"));
+	}
+}
@@ -0,0 +1,65 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSubsumptionIndex
+{
+	@Test public void subclassTest()
+	{
+		SymbolTable symbols = new SymbolTable();
+		for (int i = 0; i < 300; i++)
+			symbols.intern("C" + i);
+		Random random = new Random(5);
+		for (int trial = 0; trial < 100; trial++)
+		{
+			// mostly a tree, with some multiple inheritance and, in some trials, cycles
+			int n = 2 + random.nextInt(298);
+			KB.RelationCache up = new KB.RelationCache(symbols, "subclass", 1, 2);
+			KB.RelationCache down = new KB.RelationCache(symbols, "subclass", 2, 1);
+			for (int c = 1; c < n; c++)
+			{
+				int parent = random.nextInt(c);
+				up.add(c, parent);
+				if (random.nextInt(8) == 0)
+					up.add(c, random.nextInt(c));
+				if (trial % 4 == 0 && random.nextInt(50) == 0)
+					up.add(parent, c);
+			}
+			TransitiveClosure.close(up, down, symbols.size(), Long.MAX_VALUE);
+
+			SubsumptionIndex index = new SubsumptionIndex(up, symbols.size());
+			for (int c1 = 0; c1 < n; c1++)
+			{
+				for (int c2 = 0; c2 < n; c2++)
+				{
+					IntBitmap row = up.getRow(c1);
+					assertEquals(row != null && row.contains(c2), index.isSubclass(c1, c2));
+				}
+			}
+		}
+	}
+
+	@Test public void unknownTest()
+	{
+		SymbolTable symbols = new SymbolTable();
+		int a = symbols.intern("A");
+		int b = symbols.intern("B");
+		KB.RelationCache up = new KB.RelationCache(symbols, "subclass", 1, 2);
+		up.add(a, b);
+		SubsumptionIndex index = new SubsumptionIndex(up, symbols.size());
+		int c = symbols.intern("C");
+
+		assertTrue(index.isSubclass(a, b));
+		assertFalse(index.isSubclass(b, a));
+		assertFalse(index.isSubclass(a, a));
+		assertFalse(index.isSubclass(a, c));
+		assertFalse(index.isSubclass(c, b));
+		assertFalse(index.isSubclass(-1, b));
+	}
+}
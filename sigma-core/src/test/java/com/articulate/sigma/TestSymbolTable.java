@@ -0,0 +1,32 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestSymbolTable
+{
+	@Test public void growTest()
+	{
+		// well past the initial capacity, so that the names array and the hash table are grown several times
+		SymbolTable symbols = new SymbolTable(16);
+		String[] canonicals = new String[20000];
+		for (int i = 0; i < canonicals.length; i++)
+		{
+			String name = "C" + i;
+			canonicals[i] = i % 2 == 0 ? symbols.canonical(name) : symbols.canonical(name.toCharArray(), 0, name.length());
+			assertEquals(name, canonicals[i]);
+		}
+		assertEquals(canonicals.length, symbols.size());
+		for (int i = 0; i < canonicals.length; i++)
+		{
+			String name = "C" + i;
+			assertEquals(i, symbols.lookup(name));
+			assertSame(canonicals[i], symbols.canonical(new String(name)));
+			assertSame(canonicals[i], symbols.canonical(name.toCharArray(), 0, name.length()));
+			assertSame(canonicals[i], symbols.getName(i));
+		}
+		assertEquals(-1, symbols.lookup("D0"));
+	}
+}
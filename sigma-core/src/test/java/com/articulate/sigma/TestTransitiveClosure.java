@@ -0,0 +1,118 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTransitiveClosure
+{
+	private static Map<Integer, Set<Integer>> rows(KB.RelationCache cache)
+	{
+		Map<Integer, Set<Integer>> result = new TreeMap<>();
+		for (int key : cache.keyIds())
+		{
+			Set<Integer> row = new TreeSet<>();
+			for (int value : cache.getRow(key).toArray())
+				row.add(value);
+			if (!row.isEmpty())
+				result.put(key, row);
+		}
+		return result;
+	}
+
+	// fixpoint iteration, as KB.computeTransitiveCacheClosure used to do
+	private static void naiveClose(KB.RelationCache up, KB.RelationCache down)
+	{
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (int key : up.keyIds())
+			{
+				IntBitmap row = up.getRow(key);
+				for (int value : row.toArray())
+				{
+					IntBitmap row2 = up.getRow(value);
+					if (row2 != null && row2 != row && row.addAll(row2))
+						changed = true;
+					if (down.add(value, key))
+						changed = true;
+				}
+			}
+		}
+	}
+
+	@Test public void closeTest()
+	{
+		SymbolTable symbols = new SymbolTable();
+		for (int i = 0; i < 200; i++)
+			symbols.intern("T" + i);
+		Random random = new Random(11);
+		for (int trial = 0; trial < 100; trial++)
+		{
+			int n = 2 + random.nextInt(198);
+			KB.RelationCache up1 = new KB.RelationCache(symbols, "subclass", 1, 2);
+			KB.RelationCache down1 = new KB.RelationCache(symbols, "subclass", 2, 1);
+			KB.RelationCache up2 = new KB.RelationCache(symbols, "subclass", 1, 2);
+			KB.RelationCache down2 = new KB.RelationCache(symbols, "subclass", 2, 1);
+			for (int e = random.nextInt(2 * n); e > 0; e--)
+			{
+				int x = random.nextInt(n);
+				int y = random.nextInt(n);
+				up1.add(x, y);
+				down1.add(y, x);
+				up2.add(x, y);
+				down2.add(y, x);
+			}
+			naiveClose(up1, down1);
+			TransitiveClosure.close(up2, down2, symbols.size(), Long.MAX_VALUE);
+			assertEquals(rows(up1), rows(up2));
+			assertEquals(rows(down1), rows(down2));
+
+			// closing again adds nothing
+			assertEquals(0L, TransitiveClosure.close(up2, down2, symbols.size(), Long.MAX_VALUE));
+		}
+	}
+
+	@Test public void cycleTest()
+	{
+		SymbolTable symbols = new SymbolTable();
+		int a = symbols.intern("A");
+		int b = symbols.intern("B");
+		int c = symbols.intern("C");
+		KB.RelationCache up = new KB.RelationCache(symbols, "subrelation", 1, 2);
+		KB.RelationCache down = new KB.RelationCache(symbols, "subrelation", 2, 1);
+		up.add(a, b);
+		up.add(b, a);
+		up.add(b, c);
+		TransitiveClosure.close(up, down, symbols.size(), Long.MAX_VALUE);
+
+		assertEquals(new HashSet<>(Arrays.asList("A", "B", "C")), up.get("A"));
+		assertEquals(new HashSet<>(Arrays.asList("A", "B", "C")), up.get("B"));
+		assertEquals(new HashSet<>(Arrays.asList("A", "B")), down.get("C"));
+	}
+
+	@Test public void limitTest()
+	{
+		SymbolTable symbols = new SymbolTable();
+		for (int i = 0; i < 100; i++)
+			symbols.intern("T" + i);
+		long[] counts = new long[2];
+		List<Map<Integer, Set<Integer>>> results = new ArrayList<>();
+		for (int run = 0; run < 2; run++)
+		{
+			KB.RelationCache up = new KB.RelationCache(symbols, "subclass", 1, 2);
+			KB.RelationCache down = new KB.RelationCache(symbols, "subclass", 2, 1);
+			for (int i = 1; i < 100; i++)
+				up.add(i, i - 1);
+			counts[run] = TransitiveClosure.close(up, down, symbols.size(), 500);
+			results.add(rows(up));
+		}
+		assertTrue(counts[0] >= 500 && counts[0] <= 501);
+		assertEquals(counts[0], counts[1]);
+		assertEquals(results.get(0), results.get(1));
+	}
+}
@@ -0,0 +1,72 @@
+package com.articulate.sigma;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestUnifier
+{
+	private static Formula formula(String s)
+	{
+		Formula f = new Formula();
+		f.set(s);
+		return f;
+	}
+
+	@Test public void unifyTest()
+	{
+		SortedMap<String, String> m = formula("(instance ?X Human)").unify(formula("(instance Socrates ?Y)"));
+		assertEquals("{?X=Socrates, ?Y=Human}", m.toString());
+
+		assertTrue(formula("(p a (f ?X))").unify(formula("(p a (f ?X))")).isEmpty());
+		assertNull(formula("(p a)").unify(formula("(p b)")));
+		assertNull(formula("(p ?X)").unify(formula("(p a b)")));
+		assertNull(formula("(p ?X ?X)").unify(formula("(p a b)")));
+	}
+
+	@Test public void occursTest()
+	{
+		assertNull(formula("(p ?X)").unify(formula("(p (f ?X))")));
+		assertNull(formula("(p ?X ?Y)").unify(formula("(p ?Y (f ?X))")));
+		// not an occurrence : ?X is a prefix of ?XY only
+		assertEquals("{?X=(f ?XY)}", formula("(p ?X)").unify(formula("(p (f ?XY))")).toString());
+	}
+
+	@Test public void substituteTest()
+	{
+		Formula f = formula("(p ?X ?Y ?Z)");
+		Formula g = formula("(p (f ?Y) (g ?Z) a)");
+		SortedMap<String, String> m = f.unify(g);
+		assertEquals("(f ?Y)", m.get("?X"));
+		assertEquals("(p (f (g a)) (g a) a)", f.substitute(m).text);
+		assertEquals("(p (f (g a)) (g a) a)", g.substitute(m).text);
+
+		// cyclic map : the variable is left in place
+		SortedMap<String, String> cyclic = new TreeMap<>();
+		cyclic.put("?X", "(f ?X)");
+		assertEquals("(q (f ?X))", formula("(q ?X)").substitute(cyclic).text);
+	}
+
+	@Test public void undoTest()
+	{
+		Unifier unifier = new Unifier();
+		Term t = Term.parse("(p ?X ?Y)");
+		assertTrue(unifier.unify(t, Term.parse("(p a ?Z)")));
+		int mark = unifier.mark();
+		assertTrue(unifier.unify(Term.parse("?Z"), Term.parse("b")));
+		assertEquals("(p a b)", unifier.substitute(t));
+		unifier.undo(mark);
+		assertEquals("(p a ?Z)", unifier.substitute(t));
+
+		// a failed unification leaves the bindings as they were
+		assertFalse(unifier.unify(Term.parse("(q ?Z ?Z)"), Term.parse("(q c d)")));
+		assertEquals("{?X=a, ?Y=?Z}", unifier.getBindings().toString());
+		assertTrue(unifier.unify(Term.parse("?Y"), Term.parse("c")));
+		assertEquals("(p a c)", unifier.substitute(t));
+	}
+}
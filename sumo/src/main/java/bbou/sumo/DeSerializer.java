@@ -1,7 +1,12 @@
 package bbou.sumo;
 
+import com.articulate.sigma.KB;
+import com.articulate.sigma.KBSnapshot;
+
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Enumeration;
@@ -61,6 +66,52 @@ public class DeSerializer
 		throw new ClassNotFoundException(name);
 	}
 
+	/**
+	 * Read KB snapshot from file
+	 *
+	 * @param name name (will be the filename)
+	 * @return KB
+	 * @throws IOException io
+	 */
+	public static KB deserializeKB(final String name) throws IOException
+	{
+		return KBSnapshot.read(new File(name));
+	}
+
+	/**
+	 * Map KB snapshot file, as a read-only KB whose formulas are decoded as they are asked for
+	 *
+	 * @param name name (will be the filename)
+	 * @return read-only KB
+	 * @throws IOException io
+	 */
+	public static KB mapKB(final String name) throws IOException
+	{
+		return KBSnapshot.map(new File(name));
+	}
+
+	/**
+	 * Read KB snapshot from archive
+	 *
+	 * @param archive archive
+	 * @param name    (will be the zipFile entry)
+	 * @return KB
+	 * @throws IOException io
+	 */
+	public static KB deserializeKBZip(final String archive, final String name) throws IOException
+	{
+		try (final ZipFile zipFile = new ZipFile(archive))
+		{
+			final ZipEntry ze = zipFile.getEntry(name);
+			if (ze == null)
+				throw new IOException("No entry " + name + " in " + archive);
+			try (InputStream is = zipFile.getInputStream(ze))
+			{
+				return KBSnapshot.read(is);
+			}
+		}
+	}
+
 	/**
 	 * Deserialize all from archive
 	 *
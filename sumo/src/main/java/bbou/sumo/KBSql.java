@@ -4,11 +4,14 @@
 package bbou.sumo;
 
 import com.articulate.sigma.Formula;
+import com.articulate.sigma.FormulaIndex;
 import com.articulate.sigma.KB;
 
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Extended KB (to allow for loading from SQL database)
@@ -29,7 +32,9 @@ public class KBSql extends KB
 	}
 
 	/**
-	 * Add a new KB constituent by reading in the file, and then merging the formulas with the existing set of formulas.
+	 * Add a new KB constituent by reading in the result of a query. Formulas are merged with the existing set of formulas
+	 * as they are parsed, without being collected in the KIF reader first. If reading fails, the formulas merged so far
+	 * are taken out again, so that the KB is left as it was and the query can be loaded again.
 	 *
 	 * @param url          JDBC url
 	 * @param user         database username
@@ -39,8 +44,27 @@ public class KBSql extends KB
 	 * @param loadVampireP If true, destroys the old Vampire process and starts a new one
 	 * @return log
 	 */
+	public String addSqlConstituent(final String url, final String user, final String password, final String query, final boolean buildCachesP,
+			final boolean loadVampireP)
+	{
+		return addSqlConstituent(url, user, password, query, null, null, buildCachesP, loadVampireP);
+	}
+
+	/**
+	 * Add a new KB constituent by reading in the result of a query, page by page (see KIFSql.readSql).
+	 *
+	 * @param url          JDBC url
+	 * @param user         database username
+	 * @param password     database username password
+	 * @param query        SQL query on formulas, with a parameter for the last key if paged
+	 * @param keyColumn    name of the key column if paged, null otherwise
+	 * @param firstKey     key the first page starts after
+	 * @param buildCachesP If true, forces the assertion caches to be rebuilt
+	 * @param loadVampireP If true, destroys the old Vampire process and starts a new one
+	 * @return log
+	 */
 	@SuppressWarnings({ "nls" }) public String addSqlConstituent(final String url, final String user, final String password, final String query,
-			final boolean buildCachesP, final boolean loadVampireP)
+			final String keyColumn, final Object firstKey, final boolean buildCachesP, final boolean loadVampireP)
 	{
 		final StringBuilder result = new StringBuilder();
 		try
@@ -50,46 +74,39 @@ public class KBSql extends KB
 			if (this.constituents.contains(canonicalPath))
 				return "ERROR: " + canonicalPath + " already loaded.";
 
-			// kif
-			final KIFSql kif = new KIFSql();
-			try
-			{
-				kif.readSql(url, user, password, query);
-				this.errors.addAll(kif.warningSet);
-			}
-			catch (final Exception ex1)
-			{
-				result.append(ex1.getMessage());
-				if (ex1 instanceof ParseException)
-				{
-					result.append(" at line ").append(((ParseException) ex1).getErrorOffset());
-				}
-				result.append(" in file ").append(canonicalPath);
-				return result.toString();
-			}
-
-			// Iterate through the formulas, adding them to the KB, at the appropriate key.
-			int count = 0;
-			for (final String key : kif.formulas.keySet())
-			{
+			// kif, whose formulas are added to the KB at their keys as they are parsed
+			final KIFSql kif = new KIFSql(getSymbols());
+			final int[] count = { 0 };
+			// keys and formulas merged, to be taken out if reading fails
+			final List<String> mergedKeys = new ArrayList<>();
+			final List<Formula> mergedFormulas = new ArrayList<>();
+			// formulas of the same text that the merged ones replaced in the formula map, to be put back
+			final Map<String, Formula> replacedFormulas = new HashMap<>();
+			kif.setSink((f, keys) -> {
 				// trace
-				if (count++ % 100 == 1)
+				if (count[0]++ % 100 == 1)
 				{
 					System.out.print(".");
 				}
-
-				// make sure key has (empty) value
-				List<Formula> value = this.formulas.computeIfAbsent(key, k -> new ArrayList<>());
-
-				// merge
-				for (final Formula f : kif.formulas.get(key))
+				getFormulaIndex().register(f);
+				for (final String key : keys)
 				{
+					// make sure key has (empty) value
+					List<Formula> value = this.formulas.computeIfAbsent(key, k -> new ArrayList<>());
+
+					// merge
 					final String internedFormula = f.text.intern();
-					if (!value.contains(f))
+					boolean present = FormulaIndex.isPositional(key) ? getFormulaIndex().contains(key, f) : value.contains(f);
+					if (!present)
 					{
 						f.setSourceFile(canonicalPath);
 						value.add(f);
-						this.formulaMap.put(internedFormula, f);
+						getFormulaIndex().add(key, f);
+						final Formula replaced = this.formulaMap.put(internedFormula, f);
+						if (replaced != null && replaced != f)
+							replacedFormulas.putIfAbsent(internedFormula, replaced);
+						mergedKeys.add(key);
+						mergedFormulas.add(f);
 					}
 					else
 					{
@@ -102,10 +119,27 @@ public class KBSql extends KB
 						result.append("<P>");
 					}
 				}
+			});
+			dropLiteralIndexes();
+			try
+			{
+				kif.readSql(url, user, password, query, keyColumn, firstKey);
+				this.errors.addAll(kif.warningSet);
+			}
+			catch (final Exception ex1)
+			{
+				result.append(ex1.getMessage());
+				if (ex1 instanceof ParseException)
+				{
+					result.append(" at line ").append(((ParseException) ex1).getErrorOffset());
+				}
+				result.append(" in file ").append(canonicalPath);
+				unmerge(mergedKeys, mergedFormulas, replacedFormulas);
+				return result.toString();
 			}
 
 			// terms
-			this.terms.addAll(kif.terms);
+			addTerms(kif.terms);
 
 			// add constituent name
 			if (!this.constituents.contains(canonicalPath))
@@ -141,4 +175,36 @@ public class KBSql extends KB
 		}
 		return result.toString();
 	}
+
+	/**
+	 * Take merged formulas out of the KB
+	 *
+	 * @param keys     keys the formulas were merged at
+	 * @param formulas formulas, one per key
+	 * @param replaced formulas the merged ones replaced in the formula map, by text
+	 */
+	private void unmerge(final List<String> keys, final List<Formula> formulas, final Map<String, Formula> replaced)
+	{
+		for (int i = keys.size() - 1; i >= 0; i--)
+		{
+			final String key = keys.get(i);
+			final Formula f = formulas.get(i);
+			final List<Formula> value = this.formulas.get(key);
+			if (value != null && value.remove(f))
+			{
+				getFormulaIndex().remove(key, f);
+				if (value.isEmpty())
+					this.formulas.remove(key);
+			}
+			if (this.formulaMap.get(f.text) == f)
+			{
+				final Formula previous = replaced.get(f.text);
+				if (previous != null)
+					this.formulaMap.put(f.text, previous);
+				else
+					this.formulaMap.remove(f.text);
+			}
+		}
+		dropLiteralIndexes();
+	}
 }
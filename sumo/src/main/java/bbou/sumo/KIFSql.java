@@ -4,19 +4,40 @@
 package bbou.sumo;
 
 import com.articulate.sigma.KBManager;
+import com.articulate.sigma.SymbolTable;
 import com.articulate.sigma.kif.KIF;
 
+import java.io.IOException;
 import java.io.Reader;
-import java.io.StringReader;
 import java.sql.*;
 
 /**
- * KIF, extended to read from SQL database
+ * KIF, extended to read from SQL database.
+ * Rows are parsed as they are fetched : the formula column of each row is read through a Reader that pulls the next
+ * row from the result set on demand, so that the result set is never held in memory and parsing starts with the first
+ * rows. Rows are read in batches of fetchSize, for drivers that honour it. In paged mode the query is a prepared
+ * statement, run again for each page with the key of the last row read, so that no cursor stays open over the whole
+ * table (keyset pagination).
  *
  * @author Bernard Bou 23 juin 2009
  */
 public class KIFSql extends KIF
 {
+	/**
+	 * Name of the column holding the formulas
+	 */
+	private static final String FORMULA_COLUMN = "formula"; //$NON-NLS-1$
+
+	/**
+	 * Default number of rows fetched from the database at a time
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+
+	/**
+	 * Number of rows fetched from the database at a time
+	 */
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+
 	/**
 	 * Constructor
 	 */
@@ -25,6 +46,26 @@ public class KIFSql extends KIF
 		super();
 	}
 
+	/**
+	 * Constructor
+	 *
+	 * @param symbols symbol table terms are canonicalized through (may be null)
+	 */
+	public KIFSql(final SymbolTable symbols)
+	{
+		super(symbols);
+	}
+
+	/**
+	 * Set the number of rows fetched from the database at a time
+	 *
+	 * @param fetchSize number of rows, 0 to leave it to the driver
+	 */
+	public void setFetchSize(final int fetchSize)
+	{
+		this.fetchSize = fetchSize;
+	}
+
 	/**
 	 * Read a KIF query.
 	 *
@@ -33,12 +74,33 @@ public class KIFSql extends KIF
 	 * @param password database username password
 	 * @param query    SQL query on formulas
 	 */
-	@SuppressWarnings("nls") public void readSql(final String url, final String user, final String password, final String query) throws Exception
+	public void readSql(final String url, final String user, final String password, final String query) throws Exception
+	{
+		readSql(url, user, password, query, null, null);
+	}
+
+	/**
+	 * Read a KIF query, page by page. The query has a single parameter, the key of the last row of the previous page,
+	 * and is meant to select the rows past it in key order, a page at a time, as in
+	 * SELECT id, formula FROM axioms WHERE id &gt; ? ORDER BY id LIMIT 10000. It is run again until a page is empty.
+	 *
+	 * @param url       JDBC url
+	 * @param user      database username
+	 * @param password  database username password
+	 * @param query     SQL query on formulas, with a parameter for the last key
+	 * @param keyColumn name of the key column
+	 * @param firstKey  key the first page starts after
+	 */
+	@SuppressWarnings("nls") public void readSql(final String url, final String user, final String password, final String query, final String keyColumn,
+			final Object firstKey) throws Exception
 	{
 		Exception exThr = null;
-		try (Reader r = getReader(url, user, password, query))
+		try (RowReader r = getReader(url, user, password, query, keyColumn, firstKey))
 		{
 			parse(r);
+			// the parser only reports a failure to read as a warning
+			if (r.error != null)
+				throw r.error;
 		}
 		catch (final Exception ex)
 		{
@@ -54,27 +116,179 @@ public class KIFSql extends KIF
 	}
 
 	/**
-	 * Get reader
+	 * Get reader. The query is run, for its first page if paged, before the reader is returned so that connection and
+	 * query errors are thrown here; errors while reading rows are thrown by the reader as IOExceptions, and kept.
 	 *
-	 * @param url      JDBC url
-	 * @param user     database username
-	 * @param password database username password
-	 * @param query    SQL query on formulas
-	 * @return Reader
+	 * @param url       JDBC url
+	 * @param user      database username
+	 * @param password  database username password
+	 * @param query     SQL query on formulas
+	 * @param keyColumn name of the key column if paged, null otherwise
+	 * @param firstKey  key the first page starts after
+	 * @return Reader, that owns the connection
 	 * @throws SQLException SQL exception
 	 */
-	private Reader getReader(final String url, final String user, final String password, final String query) throws SQLException
+	private RowReader getReader(final String url, final String user, final String password, final String query, final String keyColumn,
+			final Object firstKey) throws SQLException
 	{
-		final StringBuilder buffer = new StringBuilder();
 		final Connection connection = DriverManager.getConnection(url, user, password);
-		final Statement statement = connection.createStatement();
-		final ResultSet resultSet = statement.executeQuery(query);
-		while (resultSet.next())
+		try
+		{
+			// some drivers (PostgreSQL) only fetch in batches within a transaction
+			connection.setAutoCommit(false);
+			final Statement statement;
+			final ResultSet resultSet;
+			if (keyColumn == null)
+			{
+				statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				statement.setFetchSize(this.fetchSize);
+				resultSet = statement.executeQuery(query);
+			}
+			else
+			{
+				final PreparedStatement preparedStatement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				preparedStatement.setFetchSize(this.fetchSize);
+				preparedStatement.setObject(1, firstKey);
+				statement = preparedStatement;
+				resultSet = preparedStatement.executeQuery();
+			}
+			return new RowReader(connection, statement, resultSet, keyColumn);
+		}
+		catch (final SQLException ex)
+		{
+			connection.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Reader over the formula column of a result set. Each row is followed by an end of line, so that a comment
+	 * ends with its row and line numbers count rows (for single-line formulas).
+	 */
+	private static final class RowReader extends Reader
+	{
+		private final Connection connection;
+
+		private final Statement statement;
+
+		/**
+		 * Name of the key column if paged, null otherwise
+		 */
+		private final String keyColumn;
+
+		/**
+		 * Result set of the current page, null once all rows are read
+		 */
+		private ResultSet resultSet;
+
+		/**
+		 * Key of the last row read
+		 */
+		private Object lastKey;
+
+		/**
+		 * Number of rows read from the current page
+		 */
+		private int pageRows;
+
+		/**
+		 * Error that stopped reading, null if none
+		 */
+		SQLException error;
+
+		/**
+		 * Current row, with its end of line
+		 */
+		private String row = ""; //$NON-NLS-1$
+
+		/**
+		 * Position in the current row
+		 */
+		private int pos;
+
+		RowReader(final Connection connection, final Statement statement, final ResultSet resultSet, final String keyColumn)
+		{
+			this.connection = connection;
+			this.statement = statement;
+			this.resultSet = resultSet;
+			this.keyColumn = keyColumn;
+		}
+
+		@Override public int read(final char[] cbuf, final int off, final int len) throws IOException
+		{
+			int n = 0;
+			while (n < len)
+			{
+				if (this.pos == this.row.length() && !nextRow())
+				{
+					// the chars read before an error are returned first, the error is thrown on the next call
+					if (n > 0)
+						return n;
+					if (this.error != null)
+						throw new IOException(this.error);
+					return len > 0 ? -1 : 0;
+				}
+				final int k = Math.min(len - n, this.row.length() - this.pos);
+				this.row.getChars(this.pos, this.pos + k, cbuf, off + n);
+				this.pos += k;
+				n += k;
+			}
+			return n;
+		}
+
+		/**
+		 * Move to the next row, running the query for the next page at the end of a page that was not empty
+		 *
+		 * @return whether there is a next row, false if the database fails, the error being kept
+		 */
+		private boolean nextRow()
+		{
+			try
+			{
+				while (this.error == null && this.resultSet != null)
+				{
+					if (this.resultSet.next())
+					{
+						final String formula = this.resultSet.getString(FORMULA_COLUMN);
+						if (this.keyColumn != null)
+						{
+							this.lastKey = this.resultSet.getObject(this.keyColumn);
+							this.pageRows++;
+						}
+						this.row = formula == null ? "\n" : formula + '\n'; //$NON-NLS-1$
+						this.pos = 0;
+						return true;
+					}
+					this.resultSet.close();
+					this.resultSet = null;
+					if (this.keyColumn != null && this.pageRows > 0)
+					{
+						final PreparedStatement preparedStatement = (PreparedStatement) this.statement;
+						preparedStatement.setObject(1, this.lastKey);
+						this.pageRows = 0;
+						this.resultSet = preparedStatement.executeQuery();
+					}
+				}
+				return false;
+			}
+			catch (final SQLException ex)
+			{
+				this.error = ex;
+				return false;
+			}
+		}
+
+		@Override public void close() throws IOException
 		{
-			buffer.append(resultSet.getString("formula")); //$NON-NLS-1$
+			// read only : the transaction is rolled back
+			try (Connection connection = this.connection)
+			{
+				connection.rollback();
+			}
+			catch (final SQLException ex)
+			{
+				throw new IOException(ex);
+			}
 		}
-		resultSet.close();
-		connection.close();
-		return new StringReader(buffer.toString());
 	}
 }
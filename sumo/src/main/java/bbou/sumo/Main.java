@@ -1,16 +1,15 @@
 package bbou.sumo;
 
-import com.articulate.sigma.Formula;
 import com.articulate.sigma.KB;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.List;
 
 public class Main
 {
 	static private final boolean DUMP = false;
 
-	static public void main(String[] args) throws IOException, ClassNotFoundException
+	static public void main(String[] args) throws IOException
 	{
 		//URL url = Main.class.getResource("logging.properties");
 		//String loggingPath = url.getFile();
@@ -26,13 +25,13 @@ public class Main
 		makeClausalForms(kb);
 
 		System.out.printf("%nKb serializing%n");
-		Serializer.serializeFile("./sumokb.ser", kb);
-		Serializer.serializeZip("./sumo.zip", "kb", kb);
+		Serializer.serializeKB("./sumokb.snapshot", kb);
+		Serializer.serializeKBZip("./sumo.zip", "kb", kb);
 		System.out.printf("Kb serialized%n");
 
 		System.out.printf("%nKb de-serializing%n");
-		KB kb2 = (KB) DeSerializer.deserializeZip("./sumo.zip", "kb");
-		KB kb3 = (KB) DeSerializer.deserializeFile("./sumokb.ser");
+		KB kb2 = DeSerializer.deserializeKBZip("./sumo.zip", "kb");
+		KB kb3 = DeSerializer.deserializeKB("./sumokb.snapshot");
 		System.out.printf("Kb de-serialized%n");
 		System.out.printf("Kb2%n");
 		dumpKb(kb2);
@@ -60,17 +59,8 @@ public class Main
 
 	static private void makeClausalForms(KB kb)
 	{
-		long count = 0;
-		for (List<Formula> fs : kb.formulas.values())
-		{
-			for (Formula f : fs)
-			{
-				/* Tuple.Triplet<List<Clause>, Formula, Map<String, String>> cf = */
-				f.getClausalForm();
-				if ((count++ % 100L) == 0)
-					System.out.println();
-				System.out.print('!');
-			}
-		}
+		System.out.printf("%nKb clausifying%n");
+		int count = kb.makeClausalForms(new File("./sumo.clauses"));
+		System.out.printf("Kb clausified %d%n", count);
 	}
 }
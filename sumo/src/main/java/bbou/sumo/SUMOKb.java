@@ -40,8 +40,8 @@ public class SUMOKb extends KB implements Serializable
 		for (final String filePath : filePaths)
 		{
 			System.out.println("\n" + filePath);
-			kb.addConstituent(filePath);
 		}
+		kb.addConstituents(Arrays.asList(filePaths));
 	}
 
 	protected static String[] getFiles(final String dirName)
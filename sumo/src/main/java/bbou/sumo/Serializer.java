@@ -1,5 +1,9 @@
 package bbou.sumo;
 
+import com.articulate.sigma.KB;
+import com.articulate.sigma.KBSnapshot;
+
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
@@ -91,4 +95,35 @@ public class Serializer
 			}
 		}
 	}
+
+	/**
+	 * Write KB snapshot to file
+	 *
+	 * @param name name (will be the filename)
+	 * @param kb   KB
+	 * @throws IOException io
+	 */
+	public static void serializeKB(final String name, final KB kb) throws IOException
+	{
+		KBSnapshot.write(kb, new File(name));
+	}
+
+	/**
+	 * Write KB snapshot to archive
+	 *
+	 * @param archive archive
+	 * @param name    name (will be the zipFile entry)
+	 * @param kb      KB
+	 * @throws IOException io
+	 */
+	public static void serializeKBZip(final String archive, final String name, final KB kb) throws IOException
+	{
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive, true)))
+		{
+			final ZipEntry ze = new ZipEntry(name);
+			zos.putNextEntry(ze);
+			KBSnapshot.write(kb, zos);
+			zos.closeEntry();
+		}
+	}
 }
@@ -0,0 +1,217 @@
+package bbou.sumo;
+
+import com.articulate.sigma.Formula;
+import com.articulate.sigma.Term;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestKIFSql
+{
+	private static final String URL = "jdbc:h2:mem:kifsql;DB_CLOSE_DELAY=-1";
+
+	private static final String[] ROWS = { //
+			"(instance Fido Dog)", //
+			"(subclass Dog Canine) ; a trailing comment that must not swallow the next row", //
+			"(=> (instance ?X Dog)\n  (instance ?X Animal))", //
+			"(instance Rex Dog)", //
+			"(instance Fido Dog)", // duplicate
+			"; a comment row", //
+			"(subclass Canine Animal)", //
+			"(documentation Dog EnglishLanguage \"A (domestic) dog\")", //
+			"(instance Felix Cat)", //
+	};
+
+	private static final String QUERY = "SELECT formula FROM axioms ORDER BY id";
+
+	private static final String PAGED_QUERY = "SELECT id, formula FROM axioms WHERE id > ? ORDER BY id LIMIT ";
+
+	/**
+	 * Connection that keeps the in-memory database alive and lists sessions
+	 */
+	private static Connection connection;
+
+	@BeforeClass public static void setUp() throws SQLException
+	{
+		connection = DriverManager.getConnection(URL, "", "");
+		try (Statement statement = connection.createStatement())
+		{
+			statement.execute("CREATE TABLE axioms (id INT PRIMARY KEY, formula VARCHAR(1000))");
+		}
+		try (PreparedStatement statement = connection.prepareStatement("INSERT INTO axioms VALUES (?, ?)"))
+		{
+			for (int i = 0; i < ROWS.length; i++)
+			{
+				statement.setInt(1, i + 1);
+				statement.setString(2, ROWS[i]);
+				statement.executeUpdate();
+			}
+		}
+	}
+
+	@AfterClass public static void tearDown() throws SQLException
+	{
+		connection.close();
+	}
+
+	private static String dump(KIFSql kif)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(kif.formulaSet).append(kif.terms).append(kif.warningSet.size());
+		for (String key : new TreeSet<>(kif.formulas.keySet()))
+			sb.append(key).append('=').append(kif.formulas.get(key).size());
+		return sb.toString();
+	}
+
+	private static int sessions() throws SQLException
+	{
+		try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SESSIONS"))
+		{
+			resultSet.next();
+			return resultSet.getInt(1);
+		}
+	}
+
+	@Test public void readTest() throws Exception
+	{
+		KIFSql kif = new KIFSql();
+		kif.readSql(URL, "", "", QUERY);
+		assertEquals(Arrays.asList( //
+				"(instance Fido Dog)", //
+				"(subclass Dog Canine)", //
+				"(=> (instance ?X Dog) (instance ?X Animal))", //
+				"(instance Rex Dog)", //
+				"(subclass Canine Animal)", //
+				"(documentation Dog EnglishLanguage \"A (domestic) dog\")", //
+				"(instance Felix Cat)"), new ArrayList<>(kif.formulaSet));
+		assertEquals(1, kif.warningSet.size()); // duplicate
+		assertEquals(1, sessions());
+	}
+
+	@Test public void pagedTest() throws Exception
+	{
+		KIFSql whole = new KIFSql();
+		whole.readSql(URL, "", "", QUERY);
+
+		// pages of one row, pages that end with the table, a last page that is not full, a single page
+		for (int pageSize : new int[] { 1, 3, 4, 100 })
+		{
+			for (int fetchSize : new int[] { 0, 2 })
+			{
+				KIFSql paged = new KIFSql();
+				paged.setFetchSize(fetchSize);
+				paged.readSql(URL, "", "", PAGED_QUERY + pageSize, "id", 0);
+				assertEquals("page size " + pageSize, dump(whole), dump(paged));
+			}
+		}
+		assertEquals(1, sessions());
+	}
+
+	@Test public void errorTest() throws Exception
+	{
+		try
+		{
+			new KIFSql().readSql(URL, "", "", "SELECT formula FROM missing");
+			fail();
+		}
+		catch (SQLException ex)
+		{
+			// expected
+		}
+
+		// the second page fails, after the rows of the first have been parsed
+		String failing = "SELECT id, CASE WHEN id < 5 THEN formula ELSE CAST(CAST(CONCAT('x', id) AS INT) AS VARCHAR) END AS formula FROM axioms WHERE id > ? ORDER BY id LIMIT 3";
+		KIFSql kif = new KIFSql();
+		try
+		{
+			kif.readSql(URL, "", "", failing, "id", 0);
+			fail();
+		}
+		catch (SQLException ex)
+		{
+			// expected
+		}
+		assertEquals(3, kif.formulaSet.size());
+		assertEquals(1, sessions());
+
+		// the formulas merged before the failure are taken out of the KB
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		KBSql kb = new KBSql("sql", dir.getPath());
+		String log = kb.addSqlConstituent(URL, "", "", failing, "id", 0, false, false);
+		assertTrue(log, !log.isEmpty());
+		assertTrue(kb.formulaMap.isEmpty());
+		assertTrue(kb.formulas.isEmpty());
+		assertTrue(kb.constituents.isEmpty());
+
+		// and the query can be loaded again, once it can be read
+		kb.addSqlConstituent(URL, "", "", QUERY, false, false);
+		assertEquals(7, kb.formulaMap.size());
+		assertEquals(1, kb.constituents.size());
+	}
+
+	@Test public void existingTest() throws Exception
+	{
+		// a formula loaded from a file, which the failing query reads too
+		File file = File.createTempFile("existing", ".kif");
+		file.deleteOnExit();
+		Files.write(file.toPath(), Arrays.asList("(instance Fido Dog)", "(instance Tom Cat)"), StandardCharsets.UTF_8);
+		KBSql kb = new KBSql("sql", file.getParent());
+		kb.addConstituent(file.getPath());
+		Formula existing = kb.formulaMap.get("(instance Fido Dog)");
+		assertNotNull(existing);
+
+		String failing = "SELECT id, CASE WHEN id < 5 THEN formula ELSE CAST(CAST(CONCAT('x', id) AS INT) AS VARCHAR) END AS formula FROM axioms WHERE id > ? ORDER BY id LIMIT 3";
+		String log = kb.addSqlConstituent(URL, "", "", failing, "id", 0, false, false);
+		assertTrue(log, !log.isEmpty());
+
+		// the KB is left as the file made it
+		assertEquals(2, kb.formulaMap.size());
+		assertSame(existing, kb.formulaMap.get("(instance Fido Dog)"));
+		assertEquals(Collections.singletonList(existing), kb.formulas.get("arg-1-Fido"));
+		assertEquals(1, kb.constituents.size());
+	}
+
+	@Test public void literalIndexTest() throws Exception
+	{
+		File file = File.createTempFile("indexed", ".kif");
+		file.deleteOnExit();
+		Files.write(file.toPath(), Collections.singletonList("(instance Tom Cat)"), StandardCharsets.UTF_8);
+		KBSql kb = new KBSql("sql", file.getParent());
+		kb.addConstituent(file.getPath());
+		kb.makeClausalForms();
+		assertEquals(1, kb.getAssertionIndex().size());
+		assertEquals(1, kb.getLiteralIndex(true).size());
+
+		// formulas merged from a failing query are not left in the trees
+		String failing = "SELECT id, CASE WHEN id < 5 THEN formula ELSE CAST(CAST(CONCAT('x', id) AS INT) AS VARCHAR) END AS formula FROM axioms WHERE id > ? ORDER BY id LIMIT 3";
+		kb.addSqlConstituent(URL, "", "", failing, "id", 0, false, false);
+		assertEquals("[(instance Tom Cat)]", texts(kb.askInstances("(instance ?X ?C)")));
+
+		// the trees are rebuilt with the formulas read from the database
+		kb.addSqlConstituent(URL, "", "", QUERY, false, false);
+		assertEquals("[(instance Tom Cat), (instance Fido Dog), (instance Rex Dog), (instance Felix Cat)]", texts(kb.askWithLiteral(Arrays.asList("instance", "?X", "?C"))));
+		kb.makeClausalForms();
+		assertEquals(1, kb.getLiteralIndex(false).getUnifiable(Term.parse("(instance Fido ?C)")).size());
+		assertEquals(8, kb.getLiteralIndex(true).size());
+	}
+
+	private static String texts(List<Formula> formulas)
+	{
+		List<String> texts = new ArrayList<>();
+		for (Formula f : formulas)
+			texts.add(f.text);
+		return texts.toString();
+	}
+}